@@ -0,0 +1,354 @@
+package edu.umd.cs424.database.index;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+
+import edu.umd.cs424.database.BaseTransaction;
+import edu.umd.cs424.database.common.Buffer;
+import edu.umd.cs424.database.common.Pair;
+import edu.umd.cs424.database.databox.DataBox;
+import edu.umd.cs424.database.io.Page;
+import edu.umd.cs424.database.table.RecordId;
+
+/**
+ * An inner node or a leaf node. See InnerNode and LeafNode for more
+ * information.
+ */
+abstract class BPlusNode {
+    // Core API //////////////////////////////////////////////////////////////////
+    /**
+     * n.get(k) returns the leaf node on which k may reside when queried from n.
+     * For example, consider the following B+ tree (for brevity, only keys are
+     * shown; record ids are ommitted).
+     *
+     *                               inner
+     *                               +----+----+----+----+
+     *                               | 10 | 20 |    |    |
+     *                               +----+----+----+----+
+     *                              /     |     \
+     *                         ____/      |      \____
+     *                        /           |           \
+     *   +----+----+----+----+  +----+----+----+----+  +----+----+----+----+
+     *   |  1 |  2 |  3 |    |->| 11 | 12 | 13 |    |->| 21 | 22 | 23 |    |
+     *   +----+----+----+----+  +----+----+----+----+  +----+----+----+----+
+     *   leaf0                  leaf1                  leaf2
+     *
+     * inner.get(x) should return
+     *
+     *   - leaf0 when x < 10,
+     *   - leaf1 when 10 <= x < 20, and
+     *   - leaf2 when x >= 20.
+     *
+     * Note that inner.get(4) would return leaf0 even though leaf0 doesn't
+     * actually contain 4.
+     */
+    public abstract LeafNode get(BaseTransaction transaction, DataBox key);
+
+    /**
+     * n.getLeftmostLeaf() returns the leftmost leaf in the subtree rooted by n.
+     * In the example above, inner.getLeftmostLeaf() would return leaf0, and
+     * leaf1.getLeftmostLeaf() would return leaf1.
+     */
+    public abstract LeafNode getLeftmostLeaf(BaseTransaction transaction);
+
+    /**
+     * n.put(k, r) inserts the pair (k, r) into the subtree rooted by n. There
+     * are two cases to consider:
+     *
+     *   Case 1: If inserting the pair (k, r) does NOT cause n to overflow, then
+     *           Optional.empty() is returned.
+     *   Case 2: If inserting the pair (k, r) does cause the node n to overflow,
+     *           then n is split into a left and right node (described more
+     *           below) and a pair (split_key, right_node_page_num) is returned
+     *           where right_node_page_num is the page number of the newly
+     *           created right node, and the value of split_key depends on
+     *           whether n is an inner node or a leaf node (described more below).
+     *
+     * If n is a leaf of order d that overflows with 2d + 1 pairs, the left node
+     * keeps the first d pairs, the right node gets the last d + 1 pairs, and
+     * split_key is the first key of the right node.
+     *
+     * If n is an inner node of order d that overflows with 2d + 1 keys, the left
+     * node keeps the first d keys, the right node gets the last d keys, and
+     * split_key is the middle key, which is moved up rather than copied.
+     *
+     * An exception is thrown if k is already in the subtree rooted by n.
+     *
+     * `values` are the values of the included columns of the record r, stored
+     * alongside the pair, or null if the tree has no included columns (see
+     * BPlusTreeMetadata.getIncludedSchema).
+     */
+    public abstract Optional<Pair<DataBox, Integer>> put(BaseTransaction transaction, DataBox key, RecordId rid,
+                                                         List<DataBox> values)
+    throws BPlusTreeException;
+
+    /**
+     * n.remove(k) removes the key k and its corresponding record id from the
+     * subtree rooted by n, or does nothing if the key k is not in the subtree.
+     *
+     * Nodes below n that underflow (see isUnderflowing) are rebalanced with a
+     * sibling: if the sibling has entries to spare they are redistributed,
+     * otherwise the two nodes are merged and the page of the right one is
+     * returned to the free list. n itself may be left underflowing; it is up to
+     * n's parent (or the tree, if n is the root) to fix that.
+     */
+    public abstract void remove(BaseTransaction transaction, DataBox key);
+
+    /**
+     * n.remove(k, r) removes the pair (k, r) from the subtree rooted by n and
+     * returns true, or returns false if the pair is not in the subtree. Nodes are
+     * rebalanced like in n.remove(k).
+     *
+     * This is meant for trees that allow duplicate keys, where the entries of k
+     * may be spread over several adjacent leaves, all of which are searched.
+     */
+    public abstract boolean remove(BaseTransaction transaction, DataBox key, RecordId rid);
+
+    /**
+     * n.putAll(entries) inserts all the (k, r) pairs of `entries`, with the
+     * values of the included columns they carry if the tree has any, into the
+     * subtree rooted by n. `entries` must be sorted by key and free of
+     * duplicates. Every
+     * child whose subtree receives entries is descended into once, and every
+     * node that changes is written once.
+     *
+     * This is n.put for a whole batch, except that n may have to be split into
+     * more than two nodes. n keeps the first part, and a (split_key,
+     * right_node_page_num) pair is returned for every other part, in ascending
+     * order of split_key. The list is empty if n did not overflow. All parts
+     * hold at least d entries (or keys).
+     *
+     * An exception is thrown if any k is already in the leaf it belongs in; that
+     * leaf is left unchanged.
+     */
+    abstract List<Pair<DataBox, Integer>> putAll(BaseTransaction transaction, List<IndexEntry> entries)
+    throws BPlusTreeException;
+
+    /**
+     * n.removeAll(keys) removes all the keys of `keys`, which must be sorted and
+     * free of duplicates, from the subtree rooted by n. Keys that are not in
+     * the subtree are ignored. Like putAll, every affected node is visited once,
+     * and underflowing nodes are rebalanced like in n.remove. Returns the keys
+     * that were removed, in ascending order.
+     */
+    abstract List<DataBox> removeAll(BaseTransaction transaction, List<DataBox> keys);
+
+    /**
+     * Returns the number of (key, rid) pairs in the subtree rooted by n. Only
+     * for trees with subtree counts (see BPlusTreeMetadata.isCounted), where an
+     * inner node knows the count of every child without reading it.
+     */
+    abstract int subtreeSize();
+
+    // Rebalancing ///////////////////////////////////////////////////////////////
+    /**
+     * Returns the number of keys in this node: the number of (key, rid) pairs
+     * of a leaf or the number of keys of an inner node.
+     */
+    abstract int size();
+
+    /** Returns whether this node holds fewer than d keys. */
+    boolean isUnderflowing() {
+        return size() < getMetadata().getOrder();
+    }
+
+    /** Returns whether one more entry can be put into this node without splitting it. */
+    boolean isSafeForPut() {
+        return size() < 2 * getMetadata().getOrder();
+    }
+
+    /**
+     * Returns whether an entry can be removed from this node without it
+     * underflowing, i.e. whether it can lend an entry to a sibling.
+     */
+    boolean isSafeForRemove() {
+        return size() > getMetadata().getOrder();
+    }
+
+    /**
+     * Returns the number of entries to shift from this node to `sibling`, its
+     * right sibling if `toRight` and its left sibling otherwise, so that the
+     * two are about even: after the shift, this node is fuller than `sibling`
+     * by at most one entry. The count is worked out once up front, since
+     * shifting one entry at a time until the two are even would size both
+     * nodes again after every entry.
+     */
+    int entriesToShift(BPlusNode sibling, boolean toRight) {
+        return Math.max(0, (size() - sibling.size()) / 2);
+    }
+
+    /**
+     * Moves the first `count` entries of `right`, this node's right sibling, to
+     * the end of this node. `separator` is the key separating the two nodes in
+     * their parent. Returns the new separator. Neither node is synced.
+     */
+    abstract DataBox shiftFromRight(BPlusNode right, DataBox separator, int count);
+
+    /**
+     * Moves the last `count` entries of this node to the front of `right`, this
+     * node's right sibling. `separator` is the key separating the two nodes in
+     * their parent. Returns the new separator. Neither node is synced.
+     */
+    abstract DataBox shiftToRight(BPlusNode right, DataBox separator, int count);
+
+    /**
+     * Appends all entries of `right`, this node's right sibling, to this node.
+     * `separator` is the key separating the two nodes in their parent. This node
+     * is not synced, and `right` must be freed by the caller. If the nodes are
+     * leaves, the leaf to the right of `right` is relinked to this node.
+     */
+    abstract void mergeRight(BaseTransaction transaction, BPlusNode right, DataBox separator);
+
+    /**
+     * Returns whether the entries of `right`, this node's right sibling, fit
+     * into this node along with its own (see mergeRight). `separator` is the
+     * key separating the two nodes in their parent.
+     */
+    boolean fitsMergedWith(BPlusNode right, DataBox separator) {
+        return size() + right.size() <= 2 * getMetadata().getOrder();
+    }
+
+    // Helpers ///////////////////////////////////////////////////////////////////
+    /** Get the page on which this node is persisted. */
+    abstract Page getPage();
+
+    /** Get the metadata of the tree this node belongs to. */
+    abstract BPlusTreeMetadata getMetadata();
+
+    /**
+     * Returns a copy of this node that shares no mutable state with it, and
+     * that is not written to the page until it is synced. The node cache only
+     * ever keeps such copies, and callers that change a cached node change a
+     * copy of it; see NodeCache.
+     */
+    abstract BPlusNode copy();
+
+    /**
+     * Prepares this node, which nobody changes anymore, to be read by many
+     * threads at once (see NodeCache): whatever a read would otherwise compute
+     * lazily, and store in the node, is computed now.
+     */
+    void prepareForSharing() {}
+
+    // Pretty Printing ///////////////////////////////////////////////////////////
+    /**
+     * S-expressions (or sexps) are a compact way of encoding nested tree-like
+     * structures (sort of like how JSON is a way of encoding nested dictionaries
+     * and lists). n.toSexp() returns an sexp encoding of the subtree rooted by n.
+     */
+    public abstract String toSexp(BaseTransaction transaction);
+
+    /**
+     * n.toDot() returns a fragment of a DOT file that draws the subtree rooted
+     * at n. See BPlusTree.toDot for more information.
+     */
+    public abstract String toDot(BaseTransaction transaction);
+
+    // Serialization /////////////////////////////////////////////////////////////
+    /** n.toBytes() serializes n. */
+    public abstract byte[] toBytes();
+
+    /**
+     * BPlusNode.fromBytes(t, m, p) loads a BPlusNode from page `p` of
+     * `meta.getAllocator()`. Nodes found in the tree's node cache are copied
+     * without touching the page at all.
+     */
+    public static BPlusNode fromBytes(BaseTransaction transaction, BPlusTreeMetadata metadata, int pageNum) {
+        BPlusNode cached = metadata.getNodeCache().get(pageNum);
+        if (cached != null) {
+            return cached.copy();
+        }
+        return fromPage(transaction, metadata, pageNum);
+    }
+
+    /**
+     * Like fromBytes, but returns a cached node itself rather than a copy of
+     * it. The node is shared with every other reader of the page, so the
+     * caller must not change it.
+     */
+    static BPlusNode readShared(BaseTransaction transaction, BPlusTreeMetadata metadata, int pageNum) {
+        BPlusNode cached = metadata.getNodeCache().get(pageNum);
+        if (cached != null) {
+            return cached;
+        }
+        return fromPage(transaction, metadata, pageNum);
+    }
+
+    private static BPlusNode fromPage(BaseTransaction transaction, BPlusTreeMetadata metadata, int pageNum) {
+        // Only the decode below counts as a page fetch in the metrics.
+        Page p = metadata.getAllocator().fetchPage(transaction, pageNum);
+        Buffer buf = p.getBuffer(transaction);
+        byte b = buf.get();
+        if (b == 1) {
+            return LeafNode.decode(transaction, metadata, pageNum);
+        } else if (b == 0) {
+            return InnerNode.decode(transaction, metadata, pageNum);
+        } else if (b == BPlusTreeMetadata.FREE_PAGE) {
+            String msg = String.format("Page %d is on the free list.", pageNum);
+            throw new IllegalArgumentException(msg);
+        } else {
+            String msg = String.format("Unexpected byte %b.", b);
+            throw new IllegalArgumentException(msg);
+        }
+    }
+
+    /**
+     * Throws an IllegalArgumentException unless `type`, the first byte of page
+     * `pageNum`, says that the page holds a leaf (if `leaf`) or an inner node
+     * (otherwise). A page number that was read before its page was freed, say
+     * a leaf's sibling pointer kept by a scan, may by now lead to a free page
+     * or to a page that was reused for another node, which must not be decoded
+     * as if it still held the node.
+     */
+    static void checkPageType(int pageNum, byte type, boolean leaf) {
+        if (type == BPlusTreeMetadata.FREE_PAGE) {
+            String msg = String.format("Page %d is on the free list.", pageNum);
+            throw new IllegalArgumentException(msg);
+        }
+        if (type != (leaf ? (byte) 1 : (byte) 0)) {
+            String msg = String.format("Page %d does not hold %s.", pageNum, leaf ? "a leaf" : "an inner node");
+            throw new IllegalArgumentException(msg);
+        }
+    }
+
+    /**
+     * Decodes the node on page `pageNum`, bypassing the node cache, or returns
+     * null if the page is on the free list.
+     */
+    static BPlusNode decode(BaseTransaction transaction, BPlusTreeMetadata metadata, int pageNum) {
+        byte b = metadata.getAllocator().fetchPage(transaction, pageNum).getBuffer(transaction).get(0);
+        if (b == 1) {
+            return LeafNode.decode(transaction, metadata, pageNum);
+        } else if (b == 0) {
+            return InnerNode.decode(transaction, metadata, pageNum);
+        }
+        return null;
+    }
+
+    /**
+     * Writes this node to its page if its serialization changed, and writes it
+     * through to the node cache so that later lookups of the page see this copy.
+     * If snapshots are open, the node the page held so far is kept for them
+     * (see PageVersions), and if the tree is logged, the write is added to
+     * this thread's next record of the redo log (see RedoLog).
+     */
+    void sync(BaseTransaction transaction) {
+        Page page = getPage();
+        Buffer b = page.getBuffer(transaction);
+        byte[] newBytes = toBytes();
+        byte[] bytes = new byte[newBytes.length];
+        b.get(bytes);
+        if (!Arrays.equals(bytes, newBytes)) {
+            int pageNum = page.getPageNum();
+            BPlusTreeMetadata metadata = getMetadata();
+            metadata.getVersions().beforeWrite(pageNum, () -> decode(transaction, metadata, pageNum));
+            metadata.getRedoLog().beforeWrite(pageNum, () -> metadata.readPage(transaction, pageNum, Page.pageSize));
+            page.getBuffer(transaction).put(newBytes);
+            metadata.getRedoLog().written(pageNum, newBytes);
+            metadata.getMetrics().countPageWrite();
+        }
+        getMetadata().getNodeCache().put(this);
+    }
+}
@@ -4,15 +4,33 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.FileWriter;
 import java.io.File;
+import java.lang.ref.Cleaner;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.IntSupplier;
+import java.util.function.IntUnaryOperator;
+import java.util.function.ToIntFunction;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 import edu.umd.cs424.database.BaseTransaction;
 import edu.umd.cs424.database.common.Buffer;
 import edu.umd.cs424.database.common.Pair;
 import edu.umd.cs424.database.concurrency.LockContext;
 import edu.umd.cs424.database.databox.DataBox;
-import edu.umd.cs424.database.databox.IntDataBox;
 import edu.umd.cs424.database.databox.Type;
 import edu.umd.cs424.database.io.Page;
 import edu.umd.cs424.database.io.PageAllocator;
@@ -57,12 +75,96 @@ import javax.xml.crypto.Data;
 public class BPlusTree implements Closeable {
 	public static final String FILENAME_PREFIX = "db";
 	public static final String FILENAME_EXTENSION = ".index";
+	// The redo log of a tree is kept next to its file, in a file with the same
+	// name and this appended. See setRedoLogged.
+	public static final String REDO_LOG_EXTENSION = ".redo";
 
 	private final PageAllocator allocator;
+	private final Path redoLogPath;
 	private final BPlusTreeMetadata metadata;
 	private final Page headerPage;
 	private final LockContext lockContext;
-	private BPlusNode root;
+
+	// The page number of the root. The root node itself is not kept around:
+	// every operation gets it like any other node (see rootNode), so that no
+	// operation can work on a stale copy of it.
+	private volatile int rootPageNum;
+
+	// The tree is safe to use from multiple threads. Every page has a latch (see
+	// BPlusTreeMetadata.getLatch) and operations crab down the tree: a child is
+	// latched before its parent is released. rootLatch plays the role of the
+	// parent latch of the root, and must be held to read or replace
+	// rootPageNum.
+	//
+	// Readers take read latches all the way down. Writers first try the same
+	// thing, only write latching the leaf, and succeed if the leaf will neither
+	// split nor underflow. Otherwise they retry with write latches all the way
+	// down, releasing all ancestors whenever they reach a node that is safe, so
+	// they end up holding exactly the nodes that a split or merge may touch.
+	// In a logged tree they keep rootLatch instead, so that the records of
+	// operations that change more than one page are appended to the redo log
+	// one at a time, before rootLatch is released (see RedoLog.Latch).
+	private final ReentrantReadWriteLock rootLatch;
+
+	// Read latched by every writer that releases rootLatch on its way down (see
+	// latchPathForWrite) until it is done, and write latched, under rootLatch
+	// read, to open a snapshot. Such writers may still split or merge nodes,
+	// and a snapshot that opened halfway through would see half of it.
+	private final ReentrantReadWriteLock detachedWriters = new ReentrantReadWriteLock();
+
+	// Online compaction; see compact. compactionLock is held for the whole of a
+	// compaction, and while `compacting` is set, writers that reach a leaf wait
+	// for the compaction to finish instead of writing to the old tree.
+	private final ReentrantLock compactionLock = new ReentrantLock();
+	private volatile boolean compacting = false;
+
+	// Scans that were open when a compaction swapped in the new tree may still
+	// walk the leaves of the old one, so its pages are only freed once those
+	// scans are over. Every scan counts itself in openScans under the epoch
+	// that is current when it starts (see OpenScan), and every compaction
+	// retires the pages of the old tree under the current epoch and then starts
+	// the next one. Retired pages are freed once no scan of their epoch or an
+	// earlier one is left. All of these are guarded by openScans.
+	private final TreeMap<Long, Integer> openScans = new TreeMap<>();
+	private long scanEpoch = 0;
+	private final ArrayDeque<Pair<Long, List<Integer>>> retiredPages = new ArrayDeque<>();
+
+	// The most keys that getAll looks up in one pass down the tree, holding
+	// read latches on its path the whole time.
+	private static final int GET_ALL_BATCH_SIZE = 1024;
+
+	// Leaf read-ahead for scans. See setReadAheadWindow. The cleaner also
+	// closes abandoned scans (see OpenScan) and the snapshots of abandoned
+	// snapshot scans (see scanSnapshot).
+	private static final Cleaner ITERATOR_CLEANER = Cleaner.create();
+	private int readAheadWindow = 0;
+	private ExecutorService readAheadExecutor = null;
+	private final AtomicLong prefetchHits = new AtomicLong();
+	private final AtomicLong wastedPrefetches = new AtomicLong();
+
+	// An in-memory Bloom filter over every key put into the tree since it was
+	// created, or null if there is none (see setKeyFilter). Writers add their
+	// key while still holding the latch of its leaf. Removed keys stay in it.
+	private volatile BloomFilter keyFilter = null;
+	private final AtomicLong keyFilterNegatives = new AtomicLong();
+	private final AtomicLong keyFilterFalsePositives = new AtomicLong();
+
+	// In a tree with write buffers, the messages added to the buffer of the
+	// root since it was last written, which belong in front of those on its
+	// page. Writers add theirs with rootLatch only read latched and
+	// rootMessagesLatch write latched, and the root only takes them, and is
+	// written, once its buffer would no longer fit on its page with them (see
+	// flushRootMessages), with rootLatch write latched. Readers read them with
+	// rootMessagesLatch read latched.
+	private final TreeMap<DataBox, Optional<RecordId>> rootMessages = new TreeMap<>();
+	private final ReentrantReadWriteLock rootMessagesLatch = new ReentrantReadWriteLock();
+	// Held by the writer that is flushing rootMessages, if any.
+	private final ReentrantLock rootMessagesFlushLock = new ReentrantLock();
+
+	// The number of levels of the tree, and statistics about its keys for the
+	// query planner (see estimateCount). Both are persisted in the header page.
+	private volatile int height;
+	private volatile KeyStatistics statistics;
 
 	// Constructors ////////////////////////////////////////////////////////////
 	/**
@@ -80,21 +182,71 @@ public class BPlusTree implements Closeable {
 	 * We reserve the first page (i.e. page number 0) of the file for a header page
 	 * which contains:
 	 *
-	 * - the key schema of the tree, - the order of the tree, and - the page number
-	 * of the root of the tree.
+	 * - the key schema of the tree, - the order of the tree, - the page number
+	 * of the root of the tree, - the head and length of the free list of
+	 * pages released by merging nodes (see BPlusTreeMetadata.allocPage), -
+	 * whether the tree allows duplicate keys, - whether it keeps subtree
+	 * counts, - the version of the page format, - the schema of the
+	 * included columns, - the height of the tree and statistics about its
+	 * keys, - whether inner nodes have write buffers, - whether nodes use
+	 * slotted pages, - the columns of composite keys, and - whether the
+	 * tree keeps a redo log.
 	 *
 	 * All other pages are serializations of inner and leaf nodes. See writeHeader
 	 * for details.
 	 */
 	public BPlusTree(String filename, Type keySchema, int order, LockContext lockContext, BaseTransaction transaction)
 			throws BPlusTreeException {
+		this(filename, keySchema, order, true, lockContext, transaction);
+	}
+
+	/**
+	 * Like BPlusTree(filename, keySchema, order, lockContext, transaction), but
+	 * if `unique` is false the tree allows duplicate keys, as needed to index a
+	 * column that is not a key, like a foreign key. Such a tree holds any number
+	 * of (key, rid) pairs with the same key, as long as the rids differ, and
+	 * stores the rids of a key as a compact posting list (see PostingLists).
+	 * Leaves of such a tree are split when their page is full rather than when
+	 * they hold 2d pairs, so `order` only bounds the inner nodes.
+	 */
+	public BPlusTree(String filename, Type keySchema, int order, boolean unique, LockContext lockContext,
+					 BaseTransaction transaction) throws BPlusTreeException {
+		this(filename, keySchema, order, unique, false, lockContext, transaction);
+	}
+
+	/**
+	 * Like BPlusTree(filename, keySchema, order, unique, lockContext,
+	 * transaction), but if `counted` is true every inner node also stores the
+	 * number of pairs in the subtree of each of its children. This makes
+	 * countRange, rank, select and sample take a single descent from the root
+	 * instead of a scan, at the cost of 4 bytes per child pointer (see
+	 * maxOrder) and of writers no longer being able to release the ancestors of
+	 * the leaf they change, since every put and remove updates the counts all
+	 * the way up to the root.
+	 */
+	public BPlusTree(String filename, Type keySchema, int order, boolean unique, boolean counted,
+					 LockContext lockContext, BaseTransaction transaction) throws BPlusTreeException {
+		this(filename, keySchema, List.of(), order, unique, counted, lockContext, transaction);
+	}
+
+	/**
+	 * Like BPlusTree(filename, keySchema, order, unique, counted, lockContext,
+	 * transaction), but every leaf entry also stores the values of the columns
+	 * in `includedSchema`, making this a covering index for queries that only
+	 * need the key and those columns (see scanCovering). Entries must then be
+	 * inserted with put(transaction, key, rid, values) or bulkLoadCovering.
+	 * The included values take up room in the leaves, which lowers maxOrder.
+	 */
+	public BPlusTree(String filename, Type keySchema, List<Type> includedSchema, int order, boolean unique,
+					 boolean counted, LockContext lockContext, BaseTransaction transaction)
+			throws BPlusTreeException {
 		// Sanity checks.
 		if (order < 0) {
 			String msg = String.format("You cannot construct a B+ tree with negative order %d.", order);
 			throw new BPlusTreeException(msg);
 		}
 
-		int maxOrder = BPlusTree.maxOrder(Page.pageSize, keySchema);
+		int maxOrder = BPlusTree.maxOrder(Page.pageSize, keySchema, includedSchema, counted);
 		if (order > maxOrder) {
 			String msg = String.format(
 					"You cannot construct a B+ tree with order %d greater than the " + "max order %d.", order,
@@ -104,9 +256,13 @@ public class BPlusTree implements Closeable {
 
 		this.lockContext = lockContext;
 
-		// Initialize the page allocator.
+		// Initialize the page allocator. A redo log left behind by an old tree in
+		// the same file no longer applies to it.
 		this.allocator = new PageAllocator(this.lockContext, filename, true, transaction);
-		this.metadata = new BPlusTreeMetadata(allocator, keySchema, order);
+		this.redoLogPath = Path.of(filename + REDO_LOG_EXTENSION);
+		RedoLog.discard(redoLogPath);
+		this.metadata = new BPlusTreeMetadata(allocator, keySchema, includedSchema, order, unique, counted);
+		this.rootLatch = metadata.getRedoLog().newLatch();
 
 		// Allocate the header page.
 		int headerPageNum = allocator.allocPage(transaction);
@@ -116,19 +272,43 @@ public class BPlusTree implements Closeable {
 		// Construct the root.
 		var keys = new ArrayList<DataBox>();
 		var rids = new ArrayList<RecordId>();
-		Optional<Integer> rightSibling = Optional.empty();
-		this.root = new LeafNode(this.metadata, keys, rids, rightSibling, transaction);
+		this.rootPageNum = new LeafNode(this.metadata, keys, rids, Optional.empty(), Optional.empty(), transaction).getPage().getPageNum();
+		this.height = 1;
+		this.statistics = KeyStatistics.empty(keySchema, unique);
 
 		// Initialize the header page.
 		writeHeader(transaction, headerPage);
 	}
 
+	/**
+	 * Like BPlusTree(filename, keySchema, order, unique, lockContext,
+	 * transaction), but every key is a tuple of values of the columns in
+	 * `keyColumns`, ordered by the first column, then the second, and so on.
+	 * Keys are built with compositeKey and stored as one string that sorts like
+	 * the tuples (see CompositeKeys), so scans over the keys that share their
+	 * leading values (see scanPrefix) are contiguous ranges of the tree. Use
+	 * maxOrder(pageSizeInBytes, keyColumns) for maximally full nodes.
+	 */
+	public BPlusTree(String filename, List<Type> keyColumns, int order, boolean unique, LockContext lockContext,
+					 BaseTransaction transaction) throws BPlusTreeException {
+		this(filename, CompositeKeys.schema(keyColumns), order, unique, lockContext, transaction);
+		metadata.setKeyColumns(keyColumns);
+		writeHeader(transaction, headerPage);
+	}
+
 	/** Read a B+ tree that was previously serialized to filename. */
 	public BPlusTree(String filename, LockContext lockContext, BaseTransaction transaction) {
 		this.lockContext = lockContext;
 
-		// Initialize the page allocator and fetch the header page.
+		// Initialize the page allocator. A redo log is only left behind by a
+		// logged tree that was not closed, so its pages are brought up to date
+		// from the log before anything is read from them.
 		this.allocator = new PageAllocator(this.lockContext, filename, false, transaction);
+		this.redoLogPath = Path.of(filename + REDO_LOG_EXTENSION);
+		RedoLog.Replay replay = RedoLog.replay(redoLogPath,
+											   (image, pageNum) -> replayPage(transaction, image, pageNum));
+
+		// Fetch the header page.
 		Page headerPage = allocator.fetchPage(transaction, 0);
 		Buffer buf = headerPage.getBuffer(transaction);
 
@@ -137,15 +317,116 @@ public class BPlusTree implements Closeable {
 		Type keySchema = Type.fromBytes(buf);
 		int order = buf.getInt();
 		int rootPageNum = buf.getInt();
+		int freeListHead = buf.getInt();
+		int numFreePages = buf.getInt();
+		boolean unique = buf.get() == 0;
+		boolean counted = buf.get() == 1;
+		int formatVersion = buf.getInt();
+		int numIncluded = buf.getInt();
+		var includedSchema = new ArrayList<Type>(numIncluded);
+		for (int i = 0; i < numIncluded; ++i) {
+			includedSchema.add(Type.fromBytes(buf));
+		}
+		float leafFilterFalsePositiveRate = buf.getFloat();
+		// Trees older than STATISTICS_VERSION get them in upgrade.
+		int height = 0;
+		KeyStatistics statistics = KeyStatistics.empty(keySchema, unique);
+		if (formatVersion >= BPlusTreeMetadata.STATISTICS_VERSION) {
+			height = buf.getInt();
+			statistics = KeyStatistics.read(buf, keySchema, unique);
+		}
+		boolean buffered = formatVersion >= BPlusTreeMetadata.WRITE_BUFFERS_VERSION && buf.get() == 1;
+		boolean slotted = formatVersion >= BPlusTreeMetadata.SLOTTED_VERSION && buf.get() == 1;
+		var keyColumns = new ArrayList<Type>();
+		if (formatVersion >= BPlusTreeMetadata.KEY_COLUMNS_VERSION) {
+			int numKeyColumns = buf.getInt();
+			for (int i = 0; i < numKeyColumns; ++i) {
+				keyColumns.add(Type.fromBytes(buf));
+			}
+		}
+		boolean redoLogged = formatVersion >= BPlusTreeMetadata.REDO_LOG_VERSION && buf.get() == 1;
 
 		// Initialize members.
-		this.metadata = new BPlusTreeMetadata(allocator, keySchema, order);
+		this.metadata = new BPlusTreeMetadata(allocator, keySchema, includedSchema, order, unique, counted);
+		this.metadata.setFreeList(freeListHead, numFreePages);
+		this.metadata.setFormatVersion(formatVersion);
+		this.metadata.setLeafFilterFalsePositiveRate(leafFilterFalsePositiveRate);
+		this.metadata.setBuffered(buffered);
+		this.metadata.setSlotted(slotted);
+		this.metadata.setKeyColumns(keyColumns);
+		this.metadata.setRedoLogged(redoLogged);
+		this.rootLatch = metadata.getRedoLog().newLatch();
+		// A replayed log goes on until the tree is closed, since its pages may
+		// not be on disk yet.
+		if (replay != null) {
+			metadata.getRedoLog().resume(redoLogPath, replay);
+		} else if (redoLogged) {
+			metadata.getRedoLog().open(redoLogPath);
+		}
 		this.headerPage = allocator.fetchPage(transaction, 0);
-		this.root = BPlusNode.fromBytes(transaction, this.metadata, rootPageNum);
+		this.rootPageNum = rootPageNum;
+		this.height = height;
+		this.statistics = statistics;
+
+		if (formatVersion < BPlusTreeMetadata.FORMAT_VERSION) {
+			upgrade(transaction);
+		}
+	}
+
+	/**
+	 * Rewrites a tree written in an older page format (see
+	 * BPlusTreeMetadata.FORMAT_VERSION) in the current one. The leaves are
+	 * visited from left to right, each one read once in the old format and
+	 * written back with its left sibling pointer (and, since version 2, with
+	 * room after its entries for a Bloom filter). Trees without statistics get
+	 * them from a read of every leaf.
+	 */
+	private void upgrade(BaseTransaction transaction) {
+		if (metadata.getFormatVersion() < BPlusTreeMetadata.LEAF_FILTERS_VERSION) {
+			LeafNode leaf = rootNode(transaction).getLeftmostLeaf(transaction);
+			Optional<Integer> left = Optional.empty();
+			while (true) {
+				leaf.setLeftSibling(transaction, left);
+				Optional<Integer> right = leaf.getRightSiblingPageNum();
+				if (right.isEmpty()) {
+					break;
+				}
+				left = Optional.of(leaf.getPage().getPageNum());
+				leaf = LeafNode.fromBytes(transaction, metadata, right.get());
+			}
+		}
+		if (metadata.getFormatVersion() < BPlusTreeMetadata.STATISTICS_VERSION) {
+			refreshStatistics(transaction, Integer.MAX_VALUE);
+		}
+		metadata.setFormatVersion(BPlusTreeMetadata.FORMAT_VERSION);
+		writeHeader(transaction, headerPage);
+		awaitLogged(transaction);
 	}
 
+	/**
+	 * Closes the tree. Messages that are still in the buffer of the root in
+	 * memory are written to it first (see rootMessages). Closing the allocator
+	 * writes every page back to disk, so the redo log, if any, is no longer
+	 * needed and is deleted.
+	 */
 	public void close() {
+		if (readAheadExecutor != null) {
+			readAheadExecutor.shutdownNow();
+		}
+		rootLatch.writeLock().lock();
+		try {
+			applyRootMessages(null);
+		} finally {
+			rootLatch.writeLock().unlock();
+		}
+		// No scan can go on once the tree is closed, and there is no
+		// transaction left to free the pages of old trees in.
+		synchronized (openScans) {
+			openScans.clear();
+		}
+		freeRetiredPages(null);
 		this.allocator.close();
+		metadata.getRedoLog().close();
 	}
 
 	// Core API ////////////////////////////////////////////////////////////////
@@ -161,9 +442,73 @@ public class BPlusTree implements Closeable {
 	 * // Get the value we put and also try to get a value we never put.
 	 * tree.get(key); // Optional.of(rid)
 	 * tree.get(new IntDataBox(100)); // Optional.empty()
+	 *
+	 * If the tree allows duplicate keys, the smallest record id associated with
+	 * `key` is returned; use scanEqual to get all of them.
 	 */
 	public Optional<RecordId> get(BaseTransaction transaction, DataBox key) {
-        return this.root.get(transaction,key).getKey(key);
+		BPlusTreeMetrics metrics = metadata.getMetrics();
+		long startNanos = System.nanoTime();
+		long startPageFetches = metrics.threadPageFetches();
+		try {
+			return getRecord(transaction, key);
+		} finally {
+			metrics.record(BPlusTreeMetrics.Operation.GET, startNanos, startPageFetches);
+		}
+	}
+
+	/** Like get, but without recording it in the metrics. */
+	private Optional<RecordId> getRecord(BaseTransaction transaction, DataBox key) {
+		typecheck(key);
+		if (!metadata.isUnique()) {
+			Iterator<RecordId> rids = scanEqual(transaction, key);
+			return rids.hasNext() ? Optional.of(rids.next()) : Optional.empty();
+		}
+		BloomFilter filter = keyFilter;
+		if (filter != null && !filter.mightContain(key)) {
+			keyFilterNegatives.incrementAndGet();
+			return Optional.empty();
+		}
+		Optional<RecordId> rid;
+		if (metadata.isBuffered()) {
+			rootLatch.readLock().lock();
+			try {
+				rid = lookupBuffered(transaction, key);
+			} finally {
+				rootLatch.readLock().unlock();
+			}
+		} else {
+			rid = lookup(transaction, key);
+		}
+		if (filter != null && rid.isEmpty()) {
+			keyFilterFalsePositives.incrementAndGet();
+		}
+		return rid;
+	}
+
+	/** Returns the record id of `key` in a tree with unique keys. */
+	private Optional<RecordId> lookup(BaseTransaction transaction, DataBox key) {
+		// Walk down the serialized pages directly instead of decoding a node per
+		// level; see InnerNode.childPageNum and LeafNode.lookup.
+		Lock parent = rootLatch.readLock();
+		parent.lock();
+		try {
+			int pageNum = rootPageNum;
+			while (true) {
+				Lock latch = metadata.getLatch(pageNum).readLock();
+				latch.lock();
+				parent.unlock();
+				parent = latch;
+
+				Buffer buf = metadata.fetchPage(transaction, pageNum).getBuffer(transaction);
+				if (buf.get(0) == (byte) 1) {
+					return LeafNode.lookup(buf, metadata, key);
+				}
+				pageNum = InnerNode.childPageNum(buf, metadata, key);
+			}
+		} finally {
+			parent.unlock();
+		}
 	}
 
 	/**
@@ -171,10 +516,22 @@ public class BPlusTree implements Closeable {
 	 * instead of an Optional. That is, if get(k) returns Optional.empty(), then
 	 * scanEqual(k) returns an empty iterator. If get(k) returns Optional.of(rid)
 	 * for some rid, then scanEqual(k) returns an iterator over rid.
+	 *
+	 * If the tree allows duplicate keys, scanEqual(k) lazily iterates over all
+	 * the record ids associated with k, in ascending order, walking the leaves
+	 * like scanEnhanced(k, k).
 	 */
 	public Iterator<RecordId> scanEqual(BaseTransaction transaction, DataBox key) {
 		typecheck(key);
-		Optional<RecordId> rid = get(transaction, key);
+		if (!metadata.isUnique()) {
+			BloomFilter filter = keyFilter;
+			if (filter != null && !filter.mightContain(key)) {
+				keyFilterNegatives.incrementAndGet();
+				return Collections.emptyIterator();
+			}
+			return new BPlusTreeIterator(transaction, key, key);
+		}
+		Optional<RecordId> rid = getRecord(transaction, key);
 		if (rid.isPresent()) {
 			var l = new ArrayList<RecordId>();
 			l.add(rid.get());
@@ -184,6 +541,55 @@ public class BPlusTree implements Closeable {
 		}
 	}
 
+	/**
+	 * Looks up every key of `keys` like get does, returning (key, record id)
+	 * pairs in ascending order of the keys. A key that occurs several times is
+	 * looked up once for every occurrence.
+	 *
+	 * var tree = new BPlusTree("t.txt", Type.intType(), 4);
+	 * tree.put(new IntDataBox(2), new RecordId(2, (short) 2));
+	 * tree.put(new IntDataBox(4), new RecordId(4, (short) 4));
+	 *
+	 * var keys = List.of(new IntDataBox(4), new IntDataBox(3), new IntDataBox(2));
+	 * Iterator<Pair<DataBox, Optional<RecordId>>> iter = tree.getAll(keys.iterator());
+	 * iter.next(); // (2, Optional.of(RecordId(2, 2)))
+	 * iter.next(); // (3, Optional.empty())
+	 * iter.next(); // (4, Optional.of(RecordId(4, 4)))
+	 *
+	 * The keys are read and sorted up front; see getAllSorted, which streams
+	 * keys that are already sorted.
+	 */
+	public Iterator<Pair<DataBox, Optional<RecordId>>> getAll(BaseTransaction transaction,
+															  Iterator<DataBox> keys) {
+		var sorted = new ArrayList<DataBox>();
+		while (keys.hasNext()) {
+			DataBox key = keys.next();
+			typecheck(key);
+			sorted.add(key);
+		}
+		sorted.sort(DataBox::compareTo);
+		return new MultiGetIterator(transaction, sorted.iterator());
+	}
+
+	/**
+	 * Like getAll, but for keys that are already in ascending order, which are
+	 * read lazily, a batch at a time, as the results are consumed. Throws
+	 * IllegalArgumentException when it reaches a key that is less than the one
+	 * before it.
+	 *
+	 * Instead of one descent from the root per key, the keys are looked up in
+	 * batches of up to GET_ALL_BATCH_SIZE keys in a single pass down the tree:
+	 * the path to the leaf of the last key is kept, and the next key only climbs
+	 * back up as far as the lowest node whose subtree holds it before descending
+	 * again. Runs of keys in the same leaf thus cost one leaf, and moving on to
+	 * the next leaf usually costs one page. The nodes on the path stay read
+	 * latched for the whole batch, so concurrent writers to them wait for it.
+	 */
+	public Iterator<Pair<DataBox, Optional<RecordId>>> getAllSorted(BaseTransaction transaction,
+																	Iterator<DataBox> keys) {
+		return new MultiGetIterator(transaction, keys);
+	}
+
 	/**
 	 * Returns an iterator over all the RecordIds stored in the B+ tree in ascending
 	 * order of their corresponding keys.
@@ -210,7 +616,7 @@ public class BPlusTree implements Closeable {
 	 * points.
 	 */
 	public Iterator<RecordId> scanAll(BaseTransaction transaction) {
-		return new BPlusTreeIterator(transaction);
+		return scan(transaction, null, null, Integer.MAX_VALUE, null, false);
 	}
 
 	/**
@@ -239,20 +645,110 @@ public class BPlusTree implements Closeable {
 	 */
 	public Iterator<RecordId> scanGreaterEqual(BaseTransaction transaction, DataBox key) {
 		typecheck(key);
-		return new BPlusTreeIterator(transaction, key, new IntDataBox(Integer.MAX_VALUE));
+		return scan(transaction, key, null, Integer.MAX_VALUE, null, false);
 	}
 
+	/**
+	 * Returns an iterator over all the RecordIds stored in the B+ tree whose keys
+	 * are between `lowerBound` and `upperBound` (both inclusive), in ascending
+	 * order of their keys. Either bound may be null, in which case the range is
+	 * open on that side. The iterator seeks directly to the leaf containing
+	 * `lowerBound` and stops at the first key past `upperBound`.
+	 */
 	public Iterator<RecordId> scanEnhanced(BaseTransaction transaction, DataBox lowerBound, DataBox upperBound) {
-		typecheck(lowerBound);
-		typecheck(upperBound);
-		return new BPlusTreeIterator(transaction, lowerBound, upperBound);
+		typecheckBound(lowerBound);
+		typecheckBound(upperBound);
+		return scan(transaction, lowerBound, upperBound, Integer.MAX_VALUE, null, false);
 	}
 
+	/**
+	 * Like scanEnhanced(transaction, lowerBound, upperBound), but returns at most
+	 * `limit` RecordIds, and only those whose key passes `filter`. Both are
+	 * applied while walking the leaves, so a small limit only touches the leaves
+	 * it needs.
+	 */
 	public Iterator<RecordId> scanEnhanced(BaseTransaction transaction, DataBox lowerBound, DataBox upperBound,
 										   int limit, Function<DataBox, Boolean> filter) {
-		typecheck(lowerBound);
-		typecheck(upperBound);
-		return new BPlusTreeIterator(transaction, lowerBound, upperBound, limit, filter);
+		typecheckBound(lowerBound);
+		typecheckBound(upperBound);
+		return scan(transaction, lowerBound, upperBound, limit, filter, false);
+	}
+
+	/**
+	 * Like scanEnhanced(transaction, lowerBound, upperBound), but returns the
+	 * RecordIds in descending order of their keys (and, for duplicate keys, of
+	 * their record ids). The iterator seeks directly to the leaf containing
+	 * `upperBound` and lazily walks the leaves to the left, stopping at the
+	 * first key before `lowerBound`.
+	 */
+	public Iterator<RecordId> scanDescending(BaseTransaction transaction, DataBox lowerBound, DataBox upperBound) {
+		return scanDescending(transaction, lowerBound, upperBound, Integer.MAX_VALUE, null);
+	}
+
+	/**
+	 * Like scanDescending(transaction, lowerBound, upperBound), but returns at
+	 * most `limit` RecordIds, and only those whose key passes `filter`. The n
+	 * largest keys of a range thus only touch the last few leaves of the range.
+	 */
+	public Iterator<RecordId> scanDescending(BaseTransaction transaction, DataBox lowerBound, DataBox upperBound,
+											 int limit, Function<DataBox, Boolean> filter) {
+		typecheckBound(lowerBound);
+		typecheckBound(upperBound);
+		return scan(transaction, lowerBound, upperBound, limit, filter, true);
+	}
+
+	/**
+	 * Like scanEnhanced(transaction, lowerBound, upperBound), but returns every
+	 * key along with its record id and the values of the included columns of
+	 * its record (see BPlusTreeMetadata.getIncludedSchema). A query that only
+	 * needs those can be answered from the index alone, without fetching a
+	 * single record.
+	 */
+	public Iterator<IndexEntry> scanCovering(BaseTransaction transaction, DataBox lowerBound, DataBox upperBound) {
+		typecheckBound(lowerBound);
+		typecheckBound(upperBound);
+		var iter = new BPlusTreeIterator(transaction, lowerBound, upperBound);
+		iter.withEntries = true;
+		return entriesOf(iter, iter::nextEntry);
+	}
+
+	/**
+	 * Like scanCovering, but returns the entries in descending order, as
+	 * scanDescending(transaction, lowerBound, upperBound) does.
+	 */
+	public Iterator<IndexEntry> scanCoveringDescending(BaseTransaction transaction, DataBox lowerBound,
+														DataBox upperBound) {
+		typecheckBound(lowerBound);
+		typecheckBound(upperBound);
+		var iter = new ReverseBPlusTreeIterator(transaction, lowerBound, upperBound, Integer.MAX_VALUE, null);
+		iter.withEntries = true;
+		return entriesOf(iter, iter::nextEntry);
+	}
+
+	/**
+	 * Like scanEnhanced(transaction, lowerBound, upperBound), but the iterator
+	 * sees the tree as it was when scanSnapshot was called. The other scans walk
+	 * the leaves as they are when they get to them, so puts and removes made
+	 * during a long scan, and the splits and merges they cause, can make them
+	 * skip or repeat records. A snapshot scan instead reads every node as of
+	 * its snapshot, while writers go on changing the tree; the old versions of
+	 * the nodes they change are kept for it in memory (see PageVersions) until
+	 * the scan is exhausted or garbage collected.
+	 *
+	 * Writers do more work while snapshots are open: every write first decodes
+	 * the node it overwrites. So a scan that is not read to the end should be
+	 * closed (see SnapshotScan). Opening a snapshot waits for the writers that
+	 * are in the middle of a split or merge. B+ trees with write buffers do not
+	 * support snapshot scans, since their buffered messages are not in the
+	 * leaves.
+	 */
+	public SnapshotScan scanSnapshot(BaseTransaction transaction, DataBox lowerBound, DataBox upperBound) {
+		if (metadata.isBuffered()) {
+			throw new UnsupportedOperationException("B+ trees with write buffers do not support snapshot scans.");
+		}
+		typecheckBound(lowerBound);
+		typecheckBound(upperBound);
+		return new SnapshotIterator(transaction, lowerBound, upperBound);
 	}
 
 	/**
@@ -264,9 +760,133 @@ public class BPlusTree implements Closeable {
 	 * var rid = new RecordId(42, (short) 42);
 	 * tree.put(key, rid); // Sucess :)
 	 * tree.put(key, rid); // BPlusTreeException :(
+	 *
+	 * If the tree allows duplicate keys, only putting the same (key, rid) pair
+	 * twice raises an exception.
+	 *
+	 * A tree with included columns needs their values as well, so it only
+	 * accepts put(transaction, key, rid, values).
 	 */
 	public void put(BaseTransaction transaction, DataBox key, RecordId rid) throws BPlusTreeException {
-        var promoted = root.put(transaction, key, rid);
+		put(transaction, key, rid, null);
+	}
+
+	/**
+	 * Like put(transaction, key, rid), but also stores `values`, the values of
+	 * the included columns of the record `rid` in the order of the tree's
+	 * included schema (see BPlusTreeMetadata.getIncludedSchema). `values` must
+	 * be null if the tree has no included columns.
+	 */
+	public void put(BaseTransaction transaction, DataBox key, RecordId rid, List<DataBox> values)
+			throws BPlusTreeException {
+		BPlusTreeMetrics metrics = metadata.getMetrics();
+		long startNanos = System.nanoTime();
+		long startPageFetches = metrics.threadPageFetches();
+		try {
+			putRecord(transaction, key, rid, values);
+			awaitLogged(transaction);
+		} finally {
+			metrics.record(BPlusTreeMetrics.Operation.PUT, startNanos, startPageFetches);
+		}
+	}
+
+	/** Like put, but without recording it in the metrics. */
+	private void putRecord(BaseTransaction transaction, DataBox key, RecordId rid, List<DataBox> values)
+			throws BPlusTreeException {
+		typecheck(key);
+		typecheckValues(values);
+		if (metadata.isBuffered()) {
+			putAllBuffered(transaction, List.of(new IndexEntry(key, rid, null)));
+			return;
+		}
+
+		// Fast path: the leaf has room, so nothing but the leaf changes. With
+		// subtree counts, the counts of all its ancestors change as well.
+		if (!metadata.isCounted()) {
+			LeafNode leaf = latchLeafForWrite(transaction, key);
+			try {
+				if (leaf.isSafeForPut() && belongsInLeaf(transaction, leaf, key, rid)) {
+					leaf.put(transaction, key, rid, values);
+					addToKeyFilter(key);
+					statistics.recordPut(key);
+					return;
+				}
+			} finally {
+				metadata.getRedoLog().commit();
+				metadata.getLatch(leaf.getPage().getPageNum()).writeLock().unlock();
+			}
+		}
+
+		// Slow path: the leaf may split, and the split may propagate up.
+		WritePath path = latchPathForWrite(transaction, key, BPlusNode::isSafeForPut);
+		boolean onPath;
+		try {
+			onPath = belongsInLeaf(transaction, path.leaf, key, rid);
+			if (onPath) {
+				if (path.holdsRootLatch) {
+					putFromRoot(transaction, key, rid, values);
+				} else {
+					path.top.put(transaction, key, rid, values);
+				}
+				addToKeyFilter(key);
+				statistics.recordPut(key);
+				// Splits may have taken pages off the free list.
+				writeHeader(transaction, headerPage);
+			}
+		} finally {
+			path.release();
+		}
+		if (onPath) {
+			return;
+		}
+
+		// With duplicate keys, the pair may go into a leaf to the right of the
+		// one key leads to, which the path latched above does not reach, so as
+		// in removePair the whole tree is latched, and InnerNode.put latches the
+		// nodes it descends into.
+		rootLatch.writeLock().lock();
+		try {
+			Lock rootPageLatch = metadata.getLatch(rootPageNum).writeLock();
+			rootPageLatch.lock();
+			try {
+				putFromRoot(transaction, key, rid, values);
+			} finally {
+				rootPageLatch.unlock();
+			}
+			addToKeyFilter(key);
+			statistics.recordPut(key);
+			writeHeader(transaction, headerPage);
+		} finally {
+			rootLatch.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns whether the pair (key, rid) goes into `leaf`, the leftmost leaf
+	 * that may hold key, whose write latch the caller holds. With duplicate
+	 * keys, the pairs of key may continue in the leaves to its right, ordered
+	 * by record id (see InnerNode.putChildIndex), so the pair only goes into
+	 * `leaf` if it comes before the first pair of its right sibling.
+	 */
+	private boolean belongsInLeaf(BaseTransaction transaction, LeafNode leaf, DataBox key, RecordId rid) {
+		if (metadata.isUnique()) {
+			return true;
+		}
+		Optional<LeafNode> right = readRightSibling(transaction, leaf);
+		if (right.isEmpty() || right.get().size() == 0) {
+			return true;
+		}
+		LeafNode r = right.get();
+		return PostingLists.compare(r.getKeys().get(0), r.getRids().get(0), key, rid) > 0;
+	}
+
+	/**
+	 * Inserts (key, rid) starting at the root, growing the tree by one level if
+	 * the root splits. Must be called with rootLatch write latched.
+	 */
+	private void putFromRoot(BaseTransaction transaction, DataBox key, RecordId rid, List<DataBox> values)
+			throws BPlusTreeException {
+        var promoted = rootNode(transaction).put(transaction, key, rid, values);
 
         if (promoted.isEmpty()){
             return;
@@ -275,13 +895,14 @@ public class BPlusTree implements Closeable {
         List<Integer> children = new ArrayList<>();
 
         // current node/root will be left subtree so it needs to be first
-        children.add(root.getPage().getPageNum());
+        children.add(rootPageNum);
         children.add(promoted.get().getSecond());
 
         keys.add(promoted.get().getFirst());
         var newNode = new InnerNode(this.metadata, keys, children, transaction);
-        root = newNode;
-
+        rootPageNum = newNode.getPage().getPageNum();
+        ++height;
+        writeHeader(transaction, headerPage);
 	}
 
 	/**
@@ -292,16 +913,258 @@ public class BPlusTree implements Closeable {
 	 * fillFactor specifies the fill factor for leaves only; inner nodes should be
 	 * filled up to full and split in half exactly like in put.
 	 *
+	 * If the tree allows duplicate keys, data must be sorted by key and then by
+	 * record id (see PostingLists.compare), and fillFactor applies to the bytes
+	 * of a leaf rather than to its number of pairs.
+	 *
 	 * This method should raise an exception if the tree is not empty at time of
 	 * bulk loading. If data does not meet the preconditions (contains duplicates or
 	 * not in order), the resulting behavior is undefined.
 	 *
-	 * The behavior of this method should be similar to that of InnerNode's bulkLoad
-	 * (see comments in BPlusNode.bulkLoad).
+	 * The tree is built bottom-up in a single pass over data, rather than by
+	 * rewriting the rightmost path of the tree for every leaf. The leaves are
+	 * written first, each reserving the page of its right sibling before it is
+	 * written, and then the inner levels, of which only the last two nodes are
+	 * kept in memory; so every page is written exactly once, and only the first
+	 * key of every leaf is kept until the end.
+	 * The first leaf reuses the page of the (empty) root.
+	 *
+	 * A tree with included columns is bulk loaded with bulkLoadCovering instead.
 	 */
 	public void bulkLoad(BaseTransaction transaction, Iterator<Pair<DataBox, RecordId>> data, float fillFactor)
 			throws BPlusTreeException {
-		throw new UnsupportedOperationException("Implement this.");
+		typecheckValues(null);
+		var entries = new Iterator<IndexEntry>() {
+			@Override
+			public boolean hasNext() {
+				return data.hasNext();
+			}
+
+			@Override
+			public IndexEntry next() {
+				Pair<DataBox, RecordId> pair = data.next();
+				return new IndexEntry(pair.getFirst(), pair.getSecond(), null);
+			}
+		};
+		bulkLoadCovering(transaction, entries, fillFactor);
+	}
+
+	/**
+	 * Like bulkLoad, but data may be in any order, e.g. the (key, record id)
+	 * pairs of a scan of a table in heap order, which is how an index is built
+	 * on an existing table. The pairs are sorted with an external merge sort
+	 * (see ExternalSorter) that uses at most numMemoryPages pages of memory and
+	 * sorts runs on numThreads threads, and the sorted pairs are bulk loaded as
+	 * they come out of the final merge. The temporary files of the sort are
+	 * deleted before this returns.
+	 *
+	 * If the tree has unique keys and data contains a key twice, the load stops
+	 * at the second one and an exception is raised; the partially loaded tree
+	 * should then be discarded.
+	 */
+	public void bulkLoadUnsorted(BaseTransaction transaction, Iterator<Pair<DataBox, RecordId>> data,
+								 float fillFactor, int numMemoryPages, int numThreads) throws BPlusTreeException {
+		typecheckValues(null);
+		Comparator<Pair<DataBox, RecordId>> order = metadata.isUnique()
+				? (a, b) -> a.getFirst().compareTo(b.getFirst())
+				: (a, b) -> PostingLists.compare(a.getFirst(), a.getSecond(), b.getFirst(), b.getSecond());
+		var typechecked = new Iterator<Pair<DataBox, RecordId>>() {
+			@Override
+			public boolean hasNext() {
+				return data.hasNext();
+			}
+
+			@Override
+			public Pair<DataBox, RecordId> next() {
+				Pair<DataBox, RecordId> pair = data.next();
+				typecheck(pair.getFirst());
+				return pair;
+			}
+		};
+		try (var sorter = new ExternalSorter(metadata.getKeySchema(), order, numMemoryPages, numThreads)) {
+			Iterator<Pair<DataBox, RecordId>> sorted = sorter.sort(typechecked);
+			// Stops at the first pair equal to the one before it.
+			var distinct = new Iterator<Pair<DataBox, RecordId>>() {
+				private Pair<DataBox, RecordId> last = null;
+				private Pair<DataBox, RecordId> next = null;
+				private Pair<DataBox, RecordId> duplicate = null;
+
+				@Override
+				public boolean hasNext() {
+					if (next == null && duplicate == null && sorted.hasNext()) {
+						Pair<DataBox, RecordId> pair = sorted.next();
+						if (last != null && order.compare(last, pair) == 0) {
+							duplicate = pair;
+						} else {
+							next = pair;
+						}
+					}
+					return next != null;
+				}
+
+				@Override
+				public Pair<DataBox, RecordId> next() {
+					if (!hasNext()) {
+						throw new NoSuchElementException();
+					}
+					last = next;
+					next = null;
+					return last;
+				}
+			};
+			bulkLoad(transaction, distinct, fillFactor);
+			if (distinct.duplicate != null) {
+				throw new BPlusTreeException("Key " + distinct.duplicate.getFirst() + " appears twice in the data");
+			}
+		}
+	}
+
+	/**
+	 * Like bulkLoad, but for a tree with included columns: every entry of data
+	 * carries the values of the included columns of its record.
+	 */
+	public void bulkLoadCovering(BaseTransaction transaction, Iterator<IndexEntry> data, float fillFactor)
+			throws BPlusTreeException {
+		rootLatch.writeLock().lock();
+		try {
+			bulkLoadFromRoot(transaction, data, fillFactor);
+		} finally {
+			rootLatch.writeLock().unlock();
+		}
+		awaitLogged(transaction);
+	}
+
+	private void bulkLoadFromRoot(BaseTransaction transaction, Iterator<IndexEntry> data,
+								  float fillFactor) throws BPlusTreeException {
+		applyRootMessages(transaction);
+		BPlusNode root = rootNode(transaction);
+		if (!(root instanceof LeafNode) || !((LeafNode) root).getKeys().isEmpty()) {
+			throw new BPlusTreeException("You cannot bulk load into a non-empty B+ tree.");
+		}
+		if (fillFactor <= 0 || fillFactor > 1) {
+			String msg = String.format("Fill factor %f is not in the range (0, 1].", fillFactor);
+			throw new BPlusTreeException(msg);
+		}
+		if (!data.hasNext()) {
+			return;
+		}
+		int firstLeafPageNum = rootPageNum;
+		IntSupplier allocPage = () -> metadata.allocPage(transaction);
+		rootPageNum = bulkLoadTree(transaction, data, fillFactor, firstLeafPageNum, allocPage, allocPage);
+		writeHeader(transaction, headerPage);
+	}
+
+	/**
+	 * Writes a tree holding the (non-empty, sorted) entries of data, and returns
+	 * the page number of its root; see bulkLoad. The first leaf is written to page
+	 * `firstLeafPageNum`, and every other leaf to a page allocated with
+	 * allocLeafPage while the leaves are being written, so that leaves that are
+	 * allocated from the end of the file end up on consecutive pages in key
+	 * order. Only then are the inner nodes written, from the first keys of the
+	 * leaves, to pages allocated with allocInnerPage. Sets the height and the
+	 * statistics of the tree, but not its root.
+	 */
+	private int bulkLoadTree(BaseTransaction transaction, Iterator<IndexEntry> data, float fillFactor,
+								   int firstLeafPageNum, IntSupplier allocLeafPage, IntSupplier allocInnerPage) {
+		// Leaves with posting lists or slotted pages are filled by bytes rather
+		// than by pairs.
+		int leafCapacity = Math.max(1, (int) Math.ceil(2 * metadata.getOrder() * fillFactor));
+		int leafByteCapacity = (int) ((Page.pageSize - LeafNode.HEADER_SIZE) * fillFactor);
+		if (metadata.isSlotted()) {
+			leafByteCapacity = (int) ((Page.pageSize - LeafNode.HEADER_SIZE - Short.BYTES) * fillFactor);
+		}
+		int keySize = metadata.getKeySchema().getSizeInBytes();
+		int includedSize = metadata.getIncludedSize();
+		int leafBytes = 0;
+		var levels = new ArrayList<BulkLoadLevel>();
+
+		int leafPageNum = firstLeafPageNum;
+		Optional<Integer> leftPageNum = Optional.empty();
+		var keys = new ArrayList<DataBox>();
+		var rids = new ArrayList<RecordId>();
+		var values = metadata.hasIncludedColumns() ? new ArrayList<List<DataBox>>() : null;
+		// The first key, page and size of every leaf, for the inner nodes and
+		// the statistics.
+		var leafFirstKeys = new ArrayList<DataBox>();
+		var leafPageNums = new ArrayList<Integer>();
+		var leafSizes = new ArrayList<Long>();
+		// The separator in front of every leaf but the first.
+		var separators = new ArrayList<DataBox>();
+		long distinctKeys = 0;
+		DataBox lastKey = null;
+		while (data.hasNext()) {
+			IndexEntry entry = data.next();
+			typecheckValues(entry.getValues());
+			boolean full;
+			if (metadata.isSlotted()) {
+				int pairBytes = SlottedKeys.entrySize(entry.getKey(), RecordId.getSizeInBytes());
+				full = !keys.isEmpty() && leafBytes + pairBytes > leafByteCapacity;
+				leafBytes = full ? pairBytes : leafBytes + pairBytes;
+			} else if (metadata.isUnique()) {
+				full = keys.size() == leafCapacity;
+			} else {
+				DataBox prevKey = keys.isEmpty() ? null : keys.get(keys.size() - 1);
+				RecordId prevRid = rids.isEmpty() ? null : rids.get(rids.size() - 1);
+				int pairBytes = PostingLists.entrySize(keySize, prevKey, prevRid, entry.getKey(), entry.getRecordId())
+								+ includedSize;
+				full = !keys.isEmpty() && leafBytes + pairBytes > leafByteCapacity;
+				leafBytes = full ? PostingLists.entrySize(keySize, null, null, entry.getKey(), entry.getRecordId())
+								   + includedSize
+								 : leafBytes + pairBytes;
+			}
+			if (full) {
+				// There is more data than fits in this leaf, so reserve the page of
+				// its right sibling and write the leaf out.
+				int nextPageNum = allocLeafPage.getAsInt();
+				new LeafNode(metadata, leafPageNum, keys, rids, values, leftPageNum, Optional.of(nextPageNum),
+							 transaction);
+				leafFirstKeys.add(keys.get(0));
+				leafPageNums.add(leafPageNum);
+				leafSizes.add((long) keys.size());
+
+				separators.add(LeafNode.separator(metadata, keys.get(keys.size() - 1), entry.getKey()));
+
+				leftPageNum = Optional.of(leafPageNum);
+				leafPageNum = nextPageNum;
+				keys = new ArrayList<>();
+				rids = new ArrayList<>();
+				values = values == null ? null : new ArrayList<>();
+			}
+			if (lastKey == null || !lastKey.equals(entry.getKey())) {
+				++distinctKeys;
+			}
+			lastKey = entry.getKey();
+			keys.add(entry.getKey());
+			rids.add(entry.getRecordId());
+			addToKeyFilter(entry.getKey());
+			if (values != null) {
+				values.add(entry.getValues());
+			}
+		}
+		new LeafNode(metadata, leafPageNum, keys, rids, values, leftPageNum, Optional.empty(), transaction);
+		leafFirstKeys.add(keys.get(0));
+		leafPageNums.add(leafPageNum);
+		leafSizes.add((long) keys.size());
+
+		// Push every leaf but the first up into the inner levels.
+		for (int i = 1; i < leafPageNums.size(); ++i) {
+			bulkLoadPush(transaction, levels, 0, firstLeafPageNum, separators.get(i - 1), leafPageNums.get(i),
+						 allocInnerPage);
+		}
+
+		// Write out the rightmost inner node of every level. This may push one
+		// more key into the level above (or even create a new one), which is why
+		// levels.size() is re-evaluated on every iteration.
+		for (int height = 0; height < levels.size(); ++height) {
+			bulkLoadFinish(transaction, levels, height, allocInnerPage);
+		}
+
+		int newRootPageNum = levels.isEmpty() ? firstLeafPageNum : levels.get(levels.size() - 1).pageNum;
+		this.height = levels.size() + 1;
+		this.statistics = KeyStatistics.fromLeaves(metadata.getKeySchema(), metadata.isUnique(), leafFirstKeys,
+				leafSizes.stream().mapToLong(Long::longValue).toArray(), lastKey, distinctKeys,
+				KeyStatistics.maxBuckets(statisticsBudget(), metadata.getKeySchema()));
+		return newRootPageNum;
 	}
 
 	/**
@@ -315,50 +1178,2203 @@ public class BPlusTree implements Closeable {
 	 * tree.get(key); // Optional.of(rid)
 	 * tree.remove(key);
 	 * tree.get(key); // Optional.empty()
+	 *
+	 * If the tree allows duplicate keys, all the pairs with key `key` are
+	 * removed.
 	 */
 	public void remove(BaseTransaction transaction, DataBox key) {
-		this.root.remove(transaction,key);
+		BPlusTreeMetrics metrics = metadata.getMetrics();
+		long startNanos = System.nanoTime();
+		long startPageFetches = metrics.threadPageFetches();
+		try {
+			removeKey(transaction, key);
+			awaitLogged(transaction);
+		} finally {
+			metrics.record(BPlusTreeMetrics.Operation.REMOVE, startNanos, startPageFetches);
+		}
 	}
 
-	// Helpers /////////////////////////////////////////////////////////////////
-	/**
-	 * Returns a sexp representation of this tree. See BPlusNode.toSexp for more
-	 * information.
-	 */
-	public String toSexp(BaseTransaction transaction) {
-		return root.toSexp(transaction);
+	/** Like remove(transaction, key), but without recording it in the metrics. */
+	private void removeKey(BaseTransaction transaction, DataBox key) {
+		typecheck(key);
+		if (!metadata.isUnique()) {
+			var rids = new ArrayList<RecordId>();
+			scanEqual(transaction, key).forEachRemaining(rids::add);
+			for (RecordId rid : rids) {
+				removePair(transaction, key, rid);
+			}
+			return;
+		}
+		if (metadata.isBuffered()) {
+			removeAllBuffered(transaction, List.of(key));
+			return;
+		}
+
+		// Fast path: the leaf will not underflow (or is the root), so nothing but
+		// the leaf changes. Not with subtree counts; see put.
+		if (!metadata.isCounted()) {
+			LeafNode leaf = latchLeafForWrite(transaction, key);
+			try {
+				if (leaf.isSafeForRemove() || leaf.getPage().getPageNum() == rootPageNum) {
+					int size = leaf.size();
+					leaf.remove(transaction, key);
+					if (leaf.size() < size) {
+						statistics.recordRemove(key);
+					}
+					return;
+				}
+			} finally {
+				metadata.getRedoLog().commit();
+				metadata.getLatch(leaf.getPage().getPageNum()).writeLock().unlock();
+			}
+		}
+
+		// Slow path: nodes may be merged all the way up to the root. A root with
+		// at least two keys keeps at least one, and a leaf root never merges.
+		WritePath path = latchPathForWrite(transaction, key, this::isSafeForRemove);
+		try {
+			// The whole path is latched, so the leaf cannot change before the
+			// remove reaches it.
+			boolean found = path.leaf.getKey(key).isPresent();
+			if (path.holdsRootLatch) {
+				removeFromRoot(transaction, key);
+			} else {
+				path.top.remove(transaction, key);
+			}
+			if (found) {
+				statistics.recordRemove(key);
+			}
+			writeHeader(transaction, headerPage);
+		} finally {
+			path.release();
+		}
+		if (metadata.takeDeferredRebalance()) {
+			repairUnderflow(transaction, List.of(key));
+		}
 	}
 
 	/**
-	 * Debugging large B+ trees is hard. To make it a bit easier, we can print out a
-	 * B+ tree as a DOT file which we can then convert into a nice picture of the B+
-	 * tree. tree.toDot() returns the contents of DOT file which illustrates the B+
-	 * tree. The details of the file itself is not at all important, just know that
-	 * if you call tree.toDot() and save the output to a file called tree.dot, then
-	 * you can run this command
-	 *
-	 * dot -T pdf tree.dot -o tree.pdf
-	 *
-	 * to create a PDF of the tree.
+	 * Returns whether removing a key from `node` cannot make its parent change:
+	 * a root with at least two keys keeps at least one, and a leaf root never
+	 * merges.
 	 */
-	public String toDot(BaseTransaction transaction) {
-		var strings = new ArrayList<String>();
-		strings.add("digraph g {");
-		strings.add("  node [shape=record, height=0.1];");
-		strings.add(root.toDot(transaction));
-		strings.add("}");
-		return String.join("\n", strings);
+	private boolean isSafeForRemove(BPlusNode node) {
+		return node.getPage().getPageNum() == rootPageNum
+			   ? node instanceof LeafNode || node.size() > 1
+			   : node.isSafeForRemove();
 	}
 
 	/**
-	 * This function is very similar to toDot() except that we write the dot
-	 * representation of the B+ tree to a dot file and then convert that to a PDF
-	 * that will be stored in the src directory. Pass in a string with the ".pdf"
-	 * extension included at the end (ex "tree.pdf").
+	 * Deletes the pair (key, rid) from a B+ tree, or does nothing if it is not in
+	 * the tree. This is how single pairs are removed from a tree that allows
+	 * duplicate keys; in a tree with unique keys, key is only removed if it maps
+	 * to rid.
 	 */
-	public void toDotPDFFile(BaseTransaction transaction, String filename) {
-		String tree_string = toDot(transaction);
-
+	public void remove(BaseTransaction transaction, DataBox key, RecordId rid) {
+		BPlusTreeMetrics metrics = metadata.getMetrics();
+		long startNanos = System.nanoTime();
+		long startPageFetches = metrics.threadPageFetches();
+		try {
+			removePair(transaction, key, rid);
+			awaitLogged(transaction);
+		} finally {
+			metrics.record(BPlusTreeMetrics.Operation.REMOVE, startNanos, startPageFetches);
+		}
+	}
+
+	/** Like remove(transaction, key, rid), but without recording it in the metrics. */
+	private void removePair(BaseTransaction transaction, DataBox key, RecordId rid) {
+		typecheck(key);
+		if (metadata.isUnique() && metadata.isBuffered()) {
+			removePairBuffered(transaction, key, rid);
+			return;
+		}
+
+		// Fast path: the pair is in the leftmost leaf that may hold key, and that
+		// leaf will not underflow (or is the root). With unique keys, the leaf
+		// checks that key maps to rid under the same latch it removes it with.
+		// Not with subtree counts; see put.
+		if (!metadata.isCounted()) {
+			LeafNode leaf = latchLeafForWrite(transaction, key);
+			try {
+				if ((leaf.isSafeForRemove() || leaf.getPage().getPageNum() == rootPageNum) && leaf.remove(transaction, key, rid)) {
+					statistics.recordRemove(key);
+					return;
+				}
+			} finally {
+				metadata.getRedoLog().commit();
+				metadata.getLatch(leaf.getPage().getPageNum()).writeLock().unlock();
+			}
+		}
+
+		// Slow path, with unique keys: the pair can only be in the leaf on the
+		// path to key, so only that path is latched, as in removeKey.
+		if (metadata.isUnique()) {
+			WritePath path = latchPathForWrite(transaction, key, this::isSafeForRemove);
+			try {
+				BPlusNode top = path.holdsRootLatch ? rootNode(transaction) : path.top;
+				if (top.remove(transaction, key, rid)) {
+					statistics.recordRemove(key);
+				}
+				if (path.holdsRootLatch) {
+					shrinkRoot(transaction);
+				}
+				writeHeader(transaction, headerPage);
+			} finally {
+				path.release();
+			}
+			if (metadata.takeDeferredRebalance()) {
+				repairUnderflow(transaction, List.of(key));
+			}
+			return;
+		}
+
+		// Slow path: the pairs of key may span several leaves, which are not all
+		// on one path from the root, so the whole tree is latched.
+		rootLatch.writeLock().lock();
+		try {
+			Lock rootPageLatch = metadata.getLatch(rootPageNum).writeLock();
+			rootPageLatch.lock();
+			try {
+				if (rootNode(transaction).remove(transaction, key, rid)) {
+					statistics.recordRemove(key);
+				}
+			} finally {
+				rootPageLatch.unlock();
+			}
+			shrinkRoot(transaction);
+			writeHeader(transaction, headerPage);
+		} finally {
+			rootLatch.writeLock().unlock();
+		}
+		if (metadata.takeDeferredRebalance()) {
+			repairUnderflow(transaction, List.of(key));
+		}
+	}
+
+	/**
+	 * Removes key starting at the root, shrinking the tree if the root is left
+	 * with a single child. Must be called with rootLatch write latched.
+	 */
+	private void removeFromRoot(BaseTransaction transaction, DataBox key) {
+		rootNode(transaction).remove(transaction,key);
+
+		// Merges below the root may leave it an inner node with a single child.
+		// That child becomes the new root, and the tree shrinks by one level.
+		shrinkRoot(transaction);
+	}
+
+	/**
+	 * Rebalances the underflowing nodes on the paths from the root to `keys`.
+	 * A remove leaves a node underflowing when the latch of its sibling is busy
+	 * (see InnerNode.rebalanceChild), since waiting for it while holding the
+	 * latches below could deadlock. Once the remove has released its latches,
+	 * it calls this to descend again, holding only rootLatch and the latch of
+	 * one node at a time, so that InnerNode.repairChild can wait for the
+	 * latches of a child and its sibling. Rebalancing a child may leave its
+	 * parent underflowing, so after every repair we start over from the root,
+	 * until a descent finds nothing left to repair.
+	 */
+	private void repairUnderflow(BaseTransaction transaction, List<DataBox> keys) {
+		rootLatch.writeLock().lock();
+		try {
+			for (DataBox key : keys) {
+				boolean repaired = true;
+				while (repaired) {
+					repaired = false;
+					int pageNum = rootPageNum;
+					Lock latch = metadata.getLatch(pageNum).writeLock();
+					latch.lock();
+					try {
+						BPlusNode node = BPlusNode.fromBytes(transaction, metadata, pageNum);
+						while (node instanceof InnerNode inner && !repaired) {
+							int index = inner.childIndex(key);
+							repaired = inner.repairChild(transaction, index);
+							if (!repaired) {
+								pageNum = inner.getChildren().get(index);
+								Lock next = metadata.getLatch(pageNum).writeLock();
+								next.lock();
+								latch.unlock();
+								latch = next;
+								node = BPlusNode.fromBytes(transaction, metadata, pageNum);
+							}
+						}
+					} finally {
+						metadata.getRedoLog().commit();
+						latch.unlock();
+					}
+					shrinkRoot(transaction);
+				}
+			}
+			writeHeader(transaction, headerPage);
+		} finally {
+			rootLatch.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Replaces an inner root with no keys by its only child, as many times as
+	 * needed, unless the root still buffers messages for it. Must be called
+	 * with rootLatch write latched.
+	 */
+	private void shrinkRoot(BaseTransaction transaction) {
+		BPlusNode root = rootNode(transaction);
+		while (root instanceof InnerNode inner && inner.size() == 0
+			   && (!metadata.isBuffered() || inner.numBuffered() == 0)) {
+			int oldRootPageNum = rootPageNum;
+			rootPageNum = ((InnerNode) root).getChildren().get(0);
+			root = rootNode(transaction);
+			metadata.freePage(transaction, oldRootPageNum);
+			--height;
+		}
+	}
+
+	/**
+	 * Puts a new root above the current one if it was split into the parts
+	 * `splits` (see InnerNode.putAll), and so on for as long as the new root
+	 * has to be split in turn. Must be called with rootLatch write latched.
+	 */
+	private void growRoot(BaseTransaction transaction, List<Pair<DataBox, Integer>> splits) {
+		while (!splits.isEmpty()) {
+			var children = new ArrayList<Integer>();
+			children.add(rootPageNum);
+			var newRoot = new InnerNode(metadata, new ArrayList<>(), children, transaction);
+			newRoot.addSplits(transaction, 0, splits);
+			splits = newRoot.splitIntoParts(transaction);
+			rootPageNum = newRoot.getPage().getPageNum();
+			++height;
+		}
+	}
+
+	/**
+	 * Inserts a batch of (key, rid) pairs. The batch is sorted first, and then
+	 * every leaf (and inner node) that receives pairs is descended into once and
+	 * written once, however many pairs it receives, instead of once per pair as
+	 * with put. Nodes that overflow are split into as many nodes as needed.
+	 *
+	 * If a key is already in the tree or appears twice in the batch, an
+	 * exception is raised and nothing is inserted.
+	 *
+	 * The batch is applied with the root write latched, so other operations
+	 * wait for it as a whole.
+	 *
+	 * A tree with included columns needs their values as well, so it only
+	 * accepts putAllCovering.
+	 */
+	public void putAll(BaseTransaction transaction, List<Pair<DataBox, RecordId>> entries)
+			throws BPlusTreeException {
+		var withoutValues = new ArrayList<IndexEntry>(entries.size());
+		for (Pair<DataBox, RecordId> entry : entries) {
+			withoutValues.add(new IndexEntry(entry.getFirst(), entry.getSecond(), null));
+		}
+		putAllCovering(transaction, withoutValues);
+	}
+
+	/**
+	 * Like putAll, but for a tree with included columns: every entry carries
+	 * the values of the included columns of its record, as with put(transaction,
+	 * key, rid, values).
+	 */
+	public void putAllCovering(BaseTransaction transaction, List<IndexEntry> entries)
+			throws BPlusTreeException {
+		var sorted = new ArrayList<>(entries);
+		for (IndexEntry entry : sorted) {
+			typecheck(entry.getKey());
+			typecheckValues(entry.getValues());
+		}
+		// With duplicate keys allowed, pairs are ordered (and must differ) by
+		// record id as well.
+		Comparator<IndexEntry> order = metadata.isUnique()
+				? (a, b) -> a.getKey().compareTo(b.getKey())
+				: (a, b) -> PostingLists.compare(a.getKey(), a.getRecordId(), b.getKey(), b.getRecordId());
+		sorted.sort(order);
+		for (int i = 1; i < sorted.size(); ++i) {
+			if (order.compare(sorted.get(i - 1), sorted.get(i)) == 0) {
+				throw new BPlusTreeException("Key " + sorted.get(i).getKey() + " appears twice in the batch");
+			}
+		}
+		if (sorted.isEmpty()) {
+			return;
+		}
+		if (metadata.isBuffered()) {
+			putAllBuffered(transaction, sorted);
+			awaitLogged(transaction);
+			return;
+		}
+
+		rootLatch.writeLock().lock();
+		try {
+			// Check for existing keys up front. Lookups only read pages, and they
+			// keep a failing batch from being half applied. Pairs that already
+			// exist in a tree with duplicate keys are only caught by the leaf they
+			// are put into.
+			for (IndexEntry entry : sorted) {
+				if (metadata.isUnique() && getRecord(transaction, entry.getKey()).isPresent()) {
+					throw new BPlusTreeException("Key " + entry.getKey() + " already exists");
+				}
+			}
+
+			Lock rootPageLatch = metadata.getLatch(rootPageNum).writeLock();
+			rootPageLatch.lock();
+			try {
+				var splits = rootNode(transaction).putAll(transaction, sorted);
+				for (IndexEntry entry : sorted) {
+					addToKeyFilter(entry.getKey());
+					statistics.recordPut(entry.getKey());
+				}
+
+				growRoot(transaction, splits);
+			} finally {
+				rootPageLatch.unlock();
+			}
+			writeHeader(transaction, headerPage);
+		} finally {
+			rootLatch.writeLock().unlock();
+		}
+		awaitLogged(transaction);
+	}
+
+	/**
+	 * Deletes a batch of keys, visiting every affected node once like putAll.
+	 * Keys that are not in the tree are ignored.
+	 *
+	 * In a tree that allows duplicate keys, the pairs of a key may span several
+	 * subtrees, so the keys are removed one by one with remove(key) instead.
+	 */
+	public void removeAll(BaseTransaction transaction, Collection<DataBox> keys) {
+		for (DataBox key : keys) {
+			typecheck(key);
+		}
+		var sorted = new ArrayList<>(new TreeSet<>(keys));
+		if (!metadata.isUnique()) {
+			for (DataBox key : sorted) {
+				removeKey(transaction, key);
+			}
+			awaitLogged(transaction);
+			return;
+		}
+		if (sorted.isEmpty()) {
+			return;
+		}
+		if (metadata.isBuffered()) {
+			removeAllBuffered(transaction, sorted);
+			awaitLogged(transaction);
+			return;
+		}
+
+		rootLatch.writeLock().lock();
+		try {
+			Lock rootPageLatch = metadata.getLatch(rootPageNum).writeLock();
+			rootPageLatch.lock();
+			try {
+				for (DataBox key : rootNode(transaction).removeAll(transaction, sorted)) {
+					statistics.recordRemove(key);
+				}
+			} finally {
+				rootPageLatch.unlock();
+			}
+			shrinkRoot(transaction);
+			writeHeader(transaction, headerPage);
+		} finally {
+			rootLatch.writeLock().unlock();
+		}
+		if (metadata.takeDeferredRebalance()) {
+			repairUnderflow(transaction, sorted);
+		}
+		awaitLogged(transaction);
+	}
+
+	// Composite Keys //////////////////////////////////////////////////////////
+	/**
+	 * Returns the types of the columns of the keys of a tree with composite
+	 * keys, or an empty list if its keys are single values.
+	 */
+	public List<Type> getKeyColumns() {
+		return metadata.getKeyColumns();
+	}
+
+	/**
+	 * Returns the key of a tree with composite keys that holds `values`, one
+	 * for every key column, to be passed to put, get, remove and the scans.
+	 *
+	 * var columns = List.of(Type.stringType(2), Type.intType());
+	 * var tree = new BPlusTree("t.txt", columns, 4, true, lockContext, transaction);
+	 * DataBox key = tree.compositeKey(List.of(new StringDataBox("UA", 2), new IntDataBox(20190301)));
+	 * tree.put(transaction, key, new RecordId(42, (short) 42));
+	 * tree.decodeKey(key); // [UA, 20190301]
+	 */
+	public DataBox compositeKey(List<DataBox> values) {
+		checkCompositeKeys();
+		List<Type> columns = metadata.getKeyColumns();
+		if (values.size() != columns.size()) {
+			String msg = String.format("Values %s do not match the key columns %s", values, columns);
+			throw new IllegalArgumentException(msg);
+		}
+		return CompositeKeys.encode(columns, values);
+	}
+
+	/** Returns the values of the key columns held by the composite key `key`. */
+	public List<DataBox> decodeKey(DataBox key) {
+		checkCompositeKeys();
+		typecheck(key);
+		return CompositeKeys.decode(metadata.getKeyColumns(), key);
+	}
+
+	/**
+	 * Returns an iterator over the RecordIds of a tree with composite keys whose
+	 * keys start with `prefix`, the values of the first prefix.size() key
+	 * columns, in ascending order of their keys. For example, with key columns
+	 * (airline, flightdate), scanPrefix(transaction, List.of(airline)) returns
+	 * every flight of that airline. Like scanEnhanced, the iterator seeks
+	 * directly to the first leaf with such a key.
+	 */
+	public Iterator<RecordId> scanPrefix(BaseTransaction transaction, List<DataBox> prefix) {
+		return scanPrefixRange(transaction, prefix, prefix);
+	}
+
+	/**
+	 * Like scanPrefix, but returns the RecordIds whose keys start with values
+	 * between `lowerPrefix` and `upperPrefix` (both inclusive), which may have
+	 * different lengths. For example, with key columns (airline, flightdate),
+	 * scanPrefixRange(transaction, List.of(airline, from), List.of(airline, to))
+	 * returns the flights of that airline between two dates. Either prefix may
+	 * be null, in which case the range is open on that side.
+	 */
+	public Iterator<RecordId> scanPrefixRange(BaseTransaction transaction, List<DataBox> lowerPrefix,
+											  List<DataBox> upperPrefix) {
+		checkCompositeKeys();
+		List<Type> columns = metadata.getKeyColumns();
+		DataBox lowerBound = lowerPrefix == null ? null : CompositeKeys.encode(columns, lowerPrefix);
+		DataBox upperBound = upperPrefix == null ? null : CompositeKeys.upperBound(columns, upperPrefix);
+		return scan(transaction, lowerBound, upperBound, Integer.MAX_VALUE, null, false);
+	}
+
+	// Subtree Counts //////////////////////////////////////////////////////////
+	/**
+	 * Returns the number of (key, rid) pairs in the tree.
+	 *
+	 * This and the other methods of this section need a tree with subtree
+	 * counts (see BPlusTree(filename, keySchema, order, unique, counted,
+	 * lockContext, transaction)); they throw an UnsupportedOperationException
+	 * otherwise. Each of them reads a single path from the root, crabbing with
+	 * read latches like get.
+	 */
+	public int count(BaseTransaction transaction) {
+		checkCounted();
+		Lock rootRead = rootLatch.readLock();
+		rootRead.lock();
+		try {
+			Lock latch = metadata.getLatch(rootPageNum).readLock();
+			latch.lock();
+			try {
+				return rootNode(transaction).subtreeSize();
+			} finally {
+				latch.unlock();
+			}
+		} finally {
+			rootRead.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of (key, rid) pairs whose keys are between `lowerBound`
+	 * and `upperBound` (both inclusive), i.e. the number of record ids that
+	 * scanEnhanced(transaction, lowerBound, upperBound) returns. Either bound may
+	 * be null, in which case the range is open on that side.
+	 *
+	 * The count is taken in one descent: it crabs down while both bounds lead
+	 * to the same child, and at the node where they part it adds up the counts
+	 * of the children in between and reads the two paths below it while
+	 * keeping that node latched, so no put or remove can change the range in
+	 * the meantime.
+	 */
+	public int countRange(BaseTransaction transaction, DataBox lowerBound, DataBox upperBound) {
+		checkCounted();
+		typecheckBound(lowerBound);
+		typecheckBound(upperBound);
+		if (lowerBound != null && upperBound != null && lowerBound.compareTo(upperBound) > 0) {
+			return 0;
+		}
+		Lock parent = rootLatch.readLock();
+		parent.lock();
+		try {
+			int pageNum = rootPageNum;
+			while (true) {
+				Lock latch = metadata.getLatch(pageNum).readLock();
+				latch.lock();
+				parent.unlock();
+				parent = latch;
+
+				BPlusNode node = BPlusNode.readShared(transaction, metadata, pageNum);
+				if (node instanceof LeafNode) {
+					LeafNode leaf = (LeafNode) node;
+					int upTo = upperBound == null ? leaf.size() : leaf.countLessThan(upperBound, true);
+					int below = lowerBound == null ? 0 : leaf.countLessThan(lowerBound, false);
+					return upTo - below;
+				}
+				InnerNode inner = (InnerNode) node;
+				int lowIndex = lowerBound == null ? 0 : inner.boundaryChildIndex(lowerBound, false);
+				int highIndex = upperBound == null ? inner.getChildren().size() - 1
+								: inner.boundaryChildIndex(upperBound, true);
+				if (lowIndex == highIndex) {
+					pageNum = inner.getChildren().get(lowIndex);
+					continue;
+				}
+
+				int count = inner.countBefore(highIndex) - inner.countBefore(lowIndex + 1);
+				count += inner.countAt(lowIndex);
+				if (lowerBound != null) {
+					count -= countLessThan(transaction, null, inner.getChildren().get(lowIndex), lowerBound, false);
+				}
+				count += upperBound == null ? inner.countAt(highIndex)
+						 : countLessThan(transaction, null, inner.getChildren().get(highIndex), upperBound, true);
+				return count;
+			}
+		} finally {
+			parent.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of (key, rid) pairs whose key is less than `key`, which
+	 * is the position (starting at 0) that key has or would have in scanAll.
+	 */
+	public int rank(BaseTransaction transaction, DataBox key) {
+		checkCounted();
+		typecheck(key);
+		Lock rootRead = rootLatch.readLock();
+		rootRead.lock();
+		return countLessThan(transaction, rootRead, rootPageNum, key, false);
+	}
+
+	/**
+	 * Returns the (key, rid) pair at position `rank` (starting at 0) in scanAll,
+	 * or Optional.empty() if rank is negative or not less than count().
+	 */
+	public Optional<Pair<DataBox, RecordId>> select(BaseTransaction transaction, int rank) {
+		checkCounted();
+		return selectAt(transaction, size -> rank);
+	}
+
+	/**
+	 * Returns `n` (key, rid) pairs drawn uniformly at random, with replacement,
+	 * using `random`. Every pair takes one descent from the root, so this is
+	 * much cheaper than a scan for small samples of large trees. An empty tree
+	 * yields an empty sample.
+	 */
+	public List<Pair<DataBox, RecordId>> sample(BaseTransaction transaction, int n, Random random) {
+		checkCounted();
+		if (n < 0) {
+			throw new IllegalArgumentException("The sample size cannot be negative.");
+		}
+		var samples = new ArrayList<Pair<DataBox, RecordId>>(n);
+		for (int i = 0; i < n; ++i) {
+			// The size is read again for every pair, under the latch of the root.
+			selectAt(transaction, random::nextInt).ifPresent(samples::add);
+		}
+		return samples;
+	}
+
+	/**
+	 * Returns the number of pairs in the subtree on page `pageNum` whose key is
+	 * less than `key`, or less than or equal to `key` if `inclusive`. Crabs
+	 * down with read latches, releasing `parent`, a latch the caller holds (or
+	 * null), once that page is latched.
+	 */
+	private int countLessThan(BaseTransaction transaction, Lock parent, int pageNum, DataBox key,
+							  boolean inclusive) {
+		try {
+			int count = 0;
+			while (true) {
+				Lock latch = metadata.getLatch(pageNum).readLock();
+				latch.lock();
+				if (parent != null) {
+					parent.unlock();
+				}
+				parent = latch;
+
+				BPlusNode node = BPlusNode.readShared(transaction, metadata, pageNum);
+				if (node instanceof LeafNode) {
+					return count + ((LeafNode) node).countLessThan(key, inclusive);
+				}
+				InnerNode inner = (InnerNode) node;
+				int index = inner.boundaryChildIndex(key, inclusive);
+				count += inner.countBefore(index);
+				pageNum = inner.getChildren().get(index);
+			}
+		} finally {
+			if (parent != null) {
+				parent.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Returns the pair at position rankOf(n), where n is the number of pairs in
+	 * the tree when its root is latched, or Optional.empty() if the tree is
+	 * empty or that position is out of range.
+	 */
+	private Optional<Pair<DataBox, RecordId>> selectAt(BaseTransaction transaction, IntUnaryOperator rankOf) {
+		Lock parent = rootLatch.readLock();
+		parent.lock();
+		try {
+			int pageNum = rootPageNum;
+			boolean atRoot = true;
+			int rank = 0;
+			while (true) {
+				Lock latch = metadata.getLatch(pageNum).readLock();
+				latch.lock();
+				parent.unlock();
+				parent = latch;
+
+				BPlusNode node = BPlusNode.readShared(transaction, metadata, pageNum);
+				if (atRoot) {
+					int size = node.subtreeSize();
+					if (size == 0) {
+						return Optional.empty();
+					}
+					rank = rankOf.applyAsInt(size);
+					if (rank < 0 || rank >= size) {
+						return Optional.empty();
+					}
+					atRoot = false;
+				}
+				if (node instanceof LeafNode) {
+					LeafNode leaf = (LeafNode) node;
+					return Optional.of(new Pair<>(leaf.keyAt(rank), leaf.ridAt(rank)));
+				}
+				InnerNode inner = (InnerNode) node;
+				int index = inner.childIndexOfRank(rank);
+				rank -= inner.countBefore(index);
+				pageNum = inner.getChildren().get(index);
+			}
+		} finally {
+			parent.unlock();
+		}
+	}
+
+	private void checkCounted() {
+		if (!metadata.isCounted()) {
+			throw new UnsupportedOperationException("This B+ tree does not keep subtree counts.");
+		}
+	}
+
+	// Statistics //////////////////////////////////////////////////////////////
+	/**
+	 * Returns the number of levels of the tree, counting the leaves. A tree
+	 * whose root is a leaf has height 1.
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Estimates the number of (key, rid) pairs whose key is between
+	 * `lowerBound` and `upperBound`, both inclusive. Either bound may be null,
+	 * for no bound. The estimate comes from the histogram kept in the header
+	 * page (see refreshStatistics), without reading the tree.
+	 */
+	public double estimateCount(DataBox lowerBound, DataBox upperBound) {
+		typecheckBound(lowerBound);
+		typecheckBound(upperBound);
+		return statistics.estimateCount(lowerBound, upperBound);
+	}
+
+	/** Estimates the number of distinct keys in the tree. */
+	public long estimateDistinctKeys() {
+		return statistics.getDistinctKeys();
+	}
+
+	/**
+	 * Estimates the number of pages that a scan of the keys between
+	 * `lowerBound` and `upperBound` (as in estimateCount) reads: one inner node
+	 * per level on the way down, and then every leaf that holds such a key.
+	 */
+	public long estimatePages(DataBox lowerBound, DataBox upperBound) {
+		double entriesPerLeaf = statistics.getEntriesPerLeaf();
+		if (entriesPerLeaf <= 0) {
+			// Assume leaves that are three quarters full.
+			int order = metadata.isUnique()
+						? metadata.getOrder()
+						: LeafNode.maxOrder(Page.pageSize, metadata.getKeySchema(), metadata.getIncludedSchema());
+			entriesPerLeaf = 0.75 * 2 * order;
+		}
+		double rows = estimateCount(lowerBound, upperBound);
+		return (height - 1) + Math.max(1, (long) Math.ceil(rows / entriesPerLeaf));
+	}
+
+	/**
+	 * Rebuilds the statistics of the tree from a sample of about `sampleSize`
+	 * of its leaves, and writes them to the header page. Every inner node is
+	 * read, so that each leaf's share of the key space is known from the key
+	 * that separates it from its left sibling; each leaf is then read with
+	 * probability sampleSize / (number of leaves), except for the first and the
+	 * last, which are always read. Unread leaves are assumed to hold as many
+	 * pairs as the average sampled one. Trees whose statistics do not know the
+	 * number of leaves yet are read in full.
+	 *
+	 * Like a scan, this runs alongside writers: inner nodes are read latched,
+	 * top-down, and the statistics describe the tree as it was somewhere in
+	 * between. Puts and removes keep adjusting the new statistics afterwards.
+	 */
+	public void refreshStatistics(BaseTransaction transaction, int sampleSize) {
+		if (sampleSize <= 0) {
+			throw new IllegalArgumentException("The sample size must be positive.");
+		}
+		KeyStatistics old = statistics;
+		double probability = 1;
+		if (old.getEntriesPerLeaf() > 0) {
+			double numLeaves = Math.ceil(old.getNumKeys() / old.getEntriesPerLeaf());
+			probability = Math.min(1, sampleSize / numLeaves);
+		}
+		var sample = new LeafSample(probability);
+
+		rootLatch.readLock().lock();
+		int sampledRootPageNum = rootPageNum;
+		Lock latch = metadata.getLatch(sampledRootPageNum).readLock();
+		latch.lock();
+		rootLatch.readLock().unlock();
+		BPlusNode root;
+		boolean leafChildren;
+		try {
+			root = BPlusNode.fromBytes(transaction, metadata, sampledRootPageNum);
+			leafChildren = root instanceof InnerNode inner && isLeafPage(transaction, inner.getChildren().get(0));
+		} finally {
+			latch.unlock();
+		}
+		int sampledHeight;
+		if (root instanceof LeafNode leaf) {
+			sample.addLeaf(leaf, null);
+			sampledHeight = 1;
+		} else {
+			sampledHeight = sampleSubtree(transaction, (InnerNode) root, leafChildren, null, true, true, sample);
+		}
+
+		KeyStatistics rebuilt = sample.build();
+		rootLatch.writeLock().lock();
+		try {
+			statistics = rebuilt;
+			// Only a split or a shrink of the root changes the height, and both
+			// replace the root page.
+			if (rootPageNum == sampledRootPageNum) {
+				height = sampledHeight;
+			}
+			writeHeader(transaction, headerPage);
+		} finally {
+			rootLatch.writeLock().unlock();
+		}
+		awaitLogged(transaction);
+	}
+
+	/**
+	 * Adds the leaves below `node` to `sample`, and returns the height of
+	 * `node`. `node` is our own copy, read under its latch, and `leafChildren`
+	 * tells whether its children were leaves then. `lowerBound` is the key
+	 * that separates `node` from its left neighbour (null for none), and
+	 * `leftmost` and `rightmost` tell whether `node` is on the leftmost or
+	 * rightmost path of the tree.
+	 *
+	 * Only the latch of one child at a time is held, and only while reading
+	 * it, so writers are never held up for more than one node. The children
+	 * may thus change after we read `node`: a child that has been freed since,
+	 * or whose page now holds another kind of node, is left out, and nodes
+	 * split off in the meantime are missed. The statistics are estimates
+	 * anyway.
+	 */
+	private int sampleSubtree(BaseTransaction transaction, InnerNode node, boolean leafChildren,
+							  DataBox lowerBound, boolean leftmost, boolean rightmost, LeafSample sample) {
+		List<DataBox> keys = node.getKeys();
+		List<Integer> children = node.getChildren();
+		int childHeight = leafChildren ? 1 : 2;
+		for (int i = 0; i < children.size(); ++i) {
+			int pageNum = children.get(i);
+			DataBox childLowerBound = i == 0 ? lowerBound : keys.get(i - 1);
+			boolean childLeftmost = leftmost && i == 0;
+			boolean childRightmost = rightmost && i == children.size() - 1;
+			if (leafChildren && !childLeftmost && !childRightmost && !sample.shouldRead()) {
+				sample.skipLeaf(childLowerBound);
+				continue;
+			}
+
+			BPlusNode child;
+			boolean leafGrandchildren = false;
+			Lock latch = metadata.getLatch(pageNum).readLock();
+			latch.lock();
+			try {
+				child = readLiveNode(transaction, pageNum);
+				if (child instanceof InnerNode inner) {
+					leafGrandchildren = isLeafPage(transaction, inner.getChildren().get(0));
+				}
+			} finally {
+				latch.unlock();
+			}
+			if (child == null || child instanceof LeafNode != leafChildren) {
+				if (leafChildren) {
+					sample.skipLeaf(childLowerBound);
+				}
+			} else if (leafChildren) {
+				sample.addLeaf((LeafNode) child, childLowerBound);
+			} else {
+				childHeight = 1 + sampleSubtree(transaction, (InnerNode) child, leafGrandchildren, childLowerBound,
+												childLeftmost, childRightmost, sample);
+			}
+		}
+		return 1 + childHeight;
+	}
+
+	/** The leaves seen by refreshStatistics, from left to right. */
+	private class LeafSample {
+		private final double probability;
+		// The first key (or lower bound) and number of pairs of every leaf, where
+		// -1 marks a leaf that was not read.
+		private final List<DataBox> firstKeys = new ArrayList<>();
+		private final List<Long> counts = new ArrayList<>();
+		private long sampledLeaves = 0;
+		private long sampledPairs = 0;
+		private long sampledDistinctKeys = 0;
+		private DataBox maxKey = null;
+
+		LeafSample(double probability) {
+			this.probability = probability;
+		}
+
+		boolean shouldRead() {
+			return probability >= 1 || ThreadLocalRandom.current().nextDouble() < probability;
+		}
+
+		void skipLeaf(DataBox lowerBound) {
+			firstKeys.add(lowerBound);
+			counts.add(-1L);
+		}
+
+		void addLeaf(LeafNode leaf, DataBox lowerBound) {
+			List<DataBox> keys = leaf.getKeys();
+			++sampledLeaves;
+			sampledPairs += keys.size();
+			for (int i = 0; i < keys.size(); ++i) {
+				if (i == 0 || !keys.get(i).equals(keys.get(i - 1))) {
+					++sampledDistinctKeys;
+				}
+			}
+			if (!keys.isEmpty()) {
+				maxKey = keys.get(keys.size() - 1);
+			}
+			// An empty leftmost leaf has neither keys nor a lower bound, and adds
+			// nothing to the histogram.
+			DataBox firstKey = keys.isEmpty() ? lowerBound : keys.get(0);
+			if (firstKey != null) {
+				firstKeys.add(firstKey);
+				counts.add((long) keys.size());
+			}
+		}
+
+		KeyStatistics build() {
+			long average = sampledLeaves == 0 ? 0 : Math.round((double) sampledPairs / sampledLeaves);
+			long[] leafCounts = new long[counts.size()];
+			long total = 0;
+			for (int i = 0; i < leafCounts.length; ++i) {
+				leafCounts[i] = counts.get(i) < 0 ? average : counts.get(i);
+				total += leafCounts[i];
+			}
+			long distinctKeys = sampledPairs == 0
+								? 0
+								: Math.round((double) total * sampledDistinctKeys / sampledPairs);
+			int maxBuckets = KeyStatistics.maxBuckets(statisticsBudget(), metadata.getKeySchema());
+			return KeyStatistics.fromLeaves(metadata.getKeySchema(), metadata.isUnique(), firstKeys, leafCounts,
+											maxKey, distinctKeys, maxBuckets);
+		}
+	}
+
+	// Write Buffers ///////////////////////////////////////////////////////////
+	/**
+	 * Turns the write buffers of the tree on or off. With write buffers, every
+	 * inner node keeps the puts and removes of keys in its subtree in the room
+	 * its page has left, and only passes them on to its children in batches
+	 * once that room is full (see InnerNode.flush). A put or remove then
+	 * usually rewrites the root alone, and a leaf is written once for a whole
+	 * batch of messages instead of once per pair. In exchange, gets check the
+	 * buffers on their way down, and scans merge the messages for their range
+	 * with the pairs of the leaves.
+	 *
+	 * The smaller the order of the tree, the more of an inner node's page is
+	 * left for its buffer (see BPlusTreeMetadata.getBufferCapacity). Only trees
+	 * with unique keys, without subtree counts or included columns, can have
+	 * write buffers. Turning them off flushes every buffer to the leaves. The
+	 * setting is saved in the header page.
+	 *
+	 * Writers to a tree with write buffers look their keys up concurrently,
+	 * and add their messages to the buffer of the root in memory, under a
+	 * latch of its own (see rootMessages). The root is only written, with
+	 * rootLatch write latched, once its buffer would no longer fit on its
+	 * page, unless the tree is logged (see putAllBuffered). Leaves emptied by
+	 * removes are merged when their messages are flushed, while inner nodes
+	 * are not. This should be called while no other operation is running on
+	 * the tree.
+	 */
+	public void setWriteBuffered(BaseTransaction transaction, boolean buffered) {
+		if (buffered && (!metadata.isUnique() || metadata.isCounted() || metadata.hasIncludedColumns())) {
+			String msg = "Only B+ trees with unique keys, without subtree counts or included columns, " +
+						 "can have write buffers.";
+			throw new UnsupportedOperationException(msg);
+		}
+		if (buffered && metadata.isSlotted()) {
+			throw new UnsupportedOperationException("B+ trees with slotted pages cannot have write buffers.");
+		}
+		if (buffered && metadata.getBufferCapacity() == 0) {
+			String msg = String.format("An order of %d leaves no room for write buffers.", metadata.getOrder());
+			throw new UnsupportedOperationException(msg);
+		}
+		rootLatch.writeLock().lock();
+		try {
+			if (buffered == metadata.isBuffered()) {
+				return;
+			}
+			if (!buffered) {
+				flushAll(transaction);
+			}
+			// Rewrite every inner node in the new format: with an empty buffer at
+			// the end of its page, or without one.
+			var innerNodes = new ArrayList<InnerNode>();
+			collectInnerNodes(transaction, rootNode(transaction), innerNodes);
+			metadata.setBuffered(buffered);
+			metadata.getNodeCache().clear();
+			for (InnerNode node : innerNodes) {
+				int pageNum = node.getPage().getPageNum();
+				Lock latch = metadata.getLatch(pageNum).writeLock();
+				latch.lock();
+				try {
+					new InnerNode(metadata, pageNum, node.getKeys(), node.getChildren(), transaction);
+				} finally {
+					latch.unlock();
+				}
+			}
+			writeHeader(transaction, headerPage);
+		} finally {
+			rootLatch.writeLock().unlock();
+		}
+		awaitLogged(transaction);
+	}
+
+	/**
+	 * Turns slotted pages on or off. With slotted pages, string keys take only
+	 * as many bytes as they need instead of the full width of their type, the
+	 * prefix shared by all the keys of a node is stored once, and the
+	 * separators in inner nodes are cut down to the shortest string that still
+	 * separates their children (see SlottedKeys). Nodes then hold a varying
+	 * number of keys, and are split and merged by their size in bytes instead
+	 * of by the order of the tree, which only bounds the size of the keys.
+	 *
+	 * Only empty B+ trees with unique string keys, without subtree counts,
+	 * included columns or write buffers, can have slotted pages. The setting is
+	 * saved in the header page.
+	 */
+	public void setSlottedPages(BaseTransaction transaction, boolean slotted) {
+		if (slotted && (!SlottedKeys.supports(metadata.getKeySchema()) || !metadata.isUnique()
+						|| metadata.isCounted() || metadata.hasIncludedColumns() || metadata.isBuffered())) {
+			String msg = "Only B+ trees with unique string keys, without subtree counts, included columns " +
+						 "or write buffers, can have slotted pages.";
+			throw new UnsupportedOperationException(msg);
+		}
+		rootLatch.writeLock().lock();
+		try {
+			if (slotted == metadata.isSlotted()) {
+				return;
+			}
+			if (!(rootNode(transaction) instanceof LeafNode leaf) || !leaf.getKeys().isEmpty()) {
+				throw new UnsupportedOperationException("Only an empty B+ tree can change its page format.");
+			}
+			int pageNum = rootPageNum;
+			metadata.setSlotted(slotted);
+			metadata.getNodeCache().clear();
+			Lock latch = metadata.getLatch(pageNum).writeLock();
+			latch.lock();
+			try {
+				leaf.sync(transaction);
+			} finally {
+				latch.unlock();
+			}
+			writeHeader(transaction, headerPage);
+		} finally {
+			rootLatch.writeLock().unlock();
+		}
+		awaitLogged(transaction);
+	}
+
+	/**
+	 * Flushes every buffered message down to the leaves. Must be called with
+	 * rootLatch write latched.
+	 */
+	private void flushAll(BaseTransaction transaction) {
+		applyRootMessages(transaction);
+		if (!(rootNode(transaction) instanceof InnerNode inner)) {
+			return;
+		}
+		Lock rootPageLatch = metadata.getLatch(rootPageNum).writeLock();
+		rootPageLatch.lock();
+		try {
+			growRoot(transaction, inner.flush(transaction, true));
+			shrinkRoot(transaction);
+		} finally {
+			rootPageLatch.unlock();
+		}
+	}
+
+	/** Adds `node` and the inner nodes below it to `nodes`. */
+	private void collectInnerNodes(BaseTransaction transaction, BPlusNode node, List<InnerNode> nodes) {
+		if (!(node instanceof InnerNode inner)) {
+			return;
+		}
+		nodes.add(inner);
+		if (isLeafPage(transaction, inner.getChildren().get(0))) {
+			return;
+		}
+		for (int pageNum : inner.getChildren()) {
+			collectInnerNodes(transaction, InnerNode.fromBytes(transaction, metadata, pageNum), nodes);
+		}
+	}
+
+	/**
+	 * Returns the record id of `key` in a tree with write buffers: the newest
+	 * message for it in the buffers on its path from the root, or else its pair
+	 * in its leaf. Like lookup, this walks down the serialized pages instead of
+	 * decoding a node per level, which would copy its whole buffer out of the
+	 * node cache. Must be called with rootLatch latched; only flushes, which
+	 * hold it write latched, change the pages of such a tree.
+	 */
+	private Optional<RecordId> lookupBuffered(BaseTransaction transaction, DataBox key) {
+		Optional<RecordId> rootMessage = rootMessage(key);
+		if (rootMessage != null) {
+			return rootMessage;
+		}
+		int pageNum = rootPageNum;
+		while (true) {
+			Buffer buf = metadata.fetchPage(transaction, pageNum).getBuffer(transaction);
+			if (buf.get(0) == (byte) 1) {
+				return LeafNode.lookup(buf, metadata, key);
+			}
+			Optional<RecordId> message = InnerNode.bufferedMessage(buf, metadata, key);
+			if (message != null) {
+				return message;
+			}
+			pageNum = InnerNode.childPageNum(buf, metadata, key);
+		}
+	}
+
+	/**
+	 * Adds to `found` the keys among the sorted `keys` that are in the subtree
+	 * on page `pageNum` of a tree with write buffers, i.e. those for which
+	 * lookupBuffered would return a record id. Looking the keys up together
+	 * reads every page on their paths once, where lookups one by one would
+	 * read the top of the tree once per key. Must be called with rootLatch
+	 * latched, like lookupBuffered.
+	 */
+	private void findBuffered(BaseTransaction transaction, int pageNum, List<DataBox> keys, List<DataBox> found) {
+		Buffer buf = metadata.fetchPage(transaction, pageNum).getBuffer(transaction);
+		if (buf.get(0) == (byte) 1) {
+			for (DataBox key : keys) {
+				if (LeafNode.lookup(buf, metadata, key).isPresent()) {
+					found.add(key);
+				}
+			}
+			return;
+		}
+		var rest = new ArrayList<DataBox>();
+		var childPageNums = new ArrayList<Integer>();
+		for (DataBox key : keys) {
+			Optional<RecordId> message = InnerNode.bufferedMessage(buf, metadata, key);
+			if (message == null) {
+				rest.add(key);
+				childPageNums.add(InnerNode.childPageNum(buf, metadata, key));
+			} else if (message.isPresent()) {
+				found.add(key);
+			}
+		}
+		// The keys are sorted, so those of a child are next to each other.
+		int from = 0;
+		while (from < rest.size()) {
+			int to = from + 1;
+			while (to < rest.size() && childPageNums.get(to).equals(childPageNums.get(from))) {
+				++to;
+			}
+			findBuffered(transaction, childPageNums.get(from), rest.subList(from, to), found);
+			from = to;
+		}
+	}
+
+	/**
+	 * Like putAll, for a tree with write buffers: after checking that none of
+	 * the keys exist, the pairs are added to the buffer of the root as puts.
+	 * `entries` must be sorted and free of duplicate keys.
+	 *
+	 * The keys are looked up with rootLatch only read latched, so that writers
+	 * look theirs up at the same time as each other and as readers, and the
+	 * messages are added to rootMessages under rootMessagesLatch alone. No
+	 * page changes while rootLatch is read latched, so the only messages for
+	 * our keys that another writer can have added since we looked them up are
+	 * in rootMessages, which we check again under its latch.
+	 *
+	 * A logged tree appends the record of a writer to the redo log when it
+	 * releases its latches (see RedoLog), but messages that are only in
+	 * rootMessages are on no page. So in a logged tree, writers keep rootLatch
+	 * write latched instead, and write the root before they return.
+	 */
+	private void putAllBuffered(BaseTransaction transaction, List<IndexEntry> entries)
+			throws BPlusTreeException {
+		var messages = new TreeMap<DataBox, Optional<RecordId>>();
+		for (IndexEntry entry : entries) {
+			messages.put(entry.getKey(), Optional.of(entry.getRecordId()));
+		}
+		boolean logged = metadata.isRedoLogged();
+		Lock latch = logged ? rootLatch.writeLock() : rootLatch.readLock();
+		boolean full;
+		latch.lock();
+		try {
+			checkAbsentBuffered(transaction, entries);
+			rootMessagesLatch.writeLock().lock();
+			try {
+				for (IndexEntry entry : entries) {
+					Optional<RecordId> message = rootMessages.get(entry.getKey());
+					if (message != null && message.isPresent()) {
+						throw new BPlusTreeException("Key " + entry.getKey() + " already exists");
+					}
+				}
+				full = addRootMessages(transaction, messages);
+				for (IndexEntry entry : entries) {
+					addToKeyFilter(entry.getKey());
+				}
+			} finally {
+				rootMessagesLatch.writeLock().unlock();
+			}
+			if (logged) {
+				applyRootMessages(transaction);
+			}
+		} finally {
+			latch.unlock();
+		}
+		for (IndexEntry entry : entries) {
+			statistics.recordPut(entry.getKey());
+		}
+		if (full && !logged) {
+			flushRootMessages(transaction);
+		}
+	}
+
+	/**
+	 * Returns the message for `key` in rootMessages, or null if there is none.
+	 * Must be called with rootLatch latched.
+	 */
+	private Optional<RecordId> rootMessage(DataBox key) {
+		rootMessagesLatch.readLock().lock();
+		try {
+			return rootMessages.get(key);
+		} finally {
+			rootMessagesLatch.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Throws if any of the keys of the sorted `entries` is in a tree with write
+	 * buffers. Keys that the key filter rules out are not looked up, and the
+	 * others are looked up together (see findBuffered), unless rootMessages
+	 * has a message for them. Must be called with rootLatch latched.
+	 */
+	private void checkAbsentBuffered(BaseTransaction transaction, List<IndexEntry> entries)
+			throws BPlusTreeException {
+		BloomFilter filter = keyFilter;
+		var keys = new ArrayList<DataBox>();
+		for (IndexEntry entry : entries) {
+			if (filter != null && !filter.mightContain(entry.getKey())) {
+				continue;
+			}
+			Optional<RecordId> message = rootMessage(entry.getKey());
+			if (message == null) {
+				keys.add(entry.getKey());
+			} else if (message.isPresent()) {
+				throw new BPlusTreeException("Key " + entry.getKey() + " already exists");
+			}
+		}
+		var found = new ArrayList<DataBox>();
+		findBuffered(transaction, rootPageNum, keys, found);
+		if (!found.isEmpty()) {
+			throw new BPlusTreeException("Key " + found.get(0) + " already exists");
+		}
+	}
+
+	/**
+	 * Like removeAll, for a tree with write buffers: the keys are added to the
+	 * buffer of the root as removes, without looking them up, like puts are in
+	 * putAllBuffered. Removes of keys that are not in the tree are thus
+	 * counted in the statistics all the same.
+	 */
+	private void removeAllBuffered(BaseTransaction transaction, List<DataBox> keys) {
+		var messages = new TreeMap<DataBox, Optional<RecordId>>();
+		for (DataBox key : keys) {
+			messages.put(key, Optional.empty());
+		}
+		boolean logged = metadata.isRedoLogged();
+		Lock latch = logged ? rootLatch.writeLock() : rootLatch.readLock();
+		boolean full;
+		latch.lock();
+		try {
+			rootMessagesLatch.writeLock().lock();
+			try {
+				full = addRootMessages(transaction, messages);
+			} finally {
+				rootMessagesLatch.writeLock().unlock();
+			}
+			if (logged) {
+				applyRootMessages(transaction);
+			}
+		} finally {
+			latch.unlock();
+		}
+		for (DataBox key : keys) {
+			statistics.recordRemove(key);
+		}
+		if (full && !logged) {
+			flushRootMessages(transaction);
+		}
+	}
+
+	/**
+	 * Like remove(transaction, key, rid), for a tree with write buffers: key is
+	 * only added to the buffer of the root as a remove if it maps to rid. Like
+	 * in putAllBuffered, it is looked up with rootLatch read latched, and only
+	 * rootMessages is checked again under its latch.
+	 */
+	private void removePairBuffered(BaseTransaction transaction, DataBox key, RecordId rid) {
+		boolean logged = metadata.isRedoLogged();
+		Lock latch = logged ? rootLatch.writeLock() : rootLatch.readLock();
+		boolean removed = false;
+		boolean full = false;
+		latch.lock();
+		try {
+			if (lookupBuffered(transaction, key).filter(rid::equals).isPresent()) {
+				rootMessagesLatch.writeLock().lock();
+				try {
+					Optional<RecordId> message = rootMessages.get(key);
+					if (message == null || message.filter(rid::equals).isPresent()) {
+						var messages = new TreeMap<DataBox, Optional<RecordId>>();
+						messages.put(key, Optional.empty());
+						full = addRootMessages(transaction, messages);
+						removed = true;
+					}
+				} finally {
+					rootMessagesLatch.writeLock().unlock();
+				}
+			}
+			if (logged) {
+				applyRootMessages(transaction);
+			}
+		} finally {
+			latch.unlock();
+		}
+		if (removed) {
+			statistics.recordRemove(key);
+		}
+		if (full && !logged) {
+			flushRootMessages(transaction);
+		}
+	}
+
+	/**
+	 * Adds `messages` to rootMessages, and returns whether the buffer of the
+	 * root would no longer fit on its page with them. Must be called with
+	 * rootLatch latched and rootMessagesLatch write latched.
+	 */
+	private boolean addRootMessages(BaseTransaction transaction, NavigableMap<DataBox, Optional<RecordId>> messages) {
+		rootMessages.putAll(messages);
+		return isRootFull(transaction);
+	}
+
+	/**
+	 * Returns whether the buffer of the root would no longer fit on its page
+	 * with rootMessages, reading the number of messages already on the page
+	 * straight out of it. A root that is a leaf has no buffer, and takes up to
+	 * as many messages as an inner root. Must be called with rootLatch latched.
+	 */
+	private boolean isRootFull(BaseTransaction transaction) {
+		Buffer buf = metadata.fetchPage(transaction, rootPageNum).getBuffer(transaction);
+		int onPage = buf.get(0) == (byte) 1 ? 0 : InnerNode.numBuffered(buf, metadata);
+		return onPage + rootMessages.size() > metadata.getBufferCapacity();
+	}
+
+	/**
+	 * Moves rootMessages into the buffer of the root if it is full (see
+	 * isRootFull), flushing it. Only one writer at a time waits for rootLatch
+	 * to do so; the others go on adding messages, which that writer takes
+	 * along or the next one flushes.
+	 */
+	private void flushRootMessages(BaseTransaction transaction) {
+		if (!rootMessagesFlushLock.tryLock()) {
+			return;
+		}
+		try {
+			rootLatch.writeLock().lock();
+			try {
+				if (isRootFull(transaction)) {
+					applyRootMessages(transaction);
+				}
+			} finally {
+				rootLatch.writeLock().unlock();
+			}
+		} finally {
+			rootMessagesFlushLock.unlock();
+		}
+	}
+
+	/**
+	 * Moves rootMessages into the buffer of the root, flushing it if it is
+	 * full, and writes the root (see applyBuffered). Must be called with
+	 * rootLatch write latched, which keeps every other reader and writer of
+	 * rootMessages out.
+	 */
+	private void applyRootMessages(BaseTransaction transaction) {
+		if (rootMessages.isEmpty()) {
+			return;
+		}
+		var messages = new TreeMap<>(rootMessages);
+		rootMessages.clear();
+		applyBuffered(transaction, messages);
+	}
+
+	/**
+	 * Adds `messages` to the buffer of the root, flushing it if it is full. A
+	 * root that is a leaf has no buffer, and gets the messages applied right
+	 * away. Must be called with rootLatch write latched.
+	 */
+	private void applyBuffered(BaseTransaction transaction, NavigableMap<DataBox, Optional<RecordId>> messages) {
+		int oldRootPageNum = rootPageNum;
+		Lock rootPageLatch = metadata.getLatch(rootPageNum).writeLock();
+		rootPageLatch.lock();
+		try {
+			BPlusNode root = rootNode(transaction);
+			List<Pair<DataBox, Integer>> splits;
+			if (root instanceof InnerNode inner) {
+				messages.forEach(inner::addBuffered);
+				splits = inner.flush(transaction, false);
+			} else {
+				splits = ((LeafNode) root).applyBuffered(transaction, messages);
+			}
+			growRoot(transaction, splits);
+			// Merges below the root may have left it with a single child.
+			shrinkRoot(transaction);
+		} finally {
+			rootPageLatch.unlock();
+		}
+		if (rootPageNum != oldRootPageNum) {
+			writeHeader(transaction, headerPage);
+		}
+	}
+
+	/**
+	 * Returns the newest buffered message for every key between `lowerBound`
+	 * and `upperBound` (both inclusive, null for no bound), from the buffers of
+	 * all the inner nodes whose subtree may hold such keys.
+	 */
+	private TreeMap<DataBox, Optional<RecordId>> collectBuffered(BaseTransaction transaction,
+																 DataBox lowerBound, DataBox upperBound) {
+		var messages = new TreeMap<DataBox, Optional<RecordId>>();
+		rootLatch.readLock().lock();
+		try {
+			rootMessagesLatch.readLock().lock();
+			try {
+				InnerNode.collectBuffered(rootMessages, lowerBound, upperBound, messages);
+			} finally {
+				rootMessagesLatch.readLock().unlock();
+			}
+			if (rootNode(transaction) instanceof InnerNode inner) {
+				collectBuffered(transaction, inner, lowerBound, upperBound, messages);
+			}
+		} finally {
+			rootLatch.readLock().unlock();
+		}
+		return messages;
+	}
+
+	/**
+	 * Adds the messages of `node` and then of the inner nodes below it to
+	 * `messages`, so that newer messages come first (see
+	 * InnerNode.collectBuffered).
+	 */
+	private void collectBuffered(BaseTransaction transaction, InnerNode node, DataBox lowerBound,
+								 DataBox upperBound, TreeMap<DataBox, Optional<RecordId>> messages) {
+		node.collectBuffered(lowerBound, upperBound, messages);
+		List<Integer> children = node.getChildren();
+		if (isLeafPage(transaction, children.get(0))) {
+			return;
+		}
+		for (int i = 0; i < children.size(); ++i) {
+			if (node.childOverlaps(i, lowerBound, upperBound)) {
+				InnerNode child = InnerNode.fromBytes(transaction, metadata, children.get(i));
+				collectBuffered(transaction, child, lowerBound, upperBound, messages);
+			}
+		}
+	}
+
+	/**
+	 * Returns a scan of the keys between `lowerBound` and `upperBound` in
+	 * ascending (or, if `descending`, descending) order, returning at most
+	 * `limit` record ids of keys that pass `filter`. In a tree with write
+	 * buffers, the leaves are merged with the buffered messages for the range.
+	 */
+	private Iterator<RecordId> scan(BaseTransaction transaction, DataBox lowerBound, DataBox upperBound,
+									int limit, Function<DataBox, Boolean> filter, boolean descending) {
+		if (!metadata.isBuffered()) {
+			return descending ? new ReverseBPlusTreeIterator(transaction, lowerBound, upperBound, limit, filter)
+							  : new BPlusTreeIterator(transaction, lowerBound, upperBound, limit, filter);
+		}
+		TreeMap<DataBox, Optional<RecordId>> messages = collectBuffered(transaction, lowerBound, upperBound);
+		Iterator<IndexEntry> leaves;
+		if (descending) {
+			var iter = new ReverseBPlusTreeIterator(transaction, lowerBound, upperBound, Integer.MAX_VALUE, null);
+			leaves = entriesOf(iter, iter::nextEntry);
+			return new BufferedScanIterator(leaves, messages.descendingMap(), limit, filter);
+		}
+		var iter = new BPlusTreeIterator(transaction, lowerBound, upperBound);
+		iter.withEntries = true;
+		leaves = entriesOf(iter, iter::nextEntry);
+		return new BufferedScanIterator(leaves, messages, limit, filter);
+	}
+
+	/** Adapts an iterator over record ids that can also return entries. */
+	private static Iterator<IndexEntry> entriesOf(Iterator<RecordId> rids, Supplier<IndexEntry> nextEntry) {
+		return new Iterator<>() {
+			@Override
+			public boolean hasNext() {
+				return rids.hasNext();
+			}
+
+			@Override
+			public IndexEntry next() {
+				return nextEntry.get();
+			}
+		};
+	}
+
+	/**
+	 * Merges the pairs of the leaves of a range with the buffered messages for
+	 * the range. Both come in the same order, and a message replaces the pair
+	 * of its key (or hides it, if it is a remove). Like the iterators it wraps,
+	 * this is lazy; the messages were collected when the scan started.
+	 */
+	private static class BufferedScanIterator implements Iterator<RecordId> {
+		private final Iterator<IndexEntry> leaves;
+		private final Iterator<Map.Entry<DataBox, Optional<RecordId>>> messages;
+		// Compares keys in the order of the scan.
+		private final Comparator<? super DataBox> order;
+		private int remaining;
+		private final Function<DataBox, Boolean> filter;
+		// The next pair of the leaves and the next message, if already read.
+		private IndexEntry nextEntry;
+		private Map.Entry<DataBox, Optional<RecordId>> nextMessage;
+		private RecordId nextRid;
+
+		BufferedScanIterator(Iterator<IndexEntry> leaves, NavigableMap<DataBox, Optional<RecordId>> messages,
+							 int limit, Function<DataBox, Boolean> filter) {
+			this.leaves = leaves;
+			this.messages = messages.entrySet().iterator();
+			Comparator<? super DataBox> comparator = messages.comparator();
+			this.order = comparator == null ? Comparator.naturalOrder() : comparator;
+			this.remaining = limit;
+			this.filter = filter;
+		}
+
+		private RecordId fetchNextRid() {
+			while (remaining > 0) {
+				if (nextEntry == null && leaves.hasNext()) {
+					nextEntry = leaves.next();
+				}
+				if (nextMessage == null && messages.hasNext()) {
+					nextMessage = messages.next();
+				}
+				if (nextEntry == null && nextMessage == null) {
+					return null;
+				}
+
+				int cmp = nextEntry == null ? 1
+						  : nextMessage == null ? -1
+						  : order.compare(nextEntry.getKey(), nextMessage.getKey());
+				DataBox key;
+				Optional<RecordId> rid;
+				if (cmp < 0) {
+					key = nextEntry.getKey();
+					rid = Optional.of(nextEntry.getRecordId());
+					nextEntry = null;
+				} else {
+					key = nextMessage.getKey();
+					rid = nextMessage.getValue();
+					nextMessage = null;
+					if (cmp == 0) {
+						nextEntry = null;
+					}
+				}
+				if (rid.isPresent() && (filter == null || filter.apply(key))) {
+					--remaining;
+					return rid.get();
+				}
+			}
+			return null;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (nextRid == null) {
+				nextRid = fetchNextRid();
+			}
+			return nextRid != null;
+		}
+
+		@Override
+		public RecordId next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			RecordId rid = nextRid;
+			nextRid = null;
+			return rid;
+		}
+	}
+
+	// Compaction //////////////////////////////////////////////////////////////
+	/**
+	 * Rewrites the tree so that its leaves are on consecutive pages in key
+	 * order, filled up to fillFactor (see bulkLoad), and rebuilds the inner
+	 * nodes above them. After months of splits the leaves of a tree are
+	 * scattered over its file, so that a scan over them is random I/O; after a
+	 * compaction it is sequential again.
+	 *
+	 * The new tree is written next to the old one, and then swapped in by
+	 * replacing the root and rewriting the header page. Its leaves go to the
+	 * lowest run of consecutive free pages that can hold as many leaves as the
+	 * new tree is estimated to need (see estimateLeaves and
+	 * BPlusTreeMetadata.takeFreeRun), and on at the end of the file if there
+	 * is no such run or they need more. The pages of the old tree are freed
+	 * afterwards and the free list sorted, so that splits take the pages at
+	 * the start of the file first. Repeated compactions of a tree of a steady
+	 * size thus take turns between two runs instead of growing the file.
+	 *
+	 * Readers keep going throughout, but writers are blocked for the whole
+	 * rebuild, which reads and writes every page of the tree: a write that
+	 * starts during a compaction waits for it to finish, and then writes to
+	 * the new tree. (In a tree with write buffers, writes only wait once the
+	 * buffer of the root is full; see putAllBuffered.) A compaction is thus
+	 * best run while the tree is quiet.
+	 *
+	 * A scan that is open when the new tree is swapped in may go on walking
+	 * the leaves of the old one, and so miss later writes, but never reads a
+	 * freed page: the pages of the old tree are only put on the free list once
+	 * the last scan that was open at the swap is over, that is, once it has
+	 * been exhausted or, if it was abandoned, garbage collected.
+	 */
+	public void compact(BaseTransaction transaction, float fillFactor) throws BPlusTreeException {
+		if (fillFactor <= 0 || fillFactor > 1) {
+			String msg = String.format("Fill factor %f is not in the range (0, 1].", fillFactor);
+			throw new BPlusTreeException(msg);
+		}
+		List<Integer> oldPageNums;
+		compactionLock.lock();
+		try {
+			int numLeaves = estimateLeaves(transaction, fillFactor);
+			CompactionPages pages;
+			// Wait for the writers that hold rootLatch, and then keep it read
+			// latched so that no more of them start; see latchPathForWrite.
+			rootLatch.writeLock().lock();
+			try {
+				if (metadata.isBuffered()) {
+					flushAll(transaction);
+				}
+				// The pages for the new tree come off the free list while no writer
+				// can allocate pages or checkpoint the free ones, and in the same log
+				// record as the header that no longer lists them; see
+				// checkpointRedoLog. The new tree takes no other pages off the free
+				// list, so that none of them is logged as reused before the header.
+				pages = new CompactionPages(transaction, numLeaves);
+				writeHeader(transaction, headerPage);
+				compacting = true;
+				rootLatch.readLock().lock();
+			} finally {
+				rootLatch.writeLock().unlock();
+			}
+			try {
+				if (rootNode(transaction) instanceof LeafNode) {
+					return;
+				}
+				oldPageNums = collectPageNums(transaction);
+				// Writers that got past their check of `compacting` before it was
+				// set hold the write latch of their leaf, so the scan waits for them.
+				Iterator<IndexEntry> entries = scanCovering(transaction, null, null);
+				if (!entries.hasNext()) {
+					return;
+				}
+				rootPageNum = bulkLoadTree(transaction, entries, fillFactor, pages.allocLeaf(), pages::allocLeaf,
+										   pages::allocInner);
+			} finally {
+				// The pages of the run that the new tree did not take go back on the
+				// free list in the record of the swap.
+				pages.freeUnused();
+				writeHeader(transaction, headerPage);
+				compacting = false;
+				rootLatch.readLock().unlock();
+			}
+		} finally {
+			compactionLock.unlock();
+		}
+
+		synchronized (openScans) {
+			retiredPages.add(new Pair<>(scanEpoch, oldPageNums));
+			++scanEpoch;
+		}
+		freeRetiredPages(transaction);
+	}
+
+	/**
+	 * Returns about how many leaves a compaction to `fillFactor` writes: the
+	 * number of pairs over the pairs per leaf, but no more than the tree has
+	 * now, which is closer for leaves that are filled by bytes.
+	 */
+	private int estimateLeaves(BaseTransaction transaction, float fillFactor) {
+		int order = metadata.isUnique()
+					? metadata.getOrder()
+					: LeafNode.maxOrder(Page.pageSize, metadata.getKeySchema(), metadata.getIncludedSchema());
+		long pairsPerLeaf = Math.max(1, (long) Math.ceil(2 * order * fillFactor));
+		long numLeaves = (statistics.getNumKeys() + pairsPerLeaf - 1) / pairsPerLeaf;
+		return (int) Math.max(1, Math.min(getSummary(transaction).getNumLeaves(), numLeaves));
+	}
+
+	/**
+	 * Hands out the pages for a compacted tree, all of which are taken off the
+	 * free list up front: for the leaves, in ascending order, a run of as many
+	 * consecutive pages as there are leaves, if there is one, and for the inner
+	 * nodes, the lowest free pages, as many as full inner nodes above the
+	 * leaves need. Pages beyond those come from the end of the file.
+	 */
+	private class CompactionPages {
+		private final BaseTransaction transaction;
+		private int next;
+		private final int end;
+		private final Deque<Integer> innerPages = new ArrayDeque<>();
+
+		CompactionPages(BaseTransaction transaction, int numLeaves) {
+			this.transaction = transaction;
+			this.next = metadata.takeFreeRun(transaction, numLeaves);
+			this.end = next == 0 ? 0 : next + numLeaves;
+			int fanout = 2 * metadata.getOrder() + 1;
+			int numNodes = numLeaves;
+			while (numNodes > 1) {
+				numNodes = (numNodes + fanout - 1) / fanout;
+				for (int i = 0; i < numNodes && metadata.getNumFreePages() > 0; ++i) {
+					innerPages.add(metadata.allocPage(transaction));
+				}
+			}
+		}
+
+		int allocLeaf() {
+			return next < end ? next++ : metadata.allocPageAtEnd(transaction);
+		}
+
+		int allocInner() {
+			return innerPages.isEmpty() ? metadata.allocPageAtEnd(transaction) : innerPages.poll();
+		}
+
+		/** Returns the pages that were not handed out to the free list. */
+		void freeUnused() {
+			for (int pageNum = end - 1; pageNum >= next; --pageNum) {
+				metadata.returnFreePage(transaction, pageNum);
+			}
+			while (!innerPages.isEmpty()) {
+				metadata.returnFreePage(transaction, innerPages.pollLast());
+			}
+		}
+	}
+
+	/**
+	 * Frees the pages that compactions retired before the oldest open scan
+	 * started (see openScans). Must not be called with rootLatch held.
+	 */
+	private void freeRetiredPages(BaseTransaction transaction) {
+		var pageNums = new ArrayList<Integer>();
+		synchronized (openScans) {
+			long oldestOpen = openScans.isEmpty() ? scanEpoch : openScans.firstKey();
+			while (!retiredPages.isEmpty() && retiredPages.peek().getFirst() < oldestOpen) {
+				pageNums.addAll(retiredPages.poll().getSecond());
+			}
+		}
+		if (pageNums.isEmpty()) {
+			return;
+		}
+		// Readers that read the old root before the swap hold rootLatch until
+		// they have latched its page; after that, freeing the old pages top-down
+		// with their write latches waits for every reader that is still below.
+		// rootLatch stays read latched until the frees are appended to the log:
+		// a freed page can be handed out again right away, and in a logged tree
+		// the writers that take pages off the free list hold rootLatch, so none
+		// of them can append a record that reuses a page before the one that
+		// frees it.
+		rootLatch.writeLock().lock();
+		rootLatch.readLock().lock();
+		rootLatch.writeLock().unlock();
+		try {
+			for (int pageNum : pageNums) {
+				Lock latch = metadata.getLatch(pageNum).writeLock();
+				latch.lock();
+				try {
+					metadata.freePage(transaction, pageNum);
+				} finally {
+					latch.unlock();
+				}
+			}
+		} finally {
+			rootLatch.readLock().unlock();
+		}
+		// Sorting relinks pages that are on the free list, so it keeps out the
+		// writers that take pages off it, and the checkpoints, until the header
+		// is written in the same log record.
+		rootLatch.writeLock().lock();
+		try {
+			metadata.sortFreeList(transaction);
+			writeHeader(transaction, headerPage);
+		} finally {
+			rootLatch.writeLock().unlock();
+		}
+		metadata.evictLatches();
+		awaitLogged(transaction);
+	}
+
+	/** Waits for a compaction that is in progress, if any. */
+	private void awaitCompaction() {
+		if (compacting) {
+			compactionLock.lock();
+			compactionLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the page numbers of all the nodes of the tree, level by level
+	 * from the root down. Must be called with rootLatch latched and writers
+	 * kept out.
+	 */
+	private List<Integer> collectPageNums(BaseTransaction transaction) {
+		var pageNums = new ArrayList<Integer>();
+		pageNums.add(rootPageNum);
+		for (int i = 0; i < pageNums.size(); ++i) {
+			int pageNum = pageNums.get(i);
+			if (!isLeafPage(transaction, pageNum)) {
+				pageNums.addAll(InnerNode.fromBytes(transaction, metadata, pageNum).getChildren());
+			}
+		}
+		return pageNums;
+	}
+
+	// Redo Log ////////////////////////////////////////////////////////////////
+	/**
+	 * Turns the redo log of the tree on or off. A logged tree appends the
+	 * images of the pages that every operation writes to a log next to its
+	 * file (see REDO_LOG_EXTENSION and RedoLog), and puts, removes and the
+	 * other writes only return once their record of the log is on disk.
+	 * Operations that finish at about the same time share one force of the log
+	 * (group commit), and the pages themselves are written back by the page
+	 * allocator whenever it likes, as before. A tree that was not closed opens
+	 * again as of the last write that returned, with every split and merge
+	 * either done in full or not at all.
+	 *
+	 * Puts and removes that only change their leaf still run concurrently, but
+	 * writes that change more than one page keep rootLatch until they are done
+	 * (see latchPathForWrite), and the first write to each page after the tree
+	 * is opened waits for the page as it was to be forced to the log. Turning
+	 * the log on copies every page of the tree to it; turning it off takes
+	 * effect once the tree is closed. The setting is saved in the header page.
+	 *
+	 * This should be called while no other operation is running on the tree.
+	 */
+	public void setRedoLogged(BaseTransaction transaction, boolean logged) {
+		rootLatch.writeLock().lock();
+		try {
+			if (logged == metadata.isRedoLogged()) {
+				return;
+			}
+			RedoLog redoLog = metadata.getRedoLog();
+			if (logged && !redoLog.isOpen()) {
+				redoLog.open(redoLogPath);
+				// Pages written so far need not be on disk yet.
+				redoLog.cover(allocator.getNumPages());
+				checkpointRedoLog(transaction, false);
+			}
+			metadata.setRedoLogged(logged);
+			writeHeader(transaction, headerPage);
+		} finally {
+			rootLatch.writeLock().unlock();
+		}
+		awaitLogged(transaction);
+	}
+
+	/**
+	 * Checkpoints the redo log: the current image of every page in the log is
+	 * written to a new log that replaces it, so that recovery replays at most
+	 * one image per page plus what was appended since. Writers keep going
+	 * meanwhile. The log is also checkpointed on its own whenever the
+	 * checkpoint interval has been appended to it (see setCheckpointInterval).
+	 */
+	public void checkpoint(BaseTransaction transaction) {
+		if (!metadata.getRedoLog().isOpen()) {
+			throw new UnsupportedOperationException("This B+ tree has no redo log.");
+		}
+		checkpointRedoLog(transaction, false);
+	}
+
+	/**
+	 * Sets the number of bytes appended to the redo log after which it is
+	 * checkpointed, 64 MiB by default. Smaller intervals make recovery faster
+	 * and writers checkpoint more often.
+	 */
+	public void setCheckpointInterval(long bytes) {
+		metadata.getRedoLog().setCheckpointInterval(bytes);
+	}
+
+	/** Returns the size of the redo log in bytes, or 0 if the tree has none. */
+	public long getRedoLogSize() {
+		return metadata.getRedoLog().size();
+	}
+
+	/**
+	 * Waits until the writes of this thread are in the redo log on disk, if
+	 * the tree is logged, and checkpoints the log if it is due. Must be called
+	 * without any latches held, at the end of every operation that writes.
+	 */
+	private void awaitLogged(BaseTransaction transaction) {
+		metadata.getRedoLog().awaitCommitted();
+		checkpointRedoLog(transaction, true);
+	}
+
+	private void checkpointRedoLog(BaseTransaction transaction, boolean onlyIfDue) {
+		// Writers that change more than one page release the latches of pages
+		// below them before they append their record, but keep rootLatch until
+		// then. A compaction only keeps it read latched, but the new tree is only
+		// reachable once it has written the header page.
+		int headerPageNum = headerPage.getPageNum();
+		IntFunction<List<Lock>> latchesOf = pageNum -> List.of(
+			pageNum == headerPageNum ? rootLatch.writeLock() : rootLatch.readLock(),
+			metadata.getLatch(pageNum).readLock());
+		IntFunction<byte[]> read = pageNum -> metadata.readPage(transaction, pageNum, Page.pageSize);
+		if (onlyIfDue) {
+			metadata.getRedoLog().checkpointIfDue(latchesOf, read);
+		} else {
+			metadata.getRedoLog().checkpoint(latchesOf, read);
+		}
+	}
+
+	/**
+	 * Writes `image` to page `pageNum` while the redo log is replayed, growing
+	 * the file if the page was allocated after it was last written back.
+	 */
+	private void replayPage(BaseTransaction transaction, byte[] image, int pageNum) {
+		while (allocator.getNumPages() <= pageNum) {
+			allocator.allocPage(transaction);
+		}
+		allocator.fetchPage(transaction, pageNum).getBuffer(transaction).put(image);
+	}
+
+	// Latching ////////////////////////////////////////////////////////////////
+	/**
+	 * Descends to the leaf that may contain `key` (or to the leftmost leaf if
+	 * `key` is null), crabbing with read latches. Returns the leaf with its read
+	 * latch still held; the caller must release it.
+	 */
+	private LeafNode latchLeafForRead(BaseTransaction transaction, DataBox key) {
+		return latchLeafForRead(transaction,
+				inner -> key == null ? inner.getChildren().get(0) : inner.getChildPageNum(key));
+	}
+
+	/**
+	 * Descends to the rightmost leaf that may contain a key less than or equal
+	 * to `key` (or to the rightmost leaf if `key` is null), crabbing with read
+	 * latches. Like latchLeafForRead, the leaf is returned with its read latch
+	 * held.
+	 */
+	private LeafNode latchLastLeafForRead(BaseTransaction transaction, DataBox key) {
+		return latchLeafForRead(transaction, inner -> {
+			var children = inner.getChildren();
+			return children.get(key == null ? children.size() - 1 : inner.boundaryChildIndex(key, true));
+		});
+	}
+
+	/**
+	 * Descends to a leaf crabbing with read latches, going from every inner
+	 * node to the child on page childPageNum(node). Returns the leaf with its
+	 * read latch still held. The nodes are read from the node cache without
+	 * copying them (see BPlusNode.readShared), so the leaf must not be changed.
+	 */
+	private LeafNode latchLeafForRead(BaseTransaction transaction, ToIntFunction<InnerNode> childPageNum) {
+		Lock parent = rootLatch.readLock();
+		parent.lock();
+		int pageNum = rootPageNum;
+		while (true) {
+			Lock latch = metadata.getLatch(pageNum).readLock();
+			latch.lock();
+			parent.unlock();
+			parent = latch;
+
+			BPlusNode node = BPlusNode.readShared(transaction, metadata, pageNum);
+			if (node instanceof LeafNode) {
+				return (LeafNode) node;
+			}
+			pageNum = childPageNum.applyAsInt((InnerNode) node);
+		}
+	}
+
+	/**
+	 * Like latchLeafForRead, but write latches the leaf. The leaf is returned
+	 * with its write latch held; the caller must release it.
+	 */
+	private LeafNode latchLeafForWrite(BaseTransaction transaction, DataBox key) {
+		Lock parent = rootLatch.readLock();
+		parent.lock();
+		int pageNum = rootPageNum;
+		while (true) {
+			// Whether a page holds a leaf cannot change while we hold a latch on
+			// its parent, so it is safe to peek at before latching the page.
+			boolean isLeaf = isLeafPage(transaction, pageNum);
+			var pageLatch = metadata.getLatch(pageNum);
+			Lock latch = isLeaf ? pageLatch.writeLock() : pageLatch.readLock();
+			latch.lock();
+			parent.unlock();
+			parent = latch;
+
+			// Only the leaf is changed, so only the leaf needs a copy of its own.
+			BPlusNode node = isLeaf ? BPlusNode.fromBytes(transaction, metadata, pageNum)
+									: BPlusNode.readShared(transaction, metadata, pageNum);
+			if (isLeaf) {
+				// Checked with the leaf latched, so that a compaction that has
+				// already copied this leaf cannot miss the write; see compact.
+				if (compacting) {
+					latch.unlock();
+					awaitCompaction();
+					return latchLeafForWrite(transaction, key);
+				}
+				return (LeafNode) node;
+			}
+			pageNum = ((InnerNode) node).getChildPageNum(key);
+		}
+	}
+
+	private boolean isLeafPage(BaseTransaction transaction, int pageNum) {
+		BPlusNode cached = metadata.getNodeCache().get(pageNum);
+		if (cached != null) {
+			return cached instanceof LeafNode;
+		}
+		return allocator.fetchPage(transaction, pageNum).getBuffer(transaction).get(0) == (byte) 1;
+	}
+
+	/**
+	 * Descends to the leaf that may contain `key` write latching every node on
+	 * the way, starting with rootLatch. Whenever a node is `safe`, i.e. the
+	 * operation cannot change any of its ancestors, all latches above it are
+	 * released. The returned path holds the remaining latches.
+	 *
+	 * In a tree with subtree counts every operation changes all the ancestors
+	 * of the leaf, so no node is safe and the whole path stays latched. In a
+	 * logged tree rootLatch stays latched, and with it the whole path, so that
+	 * the operation is appended to the redo log before any other operation can
+	 * see its changes (see RedoLog).
+	 */
+	private WritePath latchPathForWrite(BaseTransaction transaction, DataBox key,
+										Predicate<BPlusNode> safe) {
+		var path = new WritePath(metadata.getRedoLog());
+		// Queueing for rootLatch behind a compaction would hold up readers too.
+		awaitCompaction();
+		rootLatch.writeLock().lock();
+		path.held.addLast(rootLatch.writeLock());
+		path.holdsRootLatch = true;
+
+		int pageNum = rootPageNum;
+		while (true) {
+			Lock latch = metadata.getLatch(pageNum).writeLock();
+			latch.lock();
+			BPlusNode node = BPlusNode.fromBytes(transaction, metadata, pageNum);
+			if (!metadata.isCounted() && !metadata.getRedoLog().isOpen() && safe.test(node)) {
+				if (path.holdsRootLatch) {
+					path.detached = detachedWriters.readLock();
+					path.detached.lock();
+				}
+				path.releaseHeld();
+				path.holdsRootLatch = false;
+			}
+			path.held.addLast(latch);
+			if (path.held.size() == 1) {
+				path.top = node;
+			}
+
+			if (node instanceof LeafNode leaf) {
+				path.leaf = leaf;
+				return path;
+			}
+			pageNum = ((InnerNode) node).getChildPageNum(key);
+		}
+	}
+
+	/** The latches held by a writer; see latchPathForWrite. */
+	private static class WritePath {
+		private final RedoLog redoLog;
+		private final Deque<Lock> held = new ArrayDeque<>();
+		// Whether rootLatch is still held, in which case the root may change.
+		private boolean holdsRootLatch;
+		// The highest node that is still latched, if rootLatch is not held.
+		private BPlusNode top;
+		// The leaf at the end of the path.
+		private LeafNode leaf;
+		// The read latch of detachedWriters, once rootLatch has been released.
+		private Lock detached;
+
+		WritePath(RedoLog redoLog) {
+			this.redoLog = redoLog;
+		}
+
+		void release() {
+			// The changes are logged before any other writer can see them, not
+			// only once rootLatch is released.
+			redoLog.commit();
+			releaseHeld();
+			if (detached != null) {
+				detached.unlock();
+				detached = null;
+			}
+		}
+
+		private void releaseHeld() {
+			while (!held.isEmpty()) {
+				held.pollLast().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Calls `action` on every leaf from left to right. Like a scan, the latch of
+	 * a leaf is only released once its right sibling is latched, so entries
+	 * that writers move between neighbouring leaves meanwhile are never missed.
+	 */
+	private void forEachLeaf(BaseTransaction transaction, Consumer<LeafNode> action) {
+		LeafNode leaf = latchLeafForRead(transaction, (DataBox) null);
+		Lock latch = metadata.getLatch(leaf.getPage().getPageNum()).readLock();
+		try {
+			while (true) {
+				action.accept(leaf);
+				Optional<Integer> right = leaf.getRightSiblingPageNum();
+				if (right.isEmpty()) {
+					return;
+				}
+				Lock next = metadata.getLatch(right.get()).readLock();
+				next.lock();
+				latch.unlock();
+				latch = next;
+				leaf = LeafNode.readShared(transaction, metadata, right.get());
+			}
+		} finally {
+			latch.unlock();
+		}
+	}
+
+	/**
+	 * Returns the leaf on page `pageNum`, whose latch the caller holds, or null
+	 * if the page no longer holds a leaf. A scan that kept the page number of a
+	 * leaf may find that the leaf has since been merged into its left sibling,
+	 * and its page freed or even reused for an inner node.
+	 */
+	private LeafNode readLiveLeaf(BaseTransaction transaction, int pageNum) {
+		return readLiveNode(transaction, pageNum) instanceof LeafNode leaf ? leaf : null;
+	}
+
+	/**
+	 * Returns the node on page `pageNum`, whose latch the caller holds, or null
+	 * if the page is on the free list; see readLiveLeaf.
+	 */
+	private BPlusNode readLiveNode(BaseTransaction transaction, int pageNum) {
+		BPlusNode cached = metadata.getNodeCache().get(pageNum);
+		return cached != null ? cached : BPlusNode.decode(transaction, metadata, pageNum);
+	}
+
+	/**
+	 * Returns the right sibling of `leaf`, read under its read latch. The caller
+	 * should hold the read latch of `leaf`, so siblings are always latched left
+	 * to right. If the caller's copy of `leaf` is out of date, the sibling may
+	 * no longer be a leaf, in which case an IllegalArgumentException is thrown
+	 * (see BPlusNode.checkPageType).
+	 */
+	private Optional<LeafNode> readRightSibling(BaseTransaction transaction, LeafNode leaf) {
+		Optional<Integer> pageNum = leaf.getRightSiblingPageNum();
+		if (pageNum.isEmpty()) {
+			return Optional.empty();
+		}
+		Lock latch = metadata.getLatch(pageNum.get()).readLock();
+		latch.lock();
+		try {
+			return Optional.of(LeafNode.readShared(transaction, metadata, pageNum.get()));
+		} finally {
+			latch.unlock();
+		}
+	}
+
+	/**
+	 * Returns the leaf on page `leftPageNum`, read under its read latch, if it
+	 * is still the left sibling of the leaf on page `pageNum`, or
+	 * Optional.empty() otherwise. Latches are only ever waited for from left to
+	 * right, so unlike readRightSibling the caller must not hold the latch of
+	 * the leaf. In the meantime the left sibling may thus have split or been
+	 * freed, or the leaf may have been merged into it; the caller then has to
+	 * find its place again from the root.
+	 */
+	private Optional<LeafNode> readLeftSibling(BaseTransaction transaction, int pageNum, int leftPageNum) {
+		Lock latch = metadata.getLatch(leftPageNum).readLock();
+		latch.lock();
+		try {
+			LeafNode left = readLiveLeaf(transaction, leftPageNum);
+			if (left == null || !left.getRightSiblingPageNum().equals(Optional.of(pageNum))) {
+				return Optional.empty();
+			}
+			return Optional.of(left);
+		} finally {
+			latch.unlock();
+		}
+	}
+
+	// Helpers /////////////////////////////////////////////////////////////////
+	/**
+	 * Returns a sexp representation of this tree. See BPlusNode.toSexp for more
+	 * information.
+	 */
+	public String toSexp(BaseTransaction transaction) {
+		return rootNode(transaction).toSexp(transaction);
+	}
+
+	/**
+	 * Debugging large B+ trees is hard. To make it a bit easier, we can print out a
+	 * B+ tree as a DOT file which we can then convert into a nice picture of the B+
+	 * tree. tree.toDot() returns the contents of DOT file which illustrates the B+
+	 * tree. The details of the file itself is not at all important, just know that
+	 * if you call tree.toDot() and save the output to a file called tree.dot, then
+	 * you can run this command
+	 *
+	 * dot -T pdf tree.dot -o tree.pdf
+	 *
+	 * to create a PDF of the tree.
+	 */
+	public String toDot(BaseTransaction transaction) {
+		var strings = new ArrayList<String>();
+		strings.add("digraph g {");
+		strings.add("  node [shape=record, height=0.1];");
+		strings.add(rootNode(transaction).toDot(transaction));
+		strings.add("}");
+		return String.join("\n", strings);
+	}
+
+	/**
+	 * This function is very similar to toDot() except that we write the dot
+	 * representation of the B+ tree to a dot file and then convert that to a PDF
+	 * that will be stored in the src directory. Pass in a string with the ".pdf"
+	 * extension included at the end (ex "tree.pdf").
+	 */
+	public void toDotPDFFile(BaseTransaction transaction, String filename) {
+		String tree_string = toDot(transaction);
+
 		// Writing to intermediate dot file
 		try {
 			var file = new File("tree.dot");
@@ -370,68 +3386,688 @@ public class BPlusTree implements Closeable {
 			e.printStackTrace();
 		}
 
-		// Running command to convert dot file to PDF
-		try {
-			Runtime.getRuntime().exec("dot -T pdf tree.dot -o " + filename);
-		} catch (IOException e) {
-			e.printStackTrace();
+		// Running command to convert dot file to PDF
+		try {
+			Runtime.getRuntime().exec("dot -T pdf tree.dot -o " + filename);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Returns the largest number d such that the serialization of a LeafNode with
+	 * 2d entries and an InnerNode with 2d keys will fit on a single page of size
+	 * `pageSizeInBytes`.
+	 */
+	public static int maxOrder(int pageSizeInBytes, Type keySchema) {
+		return maxOrder(pageSizeInBytes, keySchema, false);
+	}
+
+	/**
+	 * Like maxOrder(pageSizeInBytes, keySchema), but for a tree that keeps
+	 * subtree counts if `counted` is true.
+	 */
+	public static int maxOrder(int pageSizeInBytes, Type keySchema, boolean counted) {
+		return maxOrder(pageSizeInBytes, keySchema, List.of(), counted);
+	}
+
+	/**
+	 * Like maxOrder(pageSizeInBytes, keySchema, counted), but for a tree whose
+	 * leaves also store the columns in `includedSchema`.
+	 */
+	public static int maxOrder(int pageSizeInBytes, Type keySchema, List<Type> includedSchema, boolean counted) {
+		int leafOrder = LeafNode.maxOrder(pageSizeInBytes, keySchema, includedSchema);
+		int innerOrder = InnerNode.maxOrder(pageSizeInBytes, keySchema, counted);
+		return Math.min(leafOrder, innerOrder);
+	}
+
+	/**
+	 * Like maxOrder(pageSizeInBytes, keySchema), but for a tree whose keys are
+	 * tuples of the columns in `keyColumns`.
+	 */
+	public static int maxOrder(int pageSizeInBytes, List<Type> keyColumns) {
+		return maxOrder(pageSizeInBytes, CompositeKeys.schema(keyColumns));
+	}
+
+	/**
+	 * Sets the maximum number of decoded nodes this tree keeps in memory. A
+	 * capacity of 0 disables the node cache.
+	 */
+	public void setNodeCacheCapacity(int capacity) {
+		metadata.getNodeCache().setCapacity(capacity);
+	}
+
+	/** Returns the number of node lookups answered by the node cache. */
+	public long getNodeCacheHits() {
+		return metadata.getNodeCache().getHits();
+	}
+
+	/** Returns the number of node lookups that had to decode a page. */
+	public long getNodeCacheMisses() {
+		return metadata.getNodeCache().getMisses();
+	}
+
+	/**
+	 * Sets the number of leaves that scans fetch and decode ahead of the leaf
+	 * they are currently returning records from. The leaves are read on a
+	 * background thread, so long scans over cold pages overlap their I/O with
+	 * the caller's work. The scan still reads every leaf again itself, from
+	 * memory, since it may have changed since it was read ahead. A window of 0
+	 * (the default) disables read-ahead.
+	 *
+	 * Only scans created after this call are affected.
+	 */
+	public void setReadAheadWindow(int window) {
+		if (window < 0) {
+			throw new IllegalArgumentException("The read-ahead window cannot be negative.");
+		}
+		this.readAheadWindow = window;
+		if (window > 0 && readAheadExecutor == null) {
+			readAheadExecutor = Executors.newSingleThreadExecutor(r -> {
+				var thread = new Thread(r, "bplustree-read-ahead");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
+	/** Returns the number of leaf hops that found their leaf already prefetched. */
+	public long getPrefetchHits() {
+		return prefetchHits.get();
+	}
+
+	/** Returns the number of prefetched leaves that no scan ended up reading. */
+	public long getWastedPrefetches() {
+		return wastedPrefetches.get();
+	}
+
+	/** Returns the counters and latencies of the operations on this tree. */
+	public BPlusTreeMetrics getMetrics() {
+		return metadata.getMetrics();
+	}
+
+	/**
+	 * Returns a summary of the shape of the tree. Only inner nodes are read
+	 * (with read latches, one node at a time), so this is cheap even for large
+	 * trees; the number of pairs comes from the statistics (see estimateCount).
+	 */
+	public BPlusTreeMetrics.Summary getSummary(BaseTransaction transaction) {
+		rootLatch.readLock().lock();
+		int pageNum = rootPageNum;
+		Lock latch = metadata.getLatch(pageNum).readLock();
+		latch.lock();
+		rootLatch.readLock().unlock();
+		BPlusNode root;
+		boolean leafChildren;
+		try {
+			root = BPlusNode.fromBytes(transaction, metadata, pageNum);
+			leafChildren = root instanceof InnerNode inner && isLeafPage(transaction, inner.getChildren().get(0));
+		} finally {
+			latch.unlock();
+		}
+		long numLeaves = root instanceof LeafNode ? 1 : countLeaves(transaction, (InnerNode) root, leafChildren);
+		int order = metadata.isUnique()
+					? metadata.getOrder()
+					: LeafNode.maxOrder(Page.pageSize, metadata.getKeySchema(), metadata.getIncludedSchema());
+		long numPairs = statistics.getNumKeys();
+		double averageFill = Math.min(1, (double) numPairs / Math.max(1, numLeaves) / (2 * order));
+		return new BPlusTreeMetrics.Summary(height, numLeaves, numPairs, averageFill, metadata.getNumFreePages());
+	}
+
+	/**
+	 * Returns the number of leaves below `node`, our own copy of an inner node
+	 * whose children were leaves when we read it if `leafChildren`. Like
+	 * sampleSubtree, this holds the latch of one child at a time, and leaves
+	 * out children that were freed or reused since we read `node`.
+	 */
+	private long countLeaves(BaseTransaction transaction, InnerNode node, boolean leafChildren) {
+		List<Integer> children = node.getChildren();
+		if (leafChildren) {
+			return children.size();
+		}
+		long numLeaves = 0;
+		for (int pageNum : children) {
+			BPlusNode child;
+			boolean leafGrandchildren = false;
+			Lock latch = metadata.getLatch(pageNum).readLock();
+			latch.lock();
+			try {
+				child = readLiveNode(transaction, pageNum);
+				if (child instanceof InnerNode inner) {
+					leafGrandchildren = isLeafPage(transaction, inner.getChildren().get(0));
+				}
+			} finally {
+				latch.unlock();
+			}
+			if (child instanceof InnerNode inner) {
+				numLeaves += countLeaves(transaction, inner, leafGrandchildren);
+			}
+		}
+		return numLeaves;
+	}
+
+	/**
+	 * Returns the summary of the tree (see getSummary) and its metrics (see
+	 * BPlusTreeMetrics.toJson) as one JSON object, with the summary under
+	 * "summary".
+	 */
+	public String metricsToJson(BaseTransaction transaction) {
+		var sb = new StringBuilder("{\"summary\":");
+		sb.append(getSummary(transaction).toJson()).append(',');
+		getMetrics().appendJsonMembers(sb);
+		return sb.append('}').toString();
+	}
+
+	/**
+	 * Makes every leaf carry a Bloom filter over its keys sized for
+	 * `falsePositiveRate`, or no filter if it is 0. Point lookups of missing
+	 * keys that the filter of their leaf rules out then skip searching the
+	 * leaf. Filters only use the free space of a leaf's page, so the rate of a
+	 * nearly full leaf is worse. Leaves get their new filter the next time they
+	 * are written. Only for trees with unique keys, whose lookups read leaves
+	 * in place (see LeafNode.lookup). The setting is saved in the header page.
+	 */
+	public void setLeafFilterFalsePositiveRate(BaseTransaction transaction, double falsePositiveRate) {
+		if (!metadata.isUnique()) {
+			throw new UnsupportedOperationException("Only trees with unique keys have leaf filters.");
+		}
+		checkFalsePositiveRate(falsePositiveRate);
+		rootLatch.writeLock().lock();
+		try {
+			metadata.setLeafFilterFalsePositiveRate(falsePositiveRate);
+			writeHeader(transaction, headerPage);
+		} finally {
+			rootLatch.writeLock().unlock();
+		}
+		awaitLogged(transaction);
+	}
+
+	/** Returns the number of lookups that a leaf's Bloom filter answered. */
+	public long getLeafFilterNegatives() {
+		return metadata.getLeafFilterNegatives();
+	}
+
+	/** Returns the number of lookups that passed a leaf's filter but missed. */
+	public long getLeafFilterFalsePositives() {
+		return metadata.getLeafFilterFalsePositives();
+	}
+
+	/**
+	 * Builds an in-memory Bloom filter over all the keys of the tree, sized for
+	 * `falsePositiveRate` once the tree holds twice as many keys as now, or
+	 * drops the filter if `falsePositiveRate` is 0. get and scanEqual answer
+	 * keys that the filter rules out without descending the tree at all. Keys
+	 * put later are added to the filter, but removed keys stay in it, so its
+	 * rate degrades as the tree changes (see getKeyFilterFalsePositiveRate) and
+	 * this should be called again now and then. The filter is not persisted.
+	 *
+	 * The filter is installed before the keys are read, and the leaves are
+	 * read like scans do, so puts running meanwhile are never missed.
+	 */
+	public void setKeyFilter(BaseTransaction transaction, double falsePositiveRate) {
+		checkFalsePositiveRate(falsePositiveRate);
+		if (falsePositiveRate == 0) {
+			keyFilter = null;
+			return;
+		}
+		var numKeys = new AtomicLong();
+		forEachLeaf(transaction, leaf -> numKeys.addAndGet(leaf.size()));
+		var filter = new BloomFilter(Math.max(2 * numKeys.get(), 1024), falsePositiveRate);
+		rootLatch.writeLock().lock();
+		try {
+			keyFilter = filter;
+			// Keys that are still buffered are not in any leaf yet.
+			if (metadata.isBuffered()) {
+				collectBuffered(transaction, null, null).forEach((key, rid) -> {
+					if (rid.isPresent()) {
+						filter.add(key);
+					}
+				});
+			}
+		} finally {
+			rootLatch.writeLock().unlock();
+		}
+		forEachLeaf(transaction, leaf -> {
+			for (int i = 0; i < leaf.size(); ++i) {
+				filter.add(leaf.keyAt(i));
+			}
+		});
+	}
+
+	/**
+	 * Returns the false positive rate expected of the in-memory Bloom filter
+	 * given the keys added to it so far, or 0 if there is none.
+	 */
+	public double getKeyFilterFalsePositiveRate() {
+		BloomFilter filter = keyFilter;
+		return filter == null ? 0 : filter.expectedFalsePositiveRate();
+	}
+
+	/** Returns the number of lookups that the in-memory Bloom filter answered. */
+	public long getKeyFilterNegatives() {
+		return keyFilterNegatives.get();
+	}
+
+	/** Returns the number of get calls that passed the in-memory filter but missed. */
+	public long getKeyFilterFalsePositives() {
+		return keyFilterFalsePositives.get();
+	}
+
+	/**
+	 * Returns the number of old versions of nodes kept for the snapshots of open
+	 * snapshot scans (see scanSnapshot).
+	 */
+	public int getNumSnapshotVersions() {
+		return metadata.getVersions().size();
+	}
+
+	/**
+	 * Returns the number of pages used to serialize the tree. Pages on the free
+	 * list are not counted.
+	 */
+	public int getNumPages() {
+		return metadata.getAllocator().getNumPages() - metadata.getNumFreePages();
+	}
+
+	/**
+	 * Serializes the header page to page. The page is write latched meanwhile,
+	 * so that a checkpoint of the redo log never copies half of it.
+	 */
+	private synchronized void writeHeader(BaseTransaction transaction, Page page) {
+		int pageNum = page.getPageNum();
+		Lock latch = metadata.getLatch(pageNum).writeLock();
+		latch.lock();
+		try {
+			RedoLog redoLog = metadata.getRedoLog();
+			redoLog.beforeWrite(pageNum, () -> metadata.readPage(transaction, pageNum, Page.pageSize));
+			writeHeaderFields(transaction, page);
+			redoLog.written(pageNum, metadata.readPage(transaction, pageNum, Page.pageSize));
+		} finally {
+			latch.unlock();
+		}
+	}
+
+	private void writeHeaderFields(BaseTransaction transaction, Page page) {
+		byte[] keySchema = metadata.getKeySchema().toBytes();
+		Buffer buf = page.getBuffer(transaction);
+		buf.put(keySchema);
+		buf.putInt(metadata.getOrder());
+		buf.putInt(rootPageNum);
+		buf.putInt(metadata.getFreeListHead());
+		buf.putInt(metadata.getNumFreePages());
+		// 0 for unique keys, so that trees written before duplicates were
+		// supported read back as unique.
+		buf.put((byte) (metadata.isUnique() ? 0 : 1));
+		buf.put((byte) (metadata.isCounted() ? 1 : 0));
+		buf.putInt(metadata.getFormatVersion());
+		// Trees written before included columns were supported have zeros here,
+		// so they read back without any.
+		buf.putInt(metadata.getIncludedSchema().size());
+		for (Type type : metadata.getIncludedSchema()) {
+			buf.put(type.toBytes());
+		}
+		buf.putFloat((float) metadata.getLeafFilterFalsePositiveRate());
+		buf.putInt(height);
+		statistics.write(buf);
+		buf.put((byte) (metadata.isBuffered() ? 1 : 0));
+		buf.put((byte) (metadata.isSlotted() ? 1 : 0));
+		buf.putInt(metadata.getKeyColumns().size());
+		for (Type type : metadata.getKeyColumns()) {
+			buf.put(type.toBytes());
+		}
+		buf.put((byte) (metadata.isRedoLogged() ? 1 : 0));
+	}
+
+	/**
+	 * Returns the number of bytes of the header page left for the statistics,
+	 * i.e. after everything in front of and behind them (see writeHeader).
+	 */
+	private int statisticsBudget() {
+		int size = metadata.getKeySchema().toBytes().length;
+		size += 4 * Integer.BYTES + 2 + Integer.BYTES + Integer.BYTES;
+		for (Type type : metadata.getIncludedSchema()) {
+			size += type.toBytes().length;
+		}
+		size += Float.BYTES + Integer.BYTES + 2 + Integer.BYTES;
+		for (Type type : metadata.getKeyColumns()) {
+			size += type.toBytes().length;
+		}
+		size += Byte.BYTES;
+		return Page.pageSize - size;
+	}
+
+	/**
+	 * Adds the separator `key` and the child on page `pageNum` to the rightmost
+	 * inner node at height `height` of a bulk load, creating the level (with
+	 * `leftPageNum` as its first child) if it does not exist yet. New inner
+	 * nodes get pages from allocPage.
+	 *
+	 * A node is allowed to hold one key more than 2d. Only when yet another key
+	 * arrives is that extra key split off as the separator in front of the next
+	 * node, so the last node of a level never ends up with zero keys; see
+	 * bulkLoadFinish. With slotted pages, the node's last key is split off once
+	 * the next key would not fit on its page instead. The full node is not
+	 * written (nor its separator pushed up) until the node after it fills up in
+	 * turn, so that bulkLoadFinish can still move keys from it into the last
+	 * node of the level.
+	 */
+	private void bulkLoadPush(BaseTransaction transaction, List<BulkLoadLevel> levels, int height,
+							  int leftPageNum, DataBox key, int pageNum, IntSupplier allocPage) {
+		if (height == levels.size()) {
+			levels.add(new BulkLoadLevel(allocPage.getAsInt(), leftPageNum));
+		}
+		BulkLoadLevel level = levels.get(height);
+
+		int d = metadata.getOrder();
+		boolean full = level.keys.size() == 2 * d + 1;
+		if (metadata.isSlotted()) {
+			full = level.keys.size() >= 2 && InnerNode.slottedSize(level.keys)
+					+ SlottedKeys.entrySize(key, Integer.BYTES) > Page.pageSize;
+		}
+		if (full) {
+			DataBox sendUpKey = level.keys.remove(level.keys.size() - 1);
+			int lastChild = level.children.remove(level.children.size() - 1);
+			int nextPageNum = allocPage.getAsInt();
+			bulkLoadWritePrevious(transaction, levels, height, allocPage);
+
+			level.prevPageNum = level.pageNum;
+			level.prevKeys = level.keys;
+			level.prevChildren = level.children;
+			level.prevSendUpKey = sendUpKey;
+			level.pageNum = nextPageNum;
+			level.keys = new ArrayList<>();
+			level.children = new ArrayList<>();
+			level.children.add(lastChild);
+		}
+		level.keys.add(key);
+		level.children.add(pageNum);
+	}
+
+	/**
+	 * Writes out the full node held back in front of the rightmost inner node at
+	 * height `height` of a bulk load, if there is one, and pushes the separator
+	 * between the two up into the level above.
+	 */
+	private void bulkLoadWritePrevious(BaseTransaction transaction, List<BulkLoadLevel> levels, int height,
+									   IntSupplier allocPage) {
+		BulkLoadLevel level = levels.get(height);
+		if (level.prevKeys == null) {
+			return;
+		}
+		new InnerNode(metadata, level.prevPageNum, level.prevKeys, level.prevChildren, transaction);
+		bulkLoadPush(transaction, levels, height + 1, level.prevPageNum, level.prevSendUpKey, level.pageNum,
+					 allocPage);
+		level.prevKeys = null;
+		level.prevChildren = null;
+		level.prevSendUpKey = null;
+	}
+
+	/**
+	 * Writes out the rightmost inner node at height `height` of a bulk load. If
+	 * the node holds 2d + 1 keys it is split in half exactly like in put. If it
+	 * underflows instead, keys are first moved into it from the full node in
+	 * front of it (see bulkLoadPush), so that the two end up about equally full
+	 * and every inner node but the root holds at least d keys (or, with slotted
+	 * pages, fills at least a quarter of its page). With slotted pages the node
+	 * always fits on its page.
+	 */
+	private void bulkLoadFinish(BaseTransaction transaction, List<BulkLoadLevel> levels, int height,
+								IntSupplier allocPage) {
+		BulkLoadLevel level = levels.get(height);
+		int d = metadata.getOrder();
+		boolean underflowing = metadata.isSlotted()
+							   ? InnerNode.slottedSize(level.keys) < Page.pageSize / 4
+							   : level.keys.size() < d;
+		if (underflowing && level.prevKeys != null) {
+			bulkLoadRebalance(level);
+		}
+		bulkLoadWritePrevious(transaction, levels, height, allocPage);
+		if (metadata.isSlotted() || level.keys.size() <= 2 * d) {
+			new InnerNode(metadata, level.pageNum, level.keys, level.children, transaction);
+			return;
+		}
+
+		var leftKeys = new ArrayList<>(level.keys.subList(0, d));
+		var leftChildren = new ArrayList<>(level.children.subList(0, d + 1));
+		var rightKeys = new ArrayList<>(level.keys.subList(d + 1, level.keys.size()));
+		var rightChildren = new ArrayList<>(level.children.subList(d + 1, level.children.size()));
+		DataBox sendUpKey = level.keys.get(d);
+
+		int rightPageNum = allocPage.getAsInt();
+		new InnerNode(metadata, level.pageNum, leftKeys, leftChildren, transaction);
+		new InnerNode(metadata, rightPageNum, rightKeys, rightChildren, transaction);
+		bulkLoadPush(transaction, levels, height + 1, level.pageNum, sendUpKey, rightPageNum, allocPage);
+	}
+
+	/**
+	 * Redistributes the keys of the full node held back in front of the
+	 * rightmost node of `level` and of the rightmost node itself (with the
+	 * separator between them) evenly over the two. With slotted pages the keys
+	 * are split where the bytes of the two nodes are closest, using the running
+	 * sizes of the keys rather than re-measuring the nodes for every split
+	 * point.
+	 */
+	private void bulkLoadRebalance(BulkLoadLevel level) {
+		var keys = new ArrayList<DataBox>(level.prevKeys);
+		keys.add(level.prevSendUpKey);
+		keys.addAll(level.keys);
+		var children = new ArrayList<Integer>(level.prevChildren);
+		children.addAll(level.children);
+
+		// keys[split] becomes the separator: keys[0, split) stay in front of it
+		// and keys[split + 1, n) go into the rightmost node.
+		int split = keys.size() / 2;
+		if (metadata.isSlotted()) {
+			var prefixSizes = new int[keys.size() + 1];
+			for (int i = 0; i < keys.size(); ++i) {
+				prefixSizes[i + 1] = prefixSizes[i] + SlottedKeys.entrySize(keys.get(i), Integer.BYTES);
+			}
+			int total = prefixSizes[keys.size()];
+			for (int i = 1; i < keys.size() - 1; ++i) {
+				int imbalance = Math.abs(prefixSizes[i] - (total - prefixSizes[i + 1]));
+				int best = Math.abs(prefixSizes[split] - (total - prefixSizes[split + 1]));
+				if (imbalance < best) {
+					split = i;
+				}
+			}
+		}
+
+		level.prevKeys = new ArrayList<>(keys.subList(0, split));
+		level.prevChildren = new ArrayList<>(children.subList(0, split + 1));
+		level.prevSendUpKey = keys.get(split);
+		level.keys = new ArrayList<>(keys.subList(split + 1, keys.size()));
+		level.children = new ArrayList<>(children.subList(split + 1, children.size()));
+	}
+
+	/**
+	 * Returns the root of the tree. The caller must hold rootLatch or the latch
+	 * of the root's page, so that the root is not replaced or changed under it.
+	 */
+	private BPlusNode rootNode(BaseTransaction transaction) {
+		return BPlusNode.fromBytes(transaction, metadata, rootPageNum);
+	}
+
+	private void typecheck(DataBox key) {
+		typecheckBound(key);
+		// Only bounds may leave out the values of trailing key columns.
+		if (metadata.hasCompositeKeys() && !CompositeKeys.isComplete(metadata.getKeySchema(), key)) {
+			String msg = String.format("DataBox %s is not a key with columns %s", key, metadata.getKeyColumns());
+			throw new IllegalArgumentException(msg);
+		}
+	}
+
+	private void typecheckBound(DataBox bound) {
+		Type t = metadata.getKeySchema();
+		if (bound != null && !bound.type().equals(t)) {
+			String msg = String.format("DataBox %s is not of type %s", bound, t);
+			throw new IllegalArgumentException(msg);
+		}
+	}
+
+	private void checkCompositeKeys() {
+		if (!metadata.hasCompositeKeys()) {
+			throw new UnsupportedOperationException("This B+ tree does not have composite keys.");
+		}
+	}
+
+	private static void checkFalsePositiveRate(double falsePositiveRate) {
+		if (falsePositiveRate < 0 || falsePositiveRate >= 1) {
+			String msg = String.format("False positive rate %f is not in the range [0, 1).", falsePositiveRate);
+			throw new IllegalArgumentException(msg);
+		}
+	}
+
+	/** Adds `key` to the in-memory Bloom filter, if there is one. */
+	private void addToKeyFilter(DataBox key) {
+		BloomFilter filter = keyFilter;
+		if (filter != null) {
+			filter.add(key);
 		}
 	}
 
 	/**
-	 * Returns the largest number d such that the serialization of a LeafNode with
-	 * 2d entries and an InnerNode with 2d keys will fit on a single page of size
-	 * `pageSizeInBytes`.
+	 * Checks that `values` match the included columns of the tree, where null
+	 * stands for no values at all.
 	 */
-	public static int maxOrder(int pageSizeInBytes, Type keySchema) {
-		int leafOrder = LeafNode.maxOrder(pageSizeInBytes, keySchema);
-		int innerOrder = InnerNode.maxOrder(pageSizeInBytes, keySchema);
-		return Math.min(leafOrder, innerOrder);
+	private void typecheckValues(List<DataBox> values) {
+		List<Type> schema = metadata.getIncludedSchema();
+		if (values == null) {
+			if (!schema.isEmpty()) {
+				String msg = String.format("The values of the included columns %s are missing", schema);
+				throw new IllegalArgumentException(msg);
+			}
+			return;
+		}
+		if (values.size() != schema.size()) {
+			String msg = String.format("Values %s do not match the included columns %s", values, schema);
+			throw new IllegalArgumentException(msg);
+		}
+		for (int i = 0; i < values.size(); ++i) {
+			if (!values.get(i).type().equals(schema.get(i))) {
+				String msg = String.format("DataBox %s is not of type %s", values.get(i), schema.get(i));
+				throw new IllegalArgumentException(msg);
+			}
+		}
 	}
 
-	/** Returns the number of pages used to serialize the tree. */
-	public int getNumPages() {
-		return metadata.getAllocator().getNumPages();
+	// Bulk Loading ////////////////////////////////////////////////////////////
+	/**
+	 * The rightmost, not yet written, inner node of one level of a bulk load.
+	 * Its page is reserved up front so that its parent can point to it before it
+	 * is written. The full node in front of it, if any, is not written yet
+	 * either (see bulkLoadPush); prevKeys is null if there is none.
+	 */
+	private class BulkLoadLevel {
+		private int pageNum;
+		private List<DataBox> keys = new ArrayList<>();
+		private List<Integer> children = new ArrayList<>();
+		private int prevPageNum;
+		private List<DataBox> prevKeys;
+		private List<Integer> prevChildren;
+		private DataBox prevSendUpKey;
+
+		BulkLoadLevel(int pageNum, int firstChild) {
+			this.pageNum = pageNum;
+			this.children.add(firstChild);
+		}
 	}
 
-	/** Serializes the header page to page. */
-	private void writeHeader(BaseTransaction transaction, Page page) {
-		byte[] keySchema = metadata.getKeySchema().toBytes();
-		Buffer buf = page.getBuffer(transaction);
-		buf.put(keySchema);
-		buf.putInt(metadata.getOrder());
-		buf.putInt(root.getPage().getPageNum());
+	// Iterator ////////////////////////////////////////////////////////////////
+	/**
+	 * Counts a new scan as open under the current scan epoch (see openScans).
+	 * Must be called before the scan reads rootPageNum.
+	 */
+	private OpenScan openScan() {
+		synchronized (openScans) {
+			openScans.merge(scanEpoch, 1, Integer::sum);
+			return new OpenScan(openScans, scanEpoch);
+		}
 	}
 
-	private void typecheck(DataBox key) {
-		Type t = metadata.getKeySchema();
-		if (!key.type().equals(t)) {
-			String msg = String.format("DataBox %s is not of type %s", key, t);
-			throw new IllegalArgumentException(msg);
+	/**
+	 * Closes `scan`, and frees the pages that it was the last to keep from
+	 * being freed, unless this thread holds rootLatch.
+	 */
+	private void closeScan(OpenScan scan, BaseTransaction transaction) {
+		if (scan.close() && rootLatch.getReadHoldCount() == 0 && !rootLatch.isWriteLockedByCurrentThread()) {
+			freeRetiredPages(transaction);
+		}
+	}
+
+	/**
+	 * A scan that is counted in openScans until it is closed. The cleaner
+	 * closes the scans of abandoned iterators, but leaves the pages they kept
+	 * from being freed to the next scan that is closed, compaction or close of
+	 * the tree. It must not refer to the tree, which would otherwise stay
+	 * reachable until the cleaner gets to it.
+	 */
+	private static class OpenScan implements Runnable {
+		private final TreeMap<Long, Integer> openScans;
+		private final long epoch;
+		private boolean closed = false;
+
+		OpenScan(TreeMap<Long, Integer> openScans, long epoch) {
+			this.openScans = openScans;
+			this.epoch = epoch;
+		}
+
+		/** Closes the scan. Returns whether it was still open. */
+		boolean close() {
+			synchronized (openScans) {
+				if (closed) {
+					return false;
+				}
+				closed = true;
+				// The tree may have been closed since.
+				openScans.computeIfPresent(epoch, (e, count) -> count == 1 ? null : count - 1);
+				return true;
+			}
+		}
+
+		@Override
+		public void run() {
+			close();
 		}
 	}
 
-	// Iterator ////////////////////////////////////////////////////////////////
 	private class BPlusTreeIterator implements Iterator<RecordId> {
-		// these are instance variables used by the existing iterator implementation
-		// you are welcome to add/change/remove instance variables in this class as you see fit
+		private final BaseTransaction transaction;
+		// Our own copy of the leaf we are currently scanning, as it was when we
+		// read it, and the index of the next entry in it.
 		private LeafNode curNode;
-		private Iterator<RecordId> curIterator;
+		private int curIndex;
+		// The last entry we looked at, or null if we have not looked at any yet.
+		// The scan goes on after it whenever we move on to another leaf.
+		private DataBox lastKey;
+		private RecordId lastRid;
+		// Inclusive lower and upper bounds on the keys we return, or null if
+		// there is none.
+		private final DataBox lowerBound;
+		private final DataBox upperBound;
+		// The number of records we may still return.
+		private int remaining;
+		// Only keys that pass the filter are returned, or all keys if it is null.
+		private final Function<DataBox, Boolean> filter;
+		// The record that the next call to next() returns, if we already found it.
+		private RecordId nextRid;
+		// Whether to also keep the key and included values of nextRid, for
+		// scanCovering.
+		private boolean withEntries;
+		private DataBox nextKey;
+		private List<DataBox> nextValues;
+		// Prefetches the leaves to the right of curNode, or null if read-ahead is off.
+		private LeafReadAhead readAhead;
+		// Keeps the pages of the tree we scan from being freed by a compaction.
+		private final OpenScan openScan = openScan();
 
 		/**
 		 * This constructor simply creates an iterator that
 		 * iterates through every record in the tree in ascending or of the keys.
-		 * <p>
-		 * The existing code is flawed, but serves as a good example on iterators are implemented.
-		 * <p>
-		 * For your implementation, you are recommended to use explicit constructor invocation so that
-		 * you do not have to implement this method.
 		 *
 		 * @param transaction Ignore this parameter. It has nothing to do with project 3.
 		 */
 		public BPlusTreeIterator(BaseTransaction transaction) {
-			this.curNode = root.getLeftmostLeaf(transaction);
-			this.curIterator = curNode.scanAll();
+			this(transaction, null, null);
 		}
 
 		/**
@@ -442,42 +4078,200 @@ public class BPlusTree implements Closeable {
 		 * (1, 555), (2, 1), (3, 2432), (5, 21), (7, 1298)
 		 * If lowerBound.getInt() is 3 and upperBound.getInt() is 6, then the iterator should return
 		 * 2432 and 21 in order.
-		 * <p>
-		 * For your implementation, you are recommended to use explicit constructor invocation so that
-		 * you do not have to implement this method.
 		 *
 		 * @param transaction Ignore this parameter. It has nothing to do with project 3.
-		 * @param lowerBound Lower bound (inclusive) on the keys whose record will be returned by the iterator.
-		 * @param upperBound Upper bound (inclusive) on the keys whose record will be returned by the iterator.
+		 * @param lowerBound Lower bound (inclusive) on the keys whose record will be returned by the iterator,
+		 *                   or null to start at the smallest key.
+		 * @param upperBound Upper bound (inclusive) on the keys whose record will be returned by the iterator,
+		 *                   or null to continue up to the largest key.
 		 */
 		public BPlusTreeIterator(BaseTransaction transaction,
 								 DataBox lowerBound, DataBox upperBound) {
-			throw new UnsupportedOperationException("Implement this.");
+			this(transaction, lowerBound, upperBound, Integer.MAX_VALUE, null);
 		}
 
 		/**
-		 * This constructor is similar with the previous one but has more criteria. The added limit parameter should
-		 * be fairly easy to understand. For the filter parameter, suppose <code>box</code> is a <code>DataBox</code>
-		 * object, then you can use <code>filter.apply(box)</code> to check if this key passes the filter. If it does,
-		 * return it when <code>next</code> is called, otherwise ignore it.
-		 * <p>
-		 * Since this is the most powerful/flexible constructor among all 3, you are recommended to let
-		 * other constructors call this constructor through explicit constructor invocation
-		 * and put all your implementation here.
+		 * This constructor is similar with the previous one but has more criteria. The iterator
+		 * seeks to the leaf that may contain lowerBound in O(log n) and then walks the leaves to
+		 * the right, applying the limit and filter as it goes, until it sees a key past upperBound.
 		 *
 		 * @param transaction Ignore this parameter. It has nothing to do with project 3.
-		 * @param lowerBound Lower bound (inclusive) on the keys whose record will be returned by the iterator.
-		 * @param upperBound Upper bound (inclusive) on the keys whose record will be returned by the iterator.
+		 * @param lowerBound Lower bound (inclusive) on the keys whose record will be returned by the iterator,
+		 *                   or null to start at the smallest key.
+		 * @param upperBound Upper bound (inclusive) on the keys whose record will be returned by the iterator,
+		 *                   or null to continue up to the largest key.
 		 * @param limit The maximum number of elements the iterator can return. For example, suppose limit is 5 but
 		 *              there are 10 records available, then only the first 5 records should be returned
 		 *              by the generator.
 		 * @param filter A function which takes a DataBox as input and returns a Boolean. It determines, by performing
 		 *               some check on the key, whether a record should be included in the result of the iterator.
+		 *               A null filter accepts every key.
 		 */
 		public BPlusTreeIterator(BaseTransaction transaction,
 								 DataBox lowerBound, DataBox upperBound, int limit,
 								 Function<DataBox, Boolean> filter) {
-			throw new UnsupportedOperationException("Implement this.");
+			this.transaction = transaction;
+			this.lowerBound = lowerBound;
+			this.upperBound = upperBound;
+			this.remaining = limit;
+			this.filter = filter;
+			this.nextRid = null;
+			ITERATOR_CLEANER.register(this, openScan);
+
+			BPlusTreeMetrics metrics = metadata.getMetrics();
+			long startNanos = System.nanoTime();
+			long startPageFetches = metrics.threadPageFetches();
+			this.curNode = latchLeafForRead(transaction, lowerBound);
+			try {
+				this.curIndex = lowerBound == null ? 0 : curNode.ceilingIndex(lowerBound);
+			} finally {
+				metadata.getLatch(curNode.getPage().getPageNum()).readLock().unlock();
+				metrics.record(BPlusTreeMetrics.Operation.SCAN, startNanos, startPageFetches);
+			}
+
+			if (readAheadWindow > 0 && limit > 0) {
+				this.readAhead = new LeafReadAhead(transaction, curNode, readAheadWindow);
+				// If the iterator is abandoned before it is exhausted, stop prefetching
+				// once it is garbage collected. The cleaning action must not refer to
+				// the iterator itself.
+				ITERATOR_CLEANER.register(this, readAhead::close);
+			}
+		}
+
+		/** Marks the scan as over and releases any leaves read ahead for it. */
+		private RecordId finish() {
+			remaining = 0;
+			if (readAhead != null) {
+				readAhead.close();
+			}
+			closeScan(openScan, transaction);
+			return null;
+		}
+
+		/**
+		 * Finds the next record to return, moving on to the next leaf whenever we
+		 * run off the end of our copy of a leaf (there might be empty leaves, so
+		 * this may take more than one hop). Returns null once the scan is over.
+		 */
+		private RecordId fetchNextRid() {
+			while (remaining > 0) {
+				if (curIndex < curNode.size()) {
+					RecordId rid = step();
+					if (rid != null || remaining == 0) {
+						return rid;
+					}
+				} else if (!advance()) {
+					return finish();
+				}
+			}
+			return finish();
+		}
+
+		/**
+		 * Looks at the entry at curIndex of curNode. Returns the entry's record if
+		 * it is part of the scan, or null otherwise.
+		 */
+		private RecordId step() {
+			if (upperBound != null && curNode.compareKeyAt(curIndex, upperBound) > 0) {
+				return finish();
+			}
+			lastKey = curNode.keyAt(curIndex);
+			lastRid = curNode.ridAt(curIndex);
+			++curIndex;
+			if (filter == null || filter.apply(lastKey)) {
+				if (withEntries) {
+					nextKey = lastKey;
+					nextValues = curNode.valuesAt(curIndex - 1);
+				}
+				if (--remaining == 0) {
+					finish();
+				}
+				return lastRid;
+			}
+			return null;
+		}
+
+		/**
+		 * Moves on, once we are past the end of our copy of curNode, to the leaf
+		 * that holds the entries after the last one we looked at. Returns false if
+		 * there are no more leaves.
+		 *
+		 * The leaf is read again first, since entries may have been put into it
+		 * behind the ones we looked at, or moved into it from its right sibling.
+		 * If its page no longer holds a leaf (the leaf was merged into its left
+		 * sibling and freed, and the page may even have been reused), or if none
+		 * of its entries is one we looked at (so the entries after them may have
+		 * moved into its left sibling), we descend from the root to the last key
+		 * we looked at instead. From there we walk right, latching every right
+		 * sibling before the latch of its left neighbour is released, to the
+		 * first leaf with entries past the last one we looked at.
+		 */
+		private boolean advance() {
+			boolean useReadAhead = readAhead != null;
+			boolean restartReadAhead = false;
+			while (true) {
+				int pageNum = curNode.getPage().getPageNum();
+				Lock latch = metadata.getLatch(pageNum).readLock();
+				latch.lock();
+				LeafNode leaf = readLiveLeaf(transaction, pageNum);
+				if (leaf == null || position(leaf) == 0) {
+					latch.unlock();
+					leaf = latchLeafForRead(transaction, lastKey == null ? lowerBound : lastKey);
+					latch = metadata.getLatch(leaf.getPage().getPageNum()).readLock();
+				}
+				int index = position(leaf);
+				if (index >= leaf.size() && useReadAhead) {
+					// Wait for the leaf read ahead without holding any latch, since the
+					// read-ahead thread may need the latch of this leaf. Entries may
+					// have moved into it from this leaf since it was read ahead, so
+					// it is only used to have its page in memory: we go round again
+					// and read it like any other right sibling. If it is not the right
+					// sibling of this leaf, the read-ahead restarts from wherever we
+					// end up.
+					latch.unlock();
+					Optional<Integer> right = leaf.getRightSiblingPageNum();
+					if (right.isEmpty()) {
+						return false;
+					}
+					restartReadAhead = readAhead.next(right.get()) == null;
+					useReadAhead = false;
+					continue;
+				}
+				try {
+					while (index >= leaf.size()) {
+						Optional<Integer> right = leaf.getRightSiblingPageNum();
+						if (right.isEmpty()) {
+							return false;
+						}
+						Lock next = metadata.getLatch(right.get()).readLock();
+						next.lock();
+						latch.unlock();
+						latch = next;
+						leaf = LeafNode.readShared(transaction, metadata, right.get());
+						index = position(leaf);
+						metadata.getMetrics().countLeafHop(leaf.size() == 0);
+					}
+				} finally {
+					latch.unlock();
+				}
+				curNode = leaf;
+				curIndex = index;
+				if (restartReadAhead) {
+					readAhead.restart(leaf);
+				}
+				return true;
+			}
+		}
+
+		/**
+		 * Returns the index in `leaf` of the first entry after the last one we
+		 * looked at, or of the first entry in range if we have not looked at any.
+		 */
+		private int position(LeafNode leaf) {
+			if (lastKey != null) {
+				return leaf.countUpTo(lastKey, lastRid);
+			}
+			return lowerBound == null ? 0 : leaf.ceilingIndex(lowerBound);
 		}
 
 		/**
@@ -487,18 +4281,10 @@ public class BPlusTree implements Closeable {
 		 */
 		@Override
 		public boolean hasNext() {
-			if (curIterator.hasNext()) {
-				return true;
-			} else {
-				// Because there might be empty leaves we need to loop through until we find a
-				// non-empty one
-				while (curNode.getRightSibling(null).isPresent() && !curIterator.hasNext()) {
-					curNode = curNode.getRightSibling(null).get();
-					curIterator = curNode.scanAll();
-				}
-				// Either we found a non-empty one or we're at the end
-				return curIterator.hasNext();
+			if (nextRid == null) {
+				nextRid = fetchNextRid();
 			}
+			return nextRid != null;
 		}
 
 		/**
@@ -512,7 +4298,552 @@ public class BPlusTree implements Closeable {
 		 */
 		@Override
 		public RecordId next() {
-			return curIterator.next();
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			RecordId rid = nextRid;
+			nextRid = null;
+			return rid;
+		}
+
+		/** Like next, but returns the key and included values of the record too. */
+		IndexEntry nextEntry() {
+			RecordId rid = next();
+			return new IndexEntry(nextKey, rid, nextValues);
+		}
+	}
+
+	/**
+	 * Iterates over the records of a range in descending order of their keys;
+	 * see scanDescending. Like BPlusTreeIterator, we scan our own copy of every
+	 * leaf and hold a latch only while reading one. There is no read-ahead.
+	 */
+	private class ReverseBPlusTreeIterator implements Iterator<RecordId> {
+		private final BaseTransaction transaction;
+		// Our own copy of the leaf we are currently scanning, as it was when we
+		// read it, and the index of the next entry in it, counting down.
+		private LeafNode curNode;
+		private int curIndex;
+		// The last entry we looked at, or null if we have not looked at any yet.
+		// The scan goes on before it whenever we move on to another leaf.
+		private DataBox lastKey;
+		private RecordId lastRid;
+		// Inclusive lower and upper bounds on the keys we return, or null if
+		// there is none.
+		private final DataBox lowerBound;
+		private final DataBox upperBound;
+		// The number of records we may still return.
+		private int remaining;
+		// Only keys that pass the filter are returned, or all keys if it is null.
+		private final Function<DataBox, Boolean> filter;
+		// The record that the next call to next() returns, if we already found it.
+		private RecordId nextRid;
+		// The key of nextRid and, if withEntries is set (for
+		// scanCoveringDescending), its included values.
+		private boolean withEntries;
+		private DataBox nextKey;
+		private List<DataBox> nextValues;
+		// Keeps the pages of the tree we scan from being freed by a compaction.
+		private final OpenScan openScan = openScan();
+
+		ReverseBPlusTreeIterator(BaseTransaction transaction, DataBox lowerBound, DataBox upperBound,
+								 int limit, Function<DataBox, Boolean> filter) {
+			this.transaction = transaction;
+			this.lowerBound = lowerBound;
+			this.upperBound = upperBound;
+			this.remaining = limit;
+			this.filter = filter;
+			this.nextRid = null;
+			ITERATOR_CLEANER.register(this, openScan);
+
+			BPlusTreeMetrics metrics = metadata.getMetrics();
+			long startNanos = System.nanoTime();
+			long startPageFetches = metrics.threadPageFetches();
+			this.curNode = latchLastLeafForRead(transaction, upperBound);
+			try {
+				this.curIndex = lastIndexBefore(curNode);
+			} finally {
+				metadata.getLatch(curNode.getPage().getPageNum()).readLock().unlock();
+				metrics.record(BPlusTreeMetrics.Operation.SCAN, startNanos, startPageFetches);
+			}
+		}
+
+		/**
+		 * Finds the next record to return, moving on to the previous leaf whenever
+		 * we run off the start of our copy of a leaf (there might be empty leaves,
+		 * so this may take more than one hop). Returns null once the scan is over.
+		 */
+		private RecordId fetchNextRid() {
+			while (remaining > 0) {
+				if (curIndex >= 0) {
+					RecordId rid = step();
+					if (rid != null || remaining == 0) {
+						return rid;
+					}
+				} else if (!retreat()) {
+					return finish();
+				}
+			}
+			return finish();
+		}
+
+		/** Marks the scan as over. */
+		private RecordId finish() {
+			remaining = 0;
+			closeScan(openScan, transaction);
+			return null;
+		}
+
+		/**
+		 * Moves on, once we are past the start of our copy of curNode, to the leaf
+		 * that holds the entries before the last one we looked at. Returns false
+		 * if there are no more leaves.
+		 *
+		 * That is the left sibling of curNode if it still is one. Otherwise it
+		 * split, was merged away or took in curNode since we read curNode, and
+		 * walking right from it could take us past the entries we returned
+		 * already, so we descend from the root again to the last key we looked
+		 * at. Either way we only go on with the entries before the last one we
+		 * looked at, since some of the entries of curNode may since have been
+		 * moved into its left sibling.
+		 */
+		private boolean retreat() {
+			Optional<Integer> leftPageNum = curNode.getLeftSiblingPageNum();
+			if (leftPageNum.isEmpty()) {
+				// The leftmost leaf stays the leftmost leaf: merges free the right
+				// node of the two.
+				return false;
+			}
+			int pageNum = curNode.getPage().getPageNum();
+			Optional<LeafNode> sibling = readLeftSibling(transaction, pageNum, leftPageNum.get());
+			if (sibling.isPresent()) {
+				curNode = sibling.get();
+			} else {
+				curNode = latchLastLeafForRead(transaction, lastKey == null ? upperBound : lastKey);
+				metadata.getLatch(curNode.getPage().getPageNum()).readLock().unlock();
+			}
+			curIndex = lastIndexBefore(curNode);
+			metadata.getMetrics().countLeafHop(curNode.size() == 0);
+			return true;
+		}
+
+		/**
+		 * Returns the index in `leaf` of the last entry before the last one we
+		 * looked at, or of the last entry within the upper bound if we have not
+		 * looked at any yet; -1 if there is none.
+		 */
+		private int lastIndexBefore(LeafNode leaf) {
+			if (lastKey != null) {
+				return leaf.countLessThan(lastKey, lastRid) - 1;
+			}
+			return upperBound == null ? leaf.size() - 1 : leaf.countLessThan(upperBound, true) - 1;
+		}
+
+		/**
+		 * Looks at the entry at curIndex of curNode. Returns the entry's record if
+		 * it is part of the scan, or null otherwise.
+		 */
+		private RecordId step() {
+			if (lowerBound != null && curNode.compareKeyAt(curIndex, lowerBound) < 0) {
+				return finish();
+			}
+			lastKey = curNode.keyAt(curIndex);
+			lastRid = curNode.ridAt(curIndex);
+			--curIndex;
+			if (filter == null || filter.apply(lastKey)) {
+				nextKey = lastKey;
+				if (withEntries) {
+					nextValues = curNode.valuesAt(curIndex + 1);
+				}
+				if (--remaining == 0) {
+					finish();
+				}
+				return lastRid;
+			}
+			return null;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (nextRid == null) {
+				nextRid = fetchNextRid();
+			}
+			return nextRid != null;
+		}
+
+		@Override
+		public RecordId next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			RecordId rid = nextRid;
+			nextRid = null;
+			return rid;
+		}
+
+		/**
+		 * Like next, but returns the key of the record too, and its included
+		 * values if withEntries is set.
+		 */
+		IndexEntry nextEntry() {
+			RecordId rid = next();
+			return new IndexEntry(nextKey, rid, nextValues);
+		}
+	}
+
+	/** The results of getAll, computed a batch of keys at a time. */
+	private class MultiGetIterator implements Iterator<Pair<DataBox, Optional<RecordId>>> {
+		private final BaseTransaction transaction;
+		private final Iterator<DataBox> keys;
+		private final Deque<Pair<DataBox, Optional<RecordId>>> results = new ArrayDeque<>();
+		private DataBox prevKey = null;
+
+		// The path down to the leaf of the last key of the current batch, from
+		// the root. Every node is paired with the smallest key that is too large
+		// for its subtree, or null if there is none, and has its latch held.
+		private final List<BPlusNode> path = new ArrayList<>();
+		private final List<DataBox> fences = new ArrayList<>();
+		private final Deque<Lock> latches = new ArrayDeque<>();
+
+		MultiGetIterator(BaseTransaction transaction, Iterator<DataBox> keys) {
+			this.transaction = transaction;
+			this.keys = keys;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (results.isEmpty() && keys.hasNext()) {
+				nextBatch();
+			}
+			return !results.isEmpty();
+		}
+
+		@Override
+		public Pair<DataBox, Optional<RecordId>> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return results.pollFirst();
+		}
+
+		private DataBox nextKey() {
+			DataBox key = keys.next();
+			typecheck(key);
+			if (prevKey != null && key.compareTo(prevKey) < 0) {
+				String msg = String.format("Keys %s and %s are not in ascending order", prevKey, key);
+				throw new IllegalArgumentException(msg);
+			}
+			prevKey = key;
+			return key;
+		}
+
+		private void nextBatch() {
+			// Keys of trees with duplicate keys or write buffers are not in one
+			// place in the tree, so they are looked up one by one.
+			if (!metadata.isUnique() || metadata.isBuffered()) {
+				DataBox key = nextKey();
+				results.add(new Pair<>(key, getRecord(transaction, key)));
+				return;
+			}
+
+			// The keys come from the caller, which may compute them lazily, so the
+			// whole batch is read before any latch is taken.
+			var batch = new ArrayList<DataBox>(GET_ALL_BATCH_SIZE);
+			while (batch.size() < GET_ALL_BATCH_SIZE && keys.hasNext()) {
+				batch.add(nextKey());
+			}
+
+			BPlusTreeMetrics metrics = metadata.getMetrics();
+			long startNanos = System.nanoTime();
+			long startPageFetches = metrics.threadPageFetches();
+			rootLatch.readLock().lock();
+			try {
+				for (DataBox key : batch) {
+					BloomFilter filter = keyFilter;
+					if (filter != null && !filter.mightContain(key)) {
+						keyFilterNegatives.incrementAndGet();
+						results.add(new Pair<>(key, Optional.empty()));
+						continue;
+					}
+					Optional<RecordId> rid = descendTo(key).getKey(key);
+					if (filter != null && rid.isEmpty()) {
+						keyFilterFalsePositives.incrementAndGet();
+					}
+					results.add(new Pair<>(key, rid));
+				}
+			} finally {
+				while (!latches.isEmpty()) {
+					latches.pollLast().unlock();
+				}
+				path.clear();
+				fences.clear();
+				rootLatch.readLock().unlock();
+				metrics.record(BPlusTreeMetrics.Operation.GET_ALL, startNanos, startPageFetches);
+			}
+		}
+
+		/**
+		 * Returns the leaf that may contain `key`, which is not less than any key
+		 * looked up before in this batch, moving `path` to it.
+		 */
+		private LeafNode descendTo(DataBox key) {
+			// Since the keys are sorted, a subtree holds `key` as long as its fence
+			// is greater. The root has no fence, so it never leaves the path.
+			while (!path.isEmpty() && fences.get(fences.size() - 1) != null
+				   && key.compareTo(fences.get(fences.size() - 1)) >= 0) {
+				path.remove(path.size() - 1);
+				fences.remove(fences.size() - 1);
+				latches.pollLast().unlock();
+			}
+			if (path.isEmpty()) {
+				push(rootPageNum, null);
+			}
+			while (path.get(path.size() - 1) instanceof InnerNode inner) {
+				int index = inner.childIndex(key);
+				List<DataBox> separators = inner.getKeys();
+				DataBox fence = index < separators.size() ? separators.get(index) : fences.get(fences.size() - 1);
+				push(inner.getChildren().get(index), fence);
+			}
+			return (LeafNode) path.get(path.size() - 1);
+		}
+
+		private void push(int pageNum, DataBox fence) {
+			Lock latch = metadata.getLatch(pageNum).readLock();
+			latch.lock();
+			latches.addLast(latch);
+			path.add(BPlusNode.readShared(transaction, metadata, pageNum));
+			fences.add(fence);
+		}
+	}
+
+	/**
+	 * Iterates over the records of a range as of a snapshot; see scanSnapshot.
+	 * The records of a leaf that are part of the scan are copied out of it under
+	 * its latch, so that writers may change the leaf in place afterwards.
+	 */
+	private class SnapshotIterator implements SnapshotScan {
+		private final BaseTransaction transaction;
+		private final PageVersions.Snapshot snapshot;
+		// Inclusive upper bound on the keys we return, or null if there is none.
+		private final DataBox upperBound;
+		// The records copied out of the current leaf that are yet to be returned.
+		private final Deque<RecordId> rids = new ArrayDeque<>();
+		// The page of the next leaf to copy records out of, if there is one.
+		private Optional<Integer> nextPageNum;
+
+		SnapshotIterator(BaseTransaction transaction, DataBox lowerBound, DataBox upperBound) {
+			this.transaction = transaction;
+			this.upperBound = upperBound;
+
+			BPlusTreeMetrics metrics = metadata.getMetrics();
+			long startNanos = System.nanoTime();
+			long startPageFetches = metrics.threadPageFetches();
+			// Writers that change more than one page either hold rootLatch write
+			// or detachedWriters read, so the snapshot never sees half of a split
+			// or merge.
+			int pageNum;
+			rootLatch.readLock().lock();
+			try {
+				detachedWriters.writeLock().lock();
+				try {
+					this.snapshot = metadata.getVersions().open();
+				} finally {
+					detachedWriters.writeLock().unlock();
+				}
+				pageNum = rootPageNum;
+			} finally {
+				rootLatch.readLock().unlock();
+			}
+			// If the iterator is abandoned before it is exhausted, close the
+			// snapshot once it is garbage collected. The cleaning action must not
+			// refer to the iterator itself.
+			ITERATOR_CLEANER.register(this, snapshot::close);
+
+			// Every node is read as of the snapshot, so there is no need to hold on
+			// to the latch of a parent while latching its child.
+			try {
+				while (true) {
+					Integer child = readNode(pageNum, node -> {
+						if (node instanceof InnerNode inner) {
+							return lowerBound == null ? inner.getChildren().get(0) : inner.getChildPageNum(lowerBound);
+						}
+						copyRecords((LeafNode) node, lowerBound);
+						return null;
+					});
+					if (child == null) {
+						break;
+					}
+					pageNum = child;
+				}
+			} finally {
+				metrics.record(BPlusTreeMetrics.Operation.SCAN, startNanos, startPageFetches);
+			}
+		}
+
+		/**
+		 * Applies `f` to the node on page `pageNum` as of the snapshot, with the
+		 * read latch of the page held.
+		 */
+		private <T> T readNode(int pageNum, Function<BPlusNode, T> f) {
+			Lock latch = metadata.getLatch(pageNum).readLock();
+			latch.lock();
+			try {
+				return f.apply(snapshot.read(pageNum, () -> BPlusNode.readShared(transaction, metadata, pageNum)));
+			} finally {
+				latch.unlock();
+			}
+		}
+
+		/**
+		 * Copies the records of `leaf` with keys from `lowerBound` (or from its
+		 * first key if it is null) up to upperBound to `rids`, and sets
+		 * nextPageNum to the leaf's right sibling unless upperBound was passed.
+		 */
+		private void copyRecords(LeafNode leaf, DataBox lowerBound) {
+			int i = lowerBound == null ? 0 : leaf.ceilingIndex(lowerBound);
+			for (; i < leaf.size(); ++i) {
+				if (upperBound != null && leaf.compareKeyAt(i, upperBound) > 0) {
+					nextPageNum = Optional.empty();
+					return;
+				}
+				rids.addLast(leaf.ridAt(i));
+			}
+			nextPageNum = leaf.getRightSiblingPageNum();
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (rids.isEmpty() && nextPageNum.isPresent()) {
+				int pageNum = nextPageNum.get();
+				readNode(pageNum, node -> {
+					copyRecords((LeafNode) node, null);
+					return null;
+				});
+				metadata.getMetrics().countLeafHop(rids.isEmpty());
+			}
+			if (rids.isEmpty()) {
+				snapshot.close();
+				return false;
+			}
+			return true;
+		}
+
+		@Override
+		public RecordId next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return rids.pollFirst();
+		}
+
+		@Override
+		public void close() {
+			rids.clear();
+			nextPageNum = Optional.empty();
+			snapshot.close();
+		}
+	}
+
+	/**
+	 * A window of leaves that are fetched and decoded on readAheadExecutor ahead
+	 * of a scan. Each prefetch is chained onto the previous one, since we only
+	 * learn a leaf's right sibling by reading the leaf. Whenever the scan takes a
+	 * leaf out of the window, the next one is scheduled, so at most `window`
+	 * leaves are ever in flight or waiting for the scan.
+	 */
+	private class LeafReadAhead {
+		private final BaseTransaction transaction;
+		private final int size;
+		private final Deque<CompletableFuture<Optional<LeafNode>>> window = new ArrayDeque<>();
+		private CompletableFuture<Optional<LeafNode>> tail;
+		private boolean closed = false;
+
+		LeafReadAhead(BaseTransaction transaction, LeafNode start, int size) {
+			this.transaction = transaction;
+			this.size = size;
+			restart(start);
+		}
+
+		/**
+		 * Drops the leaves read ahead so far and starts reading ahead again from
+		 * the right sibling of `start`.
+		 */
+		synchronized void restart(LeafNode start) {
+			if (closed) {
+				return;
+			}
+			discard();
+			tail = CompletableFuture.completedFuture(Optional.of(start));
+			for (int i = 0; i < size; ++i) {
+				schedule();
+			}
+		}
+
+		private void schedule() {
+			tail = tail.thenApplyAsync(leaf -> leaf.flatMap(this::readRightSibling), readAheadExecutor);
+			window.addLast(tail);
+		}
+
+		private Optional<LeafNode> readRightSibling(LeafNode leaf) {
+			Lock latch = metadata.getLatch(leaf.getPage().getPageNum()).readLock();
+			latch.lock();
+			try {
+				return BPlusTree.this.readRightSibling(transaction, leaf);
+			} finally {
+				latch.unlock();
+			}
+		}
+
+		/**
+		 * Returns the next leaf read ahead, waiting for it if it is still being
+		 * read, if it is the leaf on page `pageNum`. Otherwise returns null and
+		 * drops everything read ahead: the leaves were read by following sibling
+		 * pointers that writers have changed since (a leaf may even have been
+		 * freed before it was read), and the scan has to read the leaf itself
+		 * and restart the read-ahead from there.
+		 */
+		synchronized LeafNode next(int pageNum) {
+			if (closed || window.isEmpty()) {
+				return null;
+			}
+			CompletableFuture<Optional<LeafNode>> head = window.pollFirst();
+			if (head.isDone()) {
+				prefetchHits.incrementAndGet();
+			}
+			Optional<LeafNode> leaf;
+			try {
+				leaf = head.join();
+			} catch (CompletionException | CancellationException e) {
+				leaf = Optional.empty();
+			}
+			if (leaf.isEmpty() || leaf.get().getPage().getPageNum() != pageNum) {
+				discard();
+				return null;
+			}
+			schedule();
+			return leaf.get();
+		}
+
+		/**
+		 * Cancels the prefetches that have not run yet and counts the leaves that
+		 * were read but never used. Safe to call more than once.
+		 */
+		synchronized void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			discard();
+		}
+
+		/** Cancels the prefetches in the window and counts the wasted ones. */
+		private void discard() {
+			for (CompletableFuture<Optional<LeafNode>> f : window) {
+				if (!f.cancel(false) && !f.isCompletedExceptionally() && f.join().isPresent()) {
+					wastedPrefetches.incrementAndGet();
+				}
+			}
+			window.clear();
 		}
 	}
 }
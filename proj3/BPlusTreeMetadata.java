@@ -0,0 +1,628 @@
+package edu.umd.cs424.database.index;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import edu.umd.cs424.database.BaseTransaction;
+import edu.umd.cs424.database.common.Buffer;
+import edu.umd.cs424.database.databox.Type;
+import edu.umd.cs424.database.io.Page;
+import edu.umd.cs424.database.io.PageAllocator;
+import edu.umd.cs424.database.table.RecordId;
+
+/** Metadata about a B+ tree. */
+public class BPlusTreeMetadata {
+    // The default number of decoded nodes kept in a tree's node cache.
+    public static final int DEFAULT_NODE_CACHE_CAPACITY = 1024;
+
+    // The version of the page format, written to the header page by
+    // BPlusTree.writeHeader. Trees written before the version was recorded read
+    // back as version 0. Version 1 added left sibling pointers to leaves,
+    // version 2 Bloom filters after the entries of leaves with unique keys,
+    // version 3 the height and key statistics of the tree to the header page,
+    // version 4 the write buffer flag to the header page, version 5 the
+    // slotted pages flag to the header page, version 6 the key columns to the
+    // header page, and version 7 the redo log flag to the header page.
+    static final int FORMAT_VERSION = 7;
+    static final int LEFT_SIBLINGS_VERSION = 1;
+    static final int LEAF_FILTERS_VERSION = 2;
+    static final int STATISTICS_VERSION = 3;
+    static final int WRITE_BUFFERS_VERSION = 4;
+    static final int SLOTTED_VERSION = 5;
+    static final int KEY_COLUMNS_VERSION = 6;
+    static final int REDO_LOG_VERSION = 7;
+
+    // Every B+ tree is persisted in a file, and the page allocator is used to
+    // allocate pages in that file.
+    private final PageAllocator allocator;
+
+    // B+ trees map keys (of some type) to record ids. This is the type of the
+    // keys.
+    private final Type keySchema;
+
+    // The order of the tree. Given a tree of order d, its inner nodes store
+    // between d and 2d keys and between d+1 and 2d+1 children pointers. Leaf
+    // nodes store between d and 2d (key, record id) pairs. Notable exceptions
+    // include the root node and leaf nodes that have been deleted from; these
+    // may contain fewer than d entries.
+    private final int order;
+
+    // Whether keys are unique. A tree that allows duplicate keys stores one
+    // entry per (key, record id) pair, and its leaves are serialized as posting
+    // lists (see PostingLists) and split by size rather than by order.
+    private final boolean unique;
+
+    // Whether inner nodes store the number of entries in the subtree of every
+    // child, which lets the tree count, rank and select entries by descending a
+    // single path (see BPlusTree.countRange). Every put and remove then changes
+    // the counts on the whole path from the root.
+    private final boolean counted;
+
+    // The types of the included columns of the tree, which may be empty. Every
+    // (key, record id) pair of a leaf is stored together with the values of
+    // these columns of its record (see IndexEntry), so that scans can answer
+    // queries on them without reading the records.
+    private final List<Type> includedSchema;
+    private final int includedSize;
+
+    // The version of the page format of this tree's pages. Only trees that are
+    // being upgraded when they are opened are not at FORMAT_VERSION.
+    private volatile int formatVersion = FORMAT_VERSION;
+
+    // The false positive rate that the Bloom filters of leaves are sized for, or
+    // 0 if leaves are written without one (see LeafNode.toBytes). Filters only
+    // use the free space of a leaf's page, so fuller leaves get worse rates.
+    private volatile double leafFilterFalsePositiveRate = 0;
+
+    // Whether inner nodes keep a buffer of pending puts and removes in the
+    // free space of their page, which is flushed down to their children in
+    // batches (see InnerNode.flush). Only for trees with unique keys, without
+    // subtree counts or included columns.
+    private volatile boolean buffered = false;
+
+    // Whether nodes store their string keys in slotted pages, with only as many
+    // bytes as every key needs and the prefix that all the keys of a node share
+    // stored once (see SlottedKeys). Such nodes are split and merged by their
+    // size in bytes rather than by the order. Only for trees with string keys
+    // that are unique, without subtree counts, included columns or write
+    // buffers.
+    private volatile boolean slotted = false;
+
+    // The types of the columns of a composite key, or an empty list if keys
+    // are single values. Composite keys are stored as string keys of type
+    // keySchema that encode their values in order (see CompositeKeys).
+    private volatile List<Type> keyColumns = List.of();
+
+    // Whether the tree keeps a redo log of its writes, so that every operation
+    // is durable once it returns (see RedoLog). A log left behind by a crash
+    // is replayed and kept until the tree is closed, whatever this says.
+    private volatile boolean redoLogged = false;
+
+    // The number of point lookups answered by a leaf's Bloom filter, and the
+    // number of them that passed the filter but found no key.
+    private final AtomicLong leafFilterNegatives = new AtomicLong();
+    private final AtomicLong leafFilterFalsePositives = new AtomicLong();
+
+    // Decoded nodes of this tree, keyed by page number. See NodeCache.
+    private final NodeCache nodeCache;
+
+    // Counters and latencies of the operations on the tree.
+    private final BPlusTreeMetrics metrics = new BPlusTreeMetrics();
+
+    // Old versions of nodes, kept for open snapshots. See PageVersions.
+    private final PageVersions versions = new PageVersions();
+
+    // The redo log of the tree, which is only open if the tree is logged. See
+    // RedoLog.
+    private final RedoLog redoLog = new RedoLog();
+
+    // Pages freed by merging nodes are kept on a free list and handed out again
+    // by allocPage before the file is grown. The list is threaded through the
+    // free pages themselves: a free page starts with the byte FREE_PAGE followed
+    // by the page number of the next free page. Page 0 is the header page and is
+    // never free, so a freeListHead of 0 means the list is empty. The head and
+    // the length of the list are persisted in the header page by BPlusTree.
+    // Compactions take whole runs of consecutive pages off the list for their
+    // leaves (see takeFreeRun).
+    static final byte FREE_PAGE = 2;
+    private int freeListHead = 0;
+    private int numFreePages = 0;
+
+    // Latches protecting the in-memory node and the page of every page number.
+    // See the comment above BPlusTree.rootLatch for how they are used. The
+    // latches of freed pages are dropped once nobody holds them (see
+    // evictLatches), so that the map only grows with the number of live pages
+    // and not with every page a compaction ever wrote. freedLatches holds the
+    // page numbers whose latches are still to be dropped.
+    private final ConcurrentHashMap<Integer, ReentrantReadWriteLock> latches = new ConcurrentHashMap<>();
+    private final Deque<Integer> freedLatches = new ArrayDeque<>();
+
+    // Set when InnerNode.rebalanceChild leaves a child underflowing because it
+    // could not latch the child's sibling. See BPlusTree.repairUnderflow.
+    private final ThreadLocal<Boolean> rebalanceDeferred = ThreadLocal.withInitial(() -> false);
+
+    public BPlusTreeMetadata(PageAllocator allocator, Type keySchema, int order) {
+        this(allocator, keySchema, order, true);
+    }
+
+    public BPlusTreeMetadata(PageAllocator allocator, Type keySchema, int order, boolean unique) {
+        this(allocator, keySchema, order, unique, false);
+    }
+
+    public BPlusTreeMetadata(PageAllocator allocator, Type keySchema, int order, boolean unique,
+                             boolean counted) {
+        this(allocator, keySchema, List.of(), order, unique, counted);
+    }
+
+    public BPlusTreeMetadata(PageAllocator allocator, Type keySchema, List<Type> includedSchema, int order,
+                             boolean unique, boolean counted) {
+        this.allocator = allocator;
+        this.keySchema = keySchema;
+        this.includedSchema = List.copyOf(includedSchema);
+        this.includedSize = includedSize(includedSchema);
+        this.order = order;
+        this.unique = unique;
+        this.counted = counted;
+        this.nodeCache = new NodeCache(DEFAULT_NODE_CACHE_CAPACITY);
+    }
+
+    public PageAllocator getAllocator() {
+        return allocator;
+    }
+
+    public Type getKeySchema() {
+        return keySchema;
+    }
+
+    public List<Type> getIncludedSchema() {
+        return includedSchema;
+    }
+
+    /** Returns whether the tree has included columns. */
+    public boolean hasIncludedColumns() {
+        return !includedSchema.isEmpty();
+    }
+
+    /** Returns the number of bytes taken by the included values of one pair. */
+    int getIncludedSize() {
+        return includedSize;
+    }
+
+    /** Returns the number of bytes taken by values of the types `schema`. */
+    static int includedSize(List<Type> schema) {
+        int size = 0;
+        for (Type type : schema) {
+            size += type.getSizeInBytes();
+        }
+        return size;
+    }
+
+    public double getLeafFilterFalsePositiveRate() {
+        return leafFilterFalsePositiveRate;
+    }
+
+    void setLeafFilterFalsePositiveRate(double rate) {
+        this.leafFilterFalsePositiveRate = rate;
+    }
+
+    public boolean isBuffered() {
+        return buffered;
+    }
+
+    void setBuffered(boolean buffered) {
+        this.buffered = buffered;
+    }
+
+    public boolean isSlotted() {
+        return slotted;
+    }
+
+    void setSlotted(boolean slotted) {
+        this.slotted = slotted;
+    }
+
+    public List<Type> getKeyColumns() {
+        return keyColumns;
+    }
+
+    /** Returns whether keys are tuples of several columns. */
+    public boolean hasCompositeKeys() {
+        return !keyColumns.isEmpty();
+    }
+
+    void setKeyColumns(List<Type> keyColumns) {
+        this.keyColumns = List.copyOf(keyColumns);
+    }
+
+    /**
+     * Returns the number of bytes of one message in the buffer of an inner
+     * node: whether it is a put (1 byte), the key and the record id.
+     */
+    public boolean isRedoLogged() {
+        return redoLogged;
+    }
+
+    void setRedoLogged(boolean redoLogged) {
+        this.redoLogged = redoLogged;
+    }
+
+    int getBufferedMessageSize() {
+        return 1 + keySchema.getSizeInBytes() + RecordId.getSizeInBytes();
+    }
+
+    /**
+     * Returns the most messages that the buffer of an inner node can hold, i.e.
+     * that fit on a page next to 2d keys and 2d + 1 children.
+     */
+    int getBufferCapacity() {
+        int innerSize = 1 + Integer.BYTES + 2 * order * keySchema.getSizeInBytes() + (2 * order + 1) * Integer.BYTES;
+        return Math.max(0, (Page.pageSize - innerSize - Integer.BYTES) / getBufferedMessageSize());
+    }
+
+    /** Returns whether leaves are written with Bloom filters. */
+    boolean hasLeafFilters() {
+        return leafFilterFalsePositiveRate > 0;
+    }
+
+    void countLeafFilterNegative() {
+        leafFilterNegatives.incrementAndGet();
+    }
+
+    void countLeafFilterFalsePositive() {
+        leafFilterFalsePositives.incrementAndGet();
+    }
+
+    long getLeafFilterNegatives() {
+        return leafFilterNegatives.get();
+    }
+
+    long getLeafFilterFalsePositives() {
+        return leafFilterFalsePositives.get();
+    }
+
+    public int getOrder() {
+        return order;
+    }
+
+    public boolean isUnique() {
+        return unique;
+    }
+
+    public boolean isCounted() {
+        return counted;
+    }
+
+    int getFormatVersion() {
+        return formatVersion;
+    }
+
+    void setFormatVersion(int formatVersion) {
+        this.formatVersion = formatVersion;
+    }
+
+    NodeCache getNodeCache() {
+        return nodeCache;
+    }
+
+    BPlusTreeMetrics getMetrics() {
+        return metrics;
+    }
+
+    PageVersions getVersions() {
+        return versions;
+    }
+
+    RedoLog getRedoLog() {
+        return redoLog;
+    }
+
+    /**
+     * Fetches the page of node `pageNum`, counting the fetch in the metrics.
+     * Only reads of a node's contents count: decoding a node, or looking a key
+     * up in its bytes. Peeks at the type of a page and the pages of nodes being
+     * built or rewritten go to the allocator directly.
+     */
+    Page fetchPage(BaseTransaction transaction, int pageNum) {
+        metrics.countPageFetch();
+        return allocator.fetchPage(transaction, pageNum);
+    }
+
+    /** Returns the first `length` bytes of page `pageNum`. */
+    byte[] readPage(BaseTransaction transaction, int pageNum, int length) {
+        var bytes = new byte[length];
+        allocator.fetchPage(transaction, pageNum).getBuffer(transaction).get(bytes);
+        return bytes;
+    }
+
+    /** Returns the latch of page `pageNum`. */
+    ReadWriteLock getLatch(int pageNum) {
+        return new PageLatch(pageNum);
+    }
+
+    /**
+     * Drops the latches of the freed pages that nobody holds or waits for.
+     * A latch is dropped while we hold its write lock, so a thread that looked
+     * it up just before and locks it afterwards finds that it is no longer in
+     * `latches`, and starts over with a new one (see PageLatch).
+     */
+    synchronized void evictLatches() {
+        for (int i = freedLatches.size(); i > 0; --i) {
+            int pageNum = freedLatches.pollFirst();
+            var kept = latches.computeIfPresent(pageNum, (p, latch) -> {
+                if (latch.isWriteLocked() || !latch.writeLock().tryLock()) {
+                    return latch;
+                }
+                latch.writeLock().unlock();
+                return null;
+            });
+            if (kept != null) {
+                freedLatches.addLast(pageNum);
+            }
+        }
+    }
+
+    /**
+     * The latch of page `pageNum`. Its locks look up the ReentrantReadWriteLock
+     * of the page in `latches` every time, and check after locking it that it
+     * is still the one there, since evictLatches may have dropped it in
+     * between. A lock that is held is never dropped, so unlocking can simply
+     * look it up again.
+     */
+    private class PageLatch implements ReadWriteLock {
+        private final int pageNum;
+
+        PageLatch(int pageNum) {
+            this.pageNum = pageNum;
+        }
+
+        @Override
+        public Lock readLock() {
+            return new PageLock(pageNum, false);
+        }
+
+        @Override
+        public Lock writeLock() {
+            return new PageLock(pageNum, true);
+        }
+    }
+
+    /** The read or write lock of a PageLatch. */
+    private class PageLock implements Lock {
+        private final int pageNum;
+        private final boolean write;
+
+        PageLock(int pageNum, boolean write) {
+            this.pageNum = pageNum;
+            this.write = write;
+        }
+
+        private ReentrantReadWriteLock current() {
+            return latches.computeIfAbsent(pageNum, p -> new ReentrantReadWriteLock());
+        }
+
+        private Lock lockOf(ReentrantReadWriteLock latch) {
+            return write ? latch.writeLock() : latch.readLock();
+        }
+
+        @Override
+        public void lock() {
+            while (true) {
+                ReentrantReadWriteLock latch = current();
+                lockOf(latch).lock();
+                if (latches.get(pageNum) == latch) {
+                    return;
+                }
+                lockOf(latch).unlock();
+            }
+        }
+
+        @Override
+        public void lockInterruptibly() throws InterruptedException {
+            while (true) {
+                ReentrantReadWriteLock latch = current();
+                lockOf(latch).lockInterruptibly();
+                if (latches.get(pageNum) == latch) {
+                    return;
+                }
+                lockOf(latch).unlock();
+            }
+        }
+
+        @Override
+        public boolean tryLock() {
+            while (true) {
+                ReentrantReadWriteLock latch = current();
+                if (!lockOf(latch).tryLock()) {
+                    return false;
+                }
+                if (latches.get(pageNum) == latch) {
+                    return true;
+                }
+                lockOf(latch).unlock();
+            }
+        }
+
+        @Override
+        public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(time);
+            while (true) {
+                ReentrantReadWriteLock latch = current();
+                if (!lockOf(latch).tryLock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    return false;
+                }
+                if (latches.get(pageNum) == latch) {
+                    return true;
+                }
+                lockOf(latch).unlock();
+            }
+        }
+
+        @Override
+        public void unlock() {
+            lockOf(latches.get(pageNum)).unlock();
+        }
+
+        @Override
+        public Condition newCondition() {
+            throw new UnsupportedOperationException("page latches have no conditions");
+        }
+    }
+
+    /** Notes that this thread left a node underflowing. See rebalanceDeferred. */
+    void deferRebalance() {
+        rebalanceDeferred.set(true);
+    }
+
+    /**
+     * Returns whether this thread left a node underflowing since the last call,
+     * and forgets it.
+     */
+    boolean takeDeferredRebalance() {
+        boolean deferred = rebalanceDeferred.get();
+        rebalanceDeferred.set(false);
+        return deferred;
+    }
+
+    /**
+     * Allocates a page for a new node, reusing a page from the free list if
+     * there is one.
+     */
+    synchronized int allocPage(BaseTransaction transaction) {
+        if (freeListHead == 0) {
+            return allocPageAtEnd(transaction);
+        }
+        int pageNum = freeListHead;
+        Buffer buf = allocator.fetchPage(transaction, pageNum).getBuffer(transaction);
+        assert(buf.get(0) == FREE_PAGE);
+        freeListHead = buf.getInt(1);
+        --numFreePages;
+        return pageNum;
+    }
+
+    /** Allocates a page at the end of the file, bypassing the free list. */
+    int allocPageAtEnd(BaseTransaction transaction) {
+        int pageNum = allocator.allocPage(transaction);
+        redoLog.allocated(pageNum);
+        return pageNum;
+    }
+
+    /**
+     * Returns page `pageNum`, which must no longer be referenced by the tree, to
+     * the free list.
+     */
+    synchronized void freePage(BaseTransaction transaction, int pageNum) {
+        versions.beforeWrite(pageNum, () -> BPlusNode.decode(transaction, this, pageNum));
+        nodeCache.invalidate(pageNum);
+        linkFreePage(transaction, pageNum, freeListHead);
+        freeListHead = pageNum;
+        ++numFreePages;
+        // The caller still holds the latch of pageNum, so it is dropped by a
+        // later call at the earliest.
+        evictLatches();
+        freedLatches.addLast(pageNum);
+    }
+
+    /**
+     * Returns page `pageNum`, which was taken off the free list by takeFreeRun
+     * but never used, to the free list.
+     */
+    synchronized void returnFreePage(BaseTransaction transaction, int pageNum) {
+        linkFreePage(transaction, pageNum, freeListHead);
+        freeListHead = pageNum;
+        ++numFreePages;
+    }
+
+    /**
+     * Takes the lowest run of `length` consecutive pages off the free list, and
+     * returns the number of its first page, or 0 if the list holds no such
+     * run. The pages left on the list are sorted as by sortFreeList.
+     */
+    synchronized int takeFreeRun(BaseTransaction transaction, int length) {
+        int[] pageNums = sortedFreePages(transaction);
+        int start = -1;
+        for (int i = 0, runStart = 0; i < pageNums.length && start < 0; ++i) {
+            if (i > 0 && pageNums[i] != pageNums[i - 1] + 1) {
+                runStart = i;
+            }
+            if (i - runStart + 1 == length) {
+                start = runStart;
+            }
+        }
+        if (start < 0) {
+            relinkFreePages(transaction, pageNums, 0, 0);
+            return 0;
+        }
+        relinkFreePages(transaction, pageNums, start, start + length);
+        numFreePages -= length;
+        return pageNums[start];
+    }
+
+    /**
+     * Links the free list in ascending order, so that allocPage fills the gaps
+     * at the start of the file first and leaves the runs further on for the
+     * next compaction (see takeFreeRun).
+     */
+    synchronized void sortFreeList(BaseTransaction transaction) {
+        relinkFreePages(transaction, sortedFreePages(transaction), 0, 0);
+    }
+
+    private int[] sortedFreePages(BaseTransaction transaction) {
+        var pageNums = new int[numFreePages];
+        for (int i = 0, pageNum = freeListHead; i < numFreePages; ++i) {
+            pageNums[i] = pageNum;
+            pageNum = allocator.fetchPage(transaction, pageNum).getBuffer(transaction).getInt(1);
+        }
+        Arrays.sort(pageNums);
+        return pageNums;
+    }
+
+    /**
+     * Links the sorted free pages `pageNums` but those in [from, to) into the
+     * free list, in order, writing only the pages whose successor changes.
+     */
+    private void relinkFreePages(BaseTransaction transaction, int[] pageNums, int from, int to) {
+        int next = 0;
+        for (int i = pageNums.length - 1; i >= 0; --i) {
+            if (i < from || i >= to) {
+                Buffer buf = allocator.fetchPage(transaction, pageNums[i]).getBuffer(transaction);
+                if (buf.getInt(1) != next) {
+                    linkFreePage(transaction, pageNums[i], next);
+                }
+                next = pageNums[i];
+            }
+        }
+        freeListHead = next;
+    }
+
+    /** Writes page `pageNum` as a free page whose successor on the list is `next`. */
+    private void linkFreePage(BaseTransaction transaction, int pageNum, int next) {
+        redoLog.beforeWrite(pageNum, () -> readPage(transaction, pageNum, Page.pageSize));
+        Buffer buf = allocator.fetchPage(transaction, pageNum).getBuffer(transaction);
+        buf.put(FREE_PAGE);
+        buf.putInt(next);
+        redoLog.written(pageNum, readPage(transaction, pageNum, 1 + Integer.BYTES));
+    }
+
+    synchronized int getFreeListHead() {
+        return freeListHead;
+    }
+
+    synchronized int getNumFreePages() {
+        return numFreePages;
+    }
+
+    /** Restores the free list read from the header page. */
+    synchronized void setFreeList(int freeListHead, int numFreePages) {
+        this.freeListHead = freeListHead;
+        this.numFreePages = numFreePages;
+    }
+}
@@ -0,0 +1,309 @@
+package edu.umd.cs424.database.index;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms for the operations of one B+ tree (see
+ * BPlusTree.getMetrics). They are cheap enough to stay on in production:
+ * recording an operation takes two reads of System.nanoTime and a handful of
+ * uncontended adds.
+ *
+ * Latencies are kept in histograms with one bucket per power of two
+ * nanoseconds, so percentiles are accurate to within a factor of two. Page
+ * fetches are counted per thread while an operation runs and then charged to
+ * that operation, so fetches of concurrent operations are not mixed up.
+ *
+ * Everything is counted from the moment the tree was opened; nothing is
+ * persisted.
+ */
+public final class BPlusTreeMetrics {
+    /** The operations that are timed. */
+    public enum Operation {
+        GET, PUT, REMOVE,
+        // Positioning a scan on its first leaf. Walking the leaves afterwards is
+        // counted by getLeafHops and getEmptyLeafSkips instead.
+        SCAN,
+        // One pass of getAll down the tree, for a batch of keys.
+        GET_ALL
+    }
+
+    private static final int NUM_BUCKETS = Long.SIZE;
+
+    private final LongAdder[] counts = newAdders(Operation.values().length);
+    private final LongAdder[] nanos = newAdders(Operation.values().length);
+    private final LongAdder[] pageFetches = newAdders(Operation.values().length);
+    private final AtomicLongArray[] latencies = new AtomicLongArray[Operation.values().length];
+
+    private final LongAdder totalPageFetches = new LongAdder();
+    private final LongAdder pageWrites = new LongAdder();
+    private final LongAdder leafSplits = new LongAdder();
+    private final LongAdder innerSplits = new LongAdder();
+    private final LongAdder merges = new LongAdder();
+    private final LongAdder leafHops = new LongAdder();
+    private final LongAdder emptyLeafSkips = new LongAdder();
+
+    // The number of pages fetched by the current thread, ever.
+    private final ThreadLocal<long[]> threadPageFetches = ThreadLocal.withInitial(() -> new long[1]);
+
+    BPlusTreeMetrics() {
+        for (int i = 0; i < latencies.length; ++i) {
+            latencies[i] = new AtomicLongArray(NUM_BUCKETS);
+        }
+    }
+
+    private static LongAdder[] newAdders(int n) {
+        var adders = new LongAdder[n];
+        for (int i = 0; i < n; ++i) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    // Recording ///////////////////////////////////////////////////////////////
+    /**
+     * Returns the number of pages the current thread has fetched so far. An
+     * operation passes this, taken when it starts, to record.
+     */
+    long threadPageFetches() {
+        return threadPageFetches.get()[0];
+    }
+
+    /**
+     * Records one run of `op` that started at System.nanoTime() `startNanos`,
+     * when the thread had fetched `startPageFetches` pages.
+     */
+    void record(Operation op, long startNanos, long startPageFetches) {
+        long elapsed = Math.max(0, System.nanoTime() - startNanos);
+        int i = op.ordinal();
+        counts[i].increment();
+        nanos[i].add(elapsed);
+        pageFetches[i].add(threadPageFetches() - startPageFetches);
+        latencies[i].incrementAndGet(bucketOf(elapsed));
+    }
+
+    void countPageFetch() {
+        ++threadPageFetches.get()[0];
+        totalPageFetches.increment();
+    }
+
+    void countPageWrite() {
+        pageWrites.increment();
+    }
+
+    void countLeafSplit() {
+        leafSplits.increment();
+    }
+
+    void countInnerSplit() {
+        innerSplits.increment();
+    }
+
+    void countMerge() {
+        merges.increment();
+    }
+
+    void countLeafHop(boolean empty) {
+        leafHops.increment();
+        if (empty) {
+            emptyLeafSkips.increment();
+        }
+    }
+
+    /** Returns the bucket of a latency: 0 for 0ns, and b for [2^(b-1), 2^b). */
+    private static int bucketOf(long nanos) {
+        return Math.min(NUM_BUCKETS - 1, Long.SIZE - Long.numberOfLeadingZeros(nanos));
+    }
+
+    // Queries /////////////////////////////////////////////////////////////////
+    public long getCount(Operation op) {
+        return counts[op.ordinal()].sum();
+    }
+
+    /** Returns the mean latency of `op` in nanoseconds, or 0 if it never ran. */
+    public double getMeanNanos(Operation op) {
+        long count = getCount(op);
+        return count == 0 ? 0 : (double) nanos[op.ordinal()].sum() / count;
+    }
+
+    /**
+     * Returns an upper bound on the `quantile` (between 0 and 1) of the
+     * latencies of `op` in nanoseconds, accurate to within a factor of two, or
+     * 0 if it never ran.
+     */
+    public long getLatencyPercentile(Operation op, double quantile) {
+        if (quantile < 0 || quantile > 1) {
+            String msg = String.format("Quantile %f is not in the range [0, 1].", quantile);
+            throw new IllegalArgumentException(msg);
+        }
+        AtomicLongArray histogram = latencies[op.ordinal()];
+        long total = 0;
+        for (int b = 0; b < NUM_BUCKETS; ++b) {
+            total += histogram.get(b);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int b = 0; b < NUM_BUCKETS; ++b) {
+            seen += histogram.get(b);
+            if (seen >= rank) {
+                return b == 0 ? 0 : (b == NUM_BUCKETS - 1 ? Long.MAX_VALUE : (1L << b) - 1);
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /** Returns the mean number of pages fetched per run of `op`. */
+    public double getMeanPageFetches(Operation op) {
+        long count = getCount(op);
+        return count == 0 ? 0 : (double) pageFetches[op.ordinal()].sum() / count;
+    }
+
+    /**
+     * Returns the number of pages fetched from the allocator to read or write a
+     * node, by any operation. Nodes served by the node cache are not counted.
+     */
+    public long getPageFetches() {
+        return totalPageFetches.sum();
+    }
+
+    /**
+     * Returns the number of times a node was written to its page, by any
+     * operation. Syncing a node that did not change writes nothing.
+     */
+    public long getPageWrites() {
+        return pageWrites.sum();
+    }
+
+    public long getLeafSplits() {
+        return leafSplits.sum();
+    }
+
+    public long getInnerSplits() {
+        return innerSplits.sum();
+    }
+
+    /** Returns the number of times two siblings were merged into one. */
+    public long getMerges() {
+        return merges.sum();
+    }
+
+    /** Returns the number of times a scan moved on to the next leaf. */
+    public long getLeafHops() {
+        return leafHops.sum();
+    }
+
+    /** Returns the number of leaf hops of scans that landed on an empty leaf. */
+    public long getEmptyLeafSkips() {
+        return emptyLeafSkips.sum();
+    }
+
+    /** Resets every counter and histogram to 0. */
+    public void reset() {
+        for (int i = 0; i < counts.length; ++i) {
+            counts[i].reset();
+            nanos[i].reset();
+            pageFetches[i].reset();
+            for (int b = 0; b < NUM_BUCKETS; ++b) {
+                latencies[i].set(b, 0);
+            }
+        }
+        totalPageFetches.reset();
+        pageWrites.reset();
+        leafSplits.reset();
+        innerSplits.reset();
+        merges.reset();
+        leafHops.reset();
+        emptyLeafSkips.reset();
+    }
+
+    // Summary /////////////////////////////////////////////////////////////////
+    /** The shape of a tree at some point in time; see BPlusTree.getSummary. */
+    public static final class Summary {
+        private final int height;
+        private final long numLeaves;
+        private final long numPairs;
+        private final double averageFill;
+        private final int numFreePages;
+
+        Summary(int height, long numLeaves, long numPairs, double averageFill, int numFreePages) {
+            this.height = height;
+            this.numLeaves = numLeaves;
+            this.numPairs = numPairs;
+            this.averageFill = averageFill;
+            this.numFreePages = numFreePages;
+        }
+
+        /** Returns the number of levels of the tree, counting the leaves. */
+        public int getHeight() {
+            return height;
+        }
+
+        public long getNumLeaves() {
+            return numLeaves;
+        }
+
+        public long getNumPairs() {
+            return numPairs;
+        }
+
+        /**
+         * Returns the average number of pairs per leaf as a fraction of the most
+         * a leaf can hold.
+         */
+        public double getAverageFill() {
+            return averageFill;
+        }
+
+        /** Returns the number of pages on the free list of the tree. */
+        public int getNumFreePages() {
+            return numFreePages;
+        }
+
+        public String toJson() {
+            return String.format(Locale.ROOT, "{\"height\":%d,\"numLeaves\":%d,\"numPairs\":%d,"
+                                 + "\"averageFill\":%.3f,\"numFreePages\":%d}",
+                                 height, numLeaves, numPairs, averageFill, numFreePages);
+        }
+
+        @Override
+        public String toString() {
+            return toJson();
+        }
+    }
+
+    // JSON ////////////////////////////////////////////////////////////////////
+    /**
+     * Returns the metrics as a JSON object, with one object per operation
+     * under "operations" holding its count, mean and percentile latencies (in
+     * nanoseconds) and mean page fetches.
+     */
+    public String toJson() {
+        var sb = new StringBuilder("{");
+        appendJsonMembers(sb);
+        return sb.append('}').toString();
+    }
+
+    /** Appends the members of toJson's object, without the braces, to `sb`. */
+    void appendJsonMembers(StringBuilder sb) {
+        sb.append("\"operations\":{");
+        for (Operation op : Operation.values()) {
+            if (op.ordinal() > 0) {
+                sb.append(',');
+            }
+            sb.append(String.format(Locale.ROOT, "\"%s\":{\"count\":%d,\"meanNanos\":%.1f,\"p50Nanos\":%d,"
+                                    + "\"p99Nanos\":%d,\"maxNanos\":%d,\"meanPageFetches\":%.2f}",
+                                    op.name().toLowerCase(), getCount(op), getMeanNanos(op),
+                                    getLatencyPercentile(op, 0.5), getLatencyPercentile(op, 0.99),
+                                    getLatencyPercentile(op, 1), getMeanPageFetches(op)));
+        }
+        sb.append("},");
+        sb.append(String.format(Locale.ROOT, "\"pageFetches\":%d,\"pageWrites\":%d,\"leafSplits\":%d,"
+                                + "\"innerSplits\":%d,\"merges\":%d,\"leafHops\":%d,\"emptyLeafSkips\":%d",
+                                getPageFetches(), getPageWrites(), getLeafSplits(), getInnerSplits(), getMerges(),
+                                getLeafHops(), getEmptyLeafSkips()));
+    }
+}
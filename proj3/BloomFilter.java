@@ -0,0 +1,217 @@
+package edu.umd.cs424.database.index;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import edu.umd.cs424.database.common.Buffer;
+import edu.umd.cs424.database.databox.DataBox;
+
+/**
+ * A Bloom filter over the keys of a B+ tree. mightContain(k) is false only if
+ * k was never added, so a lookup of a missing key can usually be answered
+ * without reading the leaf (or the page) that would hold it.
+ *
+ * There are two flavors. An instance is an in-memory filter over the keys of
+ * a whole tree (see BPlusTree.setKeyFilter); its bits are set atomically, so
+ * concurrent writers never lose each other's keys. The static write and
+ * mightContain(Buffer, ...) methods handle the filters that leaves of trees
+ * with unique keys store in the free space of their page (see LeafNode.toBytes
+ * and LeafNode.lookup), serialized as
+ *
+ *   [numBytes (2 bytes)][numHashes (1 byte)][numBytes bytes of bits]
+ *
+ * where a numBytes of 0 means the leaf has no filter.
+ *
+ * Keys are hashed from their value (see hash), so that filters written to disk
+ * stay valid across runs. The k probes of a key are derived from one 64-bit
+ * hash by double hashing.
+ */
+final class BloomFilter {
+    // The number of bytes in front of the bits of a serialized filter.
+    static final int HEADER_SIZE = Short.BYTES + 1;
+
+    private final AtomicLongArray words;
+    private final long numBits;
+    private final int numHashes;
+    private final AtomicLong numKeys = new AtomicLong();
+
+    /**
+     * Creates an empty filter that has a false positive rate of about
+     * `falsePositiveRate` once `expectedKeys` keys have been added.
+     */
+    BloomFilter(long expectedKeys, double falsePositiveRate) {
+        double bitsPerKey = bitsPerKey(falsePositiveRate);
+        long numWords = Math.max(1, (long) Math.ceil(Math.max(1, expectedKeys) * bitsPerKey / Long.SIZE));
+        if (numWords > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("A Bloom filter for " + expectedKeys + " keys is too large.");
+        }
+        this.words = new AtomicLongArray((int) numWords);
+        this.numBits = numWords * Long.SIZE;
+        this.numHashes = numHashes(bitsPerKey);
+    }
+
+    void add(DataBox key) {
+        long h = hash(key);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        for (int i = 0; i < numHashes; ++i) {
+            long bit = Math.floorMod(h1 + (long) i * h2, numBits);
+            long mask = 1L << bit;
+            int word = (int) (bit >>> 6);
+            if ((words.get(word) & mask) == 0) {
+                words.getAndAccumulate(word, mask, (a, b) -> a | b);
+            }
+        }
+        numKeys.incrementAndGet();
+    }
+
+    boolean mightContain(DataBox key) {
+        long h = hash(key);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        for (int i = 0; i < numHashes; ++i) {
+            long bit = Math.floorMod(h1 + (long) i * h2, numBits);
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the false positive rate expected for the number of keys added so
+     * far. Keys that were added more than once, or have since been removed from
+     * the tree, are still counted, so this errs on the high side.
+     */
+    double expectedFalsePositiveRate() {
+        double fill = 1 - Math.exp(-(double) numHashes * numKeys.get() / numBits);
+        return Math.pow(fill, numHashes);
+    }
+
+    /** Returns the number of bytes of bits of this filter. */
+    long sizeInBytes() {
+        return numBits / Byte.SIZE;
+    }
+
+    // Serialized Filters //////////////////////////////////////////////////////
+    /**
+     * Returns the number of bytes that write(buf, keys, falsePositiveRate,
+     * maxBytes) writes for `numKeys` keys.
+     */
+    static int serializedSize(int numKeys, double falsePositiveRate, int maxBytes) {
+        if (maxBytes < Short.BYTES) {
+            return 0;
+        }
+        int numBytes = numBitBytes(numKeys, falsePositiveRate, maxBytes);
+        return numBytes > 0 ? HEADER_SIZE + numBytes : Short.BYTES;
+    }
+
+    /**
+     * Writes a filter over `keys` to `buf` taking up at most `maxBytes` bytes
+     * (header included), sized for `falsePositiveRate` if there is room. If not
+     * even the number of bytes fits nothing is written, and if no bits fit (or
+     * `falsePositiveRate` is 0) an empty filter is written.
+     */
+    static void write(ByteBuffer buf, List<DataBox> keys, double falsePositiveRate, int maxBytes) {
+        if (maxBytes < Short.BYTES) {
+            return;
+        }
+        int numBytes = numBitBytes(keys.size(), falsePositiveRate, maxBytes);
+        if (numBytes == 0) {
+            buf.putShort((short) 0);
+            return;
+        }
+        // Use as many probes as is best for the bits we actually got.
+        int numHashes = numHashes((double) numBytes * Byte.SIZE / keys.size());
+        byte[] bits = new byte[numBytes];
+        long numBits = (long) numBytes * Byte.SIZE;
+        for (int k = 0; k < keys.size(); ++k) {
+            long h = keys instanceof IntKeyList intKeys ? mix(intKeys.getInt(k)) : hash(keys.get(k));
+            int h1 = (int) h;
+            int h2 = (int) (h >>> 32);
+            for (int i = 0; i < numHashes; ++i) {
+                long bit = Math.floorMod(h1 + (long) i * h2, numBits);
+                bits[(int) (bit >>> 3)] |= (byte) (1 << (bit & 7));
+            }
+        }
+        buf.putShort((short) numBytes);
+        buf.put((byte) numHashes);
+        buf.put(bits);
+    }
+
+    /** Returns the number of bytes of bits of a serialized filter. */
+    private static int numBitBytes(int numKeys, double falsePositiveRate, int maxBytes) {
+        if (numKeys == 0 || falsePositiveRate <= 0) {
+            return 0;
+        }
+        long wanted = (long) Math.ceil(numKeys * bitsPerKey(falsePositiveRate) / Byte.SIZE);
+        return (int) Math.max(0, Math.min(Math.min(wanted, maxBytes - HEADER_SIZE), Short.MAX_VALUE));
+    }
+
+    /**
+     * Checks `key` against the filter serialized at byte `offset` of `buf`.
+     * Returns true if the filter is empty.
+     */
+    static boolean mightContain(Buffer buf, int offset, DataBox key) {
+        int numBytes = buf.getShort(offset);
+        if (numBytes <= 0) {
+            return true;
+        }
+        int numHashes = buf.get(offset + Short.BYTES);
+        int bitsOffset = offset + HEADER_SIZE;
+        long numBits = (long) numBytes * Byte.SIZE;
+        long h = hash(key);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        for (int i = 0; i < numHashes; ++i) {
+            long bit = Math.floorMod(h1 + (long) i * h2, numBits);
+            if ((buf.get(bitsOffset + (int) (bit >>> 3)) & (1 << (bit & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Helpers /////////////////////////////////////////////////////////////////
+    /** Returns the number of bits per key that give `falsePositiveRate`. */
+    static double bitsPerKey(double falsePositiveRate) {
+        return -Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+    }
+
+    /** Returns the number of probes that is best for `bitsPerKey`. */
+    private static int numHashes(double bitsPerKey) {
+        return (int) Math.max(1, Math.min(30, Math.round(bitsPerKey * Math.log(2))));
+    }
+
+    /**
+     * Returns a 64-bit hash of the value of `key`. Integer and long keys are
+     * hashed without materializing their bytes.
+     */
+    static long hash(DataBox key) {
+        switch (key.type().getTypeId()) {
+            case INT:
+                return mix(key.getInt());
+            case LONG:
+                return mix(key.getLong());
+            default:
+                // FNV-1a over the serialized key, then mixed.
+                long h = 0xcbf29ce484222325L;
+                for (byte b : key.toBytes()) {
+                    h = (h ^ (b & 0xff)) * 0x100000001b3L;
+                }
+                return mix(h);
+        }
+    }
+
+    // The finalizer of MurmurHash3's 64-bit variant.
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
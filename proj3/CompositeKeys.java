@@ -0,0 +1,223 @@
+package edu.umd.cs424.database.index;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.umd.cs424.database.databox.BoolDataBox;
+import edu.umd.cs424.database.databox.DataBox;
+import edu.umd.cs424.database.databox.FloatDataBox;
+import edu.umd.cs424.database.databox.IntDataBox;
+import edu.umd.cs424.database.databox.LongDataBox;
+import edu.umd.cs424.database.databox.StringDataBox;
+import edu.umd.cs424.database.databox.Type;
+
+/**
+ * The encoding of the keys of a B+ tree with composite keys (see
+ * BPlusTreeMetadata.getKeyColumns), which are tuples of values of several
+ * columns, as single string keys whose order is the order of the tuples.
+ *
+ * Every value is encoded as a fixed number of bytes that compare, byte by
+ * byte, like the values do:
+ *
+ *   - a bool as 0 or 1,
+ *   - an int or a long big-endian with its sign bit flipped,
+ *   - a float as its bits big-endian, with the sign bit flipped if it is
+ *     positive and all bits flipped if it is negative,
+ *   - a string of type stringType(m) as its UTF-8 bytes padded with zeros to
+ *     m bytes.
+ *
+ * The bits of all the values are then packed six at a time into characters
+ * from '0' to 'o', the 64 consecutive ASCII characters that start at '0',
+ * which sort in the same order as the bits they hold, so a key of n bytes
+ * takes ceil(8n / 6) characters. Seven bits per character would need all 128
+ * ASCII characters, including NUL and the other control characters, which a
+ * StringDataBox pads and trims with. Since every value has a fixed width, the
+ * encoding of a prefix of the columns is a prefix of the encoding of every key
+ * that starts with those values, but for the last character, which may hold
+ * bits of both the prefix and the columns after it: a bound fills the rest of
+ * that character with zeros when it is a lower bound and with ones when it is
+ * an upper bound. So a range of keys sharing leading values is a contiguous
+ * range of the tree (see BPlusTree.scanPrefix).
+ */
+final class CompositeKeys {
+    private CompositeKeys() {}
+
+    private static final int BITS_PER_DIGIT = 6;
+    private static final char FIRST_DIGIT = '0';
+
+    // Greater than every digit, so a prefix followed by it is greater than every
+    // key with that prefix and less than every key after them.
+    private static final char PAST_PREFIX = (char) (FIRST_DIGIT + (1 << BITS_PER_DIGIT));
+
+    /** Returns the type of the string keys that encode tuples of `columns`. */
+    static Type schema(List<Type> columns) {
+        return Type.stringType(packedLength(8 * encodedSize(columns)));
+    }
+
+    /**
+     * Returns the key that encodes `values`, which are the values of the first
+     * values.size() of `columns`. Fewer values than columns give the smallest
+     * bound of the keys that start with them.
+     */
+    static DataBox encode(List<Type> columns, List<DataBox> values) {
+        String key = pack(bytesOf(columns, values), false);
+        return new StringDataBox(key, schema(columns).getSizeInBytes());
+    }
+
+    /**
+     * Returns a bound that is greater than every key that starts with `values`
+     * but less than every key after them.
+     */
+    static DataBox upperBound(List<Type> columns, List<DataBox> values) {
+        String bound = pack(bytesOf(columns, values), true) + PAST_PREFIX;
+        return new StringDataBox(bound, schema(columns).getSizeInBytes());
+    }
+
+    /** Returns whether `key` encodes a value for every key column. */
+    static boolean isComplete(Type keySchema, DataBox key) {
+        return key.getString().length() == keySchema.getSizeInBytes();
+    }
+
+    /** Returns the values of `columns` that `key` encodes. */
+    static List<DataBox> decode(List<Type> columns, DataBox key) {
+        var bytes = new byte[encodedSize(columns)];
+        unpack(key.getString(), bytes);
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        var values = new ArrayList<DataBox>(columns.size());
+        for (Type column : columns) {
+            switch (column.getTypeId()) {
+                case BOOL:
+                    values.add(new BoolDataBox(buf.get() != 0));
+                    break;
+                case INT:
+                    values.add(new IntDataBox(buf.getInt() ^ Integer.MIN_VALUE));
+                    break;
+                case LONG:
+                    values.add(new LongDataBox(buf.getLong() ^ Long.MIN_VALUE));
+                    break;
+                case FLOAT:
+                    int bits = buf.getInt();
+                    bits = bits < 0 ? bits ^ Integer.MIN_VALUE : ~bits;
+                    values.add(new FloatDataBox(Float.intBitsToFloat(bits)));
+                    break;
+                default:
+                    var s = new byte[column.getSizeInBytes()];
+                    buf.get(s);
+                    int length = s.length;
+                    while (length > 0 && s[length - 1] == 0) {
+                        --length;
+                    }
+                    String string = new String(s, 0, length, StandardCharsets.UTF_8);
+                    values.add(new StringDataBox(string, column.getSizeInBytes()));
+                    break;
+            }
+        }
+        return values;
+    }
+
+    private static byte[] bytesOf(List<Type> columns, List<DataBox> values) {
+        if (values.size() > columns.size()) {
+            String msg = String.format("Values %s do not match the key columns %s", values, columns);
+            throw new IllegalArgumentException(msg);
+        }
+        int size = 0;
+        for (int i = 0; i < values.size(); ++i) {
+            size += encodedSize(columns.get(i));
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        for (int i = 0; i < values.size(); ++i) {
+            DataBox value = values.get(i);
+            Type column = columns.get(i);
+            if (!value.type().equals(column)) {
+                String msg = String.format("DataBox %s is not of type %s", value, column);
+                throw new IllegalArgumentException(msg);
+            }
+            switch (column.getTypeId()) {
+                case BOOL:
+                    buf.put((byte) (value.getBool() ? 1 : 0));
+                    break;
+                case INT:
+                    buf.putInt(value.getInt() ^ Integer.MIN_VALUE);
+                    break;
+                case LONG:
+                    buf.putLong(value.getLong() ^ Long.MIN_VALUE);
+                    break;
+                case FLOAT:
+                    int bits = Float.floatToIntBits(value.getFloat());
+                    buf.putInt(bits < 0 ? ~bits : bits ^ Integer.MIN_VALUE);
+                    break;
+                default:
+                    byte[] s = value.getString().getBytes(StandardCharsets.UTF_8);
+                    if (s.length > column.getSizeInBytes()) {
+                        String msg = String.format("String %s does not fit in %d bytes", value,
+                                                   column.getSizeInBytes());
+                        throw new IllegalArgumentException(msg);
+                    }
+                    buf.put(s);
+                    buf.position(buf.position() + column.getSizeInBytes() - s.length);
+                    break;
+            }
+        }
+        return buf.array();
+    }
+
+    // Packs `bytes` into digits, filling the bits of the last digit that are
+    // past the bytes with ones if `fillOnes` and with zeros otherwise.
+    private static String pack(byte[] bytes, boolean fillOnes) {
+        int bits = 8 * bytes.length;
+        var digits = new StringBuilder(packedLength(bits));
+        for (int start = 0; start < bits; start += BITS_PER_DIGIT) {
+            int digit = 0;
+            for (int bit = start; bit < start + BITS_PER_DIGIT; ++bit) {
+                boolean set = bit < bits ? (bytes[bit / 8] & (0x80 >> (bit % 8))) != 0 : fillOnes;
+                digit = (digit << 1) | (set ? 1 : 0);
+            }
+            digits.append((char) (FIRST_DIGIT + digit));
+        }
+        return digits.toString();
+    }
+
+    private static void unpack(String digits, byte[] bytes) {
+        int bits = 8 * bytes.length;
+        for (int bit = 0; bit < bits; ++bit) {
+            int digit = digits.charAt(bit / BITS_PER_DIGIT) - FIRST_DIGIT;
+            if ((digit & (1 << (BITS_PER_DIGIT - 1 - bit % BITS_PER_DIGIT))) != 0) {
+                bytes[bit / 8] |= 0x80 >> (bit % 8);
+            }
+        }
+    }
+
+    private static int packedLength(int bits) {
+        return (bits + BITS_PER_DIGIT - 1) / BITS_PER_DIGIT;
+    }
+
+    private static int encodedSize(List<Type> columns) {
+        if (columns.isEmpty()) {
+            throw new IllegalArgumentException("A composite key needs at least one column.");
+        }
+        int size = 0;
+        for (Type column : columns) {
+            size += encodedSize(column);
+        }
+        return size;
+    }
+
+    private static int encodedSize(Type column) {
+        switch (column.getTypeId()) {
+            case BOOL:
+                return 1;
+            case INT:
+            case FLOAT:
+                return Integer.BYTES;
+            case LONG:
+                return Long.BYTES;
+            case STRING:
+                return column.getSizeInBytes();
+            default:
+                String msg = String.format("A composite key cannot have a column of type %s", column);
+                throw new IllegalArgumentException(msg);
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package edu.umd.cs424.database.index;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import edu.umd.cs424.database.BaseTransaction;
+import edu.umd.cs424.database.common.Buffer;
+import edu.umd.cs424.database.common.Pair;
+import edu.umd.cs424.database.concurrency.DummyLockContext;
+import edu.umd.cs424.database.databox.DataBox;
+import edu.umd.cs424.database.databox.Type;
+import edu.umd.cs424.database.io.Page;
+import edu.umd.cs424.database.io.PageAllocator;
+import edu.umd.cs424.database.table.RecordId;
+
+/**
+ * An external merge sort of (key, record id) pairs, for building a B+ tree
+ * from pairs in any order (see BPlusTree.bulkLoadUnsorted). It works like the
+ * query package's SortOperator, but spills its runs to pages of temporary
+ * files instead of to temporary tables.
+ *
+ * Pass 0 cuts the input into chunks that fit in the memory budget. Every chunk
+ * is sorted and written out as a run by a pool of worker threads while the
+ * caller keeps reading the input, so the budget is split between numThreads
+ * chunks being sorted and the one being filled. Later passes merge the runs
+ * numMemoryPages - 1 at a time, until few enough are left to be merged on the
+ * fly by the iterator that sort returns.
+ *
+ * The files of the runs are private to the sort, so their pages are not
+ * locked: every run gets its own allocator with a DummyLockContext and no
+ * transaction. The worker threads thus never touch the transaction of the
+ * caller or the lock context of the tree, neither of which is meant to be
+ * used from several threads at once, and the page numbers of the runs never
+ * collide with those of the tree in its lock context.
+ */
+final class ExternalSorter implements Closeable {
+    // The transaction that the pages of the runs are fetched in: none.
+    private static final BaseTransaction NO_TRANSACTION = null;
+
+    private final Type keySchema;
+    private final Comparator<Pair<DataBox, RecordId>> order;
+    private final int numMemoryPages;
+    private final int numThreads;
+    private final int pairsPerPage;
+
+    // The runs that have been written and not yet deleted.
+    private final List<Run> runs = new ArrayList<>();
+
+    ExternalSorter(Type keySchema, Comparator<Pair<DataBox, RecordId>> order, int numMemoryPages,
+                   int numThreads) {
+        if (numMemoryPages < 3) {
+            String msg = String.format("An external sort needs at least 3 pages of memory, not %d.",
+                                       numMemoryPages);
+            throw new IllegalArgumentException(msg);
+        }
+        if (numThreads < 1) {
+            String msg = String.format("An external sort needs at least 1 thread, not %d.", numThreads);
+            throw new IllegalArgumentException(msg);
+        }
+        this.keySchema = keySchema;
+        this.order = order;
+        this.numMemoryPages = numMemoryPages;
+        this.numThreads = numThreads;
+        this.pairsPerPage = (Page.pageSize - Integer.BYTES)
+                            / (keySchema.getSizeInBytes() + RecordId.getSizeInBytes());
+    }
+
+    /**
+     * Returns the pairs of `data` in sorted order. The runs backing the
+     * iterator are deleted by close.
+     */
+    Iterator<Pair<DataBox, RecordId>> sort(Iterator<Pair<DataBox, RecordId>> data) {
+        List<Run> sorted = makeRuns(data);
+        int fanIn = numMemoryPages - 1;
+        while (sorted.size() > fanIn) {
+            sorted = mergePass(sorted, fanIn);
+        }
+        return new MergeIterator(sorted);
+    }
+
+    /** Deletes every run that is left. */
+    @Override
+    public void close() {
+        for (Run run : new ArrayList<>(runs)) {
+            delete(run);
+        }
+    }
+
+    // Pass 0 //////////////////////////////////////////////////////////////////
+    private List<Run> makeRuns(Iterator<Pair<DataBox, RecordId>> data) {
+        int chunkPages = Math.max(1, numMemoryPages / (numThreads + 1));
+        int chunkSize = chunkPages * pairsPerPage;
+        ExecutorService workers = Executors.newFixedThreadPool(numThreads, r -> {
+            var thread = new Thread(r, "index-build-sort");
+            thread.setDaemon(true);
+            return thread;
+        });
+        var made = new ArrayList<CompletableFuture<Run>>();
+        // The chunks still being sorted, at most numThreads at a time.
+        Deque<CompletableFuture<Run>> pending = new ArrayDeque<>();
+        try {
+            while (data.hasNext()) {
+                var chunk = new ArrayList<Pair<DataBox, RecordId>>(chunkSize);
+                while (chunk.size() < chunkSize && data.hasNext()) {
+                    chunk.add(data.next());
+                }
+                if (pending.size() == numThreads) {
+                    pending.pollFirst().join();
+                }
+                CompletableFuture<Run> run = CompletableFuture.supplyAsync(() -> {
+                    chunk.sort(order);
+                    return writeRun(chunk.iterator());
+                }, workers);
+                pending.addLast(run);
+                made.add(run);
+            }
+            var sorted = new ArrayList<Run>(made.size());
+            for (CompletableFuture<Run> run : made) {
+                sorted.add(run.join());
+            }
+            return sorted;
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    // Merging /////////////////////////////////////////////////////////////////
+    /** Merges `sorted` into runs of `fanIn` runs each. */
+    private List<Run> mergePass(List<Run> sorted, int fanIn) {
+        var merged = new ArrayList<Run>();
+        for (int i = 0; i < sorted.size(); i += fanIn) {
+            List<Run> group = sorted.subList(i, Math.min(i + fanIn, sorted.size()));
+            merged.add(writeRun(new MergeIterator(group)));
+            for (Run run : group) {
+                delete(run);
+            }
+        }
+        return merged;
+    }
+
+    /** Merges sorted runs, keeping one page of each in memory. */
+    private class MergeIterator implements Iterator<Pair<DataBox, RecordId>> {
+        private final PriorityQueue<Pair<Pair<DataBox, RecordId>, Iterator<Pair<DataBox, RecordId>>>> heads;
+
+        MergeIterator(List<Run> sorted) {
+            this.heads = new PriorityQueue<>(Math.max(1, sorted.size()),
+                                             (a, b) -> order.compare(a.getFirst(), b.getFirst()));
+            for (Run run : sorted) {
+                Iterator<Pair<DataBox, RecordId>> iter = run.iterator();
+                if (iter.hasNext()) {
+                    heads.add(new Pair<>(iter.next(), iter));
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        @Override
+        public Pair<DataBox, RecordId> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            var head = heads.poll();
+            Iterator<Pair<DataBox, RecordId>> iter = head.getSecond();
+            if (iter.hasNext()) {
+                heads.add(new Pair<>(iter.next(), iter));
+            }
+            return head.getFirst();
+        }
+    }
+
+    // Runs ////////////////////////////////////////////////////////////////////
+    /**
+     * A sorted run in a temporary file. Every page holds the number of pairs on
+     * it, followed by the pairs as key and record id.
+     */
+    private class Run {
+        private final File file;
+        private final PageAllocator allocator;
+        private final List<Integer> pageNums = new ArrayList<>();
+
+        Run(File file, PageAllocator allocator) {
+            this.file = file;
+            this.allocator = allocator;
+        }
+
+        Iterator<Pair<DataBox, RecordId>> iterator() {
+            return new Iterator<>() {
+                private int nextPage = 0;
+                private Buffer buf = null;
+                private int left = 0;
+
+                @Override
+                public boolean hasNext() {
+                    while (left == 0 && nextPage < pageNums.size()) {
+                        buf = allocator.fetchPage(NO_TRANSACTION, pageNums.get(nextPage++)).getBuffer(NO_TRANSACTION);
+                        left = buf.getInt();
+                    }
+                    return left > 0;
+                }
+
+                @Override
+                public Pair<DataBox, RecordId> next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    --left;
+                    DataBox key = DataBox.fromBytes(buf, keySchema);
+                    var rid = new RecordId(buf.getInt(), buf.getShort());
+                    return new Pair<>(key, rid);
+                }
+            };
+        }
+    }
+
+    /** Writes the (sorted) pairs of `data` to a new run. */
+    private Run writeRun(Iterator<Pair<DataBox, RecordId>> data) {
+        File file;
+        try {
+            file = File.createTempFile("index-build", ".run");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        var run = new Run(file, new PageAllocator(new DummyLockContext(), file.getPath(), true, NO_TRANSACTION));
+        synchronized (runs) {
+            runs.add(run);
+        }
+        var page = new ArrayList<Pair<DataBox, RecordId>>(pairsPerPage);
+        while (data.hasNext()) {
+            page.add(data.next());
+            if (page.size() == pairsPerPage || !data.hasNext()) {
+                int pageNum = run.allocator.allocPage(NO_TRANSACTION);
+                Buffer buf = run.allocator.fetchPage(NO_TRANSACTION, pageNum).getBuffer(NO_TRANSACTION);
+                buf.putInt(page.size());
+                for (Pair<DataBox, RecordId> pair : page) {
+                    buf.put(pair.getFirst().toBytes());
+                    buf.put(pair.getSecond().toBytes());
+                }
+                run.pageNums.add(pageNum);
+                page.clear();
+            }
+        }
+        return run;
+    }
+
+    private void delete(Run run) {
+        synchronized (runs) {
+            runs.remove(run);
+        }
+        run.allocator.close();
+        run.file.delete();
+    }
+}
@@ -0,0 +1,61 @@
+package edu.umd.cs424.database.index;
+
+import java.util.List;
+import java.util.Objects;
+
+import edu.umd.cs424.database.databox.DataBox;
+import edu.umd.cs424.database.table.RecordId;
+
+/**
+ * An entry of a B+ tree with included columns (see BPlusTreeMetadata.
+ * getIncludedSchema): a key, the record id it maps to and the values of the
+ * included columns of that record. Scans of such a tree can return these
+ * instead of record ids (see BPlusTree.scanCovering), so that queries that
+ * only need the key and the included columns never read the record itself.
+ */
+public final class IndexEntry {
+    private final DataBox key;
+    private final RecordId rid;
+    private final List<DataBox> values;
+
+    public IndexEntry(DataBox key, RecordId rid, List<DataBox> values) {
+        this.key = key;
+        this.rid = rid;
+        this.values = values;
+    }
+
+    public DataBox getKey() {
+        return key;
+    }
+
+    public RecordId getRecordId() {
+        return rid;
+    }
+
+    /** Returns the values of the included columns, in the order of the schema. */
+    public List<DataBox> getValues() {
+        return values;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (!(o instanceof IndexEntry)) {
+            return false;
+        }
+        IndexEntry e = (IndexEntry) o;
+        return key.equals(e.key) && rid.equals(e.rid) && values.equals(e.values);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(key, rid, values);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("(%s, %s, %s)", key, rid, values);
+    }
+}
@@ -2,6 +2,8 @@ package edu.umd.cs424.database.index;
 
 import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.locks.Lock;
+import java.util.function.ToIntFunction;
 
 import edu.umd.cs424.database.BaseTransaction;
 import edu.umd.cs424.database.common.Buffer;
@@ -11,7 +13,6 @@ import edu.umd.cs424.database.databox.Type;
 import edu.umd.cs424.database.io.Page;
 import edu.umd.cs424.database.table.RecordId;
 
-import javax.swing.text.html.Option;
 
 /**
  * A inner node of a B+ tree. Every inner node in a B+ tree of order d stores
@@ -40,152 +41,1146 @@ class InnerNode extends BPlusNode {
     private List<DataBox> keys;
     private List<Integer> children;
 
+    // The number of (key, rid) pairs in the subtree of every child, in the same
+    // order as children, or null if the tree does not keep subtree counts (see
+    // BPlusTreeMetadata.isCounted).
+    private List<Integer> counts;
+
+    // The prefix sums of counts, countPrefix[i] being the sum of counts[0, i),
+    // or null if they have not been computed since counts last changed.
+    private int[] countPrefix;
+
+    // The pending puts and removes of keys in our subtree, if the tree has write
+    // buffers (see BPlusTreeMetadata.isBuffered), or null otherwise. A key maps
+    // to the record id it was last put with, or to Optional.empty() if it was
+    // last removed. Messages here are newer than any for the same key further
+    // down the tree.
+    private TreeMap<DataBox, Optional<RecordId>> buffer;
+
     // Constructors //////////////////////////////////////////////////////////////
     /**
      * Construct a brand new inner node. The inner node will be persisted on a
-     * brand new page allocated by metadata.getAllocator().
+     * brand new page allocated by metadata.allocPage().
      */
     public InnerNode(BPlusTreeMetadata metadata, List<DataBox> keys,
                      List<Integer> children, BaseTransaction transaction) {
-        this(metadata, metadata.getAllocator().allocPage(transaction), keys, children, transaction);
+        this(metadata, metadata.allocPage(transaction), keys, children, transaction);
     }
 
     /**
      * Construct an inner node that is persisted to page `pageNum` allocated by
-     * metadata.getAllocator().
+     * metadata.getAllocator(). Bulk loading uses this to write an inner node onto
+     * a page it has already reserved.
+     */
+    InnerNode(BPlusTreeMetadata metadata, int pageNum, List<DataBox> keys,
+              List<Integer> children, BaseTransaction transaction) {
+        this(metadata, pageNum, keys, children, null, null, transaction);
+    }
+
+    /**
+     * Like InnerNode(metadata, pageNum, keys, children, transaction), but with
+     * the subtree counts of the children and the buffered messages already
+     * known. If the tree keeps subtree counts and `counts` is null, they are
+     * computed by reading every child. If the tree has write buffers and
+     * `buffer` is null, the buffer starts out empty.
      */
-    private InnerNode(BPlusTreeMetadata metadata, int pageNum, List<DataBox> keys,
-                      List<Integer> children, BaseTransaction transaction) {
-        assert(keys.size() <= 2 * metadata.getOrder());
+    private InnerNode(BPlusTreeMetadata metadata, int pageNum, List<DataBox> keys, List<Integer> children,
+                      List<Integer> counts, TreeMap<DataBox, Optional<RecordId>> buffer,
+                      BaseTransaction transaction) {
+        assert(metadata.isSlotted() || keys.size() <= 2 * metadata.getOrder());
         assert(keys.size() + 1 == children.size());
 
         this.metadata = metadata;
         this.page = metadata.getAllocator().fetchPage(transaction, pageNum);
-        this.keys = keys;
+        this.keys = NodeLists.adoptKeys(metadata.getKeySchema(), keys);
         this.children = children;
+        if (metadata.isCounted()) {
+            if (counts == null) {
+                counts = new ArrayList<>(children.size());
+                for (int i = 0; i < children.size(); ++i) {
+                    counts.add(getChild(transaction, i).subtreeSize());
+                }
+            }
+            assert(counts.size() == children.size());
+            this.counts = counts;
+        }
+        if (metadata.isBuffered()) {
+            this.buffer = buffer == null ? new TreeMap<>() : buffer;
+        }
         sync(transaction);
     }
 
+    /** Copies `node`; see BPlusNode.copy. */
+    private InnerNode(InnerNode node) {
+        this.metadata = node.metadata;
+        this.page = node.page;
+        this.keys = NodeLists.copyOfKeys(metadata.getKeySchema(), node.keys);
+        this.children = new ArrayList<>(node.children);
+        this.counts = node.counts == null ? null : new ArrayList<>(node.counts);
+        this.buffer = node.buffer == null ? null : new TreeMap<>(node.buffer);
+    }
+
     // Core API //////////////////////////////////////////////////////////////////
     // See BPlusNode.get.
     @Override
     public LeafNode get(BaseTransaction transaction, DataBox key) {
-            //find key
-        var listIt = keys.iterator();
-        var pointerIt = children.iterator();
+        return getChild(transaction, childIndex(key)).get(transaction, key);
+    }
+
+    // See BPlusNode.getLeftmostLeaf.
+    @Override
+    public LeafNode getLeftmostLeaf(BaseTransaction transaction) {
+        var leftNode = BPlusNode.fromBytes(transaction,this.metadata,children.get(0));
+        return leftNode.getLeftmostLeaf(transaction);
+    }
+
+    // See BPlusNode.put.
+    @Override
+    public Optional<Pair<DataBox, Integer>> put(BaseTransaction transaction, DataBox key, RecordId rid,
+                                                List<DataBox> values)
+    throws BPlusTreeException {
+        // The caller has either latched the path to the leaf or holds the tree
+        // exclusively (see BPlusTree.putRecord), so the child is latched as we
+        // go, which for a child on the latched path just latches it again.
+        int index = putChildIndex(transaction, key, rid);
+        Lock childLatch = this.metadata.getLatch(children.get(index)).writeLock();
+        childLatch.lock();
+        Optional<Pair<DataBox, Integer>> overFlowFlag;
+        try {
+            var nextNode = getChild(transaction, index);
+            overFlowFlag = nextNode.put(transaction, key, rid, values);
+            refreshCount(index, nextNode);
+        } finally {
+            childLatch.unlock();
+        }
+        if (overFlowFlag.isEmpty()) {
+            sync(transaction);
+            return Optional.empty();
+        } else {
+            var overFlowkey = overFlowFlag.get().getFirst();
+            var newPageNum = overFlowFlag.get().getSecond();
 
-        boolean found = false;
-        var targetLeafPageNum = pointerIt.next();
+            // The new node goes right after the child that split. With duplicate
+            // keys, overFlowkey may equal one of our keys, so we cannot find the
+            // spot by searching for it.
+            insertChild(transaction, index, overFlowkey, newPageNum);
 
-        while(listIt.hasNext() && !found) {
-            DataBox currentKey = listIt.next();
-            if (key.compareTo(currentKey) < 0) {
-                found = true;
+            return splitIfOverflowing(transaction);
+        }
+    }
 
-            } else if (key.equals(currentKey)) {
-                found = true;
-                targetLeafPageNum = pointerIt.next();
-            } else {
-                targetLeafPageNum = pointerIt.next();
+    // See BPlusNode.remove.
+    @Override
+    public void remove(BaseTransaction transaction, DataBox key) {
+        int index = childIndex(key);
+        BPlusNode child = getChild(transaction, index);
+        child.remove(transaction, key);
+        refreshCount(index, child);
+        if (child.isUnderflowing()) {
+            rebalanceChild(transaction, index, child);
+        }
+        if (counts != null) {
+            // The count of the child changed whether or not it was rebalanced.
+            sync(transaction);
+        }
+    }
+
+    // See BPlusNode.remove.
+    @Override
+    public boolean remove(BaseTransaction transaction, DataBox key, RecordId rid) {
+        // Entries with key may be in any of the children from the leftmost one
+        // whose range includes key up to the one put would pick. The caller holds
+        // the tree exclusively, so the children are latched as we go. With
+        // unique keys that is the one child on the path to key, which the caller
+        // may have latched already instead.
+        int last = childIndexAfter(key);
+        for (int index = childIndex(key); index <= last; ++index) {
+            Lock childLatch = this.metadata.getLatch(children.get(index)).writeLock();
+            childLatch.lock();
+            try {
+                BPlusNode child = getChild(transaction, index);
+                if (child.remove(transaction, key, rid)) {
+                    refreshCount(index, child);
+                    if (child.isUnderflowing()) {
+                        rebalanceChild(transaction, index, child);
+                    }
+                    if (counts != null) {
+                        sync(transaction);
+                    }
+                    return true;
+                }
+            } finally {
+                childLatch.unlock();
             }
         }
-        var isItALeaf = BPlusNode.fromBytes(transaction,this.metadata,targetLeafPageNum);
+        return false;
+    }
 
-        return isItALeaf.get(transaction,key);
+    // See BPlusNode.putAll.
+    @Override
+    List<Pair<DataBox, Integer>> putAll(BaseTransaction transaction, List<IndexEntry> entries)
+    throws BPlusTreeException {
+        // Children are visited from right to left, so that the parts a child is
+        // split into do not shift the indexes of the children still to visit.
+        var groups = groupByChild(entries, entry -> putChildIndex(transaction, entry.getKey(), entry.getRecordId()));
+        for (int g = groups.size() - 1; g >= 0; --g) {
+            int[] group = groups.get(g);
+            int index = group[0];
+            Lock childLatch = this.metadata.getLatch(children.get(index)).writeLock();
+            childLatch.lock();
+            try {
+                BPlusNode child = getChild(transaction, index);
+                var splits = child.putAll(transaction, entries.subList(group[1], group[2]));
+                refreshCount(index, child);
+                addSplits(transaction, index, splits);
+            } finally {
+                childLatch.unlock();
+            }
+        }
+        return splitIntoParts(transaction);
     }
 
+    // See BPlusNode.removeAll.
+    @Override
+    List<DataBox> removeAll(BaseTransaction transaction, List<DataBox> toRemove) {
+        // Rebalancing moves entries between children, so it has to wait until
+        // every key has been removed from the child it was grouped under.
+        var groups = groupByChild(toRemove, this::childIndex);
+        var underflowing = new ArrayList<Integer>();
+        var removed = new ArrayList<DataBox>();
+        for (int[] group : groups) {
+            int index = group[0];
+            Lock childLatch = this.metadata.getLatch(children.get(index)).writeLock();
+            childLatch.lock();
+            try {
+                BPlusNode child = getChild(transaction, index);
+                removed.addAll(child.removeAll(transaction, toRemove.subList(group[1], group[2])));
+                refreshCount(index, child);
+                if (child.isUnderflowing()) {
+                    underflowing.add(index);
+                }
+            } finally {
+                childLatch.unlock();
+            }
+        }
 
-    // See BPlusNode.getLeftmostLeaf.
+        // Right to left: merging child i into child i - 1 only removes child i,
+        // so the indexes still to visit stay valid.
+        for (int u = underflowing.size() - 1; u >= 0; --u) {
+            int index = underflowing.get(u);
+            Lock childLatch = this.metadata.getLatch(children.get(index)).writeLock();
+            childLatch.lock();
+            try {
+                // A neighbour's rebalancing may have fixed the child already.
+                BPlusNode child = getChild(transaction, index);
+                if (child.isUnderflowing()) {
+                    rebalanceChild(transaction, index, child);
+                }
+            } finally {
+                childLatch.unlock();
+            }
+        }
+        sync(transaction);
+        return removed;
+    }
+
+    // Rebalancing ///////////////////////////////////////////////////////////////
     @Override
-    public LeafNode getLeftmostLeaf(BaseTransaction transaction) {
-        var leftNode = BPlusNode.fromBytes(transaction,this.metadata,children.get(0));
-        return leftNode.getLeftmostLeaf(transaction);
+    int size() {
+        return keys.size();
     }
 
-    // See BPlusNode.put.
+    // Inner nodes with slotted pages hold a varying number of keys, so, like
+    // leaves with posting lists, they are kept between a quarter of a page and
+    // a full page, measured in bytes (see balanceSize).
+
+    // See BPlusNode.isUnderflowing.
     @Override
-    public Optional<Pair<DataBox, Integer>> put(BaseTransaction transaction, DataBox key, RecordId rid)
-    throws BPlusTreeException {
-        var c = this.keys.iterator();
-        var d = this.children.iterator();
+    boolean isUnderflowing() {
+        if (!this.metadata.isSlotted()) {
+            return super.isUnderflowing();
+        }
+        return balanceSize() < Page.pageSize / 4;
+    }
 
-        int targetPageNum = d.next();
-        boolean found = false;
+    // See BPlusNode.isSafeForPut.
+    @Override
+    boolean isSafeForPut() {
+        if (!this.metadata.isSlotted()) {
+            return super.isSafeForPut();
+        }
+        return balanceSize() + maxEntrySize() <= Page.pageSize;
+    }
 
-        while(c.hasNext() && !false){
-            DataBox currentKey = c.next();
-            if (key.compareTo(currentKey) < 0) {
-                found = true;
+    // See BPlusNode.isSafeForRemove.
+    @Override
+    boolean isSafeForRemove() {
+        if (!this.metadata.isSlotted()) {
+            return super.isSafeForRemove();
+        }
+        return balanceSize() - maxEntrySize() >= Page.pageSize / 4;
+    }
 
-            } else if (key.equals(currentKey)) {
-                found = true;
-                targetPageNum = d.next();
-            } else {
-                targetPageNum   = d.next();
+    // See BPlusNode.entriesToShift.
+    @Override
+    int entriesToShift(BPlusNode sibling, boolean toRight) {
+        if (!this.metadata.isSlotted()) {
+            return super.entriesToShift(sibling, toRight);
+        }
+        // Like LeafNode.entriesToShift. The keys that end up in sibling are the
+        // separator and all but one of the keys we shift, so ours stand in for
+        // them.
+        int[] prefixSizes = keyPrefixSizes();
+        int n = keys.size();
+        int size = balanceSize();
+        int siblingSize = ((InnerNode) sibling).balanceSize();
+        int count = 0;
+        while (count < n - 1) {
+            int shifted = toRight ? prefixSizes[n] - prefixSizes[n - count] : prefixSizes[count];
+            if (size - shifted <= siblingSize + shifted + maxEntrySize()) {
+                break;
             }
+            ++count;
         }
+        return count;
+    }
 
-        var nextNode = BPlusNode.fromBytes(transaction,this.metadata,targetPageNum);
+    // See BPlusNode.shiftFromRight.
+    @Override
+    DataBox shiftFromRight(BPlusNode right, DataBox separator, int count) {
+        InnerNode r = (InnerNode) right;
+        keys.add(separator);
+        keys.addAll(r.keys.subList(0, count - 1));
+        DataBox newSeparator = r.keys.get(count - 1);
+        r.keys.subList(0, count).clear();
+        children.addAll(r.children.subList(0, count));
+        r.children.subList(0, count).clear();
+        if (counts != null) {
+            counts.addAll(r.counts.subList(0, count));
+            r.counts.subList(0, count).clear();
+            countsChanged();
+            r.countsChanged();
+        }
+        if (buffer != null) {
+            buffer.putAll(r.takeBuffered(null, newSeparator));
+        }
+        return newSeparator;
+    }
 
+    // See BPlusNode.shiftToRight.
+    @Override
+    DataBox shiftToRight(BPlusNode right, DataBox separator, int count) {
+        InnerNode r = (InnerNode) right;
+        int from = keys.size() - count;
+        r.keys.add(0, separator);
+        r.keys.addAll(0, keys.subList(from + 1, keys.size()));
+        DataBox newSeparator = keys.get(from);
+        keys.subList(from, keys.size()).clear();
+        int childFrom = children.size() - count;
+        r.children.addAll(0, children.subList(childFrom, children.size()));
+        children.subList(childFrom, children.size()).clear();
+        if (counts != null) {
+            r.counts.addAll(0, counts.subList(childFrom, counts.size()));
+            counts.subList(childFrom, counts.size()).clear();
+            countsChanged();
+            r.countsChanged();
+        }
+        if (buffer != null) {
+            r.buffer.putAll(takeBuffered(newSeparator, null));
+        }
+        return newSeparator;
+    }
 
+    // See BPlusNode.fitsMergedWith.
+    @Override
+    boolean fitsMergedWith(BPlusNode right, DataBox separator) {
+        InnerNode r = (InnerNode) right;
+        if (!this.metadata.isSlotted()) {
+            return keys.size() + 1 + r.keys.size() <= 2 * this.metadata.getOrder();
+        }
+        return balanceSize() + r.balanceSize() - (1 + 2 * Integer.BYTES + Short.BYTES)
+               + SlottedKeys.entrySize(separator, Integer.BYTES) <= Page.pageSize;
+    }
 
-        var overFlowFlag = nextNode.put(transaction, key, rid);
-        if (overFlowFlag.isEmpty()) {
-            sync(transaction);
-            return Optional.empty();
+    // See BPlusNode.mergeRight.
+    @Override
+    void mergeRight(BaseTransaction transaction, BPlusNode right, DataBox separator) {
+        InnerNode r = (InnerNode) right;
+        metadata.getMetrics().countMerge();
+        keys.add(separator);
+        keys.addAll(r.keys);
+        children.addAll(r.children);
+        if (counts != null) {
+            counts.addAll(r.counts);
+            countsChanged();
+        }
+        if (buffer != null) {
+            buffer.putAll(r.buffer);
+        }
+    }
+
+    /**
+     * Fixes up our underflowing child `child` at index `index` using its left
+     * sibling (or its right sibling if it is our leftmost child). If the
+     * sibling has more than d keys, entries are shifted over until both have
+     * about the same number. Otherwise the two are merged into the left one, the
+     * right one's page is freed and its separator is removed from this node,
+     * which may leave this node underflowing in turn.
+     */
+    private void rebalanceChild(BaseTransaction transaction, int index, BPlusNode child) {
+        if (children.size() < 2) {
+            return;
+        }
+        int leftIndex = index > 0 ? index - 1 : index;
+        int siblingIndex = index > 0 ? index - 1 : index + 1;
+
+        // We hold the latches of this node and of child, but not of the sibling.
+        // Latching it could deadlock with a scan crabbing from left to right, so
+        // we only try; if it is busy, child is left underflowing until the tree
+        // repairs it once our caller has released its latches (see
+        // BPlusTree.repairUnderflow).
+        Lock siblingLatch = this.metadata.getLatch(children.get(siblingIndex)).writeLock();
+        if (!siblingLatch.tryLock()) {
+            this.metadata.deferRebalance();
+            return;
+        }
+        try {
+            BPlusNode sibling = getChild(transaction, siblingIndex);
+            boolean changed = index > 0 ? rebalancePair(transaction, leftIndex, sibling, child, child)
+                                        : rebalancePair(transaction, leftIndex, child, sibling, child);
+            if (changed) {
+                sync(transaction);
+            }
+        } finally {
+            siblingLatch.unlock();
+        }
+    }
+
+    /**
+     * Like rebalanceChild, but waits for the latches of our child at index
+     * `index` and of its sibling instead of only trying, and returns whether
+     * the child was rebalanced. The caller must hold our write latch and no
+     * latch below us, so that the two latches can be taken from left to right,
+     * as scans take them, without holding anything a scan or a writer in the
+     * sibling's subtree may be waiting for.
+     */
+    boolean repairChild(BaseTransaction transaction, int index) {
+        if (!rebalanceWaiting(transaction, index)) {
+            return false;
+        }
+        sync(transaction);
+        return true;
+    }
+
+    /** Like repairChild, but leaves this node to be synced by the caller. */
+    private boolean rebalanceWaiting(BaseTransaction transaction, int index) {
+        if (children.size() < 2) {
+            return false;
+        }
+        int leftIndex = index > 0 ? index - 1 : index;
+        Lock leftLatch = this.metadata.getLatch(children.get(leftIndex)).writeLock();
+        Lock rightLatch = this.metadata.getLatch(children.get(leftIndex + 1)).writeLock();
+        leftLatch.lock();
+        try {
+            rightLatch.lock();
+            try {
+                BPlusNode left = getChild(transaction, leftIndex);
+                BPlusNode right = getChild(transaction, leftIndex + 1);
+                BPlusNode child = index == leftIndex ? left : right;
+                return child.isUnderflowing() && rebalancePair(transaction, leftIndex, left, right, child);
+            } finally {
+                rightLatch.unlock();
+            }
+        } finally {
+            leftLatch.unlock();
+        }
+    }
+
+    /**
+     * Rebalances our adjacent children `left` and `right` at indexes leftIndex
+     * and leftIndex + 1, one of which is the underflowing `child`, and returns
+     * whether anything changed. The children are synced, but this node is not.
+     */
+    private boolean rebalancePair(BaseTransaction transaction, int leftIndex, BPlusNode left, BPlusNode right,
+                                  BPlusNode child) {
+        BPlusNode sibling = left == child ? right : left;
+        DataBox separator = keys.get(leftIndex);
+
+        if (sibling.isSafeForRemove() && this.metadata.isSlotted()) {
+            if (shiftFitting(leftIndex, left, right, child)) {
+                refreshCount(leftIndex, left);
+                refreshCount(leftIndex + 1, right);
+                syncChild(transaction, leftIndex + 1, right);
+                syncChild(transaction, leftIndex, left);
+                return true;
+            }
+            // Either the two have too few entries between them for both to
+            // fill a quarter of a page, or every separator they could be
+            // shifted to is too long for our page. Either way they are merged
+            // if they fit on one page. If not, which takes a sibling of over
+            // three quarters of a page with none but long separators, child is
+            // left underflowing until a remove that reaches it finds room.
+            if (!left.fitsMergedWith(right, separator)) {
+                return false;
+            }
+        } else if (sibling.isSafeForRemove()) {
+            int count = sibling.entriesToShift(child, sibling == left);
+            if (count == 0) {
+                return false;
+            }
+            separator = sibling == left ? left.shiftToRight(right, separator, count)
+                                        : left.shiftFromRight(right, separator, count);
+            keys.set(leftIndex, separator);
+            if (!child.isUnderflowing()) {
+                refreshCount(leftIndex, left);
+                refreshCount(leftIndex + 1, right);
+                syncChild(transaction, leftIndex + 1, right);
+                syncChild(transaction, leftIndex, left);
+                return true;
+            }
+            // A batch of removes may leave the two too few entries between them
+            // for both to hold d, in which case they are merged after all.
+        }
+        left.mergeRight(transaction, right, separator);
+        keys.remove(leftIndex);
+        children.remove(leftIndex + 1);
+        if (counts != null) {
+            counts.remove(leftIndex + 1);
+            countsChanged();
+        }
+        refreshCount(leftIndex, left);
+        syncChild(transaction, leftIndex, left);
+        this.metadata.freePage(transaction, right.getPage().getPageNum());
+        return true;
+    }
+
+    /**
+     * With slotted pages, shifts entries between our children `left` and
+     * `right` at indexes leftIndex and leftIndex + 1, one of which is the
+     * underflowing `child`, so that neither of them underflows and their new
+     * separator still fits on our page, and returns whether it did; otherwise
+     * nothing is changed. The separator may be longer than the old one, and
+     * every count of entries shifted gives another one, so if the even shift
+     * (see entriesToShift) does not fit, fewer and then more entries are
+     * tried. Neither the children nor this node is synced.
+     */
+    private boolean shiftFitting(int leftIndex, BPlusNode left, BPlusNode right, BPlusNode child) {
+        boolean toRight = child == right;
+        BPlusNode sibling = toRight ? left : right;
+        DataBox separator = keys.get(leftIndex);
+        int even = sibling.entriesToShift(child, toRight);
+        int n = sibling.size();
+        for (int i = 1; i < n; ++i) {
+            // even, even - 1, ..., 1, then even + 1, ..., n - 1.
+            int count = i <= even ? even + 1 - i : i;
+            DataBox shifted = toRight ? left.shiftToRight(right, separator, count)
+                                      : left.shiftFromRight(right, separator, count);
+            keys.set(leftIndex, shifted);
+            if (!isOverflowing() && !left.isUnderflowing() && !right.isUnderflowing()) {
+                return true;
+            }
+            // Shift the entries back and put the old separator back.
+            if (toRight) {
+                left.shiftFromRight(right, shifted, count);
+            } else {
+                left.shiftToRight(right, shifted, count);
+            }
+            keys.set(leftIndex, separator);
+        }
+        return false;
+    }
+
+    /**
+     * Syncs our child `child` at index `index` after rebalancing. The buffer of
+     * an inner child may have taken in more messages than fit on its page along
+     * with the children it got (see BPlusTreeMetadata.isBuffered), in which
+     * case it is flushed instead, and the parts it is split into are added to
+     * this node.
+     */
+    private void syncChild(BaseTransaction transaction, int index, BPlusNode child) {
+        if (child instanceof InnerNode inner && inner.buffer != null
+                && inner.buffer.size() > metadata.getBufferCapacity()) {
+            addSplits(transaction, index, inner.flush(transaction, false));
         } else {
-            var overFlowkey = overFlowFlag.get().getFirst();
-            var newPageNum = overFlowFlag.get().getSecond();
+            child.sync(transaction);
+        }
+    }
 
-            keys.add(overFlowkey);
-            Collections.sort(keys);
-            children.add(keys.indexOf(overFlowkey)+1,newPageNum );
+    // Subtree Counts ////////////////////////////////////////////////////////////
+    // See BPlusNode.subtreeSize.
+    @Override
+    int subtreeSize() {
+        return countBefore(children.size());
+    }
 
+    /**
+     * Returns the number of pairs in the subtrees of our first `index` children.
+     * The prefix sums of the counts are computed once, on the first call after
+     * they change, so a descent pays for them at most once per node.
+     */
+    int countBefore(int index) {
+        return countPrefix()[index];
+    }
 
-            if (keys.size()-1  < 2 * this.metadata.getOrder()){
-                sync(transaction);
-                return Optional.empty();
+    /** Returns the number of pairs in the subtree of our child at index `index`. */
+    int countAt(int index) {
+        return counts.get(index);
+    }
+
+    /**
+     * Returns the index of the child to descend into to count the pairs with a
+     * key less than `key` (or less than or equal to `key`, if `inclusive`): all
+     * pairs in the children to its left are counted, and none of the pairs in
+     * the children to its right.
+     */
+    int boundaryChildIndex(DataBox key, boolean inclusive) {
+        return inclusive ? childIndexAfter(key) : childIndex(key);
+    }
+
+    /**
+     * Returns the index of the child whose subtree holds the pair at position
+     * `rank` (starting at 0) of our subtree, which must be less than
+     * subtreeSize().
+     */
+    int childIndexOfRank(int rank) {
+        // The first child whose prefix sum, including itself, exceeds rank.
+        int[] prefix = countPrefix();
+        int lo = 0;
+        int hi = children.size() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (prefix[mid + 1] > rank) {
+                hi = mid;
             } else {
-                var rightNodeKeys = keys.subList(this.metadata.getOrder()+1,keys.size());
-                var rightNodeChildren = children.subList(this.metadata.getOrder()+1,children.size());
+                lo = mid + 1;
+            }
+        }
+        return lo;
+    }
 
-                var sendUpKey = keys.get(this.metadata.getOrder());
+    /** Returns countPrefix, computing it first if counts changed since. */
+    private int[] countPrefix() {
+        if (countPrefix == null) {
+            int[] prefix = new int[counts.size() + 1];
+            for (int i = 0; i < counts.size(); ++i) {
+                prefix[i + 1] = prefix[i] + counts.get(i);
+            }
+            countPrefix = prefix;
+        }
+        return countPrefix;
+    }
 
-                var newInnerNode = new InnerNode(this.metadata,rightNodeKeys, rightNodeChildren,transaction);
-                var newNodePageNum = newInnerNode.page.getPageNum();
+    /** Drops countPrefix; to be called after every change to counts. */
+    private void countsChanged() {
+        countPrefix = null;
+    }
 
-                keys = keys.subList(0,this.metadata.getOrder());
-                children = children.subList(0,this.metadata.getOrder()+1);
+    /** Sets the count of our child at index `index` to that of `child`. */
+    private void refreshCount(int index, BPlusNode child) {
+        if (counts != null) {
+            counts.set(index, child.subtreeSize());
+            countsChanged();
+        }
+    }
 
-                sync(transaction);
-                return Optional.of(new Pair(sendUpKey,newNodePageNum));
+    /** Returns a copy of counts[from, to), or null if we keep no counts. */
+    private List<Integer> copyOfCounts(int from, int to) {
+        return counts == null ? null : new ArrayList<>(counts.subList(from, to));
+    }
+
+    // Write Buffers /////////////////////////////////////////////////////////////
+    /**
+     * Returns the buffered message for `key`: the record id it was last put
+     * with, Optional.empty() if it was last removed, or null if there is no
+     * message for it in this node.
+     */
+    Optional<RecordId> getBuffered(DataBox key) {
+        return buffer.get(key);
+    }
+
+    /**
+     * Buffers a put of `key` (if `rid` is present) or a remove of it (if not),
+     * replacing any older message for `key`. This node is not synced; see
+     * flush.
+     */
+    void addBuffered(DataBox key, Optional<RecordId> rid) {
+        buffer.put(key, rid);
+    }
+
+    int numBuffered() {
+        return buffer.size();
+    }
+
+    /**
+     * Adds the messages of this node for keys between `lowerBound` and
+     * `upperBound` (both inclusive, null for no bound) to `messages`, unless
+     * `messages` already has one for the key. Visiting nodes from the root
+     * down thus leaves the newest message for every key.
+     */
+    void collectBuffered(DataBox lowerBound, DataBox upperBound,
+                         NavigableMap<DataBox, Optional<RecordId>> messages) {
+        collectBuffered(buffer, lowerBound, upperBound, messages);
+    }
+
+    /** Like collectBuffered, but for the messages of `buffer`. */
+    static void collectBuffered(NavigableMap<DataBox, Optional<RecordId>> buffer, DataBox lowerBound,
+                                DataBox upperBound, NavigableMap<DataBox, Optional<RecordId>> messages) {
+        NavigableMap<DataBox, Optional<RecordId>> range = buffer;
+        if (lowerBound != null) {
+            range = range.tailMap(lowerBound, true);
+        }
+        if (upperBound != null) {
+            range = range.headMap(upperBound, true);
+        }
+        for (var message : range.entrySet()) {
+            messages.putIfAbsent(message.getKey(), message.getValue());
+        }
+    }
+
+    /**
+     * Returns whether our child at index `index` may hold keys between
+     * `lowerBound` and `upperBound` (as in collectBuffered).
+     */
+    boolean childOverlaps(int index, DataBox lowerBound, DataBox upperBound) {
+        return (upperBound == null || index == 0 || keys.get(index - 1).compareTo(upperBound) <= 0)
+               && (lowerBound == null || index == keys.size() || keys.get(index).compareTo(lowerBound) > 0);
+    }
 
+    /**
+     * Flushes buffered messages down to our children until the buffer fits on
+     * the page again (or, if `all`, until it is empty, and the buffers of the
+     * whole subtree with it). Every round moves all the messages of the child
+     * that has the most of them in a single batch: into the buffer of an inner
+     * child, which may flush in turn, or into a leaf, which is written once.
+     *
+     * Children that split are added to this node, which is then split into as
+     * many parts as needed like in putAll, each part taking the messages of its
+     * range along. Before that, the children that removes left underflowing
+     * are rebalanced like in repairChild, which may wait for the latches of
+     * the siblings since we hold no latch below this node by then. Every node
+     * is synced. Returns the splits of this node, as putAll does.
+     */
+    List<Pair<DataBox, Integer>> flush(BaseTransaction transaction, boolean all) {
+        var underflowing = new HashSet<Integer>();
+        int capacity = all ? 0 : metadata.getBufferCapacity();
+        while (buffer.size() > capacity) {
+            int[] perChild = new int[children.size()];
+            int index = 0;
+            for (DataBox key : buffer.keySet()) {
+                int i = childIndex(key);
+                if (++perChild[i] > perChild[index]) {
+                    index = i;
+                }
+            }
+            flushChild(transaction, index, all, underflowing);
+        }
+        if (all) {
+            // Children that got no messages may still have some of their own.
+            for (int index = children.size() - 1; index >= 0; --index) {
+                flushChild(transaction, index, true, underflowing);
             }
+        }
+        // Right to left: merging child i into child i - 1 only removes child i,
+        // so the indexes still to visit stay valid.
+        for (int index = children.size() - 1; index >= 0 && !underflowing.isEmpty(); --index) {
+            if (underflowing.remove(children.get(index))) {
+                rebalanceWaiting(transaction, index);
+            }
+        }
+        return splitIntoParts(transaction);
+    }
 
+    /**
+     * Moves all our messages for the child at index `index` into it, and adds
+     * its page number to `underflowing` if that leaves it underflowing.
+     */
+    private void flushChild(BaseTransaction transaction, int index, boolean all, Set<Integer> underflowing) {
+        var messages = takeBuffered(index == 0 ? null : keys.get(index - 1),
+                                    index == keys.size() ? null : keys.get(index));
+        Lock childLatch = this.metadata.getLatch(children.get(index)).writeLock();
+        childLatch.lock();
+        try {
+            BPlusNode child = getChild(transaction, index);
+            List<Pair<DataBox, Integer>> splits;
+            if (child instanceof InnerNode inner) {
+                // Our messages are newer than any of the child's.
+                inner.buffer.putAll(messages);
+                splits = inner.flush(transaction, all);
+            } else if (!messages.isEmpty()) {
+                splits = ((LeafNode) child).applyBuffered(transaction, messages);
+            } else {
+                return;
+            }
+            if (child.isUnderflowing()) {
+                underflowing.add(children.get(index));
+            }
+            addSplits(transaction, index, splits);
+        } finally {
+            childLatch.unlock();
         }
     }
 
-    // See BPlusNode.bulkLoad
-    @Override
-    public Optional<Pair<DataBox, Integer>> bulkLoad(BaseTransaction transaction, Iterator<Pair<DataBox, RecordId>> data, float fillFactor)
-    throws BPlusTreeException {
-        throw new UnsupportedOperationException("Implement this.");
+    /**
+     * Removes and returns our messages for keys in [from, to), where null
+     * stands for no bound, or null if the tree has no write buffers.
+     */
+    private TreeMap<DataBox, Optional<RecordId>> takeBuffered(DataBox from, DataBox to) {
+        if (buffer == null) {
+            return null;
+        }
+        NavigableMap<DataBox, Optional<RecordId>> range = buffer;
+        if (from != null) {
+            range = range.tailMap(from, true);
+        }
+        if (to != null) {
+            range = range.headMap(to, false);
+        }
+        var taken = new TreeMap<>(range);
+        range.clear();
+        return taken;
     }
 
-    // See BPlusNode.remove.
-    @Override
-    public void remove(BaseTransaction transaction, DataBox key) {
-        var targetLeaf = this.get(transaction, key);
-        targetLeaf.remove(transaction,key);
+    // Helpers ///////////////////////////////////////////////////////////////////
+    /**
+     * Splits this node in half if it holds more than 2d keys. The left half
+     * keeps the first d keys, the right half gets the last d keys, and the
+     * middle key is returned to be pushed up into our parent together with the
+     * page number of the new right node. Either way this node is synced.
+     */
+    private Optional<Pair<DataBox, Integer>> splitIfOverflowing(BaseTransaction transaction) {
+        if (!isOverflowing()) {
+            sync(transaction);
+            return Optional.empty();
+        }
+
+        // With slotted pages, the key in the middle of the bytes moves up.
+        int d = this.metadata.isSlotted() ? byteMiddleIndex() : this.metadata.getOrder();
+        var rightNodeKeys = NodeLists.copyOfKeys(metadata.getKeySchema(), keys.subList(d + 1, keys.size()));
+        var rightNodeChildren = new ArrayList<>(children.subList(d + 1, children.size()));
+        var sendUpKey = keys.get(d);
+
+        var newInnerNode = new InnerNode(this.metadata, this.metadata.allocPage(transaction), rightNodeKeys,
+                                         rightNodeChildren, copyOfCounts(d + 1, children.size()),
+                                         takeBuffered(sendUpKey, null), transaction);
+        var newNodePageNum = newInnerNode.page.getPageNum();
+
+        keys = NodeLists.copyOfKeys(metadata.getKeySchema(), keys.subList(0, d));
+        counts = copyOfCounts(0, d + 1);
+        countsChanged();
+        children = new ArrayList<>(children.subList(0, d + 1));
+
         sync(transaction);
+        metadata.getMetrics().countInnerSplit();
+        return Optional.of(new Pair<>(sendUpKey, newNodePageNum));
+    }
+
+    /**
+     * Adds the (split_key, page_num) pairs returned by putAll on our child at
+     * index `index` to the right of that child. This node is not synced.
+     */
+    void addSplits(BaseTransaction transaction, int index, List<Pair<DataBox, Integer>> splits) {
+        for (int i = 0; i < splits.size(); ++i) {
+            insertChild(transaction, index + i, splits.get(i).getFirst(), splits.get(i).getSecond());
+        }
+    }
+
+    /**
+     * Inserts the key `key` at index `index` and the child on page `pageNum`
+     * right after it, i.e. at index + 1. This node is not synced.
+     */
+    private void insertChild(BaseTransaction transaction, int index, DataBox key, int pageNum) {
+        keys.add(index, key);
+        children.add(index + 1, pageNum);
+        if (counts != null) {
+            counts.add(index + 1, getChild(transaction, index + 1).subtreeSize());
+            countsChanged();
+        }
+    }
+
+    /**
+     * Like splitIfOverflowing, but splits this node into as many parts of at
+     * most 2d keys as needed, all with about the same number of children. This
+     * node keeps the first part. Returns the key moved up and the page number of
+     * every other part. With slotted pages, the parts are at most 3/4 of a page
+     * and about the same size in bytes instead.
+     */
+    List<Pair<DataBox, Integer>> splitIntoParts(BaseTransaction transaction) {
+        var splits = new ArrayList<Pair<DataBox, Integer>>();
+        if (!isOverflowing()) {
+            sync(transaction);
+            return splits;
+        }
+
+        // A part with children [from, to) gets the keys between them, [from,
+        // to - 1), and key from - 1 is moved up.
+        int n = children.size();
+        int[] starts = partStarts();
+        int numParts = starts.length - 1;
+        for (int part = 1; part < numParts; ++part) {
+            int from = starts[part];
+            int to = starts[part + 1];
+            var partKeys = NodeLists.copyOfKeys(metadata.getKeySchema(), keys.subList(from, to - 1));
+            var partChildren = new ArrayList<>(children.subList(from, to));
+            var partNode = new InnerNode(this.metadata, this.metadata.allocPage(transaction), partKeys,
+                                         partChildren, copyOfCounts(from, to),
+                                         takeBuffered(keys.get(from - 1), to == n ? null : keys.get(to - 1)),
+                                         transaction);
+            splits.add(new Pair<>(keys.get(from - 1), partNode.page.getPageNum()));
+            metadata.getMetrics().countInnerSplit();
+        }
+
+        keys = NodeLists.copyOfKeys(metadata.getKeySchema(), keys.subList(0, starts[1] - 1));
+        counts = copyOfCounts(0, starts[1]);
+        countsChanged();
+        children = new ArrayList<>(children.subList(0, starts[1]));
+        sync(transaction);
+        return splits;
+    }
+
+    /**
+     * Returns the index of the first child of every part that splitIntoParts
+     * cuts this node into, followed by the number of children.
+     */
+    private int[] partStarts() {
+        int n = children.size();
+        if (!this.metadata.isSlotted()) {
+            int d = this.metadata.getOrder();
+            int numParts = (n + 2 * d) / (2 * d + 1);
+            int[] starts = new int[numParts + 1];
+            for (int part = 0; part <= numParts; ++part) {
+                starts[part] = part * n / numParts;
+            }
+            return starts;
+        }
+
+        // Child i starts a part once the keys before it hold the part's share of
+        // the bytes. Every part gets at least two children, so that it keeps at
+        // least one key.
+        int[] prefixSizes = keyPrefixSizes();
+        int total = prefixSizes[keys.size()];
+        int target = 3 * Page.pageSize / 4;
+        int numParts = Math.max(1, Math.min(n / 2, (balanceSize() + target - 1) / target));
+        int[] starts = new int[numParts + 1];
+        int i = 0;
+        for (int part = 1; part < numParts; ++part) {
+            long share = (long) part * total / numParts;
+            while (i < keys.size() && prefixSizes[i] < share) {
+                ++i;
+            }
+            starts[part] = Math.min(Math.max(i, starts[part - 1] + 2), n - 2 * (numParts - part));
+        }
+        starts[numParts] = n;
+        return starts;
+    }
+
+    /**
+     * Returns the index of the key that splitIfOverflowing moves up with slotted
+     * pages: the one in the middle of the bytes of our keys, leaving at least
+     * one key on either side if there are enough.
+     */
+    private int byteMiddleIndex() {
+        int[] prefixSizes = keyPrefixSizes();
+        int total = prefixSizes[keys.size()];
+        int middle = 0;
+        while (middle < keys.size() - 1 && prefixSizes[middle + 1] < total / 2) {
+            ++middle;
+        }
+        if (keys.size() < 3) {
+            return keys.size() / 2;
+        }
+        return Math.min(Math.max(middle, 1), keys.size() - 2);
+    }
+
+    /**
+     * Returns the number of bytes (see SlottedKeys.entrySize) of the entries of
+     * our first i keys, for every i from 0 to keys.size().
+     */
+    private int[] keyPrefixSizes() {
+        int[] sizes = new int[keys.size() + 1];
+        for (int i = 0; i < keys.size(); ++i) {
+            sizes[i + 1] = sizes[i] + SlottedKeys.entrySize(keys.get(i), Integer.BYTES);
+        }
+        return sizes;
+    }
+
+    /** Returns whether this node holds too many keys to fit on its page. */
+    private boolean isOverflowing() {
+        if (!this.metadata.isSlotted()) {
+            return keys.size() > 2 * this.metadata.getOrder();
+        }
+        return serializedSize() > Page.pageSize;
+    }
+
+    /**
+     * Returns the number of bytes of the serialization of this node with a
+     * slotted page: isLeaf, the number of keys, the first child and the keys.
+     */
+    private int serializedSize() {
+        return 1 + 2 * Integer.BYTES + SlottedKeys.size(keys, Integer.BYTES);
+    }
+
+    /**
+     * Like serializedSize, but without the head prefix taken out (see
+     * SlottedKeys.fullSize). Splits, merges and shifts are decided by it.
+     */
+    private int balanceSize() {
+        return 1 + 2 * Integer.BYTES + SlottedKeys.fullSize(keys, Integer.BYTES);
+    }
+
+    private int maxEntrySize() {
+        return SlottedKeys.maxEntrySize(this.metadata.getKeySchema(), Integer.BYTES);
+    }
+
+    /**
+     * Returns the number of bytes of an inner node with slotted pages and the
+     * keys `keys`, without the head prefix taken out. BPlusTree's bulk load
+     * fills inner nodes by it.
+     */
+    static int slottedSize(List<DataBox> keys) {
+        return 1 + 2 * Integer.BYTES + SlottedKeys.fullSize(keys, Integer.BYTES);
+    }
+
+    /**
+     * Splits the sorted `items` into runs that belong to the same child. Returns
+     * a {child index, from, to} triple for every run items[from, to), in order.
+     */
+    private <T> List<int[]> groupByChild(List<T> items, ToIntFunction<T> indexOf) {
+        var groups = new ArrayList<int[]>();
+        int from = 0;
+        while (from < items.size()) {
+            int index = indexOf.applyAsInt(items.get(from));
+            int to = from + 1;
+            while (to < items.size() && indexOf.applyAsInt(items.get(to)) == index) {
+                ++to;
+            }
+            groups.add(new int[] {index, from, to});
+            from = to;
+        }
+        return groups;
     }
 
-    // Helpers ///////////////////////////////////////////////////////////////////
     @Override
     public Page getPage() {
         return page;
     }
 
+    // See BPlusNode.copy.
+    @Override
+    InnerNode copy() {
+        return new InnerNode(this);
+    }
+
+    // See BPlusNode.prepareForSharing.
+    @Override
+    void prepareForSharing() {
+        if (counts != null) {
+            countPrefix();
+        }
+    }
+
+    @Override
+    BPlusTreeMetadata getMetadata() {
+        return metadata;
+    }
+
+    /** Returns the page number of the child whose subtree may contain `key`. */
+    int getChildPageNum(DataBox key) {
+        return children.get(childIndex(key));
+    }
+
+    /**
+     * Returns the index of the child whose subtree may contain `key`, i.e. the
+     * number of keys in this node that are less than or equal to `key`.
+     *
+     * In a tree that allows duplicate keys, the entries of a key may span
+     * several children: the child at index i then holds keys between keys[i - 1]
+     * and keys[i], both inclusive. The leftmost child that may contain `key` is
+     * returned, i.e. the number of keys that are strictly less than `key`, so
+     * that scans starting there see all of its entries.
+     */
+    int childIndex(DataBox key) {
+        if (!this.metadata.isUnique()) {
+            int lo = 0;
+            int hi = keys.size();
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (NodeLists.compare(keys, mid, key) < 0) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+        return childIndexAfter(key);
+    }
+
+    /**
+     * Returns the index of the child to put the pair (key, rid) into. With
+     * unique keys that is childIndex(key). With duplicate keys, the pairs of key
+     * may span several children, in which they are ordered by record id (see
+     * PostingLists.compare), so the pair goes into the last of them whose first
+     * pair is not greater than it. Only the children to the right of
+     * childIndex(key) are read for that (see firstPair), so a caller that has
+     * latched the path to key can call this as long as the pair goes there.
+     */
+    int putChildIndex(BaseTransaction transaction, DataBox key, RecordId rid) {
+        int lo = childIndex(key);
+        if (this.metadata.isUnique()) {
+            return lo;
+        }
+        int hi = childIndexAfter(key);
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            Pair<DataBox, RecordId> first = firstPair(transaction, children.get(mid));
+            if (PostingLists.compare(first.getFirst(), first.getSecond(), key, rid) <= 0) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Returns the first pair in the subtree on page `pageNum`, read by crabbing
+     * down its leftmost path with read latches.
+     */
+    private Pair<DataBox, RecordId> firstPair(BaseTransaction transaction, int pageNum) {
+        Lock latch = this.metadata.getLatch(pageNum).readLock();
+        latch.lock();
+        try {
+            while (true) {
+                BPlusNode node = BPlusNode.fromBytes(transaction, this.metadata, pageNum);
+                if (node instanceof LeafNode leaf) {
+                    return new Pair<>(leaf.getKeys().get(0), leaf.getRids().get(0));
+                }
+                pageNum = ((InnerNode) node).children.get(0);
+                Lock next = this.metadata.getLatch(pageNum).readLock();
+                next.lock();
+                latch.unlock();
+                latch = next;
+            }
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /** Returns the number of keys in this node that are less than or equal to `key`. */
+    private int childIndexAfter(DataBox key) {
+        int lo = 0;
+        int hi = keys.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (NodeLists.compare(keys, mid, key) <= 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
     private BPlusNode getChild(BaseTransaction transaction, int i) {
         int pageNum = children.get(i);
         return BPlusNode.fromBytes(transaction, metadata, pageNum);
@@ -206,6 +1201,14 @@ class InnerNode extends BPlusNode {
      * with 2d keys will fit on a single page of size `pageSizeInBytes`.
      */
     public static int maxOrder(int pageSizeInBytes, Type keySchema) {
+        return maxOrder(pageSizeInBytes, keySchema, false);
+    }
+
+    /**
+     * Like maxOrder(pageSizeInBytes, keySchema), but if `counted` each child
+     * also takes 4 bytes for its subtree count (see toBytes).
+     */
+    public static int maxOrder(int pageSizeInBytes, Type keySchema, boolean counted) {
         // A leaf node with k entries takes up the following number of bytes:
         //
         //   1 + 4 + (k * keySize) + ((k + 1) * 4)
@@ -227,8 +1230,12 @@ class InnerNode extends BPlusNode {
         //   k = (pageSizeInBytes - 9) / (keySize + 4)
         //
         // The order d is half of k.
+        //
+        // With subtree counts, every child pointer is followed by 4 more bytes,
+        // so k = (pageSizeInBytes - 13) / (keySize + 8).
         int keySize = keySchema.getSizeInBytes();
-        int k = (pageSizeInBytes - 9) / (keySize + 4);
+        int k = counted ? (pageSizeInBytes - 13) / (keySize + 8)
+                        : (pageSizeInBytes - 9) / (keySize + 4);
         return k / 2;
     }
 
@@ -325,13 +1332,37 @@ class InnerNode extends BPlusNode {
         //    3     1     7
         //
         // where 3, 1, 7 are page numbers.
+        //
+        // If the tree keeps subtree counts (see BPlusTreeMetadata.isCounted), we
+        // then write the number of pairs in the subtree of every child (4 bytes
+        // each), in the same order as the children. They come last so that
+        // childPageNum can read the keys and children the same way either way.
+        //
+        // If the tree has write buffers (see BPlusTreeMetadata.isBuffered), we
+        // then write the number of buffered messages (4 bytes) followed by the
+        // messages in key order, each as whether it is a put (1 byte), its key
+        // and its record id (zeros for a remove).
+        //
+        // With slotted pages (see BPlusTreeMetadata.isSlotted), d. is written as
+        // described in SlottedKeys instead, with the child after every key as
+        // its value.
+        if (metadata.isSlotted()) {
+            ByteBuffer buf = ByteBuffer.allocate(serializedSize());
+            buf.put((byte) 0);
+            buf.putInt(keys.size());
+            buf.putInt(children.get(0));
+            SlottedKeys.write(buf, keys, i -> buf.putInt(children.get(i + 1)));
+            return buf.array();
+        }
 
         // All sizes are in bytes.
         int isLeafSize = 1;
         int numKeysSize = Integer.BYTES;
         int keysSize = metadata.getKeySchema().getSizeInBytes() * keys.size();
         int childrenSize = Integer.BYTES * children.size();
-        int size = isLeafSize + numKeysSize + keysSize + childrenSize;
+        int countsSize = counts == null ? 0 : Integer.BYTES * counts.size();
+        int bufferSize = buffer == null ? 0 : Integer.BYTES + metadata.getBufferedMessageSize() * buffer.size();
+        int size = isLeafSize + numKeysSize + keysSize + childrenSize + countsSize + bufferSize;
 
         ByteBuffer buf = ByteBuffer.allocate(size);
         buf.put((byte) 0);
@@ -342,37 +1373,155 @@ class InnerNode extends BPlusNode {
             buf.put(keys.get(i).toBytes());
             buf.putInt(children.get(i + 1));
         }
+        if (counts != null) {
+            for (int count : counts) {
+                buf.putInt(count);
+            }
+        }
+        if (buffer != null) {
+            buf.putInt(buffer.size());
+            for (var message : buffer.entrySet()) {
+                Optional<RecordId> rid = message.getValue();
+                buf.put((byte) (rid.isPresent() ? 1 : 0));
+                buf.put(message.getKey().toBytes());
+                buf.putInt(rid.map(RecordId::getPageNum).orElse(0));
+                buf.putShort(rid.map(RecordId::getEntryNum).orElse((short) 0));
+            }
+        }
         return buf.array();
     }
 
+    /**
+     * Returns the page number of the child whose subtree may contain `key`,
+     * reading it straight out of `buf`, the serialization of an inner node (see
+     * toBytes). The keys are binary searched in place and only the one child
+     * pointer that is needed is decoded. Like LeafNode.lookup, this is only used
+     * for trees with unique keys.
+     */
+    static int childPageNum(Buffer buf, BPlusTreeMetadata metadata, DataBox key) {
+        if (metadata.isSlotted()) {
+            int keysOffset = 1 + 2 * Integer.BYTES;
+            int index = SlottedKeys.countLessThan(buf, keysOffset, buf.getInt(1), key, false);
+            return index == 0 ? buf.getInt(1 + Integer.BYTES)
+                              : buf.getInt(SlottedKeys.valueOffset(buf, keysOffset, index - 1));
+        }
+        Type keySchema = metadata.getKeySchema();
+        int keySize = keySchema.getSizeInBytes();
+        int stride = keySize + Integer.BYTES;
+
+        // 1 byte for isLeaf and 4 for the number of keys, then the first child.
+        int numKeys = buf.getInt(1);
+        int firstChildOffset = 1 + Integer.BYTES;
+        int firstKeyOffset = firstChildOffset + Integer.BYTES;
+
+        int index = SerializedKeys.countLessThan(buf, firstKeyOffset, stride, numKeys, keySchema, key, false);
+        return buf.getInt(firstChildOffset + index * stride);
+    }
+
+    /**
+     * Like getBuffered, but reads the message for `key` straight out of `buf`,
+     * the serialization of an inner node of a tree with write buffers (see
+     * toBytes), binary searching the messages in place like childPageNum does
+     * the keys. Such trees have neither slotted pages nor subtree counts.
+     */
+    static Optional<RecordId> bufferedMessage(Buffer buf, BPlusTreeMetadata metadata, DataBox key) {
+        Type keySchema = metadata.getKeySchema();
+        int keySize = keySchema.getSizeInBytes();
+        int stride = metadata.getBufferedMessageSize();
+
+        // Every message starts with whether it is a put (1 byte), followed by
+        // its key.
+        int bufferOffset = bufferOffset(buf, metadata);
+        int numMessages = buf.getInt(bufferOffset);
+        int firstKeyOffset = bufferOffset + Integer.BYTES + 1;
+
+        int index = SerializedKeys.countLessThan(buf, firstKeyOffset, stride, numMessages, keySchema, key, true);
+        int keyOffset = firstKeyOffset + index * stride;
+        if (index == numMessages || SerializedKeys.compare(buf, keyOffset, keySchema, key) != 0) {
+            return null;
+        }
+        if (buf.get(keyOffset - 1) == 0) {
+            return Optional.empty();
+        }
+        int ridOffset = keyOffset + keySize;
+        return Optional.of(new RecordId(buf.getInt(ridOffset), buf.getShort(ridOffset + Integer.BYTES)));
+    }
+
+    /**
+     * Like numBuffered, but reads the number of messages straight out of
+     * `buf`, like bufferedMessage.
+     */
+    static int numBuffered(Buffer buf, BPlusTreeMetadata metadata) {
+        return buf.getInt(bufferOffset(buf, metadata));
+    }
+
+    /**
+     * Returns the offset of the buffer in `buf`, the serialization of an inner
+     * node of a tree with write buffers: the messages follow the keys and
+     * children.
+     */
+    private static int bufferOffset(Buffer buf, BPlusTreeMetadata metadata) {
+        int keySize = metadata.getKeySchema().getSizeInBytes();
+        return 1 + 2 * Integer.BYTES + buf.getInt(1) * (keySize + Integer.BYTES);
+    }
+
     /**
      * InnerNode.fromBytes(t, meta, p) loads a InnerNode from page p of
-     * meta.getAllocator().
-     *
-     *   private static InnerNode fromBytes(BaseTransaction transaction, InnerNode innerNode, BPlusTreeMetadata metadata, Integer targetLeafPageNum) {
-     *     }
+     * meta.getAllocator(), or copies it from the tree's node cache.
      */
     public static InnerNode fromBytes(BaseTransaction transaction, BPlusTreeMetadata metadata,
                                       int pageNum) {
-        Page page = metadata.getAllocator().fetchPage(transaction, pageNum);
-        Buffer buf = page.getBuffer(transaction);
+        BPlusNode cached = metadata.getNodeCache().get(pageNum);
+        if (cached instanceof InnerNode inner) {
+            return inner.copy();
+        }
+        return decode(transaction, metadata, pageNum);
+    }
 
-        assert(buf.get() == (byte) 0);
+    /** Decodes the InnerNode on page p, bypassing the node cache. */
+    static InnerNode decode(BaseTransaction transaction, BPlusTreeMetadata metadata, int pageNum) {
+        Page page = metadata.fetchPage(transaction, pageNum);
+        Buffer buf = page.getBuffer(transaction);
 
-        var keys = new ArrayList<DataBox>();
-        var children = new ArrayList<Integer>();
+        checkPageType(pageNum, buf.get(), false);
 
         int k = buf.getInt();
+        var keys = NodeLists.newKeys(metadata.getKeySchema(), k);
+        var children = new ArrayList<Integer>(k + 1);
 
         children.add(buf.getInt());
-        for (int i = 0; i < k; ++i) {
-            keys.add(DataBox.fromBytes(buf, metadata.getKeySchema()));
-            children.add(buf.getInt());
+        if (metadata.isSlotted()) {
+            SlottedKeys.read(buf, metadata.getKeySchema(), k, keys, i -> children.add(buf.getInt()));
+        } else {
+            for (int i = 0; i < k; ++i) {
+                keys.add(DataBox.fromBytes(buf, metadata.getKeySchema()));
+                children.add(buf.getInt());
+            }
         }
 
         assert(children.size() == k + 1);
 
-        return new InnerNode(metadata, pageNum, keys, children, transaction);
+        List<Integer> counts = null;
+        if (metadata.isCounted()) {
+            counts = new ArrayList<>(k + 1);
+            for (int i = 0; i <= k; ++i) {
+                counts.add(buf.getInt());
+            }
+        }
+
+        TreeMap<DataBox, Optional<RecordId>> buffer = null;
+        if (metadata.isBuffered()) {
+            buffer = new TreeMap<>();
+            int numMessages = buf.getInt();
+            for (int i = 0; i < numMessages; ++i) {
+                boolean isPut = buf.get() == 1;
+                DataBox key = DataBox.fromBytes(buf, metadata.getKeySchema());
+                var rid = new RecordId(buf.getInt(), buf.getShort());
+                buffer.put(key, isPut ? Optional.of(rid) : Optional.empty());
+            }
+        }
+
+        return new InnerNode(metadata, pageNum, keys, children, counts, buffer, transaction);
     }
 
     // Builtins //////////////////////////////////////////////////////////////////
@@ -387,11 +1536,13 @@ class InnerNode extends BPlusNode {
         InnerNode n = (InnerNode) o;
         return page.getPageNum() == n.page.getPageNum() &&
                keys.equals(n.keys) &&
-               children.equals(n.children);
+               children.equals(n.children) &&
+               Objects.equals(counts, n.counts) &&
+               Objects.equals(buffer, n.buffer);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(page.getPageNum(), keys, children);
+        return Objects.hash(page.getPageNum(), keys, children, counts, buffer);
     }
 }
@@ -0,0 +1,122 @@
+package edu.umd.cs424.database.index;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.RandomAccess;
+
+import edu.umd.cs424.database.databox.DataBox;
+import edu.umd.cs424.database.databox.IntDataBox;
+
+/**
+ * A list of integer keys backed by an int[]. Nodes of trees with integer keys
+ * keep their keys in an IntKeyList instead of an ArrayList of IntDataBoxes (see
+ * NodeLists), so a decoded node is a couple of arrays rather than one object
+ * per key, and searches compare ints directly (see compareAt).
+ *
+ * get returns a fresh IntDataBox on every call, so hot paths should use getInt
+ * or compareAt instead.
+ */
+final class IntKeyList extends AbstractList<DataBox> implements RandomAccess {
+    private int[] values;
+    private int size;
+
+    IntKeyList(int capacity) {
+        this.values = new int[Math.max(capacity, 4)];
+        this.size = 0;
+    }
+
+    IntKeyList(Collection<? extends DataBox> keys) {
+        this(keys.size());
+        for (DataBox key : keys) {
+            values[size++] = key.getInt();
+        }
+    }
+
+    int getInt(int i) {
+        checkIndex(i, size);
+        return values[i];
+    }
+
+    /** Compares the i-th key with `key`, like get(i).compareTo(key). */
+    int compareAt(int i, DataBox key) {
+        checkIndex(i, size);
+        return Integer.compare(values[i], key.getInt());
+    }
+
+    /** Appends the key `value`. */
+    void addInt(int value) {
+        ensureCapacity(size + 1);
+        values[size++] = value;
+        ++modCount;
+    }
+
+    @Override
+    public DataBox get(int i) {
+        return new IntDataBox(getInt(i));
+    }
+
+    @Override
+    public DataBox set(int i, DataBox key) {
+        DataBox old = get(i);
+        values[i] = key.getInt();
+        return old;
+    }
+
+    @Override
+    public void add(int i, DataBox key) {
+        checkIndex(i, size + 1);
+        ensureCapacity(size + 1);
+        System.arraycopy(values, i, values, i + 1, size - i);
+        values[i] = key.getInt();
+        ++size;
+        ++modCount;
+    }
+
+    @Override
+    public boolean addAll(int i, Collection<? extends DataBox> keys) {
+        checkIndex(i, size + 1);
+        int n = keys.size();
+        ensureCapacity(size + n);
+        System.arraycopy(values, i, values, i + n, size - i);
+        for (DataBox key : keys) {
+            values[i++] = key.getInt();
+        }
+        size += n;
+        ++modCount;
+        return n > 0;
+    }
+
+    @Override
+    public DataBox remove(int i) {
+        DataBox old = get(i);
+        System.arraycopy(values, i + 1, values, i, size - i - 1);
+        --size;
+        ++modCount;
+        return old;
+    }
+
+    @Override
+    protected void removeRange(int from, int to) {
+        System.arraycopy(values, to, values, from, size - to);
+        size -= to - from;
+        ++modCount;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > values.length) {
+            values = Arrays.copyOf(values, Math.max(capacity, 2 * values.length));
+        }
+    }
+
+    private static void checkIndex(int i, int size) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException(String.format("Index %d, size %d.", i, size));
+        }
+    }
+}
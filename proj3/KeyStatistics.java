@@ -0,0 +1,288 @@
+package edu.umd.cs424.database.index;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import edu.umd.cs424.database.common.Buffer;
+import edu.umd.cs424.database.databox.DataBox;
+import edu.umd.cs424.database.databox.Type;
+
+/**
+ * Statistics about the keys of a B+ tree for the query planner's cost model:
+ * the number of (key, rid) pairs, an estimate of the number of distinct keys,
+ * the average number of pairs per leaf, and an equi-depth histogram of the
+ * keys. They are persisted in the header page (see BPlusTree.writeHeader).
+ *
+ * The histogram is built from whole leaves, by a bulk load or by
+ * BPlusTree.refreshStatistics, so its buckets start at the first key of a leaf
+ * and hold about the same number of pairs. Puts and removes then adjust the
+ * counts of the buckets their keys fall in, but never move the bounds, so the
+ * histogram drifts until it is rebuilt. Removes of keys that were not in the
+ * tree are counted all the same, which is why counts are clamped at 0.
+ */
+final class KeyStatistics {
+    // The most buckets a histogram has. Fewer are used if the bounds do not fit
+    // in the header page, or if the tree has fewer leaves.
+    static final int MAX_BUCKETS = 64;
+
+    // The selectivities that System R assumes for predicates it knows nothing
+    // about, used when there is no histogram.
+    private static final double EQUALITY_SELECTIVITY = 0.1;
+    private static final double RANGE_SELECTIVITY = 1.0 / 3;
+
+    // The number of bytes of the statistics in front of the histogram: the
+    // number of buckets, numKeys, distinctKeys and entriesPerLeaf.
+    private static final int FIXED_SIZE = Integer.BYTES + 2 * Long.BYTES + Float.BYTES;
+
+    private final Type keySchema;
+    private final boolean unique;
+
+    // Bucket b holds the keys k with bounds[b] <= k < bounds[b + 1], except
+    // that the last bucket also holds its upper bound. Keys outside of all the
+    // buckets (put after the histogram was built) are counted in the first or
+    // last bucket. There are no bounds if there is no histogram.
+    private final DataBox[] bounds;
+    private final AtomicLongArray counts;
+
+    private final AtomicLong numKeys;
+    // The number of distinct keys when the statistics were built. In a tree
+    // with unique keys, every pair has a distinct key instead.
+    private final long distinctKeys;
+    // The average number of pairs per leaf when the statistics were built, or 0
+    // if unknown.
+    private final float entriesPerLeaf;
+
+    private KeyStatistics(Type keySchema, boolean unique, DataBox[] bounds, long[] counts, long numKeys,
+                          long distinctKeys, float entriesPerLeaf) {
+        this.keySchema = keySchema;
+        this.unique = unique;
+        this.bounds = bounds;
+        this.counts = new AtomicLongArray(counts);
+        this.numKeys = new AtomicLong(numKeys);
+        this.distinctKeys = distinctKeys;
+        this.entriesPerLeaf = entriesPerLeaf;
+    }
+
+    /** Returns statistics for an empty tree. */
+    static KeyStatistics empty(Type keySchema, boolean unique) {
+        return new KeyStatistics(keySchema, unique, new DataBox[0], new long[0], 0, 0, 0);
+    }
+
+    /**
+     * Builds statistics for a tree whose leaves, from left to right, start at
+     * (or after) the keys `firstKeys` and hold `leafCounts` pairs, and whose
+     * largest key is `maxKey`. Buckets are cut at leaf boundaries, and there
+     * are at most `maxBuckets` of them.
+     */
+    static KeyStatistics fromLeaves(Type keySchema, boolean unique, List<DataBox> firstKeys, long[] leafCounts,
+                                    DataBox maxKey, long distinctKeys, int maxBuckets) {
+        int numLeaves = firstKeys.size();
+        long total = 0;
+        for (long count : leafCounts) {
+            total += count;
+        }
+        if (total == 0) {
+            return empty(keySchema, unique);
+        }
+
+        int numBuckets = Math.max(1, Math.min(maxBuckets, numLeaves));
+        var bounds = new DataBox[numBuckets + 1];
+        var counts = new long[numBuckets];
+        bounds[0] = firstKeys.get(0);
+        int bucket = 0;
+        long seen = 0;
+        for (int leaf = 0; leaf < numLeaves; ++leaf) {
+            // Start a new bucket at this leaf once the current one holds its share.
+            if (leaf > 0 && bucket < numBuckets - 1 && seen >= (bucket + 1) * total / numBuckets) {
+                bounds[++bucket] = firstKeys.get(leaf);
+            }
+            counts[bucket] += leafCounts[leaf];
+            seen += leafCounts[leaf];
+        }
+        numBuckets = bucket + 1;
+
+        var trimmedBounds = new DataBox[numBuckets + 1];
+        System.arraycopy(bounds, 0, trimmedBounds, 0, numBuckets);
+        trimmedBounds[numBuckets] = maxKey;
+        var trimmedCounts = new long[numBuckets];
+        System.arraycopy(counts, 0, trimmedCounts, 0, numBuckets);
+        return new KeyStatistics(keySchema, unique, trimmedBounds, trimmedCounts, total,
+                                 Math.min(distinctKeys, total), (float) total / numLeaves);
+    }
+
+    // Maintenance /////////////////////////////////////////////////////////////
+    void recordPut(DataBox key) {
+        numKeys.incrementAndGet();
+        if (bounds.length > 0) {
+            counts.incrementAndGet(bucketOf(key));
+        }
+    }
+
+    void recordRemove(DataBox key) {
+        numKeys.getAndUpdate(n -> Math.max(0, n - 1));
+        if (bounds.length > 0) {
+            counts.getAndUpdate(bucketOf(key), n -> Math.max(0, n - 1));
+        }
+    }
+
+    /** Returns the bucket that `key` falls in, or the nearest one. */
+    private int bucketOf(DataBox key) {
+        // The last bucket whose lower bound is at most key.
+        int lo = 0;
+        int hi = counts.length() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (bounds[mid].compareTo(key) <= 0) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    // Estimates ///////////////////////////////////////////////////////////////
+    long getNumKeys() {
+        return numKeys.get();
+    }
+
+    long getDistinctKeys() {
+        if (unique) {
+            return numKeys.get();
+        }
+        return Math.min(distinctKeys, numKeys.get());
+    }
+
+    /** Returns the average number of pairs per leaf, or 0 if unknown. */
+    double getEntriesPerLeaf() {
+        return entriesPerLeaf;
+    }
+
+    /**
+     * Estimates the number of pairs whose key is between `lowerBound` and
+     * `upperBound` (both inclusive, and null for no bound). Within a bucket,
+     * numeric keys are assumed to be spread evenly between its bounds, and
+     * other keys to cover half of a bucket that a bound cuts.
+     */
+    double estimateCount(DataBox lowerBound, DataBox upperBound) {
+        long n = numKeys.get();
+        if (n == 0) {
+            return 0;
+        }
+        if (lowerBound != null && upperBound != null) {
+            int cmp = lowerBound.compareTo(upperBound);
+            if (cmp > 0) {
+                return 0;
+            }
+            if (cmp == 0) {
+                return estimateEqual(lowerBound);
+            }
+        }
+        if (bounds.length == 0) {
+            boolean bounded = lowerBound != null || upperBound != null;
+            return bounded ? n * RANGE_SELECTIVITY : n;
+        }
+
+        double estimate = 0;
+        for (int b = 0; b < counts.length(); ++b) {
+            estimate += counts.get(b) * fractionOf(b, lowerBound, upperBound);
+        }
+        return Math.min(estimate, n);
+    }
+
+    /** Estimates the number of pairs with key `key`. */
+    private double estimateEqual(DataBox key) {
+        long n = numKeys.get();
+        if (unique) {
+            return 1;
+        }
+        long distinct = getDistinctKeys();
+        return distinct == 0 ? n * EQUALITY_SELECTIVITY : (double) n / distinct;
+    }
+
+    /** Returns the estimated fraction of the pairs of bucket b within the bounds. */
+    private double fractionOf(int b, DataBox lowerBound, DataBox upperBound) {
+        DataBox lo = bounds[b];
+        DataBox hi = bounds[b + 1];
+        if ((upperBound != null && upperBound.compareTo(lo) < 0)
+                || (lowerBound != null && lowerBound.compareTo(hi) > 0)) {
+            return 0;
+        }
+        boolean cutBelow = lowerBound != null && lowerBound.compareTo(lo) > 0;
+        boolean cutAbove = upperBound != null && upperBound.compareTo(hi) < 0;
+        if (!cutBelow && !cutAbove) {
+            return 1;
+        }
+        double width = toDouble(hi) - toDouble(lo);
+        if (Double.isNaN(width) || width <= 0) {
+            return 0.5;
+        }
+        double from = cutBelow ? toDouble(lowerBound) : toDouble(lo);
+        double to = cutAbove ? toDouble(upperBound) : toDouble(hi);
+        return Math.max(0, Math.min(1, (to - from) / width));
+    }
+
+    /** Returns a numeric key as a double, or NaN for other keys. */
+    private double toDouble(DataBox key) {
+        switch (keySchema.getTypeId()) {
+            case INT:
+                return key.getInt();
+            case LONG:
+                return key.getLong();
+            case FLOAT:
+                return key.getFloat();
+            default:
+                return Double.NaN;
+        }
+    }
+
+    // Serialization ///////////////////////////////////////////////////////////
+    /**
+     * Returns the most buckets whose histogram fits in `freeBytes` bytes along
+     * with the rest of the statistics.
+     */
+    static int maxBuckets(int freeBytes, Type keySchema) {
+        int keySize = keySchema.getSizeInBytes();
+        int fit = (freeBytes - FIXED_SIZE - keySize) / (keySize + Long.BYTES);
+        return Math.max(0, Math.min(MAX_BUCKETS, fit));
+    }
+
+    /**
+     * Writes the statistics to `buf` as the number of buckets, numKeys,
+     * distinctKeys and entriesPerLeaf, followed by the bounds
+     * and the counts of the buckets, if any.
+     */
+    void write(Buffer buf) {
+        int numBuckets = counts.length();
+        buf.putInt(numBuckets);
+        buf.putLong(numKeys.get());
+        buf.putLong(distinctKeys);
+        buf.putFloat(entriesPerLeaf);
+        if (numBuckets == 0) {
+            return;
+        }
+        for (DataBox bound : bounds) {
+            buf.put(bound.toBytes());
+        }
+        for (int b = 0; b < numBuckets; ++b) {
+            buf.putLong(counts.get(b));
+        }
+    }
+
+    static KeyStatistics read(Buffer buf, Type keySchema, boolean unique) {
+        int numBuckets = buf.getInt();
+        long numKeys = buf.getLong();
+        long distinctKeys = buf.getLong();
+        float entriesPerLeaf = buf.getFloat();
+        var bounds = new DataBox[numBuckets == 0 ? 0 : numBuckets + 1];
+        for (int i = 0; i < bounds.length; ++i) {
+            bounds[i] = DataBox.fromBytes(buf, keySchema);
+        }
+        var counts = new long[numBuckets];
+        for (int b = 0; b < numBuckets; ++b) {
+            counts[b] = buf.getLong();
+        }
+        return new KeyStatistics(keySchema, unique, bounds, counts, numKeys, distinctKeys, entriesPerLeaf);
+    }
+}
@@ -2,6 +2,7 @@ package edu.umd.cs424.database.index;
 
 import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.locks.Lock;
 
 import edu.umd.cs424.database.BaseTransaction;
 import edu.umd.cs424.database.common.Buffer;
@@ -13,15 +14,15 @@ import edu.umd.cs424.database.table.RecordId;
 
 /**
  * A leaf of a B+ tree. Every leaf in a B+ tree of order d stores between d and
- * 2d (key, record id) pairs and a pointer to its right sibling (i.e. the page
- * number of its right sibling). Moreover, every leaf node is serialized and
+ * 2d (key, record id) pairs and pointers to its left and right siblings (i.e.
+ * the page numbers of its siblings). Moreover, every leaf node is serialized and
  * persisted on a single page; see toBytes and fromBytes for details on how a
  * leaf is serialized. For example, here is an illustration of two order 2
  * leafs connected together:
  *
  *   leaf 1 (stored on some page)          leaf 2 (stored on some other page)
  *   +-------+-------+-------+-------+     +-------+-------+-------+-------+
- *   | k0:r0 | k1:r1 | k2:r2 |       | --> | k3:r3 | k4:r4 |       |       |
+ *   | k0:r0 | k1:r1 | k2:r2 |       | <-> | k3:r3 | k4:r4 |       |       |
  *   +-------+-------+-------+-------+     +-------+-------+-------+-------+
  */
 class LeafNode extends BPlusNode {
@@ -34,7 +35,9 @@ class LeafNode extends BPlusNode {
     // The keys and record ids of this leaf. `keys` is always sorted in ascending
     // order. The record id at index i corresponds to the key at index i. For
     // example, the keys [a, b, c] and the rids [1, 2, 3] represent the pairing
-    // [a:1, b:2, c:3].
+    // [a:1, b:2, c:3]. In a tree that allows duplicate keys, a key may appear
+    // several times, and the pairs are sorted by key and then by record id (see
+    // PostingLists.compare).
     //
     // Note the following subtlety. keys and rids are in-memory caches of the
     // keys and record ids stored on disk. Thus, consider what happens when you
@@ -90,117 +93,553 @@ class LeafNode extends BPlusNode {
     //                               |
     //
     // Make sure your code (or your tests) doesn't use stale in-memory cached
-    // values of keys and rids.
+    // values of keys and rids. Loading nodes with fromBytes avoids this as long
+    // as the page stays in the tree's NodeCache: every sync writes the node
+    // through to the cache, so later lookups of page 42 return leaf0 itself.
     private List<DataBox> keys;
     private List<RecordId> rids;
 
+    // The values of the included columns of every pair, parallel to rids, or
+    // null if the tree has no included columns (see BPlusTreeMetadata.
+    // getIncludedSchema).
+    private List<List<DataBox>> values;
+
+    // The number of bytes taken by isLeaf, the siblings and the number of pairs
+    // at the start of a serialized leaf; see toBytes.
+    static final int HEADER_SIZE = 1 + 2 * (1 + Integer.BYTES) + Integer.BYTES;
+
     // If this leaf is the rightmost leaf, then rightSibling is Optional.empty().
     // Otherwise, rightSibling is Optional.of(n) where n is the page number of
     // this leaf's right sibling.
     private Optional<Integer> rightSibling;
 
+    // Likewise for the left sibling, which descending scans follow. Whenever a
+    // leaf's right sibling changes, the left sibling of the new right sibling is
+    // changed to match (see relinkRightSibling).
+    private Optional<Integer> leftSibling;
+
     // Constructors //////////////////////////////////////////////////////////////
     /**
      * Construct a brand new leaf node. The leaf will be persisted on a brand new
-     * page allocated by metadata.getAllocator().
+     * page allocated by metadata.allocPage().
      */
-    public LeafNode(BPlusTreeMetadata metadata, List<DataBox> keys,
-                    List<RecordId> rids, Optional<Integer> rightSibling, BaseTransaction transaction) {
-        this(metadata, metadata.getAllocator().allocPage(transaction), keys, rids,
-             rightSibling, transaction);
+    public LeafNode(BPlusTreeMetadata metadata, List<DataBox> keys, List<RecordId> rids,
+                    Optional<Integer> leftSibling, Optional<Integer> rightSibling, BaseTransaction transaction) {
+        this(metadata, metadata.allocPage(transaction), keys, rids, null,
+             leftSibling, rightSibling, transaction);
     }
 
     /**
      * Construct a leaf node that is persisted to page `pageNum` allocated by
-     * metadata.getAllocator().
+     * metadata.getAllocator(). Bulk loading uses this to write a leaf onto a page
+     * it has already reserved, so that every page is written exactly once.
+     */
+    LeafNode(BPlusTreeMetadata metadata, int pageNum, List<DataBox> keys, List<RecordId> rids,
+             Optional<Integer> leftSibling, Optional<Integer> rightSibling, BaseTransaction transaction) {
+        this(metadata, pageNum, keys, rids, null, leftSibling, rightSibling, transaction);
+    }
+
+    /**
+     * Like the constructor above, but also takes the values of the included
+     * columns of every pair. `values` may only be null if the tree has no
+     * included columns or `keys` is empty.
      */
-    private LeafNode(BPlusTreeMetadata metadata, int pageNum, List<DataBox> keys,
-                     List<RecordId> rids, Optional<Integer> rightSibling, BaseTransaction transaction) {
+    LeafNode(BPlusTreeMetadata metadata, int pageNum, List<DataBox> keys, List<RecordId> rids,
+             List<List<DataBox>> values, Optional<Integer> leftSibling, Optional<Integer> rightSibling,
+             BaseTransaction transaction) {
         assert(keys.size() == rids.size());
 
         this.metadata = metadata;
         this.page = metadata.getAllocator().fetchPage(transaction, pageNum);
-        this.keys = keys;
-        this.rids = rids;
+        this.keys = NodeLists.adoptKeys(metadata.getKeySchema(), keys);
+        this.rids = NodeLists.adoptRids(metadata.getKeySchema(), rids);
+        if (metadata.hasIncludedColumns()) {
+            this.values = values == null ? new ArrayList<>() : values;
+            assert(this.values.size() == keys.size());
+        }
         this.rightSibling = rightSibling;
+        this.leftSibling = leftSibling;
         sync(transaction);
     }
 
+    /** Copies `node`; see BPlusNode.copy. */
+    private LeafNode(LeafNode node) {
+        this.metadata = node.metadata;
+        this.page = node.page;
+        this.keys = NodeLists.copyOfKeys(metadata.getKeySchema(), node.keys);
+        this.rids = NodeLists.copyOfRids(metadata.getKeySchema(), node.rids);
+        this.values = node.values == null ? null : new ArrayList<>(node.values);
+        this.rightSibling = node.rightSibling;
+        this.leftSibling = node.leftSibling;
+    }
+
     // Core API //////////////////////////////////////////////////////////////////
     // See BPlusNode.get.
     @Override
     public LeafNode get(BaseTransaction transaction, DataBox key) {
-        return LeafNode.fromBytes(transaction,this.metadata, this.page.getPageNum());
+        return this;
     }
 
     // See BPlusNode.getLeftmostLeaf.
     @Override
     public LeafNode getLeftmostLeaf(BaseTransaction transaction) {
-        return  LeafNode.fromBytes(transaction,this.metadata, this.page.getPageNum());
+        return this;
     }
 
     // See BPlusNode.put.
     @Override
-    public Optional<Pair<DataBox, Integer>> put(BaseTransaction transaction, DataBox key, RecordId rid)
+    public Optional<Pair<DataBox, Integer>> put(BaseTransaction transaction, DataBox key, RecordId rid,
+                                                List<DataBox> values)
     throws BPlusTreeException {
         // throwing exception if key already exists
-        if(keys.contains(key)) {
-            throw new BPlusTreeException("Key " + key + " already exists");
+        int index = insertionIndex(key, rid);
+        keys.add(index, key);
+        rids.add(index, rid);
+        if (this.values != null) {
+            this.values.add(index, values);
         }
-        // If keys.size < d * 2 then we'll just sync and return Optional.empty()
-        // if keys.size = d then we'll have to split
-        keys.add(key);
-        Collections.sort(keys);
-        rids.add(keys.indexOf(key),rid);
 
-        // if the keys len is less 2*order we can still add
-        if (keys.size() - 1 < 2* this.metadata.getOrder()){
+        // if the leaf still fits we can still add
+        if (!isOverflowing()){
             sync(transaction);
             return Optional.empty();
         } else{
 
-            // splitting
-            var rightNodeKeys = keys.subList(this.metadata.getOrder(), keys.size());
-            var rightNodeRids =  rids.subList(this.metadata.getOrder(), rids.size());
+            // splitting: d pairs stay in this leaf, or, for leaves with posting
+            // lists or slotted pages, about half of the bytes.
+            int splitIndex = isSizedByBytes() ? byteSplitIndices(2)[1] : this.metadata.getOrder();
+            var rightNodeKeys = NodeLists.copyOfKeys(metadata.getKeySchema(), keys.subList(splitIndex, keys.size()));
+            var rightNodeRids = NodeLists.copyOfRids(metadata.getKeySchema(), rids.subList(splitIndex, rids.size()));
+            var rightNodeValues = valuesBetween(splitIndex, keys.size());
 
             // updating current leafNode
-            keys = keys.subList(0, this.metadata.getOrder());
-            rids = rids.subList(0, this.metadata.getOrder());
+            keys = NodeLists.copyOfKeys(metadata.getKeySchema(), keys.subList(0, splitIndex));
+            rids = NodeLists.copyOfRids(metadata.getKeySchema(), rids.subList(0, splitIndex));
+            this.values = valuesBetween(0, splitIndex);
 
-            var rightLeaf = new LeafNode(this.metadata, rightNodeKeys, rightNodeRids, this.rightSibling, transaction);
+            var rightLeaf = new LeafNode(this.metadata, this.metadata.allocPage(transaction),
+                                         rightNodeKeys, rightNodeRids, rightNodeValues,
+                                         Optional.of(page.getPageNum()), this.rightSibling, transaction);
             var right_node_page_num = rightLeaf.getPage().getPageNum();
+            rightLeaf.relinkRightSibling(transaction);
 
             this.rightSibling = Optional.of(right_node_page_num);
             sync(transaction);
+            metadata.getMetrics().countLeafSplit();
 
-           return Optional.of(new Pair(rightNodeKeys.get(0),right_node_page_num));
+           DataBox separator = separator(metadata, keys.get(keys.size() - 1), rightNodeKeys.get(0));
+           return Optional.of(new Pair(separator,right_node_page_num));
         }
     }
 
-    // See BPlusNode.bulkLoad.
+    // See BPlusNode.remove. In a tree that allows duplicate keys, all of the
+    // pairs of `key` in this leaf are removed.
     @Override
-    public Optional<Pair<DataBox, Integer>> bulkLoad(BaseTransaction transaction,
-            Iterator<Pair<DataBox, RecordId>> data,
-            float fillFactor)
-    throws BPlusTreeException {
-        throw new UnsupportedOperationException("Implement this.");
+    public void remove(BaseTransaction transaction, DataBox key) {
+        int index = ceilingIndex(key);
+        while (index < keys.size() && NodeLists.compare(keys, index, key) == 0) {
+            rids.remove(index);
+            keys.remove(index);
+            if (values != null) {
+                values.remove(index);
+            }
+        }
+        sync(transaction);
     }
 
     // See BPlusNode.remove.
     @Override
-    public void remove(BaseTransaction transaction, DataBox key) {
-        if (keys.contains(key)) {
-            rids.remove(keys.indexOf(key));
-            keys.remove(key);
+    public boolean remove(BaseTransaction transaction, DataBox key, RecordId rid) {
+        int index = entryIndex(key, rid);
+        if (index == keys.size() || NodeLists.compare(keys, index, key) != 0 || !rids.get(index).equals(rid)) {
+            return false;
+        }
+        keys.remove(index);
+        rids.remove(index);
+        if (values != null) {
+            values.remove(index);
         }
         sync(transaction);
+        return true;
+    }
+
+    // See BPlusNode.putAll.
+    @Override
+    List<Pair<DataBox, Integer>> putAll(BaseTransaction transaction, List<IndexEntry> entries)
+    throws BPlusTreeException {
+        // Merge the entries into new lists, so that the leaf is left untouched
+        // if one of them turns out to be a duplicate.
+        var mergedKeys = NodeLists.newKeys(metadata.getKeySchema(), keys.size() + entries.size());
+        var mergedRids = NodeLists.newRids(metadata.getKeySchema(), keys.size() + entries.size());
+        var mergedValues = values == null ? null : new ArrayList<List<DataBox>>(keys.size() + entries.size());
+        int i = 0;
+        for (IndexEntry entry : entries) {
+            DataBox key = entry.getKey();
+            RecordId rid = entry.getRecordId();
+            while (i < keys.size() && compareEntry(i, key, rid) < 0) {
+                mergedKeys.add(keys.get(i));
+                mergedRids.add(rids.get(i));
+                if (mergedValues != null) {
+                    mergedValues.add(values.get(i));
+                }
+                ++i;
+            }
+            if (i < keys.size() && compareEntry(i, key, rid) == 0) {
+                String what = this.metadata.isUnique() ? "Key " + key : "Pair (" + key + ", " + rid + ")";
+                throw new BPlusTreeException(what + " already exists");
+            }
+            mergedKeys.add(key);
+            mergedRids.add(rid);
+            if (mergedValues != null) {
+                mergedValues.add(entry.getValues());
+            }
+        }
+        mergedKeys.addAll(keys.subList(i, keys.size()));
+        mergedRids.addAll(rids.subList(i, rids.size()));
+        if (mergedValues != null) {
+            mergedValues.addAll(values.subList(i, values.size()));
+        }
+        keys = mergedKeys;
+        rids = mergedRids;
+        values = mergedValues;
+        return syncOrSplit(transaction);
+    }
+
+    /**
+     * Applies the buffered messages of our parent for our keys (see
+     * InnerNode.flush): every key with a message loses its old pair, and gets
+     * the message's record id instead if the message is a put. Like putAll,
+     * the leaf is then written once, or split into as many parts as needed.
+     */
+    List<Pair<DataBox, Integer>> applyBuffered(BaseTransaction transaction,
+                                               NavigableMap<DataBox, Optional<RecordId>> messages) {
+        assert(values == null);
+        var mergedKeys = NodeLists.newKeys(metadata.getKeySchema(), keys.size() + messages.size());
+        var mergedRids = NodeLists.newRids(metadata.getKeySchema(), keys.size() + messages.size());
+        int i = 0;
+        for (var message : messages.entrySet()) {
+            DataBox key = message.getKey();
+            while (i < keys.size() && NodeLists.compare(keys, i, key) < 0) {
+                mergedKeys.add(keys.get(i));
+                mergedRids.add(rids.get(i));
+                ++i;
+            }
+            if (i < keys.size() && NodeLists.compare(keys, i, key) == 0) {
+                ++i;
+            }
+            if (message.getValue().isPresent()) {
+                mergedKeys.add(key);
+                mergedRids.add(message.getValue().get());
+            }
+        }
+        mergedKeys.addAll(keys.subList(i, keys.size()));
+        mergedRids.addAll(rids.subList(i, rids.size()));
+        keys = mergedKeys;
+        rids = mergedRids;
+        return syncOrSplit(transaction);
+    }
+
+    /**
+     * Syncs this leaf if it fits on its page, or splits it into as many parts as
+     * needed otherwise. Returns the first key and page number of every new part.
+     */
+    private List<Pair<DataBox, Integer>> syncOrSplit(BaseTransaction transaction) {
+        var splits = new ArrayList<Pair<DataBox, Integer>>();
+        if (!isOverflowing()) {
+            sync(transaction);
+            return splits;
+        }
+
+        // Cut the leaf into as few parts of at most 2d pairs as possible, all of
+        // about the same size. Leaves with posting lists or slotted pages are cut
+        // into parts of at most 3/4 of a page instead. The pages of the new parts
+        // are allocated up front so that every part is written once, already
+        // pointing to both of its siblings.
+        int[] starts;
+        if (!isSizedByBytes()) {
+            int d = this.metadata.getOrder();
+            int n = keys.size();
+            int numParts = (n + 2 * d - 1) / (2 * d);
+            starts = new int[numParts + 1];
+            for (int part = 0; part <= numParts; ++part) {
+                starts[part] = part * n / numParts;
+            }
+        } else {
+            int target = 3 * Page.pageSize / 4;
+            starts = byteSplitIndices((balanceSize() + target - 1) / target);
+        }
+        int numParts = starts.length - 1;
+        int[] partPageNums = new int[numParts];
+        partPageNums[0] = page.getPageNum();
+        for (int part = 1; part < numParts; ++part) {
+            partPageNums[part] = this.metadata.allocPage(transaction);
+        }
+        LeafNode lastPart = this;
+        for (int part = 1; part < numParts; ++part) {
+            int from = starts[part];
+            int to = starts[part + 1];
+            var partKeys = NodeLists.copyOfKeys(metadata.getKeySchema(), keys.subList(from, to));
+            var partRids = NodeLists.copyOfRids(metadata.getKeySchema(), rids.subList(from, to));
+            Optional<Integer> right = part == numParts - 1 ? this.rightSibling : Optional.of(partPageNums[part + 1]);
+            lastPart = new LeafNode(this.metadata, partPageNums[part], partKeys, partRids, valuesBetween(from, to),
+                                    Optional.of(partPageNums[part - 1]), right, transaction);
+            splits.add(new Pair<>(separator(metadata, keys.get(from - 1), partKeys.get(0)), partPageNums[part]));
+            metadata.getMetrics().countLeafSplit();
+        }
+        lastPart.relinkRightSibling(transaction);
+
+        keys = NodeLists.copyOfKeys(metadata.getKeySchema(), keys.subList(0, starts[1]));
+        rids = NodeLists.copyOfRids(metadata.getKeySchema(), rids.subList(0, starts[1]));
+        this.values = valuesBetween(0, starts[1]);
+        this.rightSibling = Optional.of(partPageNums[1]);
+        sync(transaction);
+        return splits;
+    }
+
+    // See BPlusNode.removeAll.
+    @Override
+    List<DataBox> removeAll(BaseTransaction transaction, List<DataBox> toRemove) {
+        var removed = new ArrayList<DataBox>();
+        var keptKeys = NodeLists.newKeys(metadata.getKeySchema(), keys.size());
+        var keptRids = NodeLists.newRids(metadata.getKeySchema(), rids.size());
+        var keptValues = values == null ? null : new ArrayList<List<DataBox>>(values.size());
+        int j = 0;
+        for (int i = 0; i < keys.size(); ++i) {
+            DataBox key = keys.get(i);
+            while (j < toRemove.size() && toRemove.get(j).compareTo(key) < 0) {
+                ++j;
+            }
+            if (j < toRemove.size() && toRemove.get(j).compareTo(key) == 0) {
+                removed.add(key);
+                continue;
+            }
+            keptKeys.add(key);
+            keptRids.add(rids.get(i));
+            if (keptValues != null) {
+                keptValues.add(values.get(i));
+            }
+        }
+        keys = keptKeys;
+        rids = keptRids;
+        values = keptValues;
+        sync(transaction);
+        return removed;
+    }
+
+    // Rebalancing ///////////////////////////////////////////////////////////////
+    /** Returns the number of (key, rid) pairs in this leaf. */
+    @Override
+    int size() {
+        return keys.size();
+    }
+
+    // See BPlusNode.subtreeSize.
+    @Override
+    int subtreeSize() {
+        return keys.size();
+    }
+
+    // Leaves with posting lists or slotted pages hold a varying number of pairs,
+    // so they are kept between a quarter of a page and a full page, measured in
+    // bytes (see balanceSize).
+
+    // See BPlusNode.isUnderflowing.
+    @Override
+    boolean isUnderflowing() {
+        if (!isSizedByBytes()) {
+            return super.isUnderflowing();
+        }
+        return balanceSize() < Page.pageSize / 4;
+    }
+
+    // See BPlusNode.isSafeForPut.
+    @Override
+    boolean isSafeForPut() {
+        if (!isSizedByBytes()) {
+            return super.isSafeForPut();
+        }
+        return balanceSize() + maxEntryGrowth() <= Page.pageSize;
+    }
+
+    // See BPlusNode.isSafeForRemove.
+    @Override
+    boolean isSafeForRemove() {
+        if (!isSizedByBytes()) {
+            return super.isSafeForRemove();
+        }
+        return balanceSize() - maxEntryGrowth() >= Page.pageSize / 4;
+    }
+
+    // See BPlusNode.entriesToShift.
+    @Override
+    int entriesToShift(BPlusNode sibling, boolean toRight) {
+        if (!isSizedByBytes()) {
+            return super.entriesToShift(sibling, toRight);
+        }
+        // Shift until we are no fuller than sibling by more than the most an
+        // entry can take, measuring the entries shifted by their prefix sizes.
+        int[] prefixSizes = entryPrefixSizes();
+        int n = keys.size();
+        int size = balanceSize();
+        int siblingSize = ((LeafNode) sibling).balanceSize();
+        int count = 0;
+        while (count < n - 1) {
+            int shifted = toRight ? prefixSizes[n] - prefixSizes[n - count] : prefixSizes[count];
+            if (size - shifted <= siblingSize + shifted + maxEntryGrowth()) {
+                break;
+            }
+            ++count;
+        }
+        return count;
+    }
+
+    // See BPlusNode.shiftFromRight.
+    @Override
+    DataBox shiftFromRight(BPlusNode right, DataBox separator, int count) {
+        LeafNode r = (LeafNode) right;
+        keys.addAll(r.keys.subList(0, count));
+        r.keys.subList(0, count).clear();
+        rids.addAll(r.rids.subList(0, count));
+        r.rids.subList(0, count).clear();
+        if (values != null) {
+            values.addAll(r.values.subList(0, count));
+            r.values.subList(0, count).clear();
+        }
+        return separator(metadata, keys.get(keys.size() - 1), r.keys.get(0));
+    }
+
+    // See BPlusNode.shiftToRight.
+    @Override
+    DataBox shiftToRight(BPlusNode right, DataBox separator, int count) {
+        LeafNode r = (LeafNode) right;
+        int from = keys.size() - count;
+        r.keys.addAll(0, keys.subList(from, keys.size()));
+        keys.subList(from, keys.size()).clear();
+        r.rids.addAll(0, rids.subList(from, rids.size()));
+        rids.subList(from, rids.size()).clear();
+        if (values != null) {
+            r.values.addAll(0, values.subList(from, values.size()));
+            values.subList(from, values.size()).clear();
+        }
+        return separator(metadata, keys.get(keys.size() - 1), r.keys.get(0));
+    }
+
+    // See BPlusNode.fitsMergedWith.
+    @Override
+    boolean fitsMergedWith(BPlusNode right, DataBox separator) {
+        if (!isSizedByBytes()) {
+            return super.fitsMergedWith(right, separator);
+        }
+        LeafNode r = (LeafNode) right;
+        if (this.metadata.isSlotted()) {
+            return balanceSize() + r.balanceSize() - HEADER_SIZE - Short.BYTES <= Page.pageSize;
+        }
+        return serializedSize() + r.serializedSize() - HEADER_SIZE <= Page.pageSize;
+    }
+
+    // See BPlusNode.mergeRight.
+    @Override
+    void mergeRight(BaseTransaction transaction, BPlusNode right, DataBox separator) {
+        LeafNode r = (LeafNode) right;
+        metadata.getMetrics().countMerge();
+        keys.addAll(r.keys);
+        rids.addAll(r.rids);
+        if (values != null) {
+            values.addAll(r.values);
+        }
+        rightSibling = r.rightSibling;
+        relinkRightSibling(transaction);
     }
 
     // Iterators /////////////////////////////////////////////////////////////////
-    /** Return the record id associated with `key`. */
+    /** Return the (first) record id associated with `key`. */
     public Optional<RecordId> getKey(DataBox key) {
-        int index = keys.indexOf(key);
-        return index == -1 ? Optional.empty() : Optional.of(rids.get(index));
+        int index = ceilingIndex(key);
+        if (index == keys.size() || NodeLists.compare(keys, index, key) != 0) {
+            return Optional.empty();
+        }
+        return Optional.of(rids.get(index));
+    }
+
+    /** Returns the i-th smallest key of this leaf. */
+    DataBox keyAt(int i) {
+        return keys.get(i);
+    }
+
+    /** Compares the i-th smallest key of this leaf with `key`. */
+    int compareKeyAt(int i, DataBox key) {
+        return NodeLists.compare(keys, i, key);
+    }
+
+    /** Returns the record id of the i-th smallest key of this leaf. */
+    RecordId ridAt(int i) {
+        return rids.get(i);
+    }
+
+    /**
+     * Returns the values of the included columns of the i-th smallest key of
+     * this leaf, or an empty list if the tree has no included columns.
+     */
+    List<DataBox> valuesAt(int i) {
+        return values == null ? List.of() : values.get(i);
+    }
+
+    /**
+     * Returns the index of the smallest key in this leaf that is greater than or
+     * equal to `key` (the first one, if there are duplicates), or size() if there
+     * is no such key.
+     */
+    int ceilingIndex(DataBox key) {
+        return countLessThan(key, false);
+    }
+
+    /**
+     * Returns the number of pairs in this leaf whose key is less than `key`, or
+     * less than or equal to `key` if `inclusive`.
+     */
+    int countLessThan(DataBox key, boolean inclusive) {
+        int lo = 0;
+        int hi = keys.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = NodeLists.compare(keys, mid, key);
+            if (cmp < 0 || (inclusive && cmp == 0)) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Returns the number of pairs in this leaf that are less than or equal to
+     * (key, rid) in the order of the tree: by key alone in a tree with unique
+     * keys, or by key and then by record id otherwise (see
+     * PostingLists.compare). A scan that last looked at the pair (key, rid)
+     * goes on from this index.
+     */
+    int countUpTo(DataBox key, RecordId rid) {
+        if (metadata.isUnique()) {
+            return countLessThan(key, true);
+        }
+        int index = entryIndex(key, rid);
+        if (index < keys.size() && compareEntry(index, key, rid) == 0) {
+            ++index;
+        }
+        return index;
+    }
+
+    /**
+     * Returns the number of pairs in this leaf that are less than (key, rid) in
+     * the order of the tree (see countUpTo). A descending scan that last looked
+     * at the pair (key, rid) goes on from the pair before this index.
+     */
+    int countLessThan(DataBox key, RecordId rid) {
+        if (metadata.isUnique()) {
+            return countLessThan(key, false);
+        }
+        return entryIndex(key, rid);
     }
 
     /**
@@ -224,41 +663,258 @@ class LeafNode extends BPlusNode {
         return page;
     }
 
+    // See BPlusNode.copy.
+    @Override
+    LeafNode copy() {
+        return new LeafNode(this);
+    }
+
+    @Override
+    BPlusTreeMetadata getMetadata() {
+        return metadata;
+    }
+
+    /**
+     * Returns the index at which (key, rid) belongs in this leaf. Throws if key
+     * is already in this leaf or, in a tree that allows duplicate keys, if the
+     * pair (key, rid) is.
+     */
+    private int insertionIndex(DataBox key, RecordId rid) throws BPlusTreeException {
+        if (this.metadata.isUnique()) {
+            int index = ceilingIndex(key);
+            if (index < keys.size() && NodeLists.compare(keys, index, key) == 0) {
+                throw new BPlusTreeException("Key " + key + " already exists");
+            }
+            return index;
+        }
+        int index = entryIndex(key, rid);
+        if (index < keys.size() && compareEntry(index, key, rid) == 0) {
+            throw new BPlusTreeException("Pair (" + key + ", " + rid + ") already exists");
+        }
+        return index;
+    }
+
+    /** Returns the number of pairs in this leaf that are less than (key, rid). */
+    private int entryIndex(DataBox key, RecordId rid) {
+        int lo = 0;
+        int hi = keys.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareEntry(mid, key, rid) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Compares our i-th pair with (key, rid). In a tree with unique keys, only
+     * the keys are compared.
+     */
+    private int compareEntry(int i, DataBox key, RecordId rid) {
+        if (this.metadata.isUnique()) {
+            return NodeLists.compare(keys, i, key);
+        }
+        return PostingLists.compare(keys.get(i), rids.get(i), key, rid);
+    }
+
+    /** Returns whether this leaf holds too many pairs to fit on its page. */
+    private boolean isOverflowing() {
+        if (!isSizedByBytes()) {
+            return keys.size() > 2 * this.metadata.getOrder();
+        }
+        return serializedSize() > Page.pageSize;
+    }
+
+    /**
+     * Returns whether this leaf is split and merged by its size in bytes rather
+     * than by its number of pairs, i.e. whether it has posting lists or a
+     * slotted page.
+     */
+    private boolean isSizedByBytes() {
+        return !this.metadata.isUnique() || this.metadata.isSlotted();
+    }
+
+    /**
+     * Returns the size in bytes that decides whether this leaf is split, merged
+     * or shifted from: its serialized size, or, with a slotted page, its size
+     * without the head prefix taken out (see SlottedKeys.fullSize).
+     */
+    private int balanceSize() {
+        if (this.metadata.isSlotted()) {
+            return HEADER_SIZE + SlottedKeys.fullSize(keys, RecordId.getSizeInBytes());
+        }
+        return serializedSize();
+    }
+
+    /**
+     * Returns the key that separates a leaf ending with `leftLast` from its
+     * right sibling starting with `rightFirst` in their parent: rightFirst
+     * itself, or, with slotted pages, the shortest key that does the job (see
+     * SlottedKeys.separator).
+     */
+    static DataBox separator(BPlusTreeMetadata metadata, DataBox leftLast, DataBox rightFirst) {
+        if (!metadata.isSlotted()) {
+            return rightFirst;
+        }
+        return SlottedKeys.separator(metadata.getKeySchema(), leftLast, rightFirst);
+    }
+
+    /** Returns the number of bytes of the serialization of this leaf. */
+    int serializedSize() {
+        int keySize = this.metadata.getKeySchema().getSizeInBytes();
+        int includedSize = this.metadata.getIncludedSize();
+        if (this.metadata.isSlotted()) {
+            return HEADER_SIZE + SlottedKeys.size(keys, RecordId.getSizeInBytes());
+        }
+        if (this.metadata.isUnique()) {
+            return HEADER_SIZE + keys.size() * (keySize + RecordId.getSizeInBytes() + includedSize);
+        }
+        return HEADER_SIZE + PostingLists.size(keys, rids, keySize) + keys.size() * includedSize;
+    }
+
+    private int maxEntryGrowth() {
+        if (this.metadata.isSlotted()) {
+            return SlottedKeys.maxEntrySize(this.metadata.getKeySchema(), RecordId.getSizeInBytes());
+        }
+        return PostingLists.maxGrowth(this.metadata.getKeySchema().getSizeInBytes())
+               + this.metadata.getIncludedSize();
+    }
+
+    /**
+     * Returns the indexes at which to cut the pairs of this leaf into `numParts`
+     * parts with about the same number of serialized bytes, starting with 0 and
+     * ending with size().
+     */
+    private int[] byteSplitIndices(int numParts) {
+        int[] prefixSizes = entryPrefixSizes();
+        int total = prefixSizes[keys.size()];
+        int[] starts = new int[numParts + 1];
+        int i = 0;
+        for (int part = 1; part < numParts; ++part) {
+            long target = (long) part * total / numParts;
+            while (i < keys.size() && prefixSizes[i] < target) {
+                ++i;
+            }
+            // Every part gets at least one pair.
+            starts[part] = Math.min(Math.max(i, starts[part - 1] + 1), keys.size() - (numParts - part));
+        }
+        starts[numParts] = keys.size();
+        return starts;
+    }
+
+    /**
+     * Returns the number of serialized bytes of our first i pairs, for every i
+     * from 0 to size().
+     */
+    private int[] entryPrefixSizes() {
+        int[] prefixSizes;
+        if (this.metadata.isSlotted()) {
+            prefixSizes = new int[keys.size() + 1];
+            for (int i = 0; i < keys.size(); ++i) {
+                prefixSizes[i + 1] = prefixSizes[i] + SlottedKeys.entrySize(keys.get(i), RecordId.getSizeInBytes());
+            }
+        } else {
+            prefixSizes = PostingLists.prefixSizes(keys, rids, this.metadata.getKeySchema().getSizeInBytes());
+        }
+        int includedSize = this.metadata.getIncludedSize();
+        for (int i = 0; i <= keys.size(); ++i) {
+            prefixSizes[i] += i * includedSize;
+        }
+        return prefixSizes;
+    }
+
+    /**
+     * Returns a copy of the values of the pairs from index `from` (inclusive) to
+     * `to` (exclusive), or null if the tree has no included columns.
+     */
+    private List<List<DataBox>> valuesBetween(int from, int to) {
+        return values == null ? null : new ArrayList<>(values.subList(from, to));
+    }
+
+    /** Returns the page number of the right sibling of this leaf, if it has one. */
+    Optional<Integer> getRightSiblingPageNum() {
+        return rightSibling;
+    }
+
     /** Returns the right sibling of this leaf, if it has one. */
     public Optional<LeafNode> getRightSibling(BaseTransaction transaction) {
         return rightSibling.flatMap(pageNum -> Optional.of(LeafNode.fromBytes(transaction, metadata, pageNum)));
     }
 
+    /** Returns the page number of the left sibling of this leaf, if it has one. */
+    Optional<Integer> getLeftSiblingPageNum() {
+        return leftSibling;
+    }
+
+    /** Sets the left sibling of this leaf and syncs it. */
+    void setLeftSibling(BaseTransaction transaction, Optional<Integer> leftSibling) {
+        this.leftSibling = leftSibling;
+        sync(transaction);
+    }
+
+    /**
+     * Points the left sibling pointer of our right sibling, if we have one, at
+     * this leaf. The caller holds our latch and we take the latch of the right
+     * sibling after it, so latches are still only waited for from left to right
+     * (see BPlusTree.readRightSibling).
+     */
+    private void relinkRightSibling(BaseTransaction transaction) {
+        if (rightSibling.isEmpty()) {
+            return;
+        }
+        Lock latch = this.metadata.getLatch(rightSibling.get()).writeLock();
+        latch.lock();
+        try {
+            LeafNode right = LeafNode.fromBytes(transaction, this.metadata, rightSibling.get());
+            right.setLeftSibling(transaction, Optional.of(page.getPageNum()));
+        } finally {
+            latch.unlock();
+        }
+    }
+
     /**
      * Returns the largest number d such that the serialization of a LeafNode
      * with 2d entries will fit on a single page of size `pageSizeInBytes`.
      */
     public static int maxOrder(int pageSizeInBytes, Type keySchema) {
+        return maxOrder(pageSizeInBytes, keySchema, List.of());
+    }
+
+    /**
+     * Like maxOrder(pageSizeInBytes, keySchema), for a tree whose leaves also
+     * store the values of the columns in `includedSchema`.
+     */
+    public static int maxOrder(int pageSizeInBytes, Type keySchema, List<Type> includedSchema) {
         // A leaf node with k entries takes up the following number of bytes:
         //
-        //   1 + 4 + 4 + k * (keySize + ridSize)
+        //   1 + 2 * (1 + 4) + 4 + k * (keySize + ridSize + includedSize)
         //
         // where
         //
         //   - 1 is the number of bytes used to store isLeaf,
-        //   - 4 is the number of bytes used to store a sibling pointer,
+        //   - 1 + 4 is the number of bytes used to store a sibling pointer,
         //   - 4 is the number of bytes used to store k,
         //   - keySize is the number of bytes used to store a DataBox of type
         //     keySchema, and
-        //   - ridSize is the number of bytes of a RecordId.
+        //   - ridSize is the number of bytes of a RecordId, and
+        //   - includedSize is the number of bytes of the included columns.
         //
         // Solving the following equation
         //
-        //   k * (keySize + ridSize) + 9 <= pageSizeInBytes
+        //   k * (keySize + ridSize + includedSize) + 15 <= pageSizeInBytes
         //
         // we get
         //
-        //   k = (pageSizeInBytes - 9) / (keySize + ridSize)
+        //   k = (pageSizeInBytes - 15) / (keySize + ridSize + includedSize)
         //
         // The order d is half of k.
         int keySize = keySchema.getSizeInBytes();
         int ridSize = RecordId.getSizeInBytes();
-        int k = (pageSizeInBytes - 9) / (keySize + ridSize);
+        int includedSize = BPlusTreeMetadata.includedSize(includedSchema);
+        int k = (pageSizeInBytes - HEADER_SIZE) / (keySize + ridSize + includedSize);
         return k / 2;
     }
 
@@ -317,32 +973,51 @@ class LeafNode extends BPlusNode {
         //   b. the value 1 or 0 (1 byte) which indicates whether this node has a right sibling
         //   c. the page id (4 bytes) of our right sibling, this field is ignored if the
         //      right sibling indicator is 0.
-        //   d. the number (4 bytes) of keys (K) this leaf node contains {key, rid} pairs this leaf node contains.
-        //   e. the K {key, rid} pairs in array style. [ {k1, r1}, {k2, r2}, ..., ]
+        //   d. the value 1 or 0 (1 byte) which indicates whether this node has a left sibling
+        //   e. the page id (4 bytes) of our left sibling, this field is ignored if the
+        //      left sibling indicator is 0.
+        //   f. the number (4 bytes) of keys (K) this leaf node contains {key, rid} pairs this leaf node contains.
+        //   g. the K {key, rid} pairs in array style. [ {k1, r1}, {k2, r2}, ..., ]
         //
         // For example, the following bytes:
-        //                                              key 1            rid 1            key 2            rid 2
-        //                                           ___________   _________________   ___________   _________________
-        //                                          /           \ /                 \ /           \ /                 \
-        //   +----+----+-------------+-------------+-------------+-------------------+-------------+-------------------+
-        //   | 01 | 01 | 00 00 00 04 | 00 00 00 02 | 00 00 00 05 | 00 00 00 03 00 01 | 00 00 00 07 | 00 00 00 04 00 06 |
-        //   +----+----+-------------+-------------+-------------+-------------------+-------------+-------------------+
-        //    \__/ \__/ \___________/ \___________/ \_________________________________________________________________/
-        //     a     b        c             d                                        e
+        //                                                                 key 1             rid 1
+        //                                                             _____________   _________________
+        //                                                            /             \ /                 \
+        //   +----+----+-------------+----+-------------+-------------+-------------+-------------------+
+        //   | 01 | 01 | 00 00 00 04 | 00 | 00 00 00 00 | 00 00 00 01 | 00 00 00 05 | 00 00 00 03 00 01 |
+        //   +----+----+-------------+----+-------------+-------------+-------------+-------------------+
+        //    \__/ \__/ \___________/ \__/ \___________/ \___________/ \_______________________________/
+        //     a    b         c        d         e             f                       g
         //
-        // represent a leaf node having a sibling on page 4, two keys with its corresponding records [{5, (3, 1)}, {7, (4, 6)}]
-        //throw new UnsupportedOperationException("Implement this.");
-
-        int isLeaf = 1;
-        int hasRightSib = 1;
-        int sibPageId  = Integer.BYTES;
-        int numOfKeys = Integer.BYTES;
-        int totBytesForKeys = metadata.getKeySchema().getSizeInBytes() * keys.size();
-        int totBytesForRids = (Integer.BYTES  + Short.BYTES )*  rids.size();
+        // represent a leaf node having a right sibling on page 4, no left sibling, and one key with its
+        // corresponding record [{5, (3, 1)}].
+        //
+        // Trees written before left siblings were added (see
+        // BPlusTreeMetadata.FORMAT_VERSION) lack d and e; decode still reads them
+        // so that such trees can be upgraded when they are opened.
 
-        int bytesPerPage = isLeaf * hasRightSib + sibPageId * numOfKeys + totBytesForKeys + totBytesForRids;
+        // In a tree that allows duplicate keys, g. is written as posting lists
+        // instead; see PostingLists.
+        //
+        // In a tree with included columns, every rid in g. is followed by the
+        // values of the included columns of its record. With posting lists, the
+        // values of all the pairs follow the posting lists instead, in order.
+        //
+        // In a tree with unique keys, g. is followed by a Bloom filter over the
+        // keys (see BloomFilter), for as long as there is room left on the page.
+        // LeafNode.lookup checks it before searching the keys.
+        //
+        // With slotted pages (see BPlusTreeMetadata.isSlotted), g. is written as
+        // described in SlottedKeys instead, with the rid of every key as its
+        // value, and without a Bloom filter.
 
-        ByteBuffer buf = ByteBuffer.allocate(bytesPerPage);
+        int size = serializedSize();
+        int filterSize = 0;
+        if (metadata.isUnique() && !metadata.isSlotted()) {
+            filterSize = BloomFilter.serializedSize(keys.size(), metadata.getLeafFilterFalsePositiveRate(),
+                                                    Page.pageSize - size);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size + filterSize);
         // Always a leafNode
         buf.put((byte)1);
 
@@ -353,34 +1028,149 @@ class LeafNode extends BPlusNode {
             buf.put((byte)0);
             buf.putInt(0);
         }
+        if (leftSibling.isPresent()) {
+            buf.put((byte) 1);
+            buf.putInt(leftSibling.get());
+        } else {
+            buf.put((byte) 0);
+            buf.putInt(0);
+        }
         buf.putInt(keys.size());
-        for (int i = 0; i < keys.size(); ++i) {
-            buf.put(keys.get(i).toBytes());
-            buf.put(rids.get(i).toBytes());
+        if (metadata.isSlotted()) {
+            SlottedKeys.write(buf, keys, i -> buf.put(rids.get(i).toBytes()));
+            return buf.array();
         }
+        if (!metadata.isUnique()) {
+            PostingLists.write(buf, keys, rids);
+            for (int i = 0; i < keys.size(); ++i) {
+                putValues(buf, i);
+            }
+            return buf.array();
+        }
+        if (keys instanceof IntKeyList intKeys && rids instanceof RecordIdList ridList) {
+            for (int i = 0; i < keys.size(); ++i) {
+                buf.putInt(intKeys.getInt(i));
+                buf.putInt(ridList.getPageNum(i)).putShort(ridList.getEntryNum(i));
+                putValues(buf, i);
+            }
+        } else {
+            for (int i = 0; i < keys.size(); ++i) {
+                buf.put(keys.get(i).toBytes());
+                buf.put(rids.get(i).toBytes());
+                putValues(buf, i);
+            }
+        }
+        BloomFilter.write(buf, keys, metadata.getLeafFilterFalsePositiveRate(), filterSize);
 
         return buf.array();
 
     }
 
+    /** Writes the values of the included columns of the i-th pair, if any. */
+    private void putValues(ByteBuffer buf, int i) {
+        if (values == null) {
+            return;
+        }
+        for (DataBox value : values.get(i)) {
+            buf.put(value.toBytes());
+        }
+    }
+
+    /** Reads the values of the included columns of one pair from `buf`. */
+    private static List<DataBox> readValues(Buffer buf, BPlusTreeMetadata metadata) {
+        var schema = metadata.getIncludedSchema();
+        var values = new ArrayList<DataBox>(schema.size());
+        for (Type type : schema) {
+            values.add(DataBox.fromBytes(buf, type));
+        }
+        return values;
+    }
+
+    /**
+     * Returns the record id associated with `key` reading it straight out of
+     * `buf`, the serialization of a leaf node (see toBytes). The keys are binary
+     * searched in place and only the matching record id, if any, is decoded.
+     * If the leaf has a Bloom filter that rules `key` out, the keys are not
+     * searched at all. Only for trees with unique keys.
+     */
+    static Optional<RecordId> lookup(Buffer buf, BPlusTreeMetadata metadata, DataBox key) {
+        if (metadata.isSlotted()) {
+            int numKeys = buf.getInt(HEADER_SIZE - Integer.BYTES);
+            int index = SlottedKeys.countLessThan(buf, HEADER_SIZE, numKeys, key, true);
+            if (index == numKeys || !SlottedKeys.equalsAt(buf, HEADER_SIZE, index, key)) {
+                return Optional.empty();
+            }
+            int ridOffset = SlottedKeys.valueOffset(buf, HEADER_SIZE, index);
+            return Optional.of(new RecordId(buf.getInt(ridOffset), buf.getShort(ridOffset + Integer.BYTES)));
+        }
+        Type keySchema = metadata.getKeySchema();
+        int keySize = keySchema.getSizeInBytes();
+        int stride = keySize + RecordId.getSizeInBytes() + metadata.getIncludedSize();
+
+        // 1 byte for isLeaf and 1 + 4 for each sibling, then the number of keys
+        // followed by the entries.
+        int numKeysOffset = HEADER_SIZE - Integer.BYTES;
+        int numKeys = buf.getInt(numKeysOffset);
+        int firstKeyOffset = numKeysOffset + Integer.BYTES;
+
+        // The filter, if there is one, starts right after the entries.
+        int filterOffset = firstKeyOffset + numKeys * stride;
+        boolean filtered = metadata.getFormatVersion() >= BPlusTreeMetadata.LEAF_FILTERS_VERSION
+                           && filterOffset + Short.BYTES <= Page.pageSize
+                           && buf.getShort(filterOffset) > 0;
+        if (filtered && !BloomFilter.mightContain(buf, filterOffset, key)) {
+            metadata.countLeafFilterNegative();
+            return Optional.empty();
+        }
+
+        int index = SerializedKeys.countLessThan(buf, firstKeyOffset, stride, numKeys, keySchema, key, true);
+        int keyOffset = firstKeyOffset + index * stride;
+        if (index == numKeys || SerializedKeys.compare(buf, keyOffset, keySchema, key) != 0) {
+            if (filtered) {
+                metadata.countLeafFilterFalsePositive();
+            }
+            return Optional.empty();
+        }
+        int ridOffset = keyOffset + keySize;
+        return Optional.of(new RecordId(buf.getInt(ridOffset), buf.getShort(ridOffset + Integer.BYTES)));
+    }
+
     /**
      * LeafNode.fromBytes(m, p) loads a LeafNode from page p of
-     * meta.getAllocator().
+     * meta.getAllocator(), or copies it from the tree's node cache.
      */
     public static LeafNode fromBytes(BaseTransaction transaction, BPlusTreeMetadata metadata,
                                      int pageNum) {
-       // throw new UnsupportedOperationException("Implement this.");
+        BPlusNode cached = metadata.getNodeCache().get(pageNum);
+        if (cached instanceof LeafNode leaf) {
+            return leaf.copy();
+        }
+        return decode(transaction, metadata, pageNum);
+    }
+
+    /**
+     * Like fromBytes, but returns a cached leaf itself; see
+     * BPlusNode.readShared. The caller must not change the leaf.
+     */
+    static LeafNode readShared(BaseTransaction transaction, BPlusTreeMetadata metadata, int pageNum) {
+        BPlusNode cached = metadata.getNodeCache().get(pageNum);
+        if (cached instanceof LeafNode leaf) {
+            return leaf;
+        }
+        return decode(transaction, metadata, pageNum);
+    }
+
+    /** Decodes the LeafNode on page p, bypassing the node cache. */
+    static LeafNode decode(BaseTransaction transaction, BPlusTreeMetadata metadata, int pageNum) {
 
         // Get page with data on it
-        Page page = metadata.getAllocator().fetchPage(transaction, pageNum);
+        Page page = metadata.fetchPage(transaction, pageNum);
         Buffer buf = page.getBuffer(transaction);
 
-        // making sure this is a leaf node
-        assert(buf.get() == (byte)1);
+        // making sure this is still a leaf node
+        checkPageType(pageNum, buf.get(), true);
 
         //prepping keys, rids
-        var keys = new ArrayList<DataBox>();
-        var rids = new ArrayList<RecordId>();
         Optional<Integer> rightsib;
 
         if (buf.get() == (byte)1) {
@@ -390,16 +1180,54 @@ class LeafNode extends BPlusNode {
             rightsib = Optional.empty();
         }
 
+        Optional<Integer> leftsib = Optional.empty();
+        if (metadata.getFormatVersion() >= BPlusTreeMetadata.LEFT_SIBLINGS_VERSION) {
+            if (buf.get() == (byte) 1) {
+                leftsib = Optional.of(buf.getInt());
+            } else {
+                buf.getInt();
+            }
+        }
+
         int numOfKeys = buf.getInt();
+        var keys = NodeLists.newKeys(metadata.getKeySchema(), numOfKeys);
+        var rids = NodeLists.newRids(metadata.getKeySchema(), numOfKeys);
+        var values = metadata.hasIncludedColumns() ? new ArrayList<List<DataBox>>(numOfKeys) : null;
 
         // need info on how to interpret the bytes since it depends on the data type
+        if (metadata.isSlotted()) {
+            SlottedKeys.read(buf, metadata.getKeySchema(), numOfKeys, keys,
+                             i -> rids.add(new RecordId(buf.getInt(), buf.getShort())));
+            return new LeafNode(metadata,pageNum,keys,rids,values,leftsib,rightsib,transaction);
+        }
+        if (!metadata.isUnique()) {
+            PostingLists.read(buf, metadata.getKeySchema(), numOfKeys, keys, rids);
+            for (int i = 0; values != null && i < numOfKeys; ++i) {
+                values.add(readValues(buf, metadata));
+            }
+            return new LeafNode(metadata,pageNum,keys,rids,values,leftsib,rightsib,transaction);
+        }
+
+        if (keys instanceof IntKeyList intKeys && rids instanceof RecordIdList ridList) {
+            for (int i = 0; i < numOfKeys; ++i) {
+                intKeys.addInt(buf.getInt());
+                ridList.addRid(buf.getInt(), buf.getShort());
+                if (values != null) {
+                    values.add(readValues(buf, metadata));
+                }
+            }
+            return new LeafNode(metadata,pageNum,keys,rids,values,leftsib,rightsib,transaction);
+        }
 
         for (int i = 0; i < numOfKeys; ++i) {
             keys.add(DataBox.fromBytes(buf,metadata.getKeySchema()));
             rids.add(new RecordId(buf.getInt(),buf.getShort()));
+            if (values != null) {
+                values.add(readValues(buf, metadata));
+            }
         }
 
-        return new LeafNode(metadata,pageNum,keys,rids,rightsib,transaction);
+        return new LeafNode(metadata,pageNum,keys,rids,values,leftsib,rightsib,transaction);
 
     }
 
@@ -415,11 +1243,13 @@ class LeafNode extends BPlusNode {
         return page.getPageNum() == node.page.getPageNum() &&
                keys.equals(node.keys) &&
                rids.equals(node.rids) &&
-               rightSibling.equals(node.rightSibling);
+               Objects.equals(values, node.values) &&
+               rightSibling.equals(node.rightSibling) &&
+               leftSibling.equals(node.leftSibling);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(page.getPageNum(), keys, rids, rightSibling);
+        return Objects.hash(page.getPageNum(), keys, rids, values, rightSibling, leftSibling);
     }
 }
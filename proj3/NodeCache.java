@@ -0,0 +1,143 @@
+package edu.umd.cs424.database.index;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded, least recently used cache of decoded B+ tree nodes keyed by the
+ * number of the page they are serialized on.
+ *
+ * Every node that is synced to its page is written through to the cache (see
+ * BPlusNode.sync), so the cached node of a page is always the one last written
+ * to it. The cache never keeps a node it was handed: put caches a copy (see
+ * BPlusNode.copy), and nobody ever changes the cached copy. get hands out the
+ * cached node itself, which is thus shared by every thread that reads the
+ * page. Callers that change the node they read must copy it first, which
+ * BPlusNode.fromBytes does; read-only callers use BPlusNode.readShared and
+ * copy nothing. Changes that are never synced (say, because an operation
+ * failed half way) are never seen by anybody else. This avoids the stale copy
+ * hazard described above LeafNode.keys.
+ *
+ * The cache is split into stripes by page number, each with its own monitor
+ * and its own share of the capacity, so that threads reading different pages
+ * rarely wait for each other. Each stripe evicts its own least recently used
+ * node.
+ */
+class NodeCache {
+    private static final int NUM_STRIPES = 16;
+
+    private final Stripe[] stripes = new Stripe[NUM_STRIPES];
+    private volatile int capacity;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private static class Stripe {
+        private int capacity;
+        private final LinkedHashMap<Integer, BPlusNode> nodes = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, BPlusNode> eldest) {
+                return size() > Stripe.this.capacity;
+            }
+        };
+    }
+
+    NodeCache(int capacity) {
+        for (int i = 0; i < NUM_STRIPES; ++i) {
+            stripes[i] = new Stripe();
+        }
+        setCapacity(capacity);
+    }
+
+    private Stripe stripe(int pageNum) {
+        return stripes[Math.floorMod(pageNum, NUM_STRIPES)];
+    }
+
+    /**
+     * Returns the cached node on page `pageNum`, or null if it is not cached.
+     * The node is shared with every other caller and must not be changed.
+     */
+    BPlusNode get(int pageNum) {
+        Stripe stripe = stripe(pageNum);
+        BPlusNode node;
+        synchronized (stripe) {
+            node = stripe.nodes.get(pageNum);
+        }
+        (node == null ? misses : hits).increment();
+        return node;
+    }
+
+    /** Caches a copy of `node`, replacing any node previously cached for its page. */
+    void put(BPlusNode node) {
+        if (capacity == 0) {
+            return;
+        }
+        BPlusNode copy = node.copy();
+        copy.prepareForSharing();
+        int pageNum = node.getPage().getPageNum();
+        Stripe stripe = stripe(pageNum);
+        synchronized (stripe) {
+            if (stripe.capacity > 0) {
+                stripe.nodes.put(pageNum, copy);
+            }
+        }
+    }
+
+    /** Drops the node cached for page `pageNum`, if any. */
+    void invalidate(int pageNum) {
+        Stripe stripe = stripe(pageNum);
+        synchronized (stripe) {
+            stripe.nodes.remove(pageNum);
+        }
+    }
+
+    void clear() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.nodes.clear();
+            }
+        }
+    }
+
+    /**
+     * Changes the maximum number of cached nodes, evicting the least recently
+     * used nodes of each stripe if it now has too many. A capacity of 0
+     * disables caching.
+     */
+    synchronized void setCapacity(int capacity) {
+        this.capacity = capacity;
+        for (int i = 0; i < NUM_STRIPES; ++i) {
+            Stripe stripe = stripes[i];
+            synchronized (stripe) {
+                stripe.capacity = capacity / NUM_STRIPES + (i < capacity % NUM_STRIPES ? 1 : 0);
+                var it = stripe.nodes.entrySet().iterator();
+                while (stripe.nodes.size() > stripe.capacity && it.hasNext()) {
+                    it.next();
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.nodes.size();
+            }
+        }
+        return size;
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+}
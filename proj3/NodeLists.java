@@ -0,0 +1,67 @@
+package edu.umd.cs424.database.index;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import edu.umd.cs424.database.databox.DataBox;
+import edu.umd.cs424.database.databox.Type;
+import edu.umd.cs424.database.databox.TypeId;
+import edu.umd.cs424.database.table.RecordId;
+
+/**
+ * Creates the lists that nodes keep their keys and record ids in. Trees with
+ * integer keys get primitive-backed lists (IntKeyList and RecordIdList); all
+ * other trees get ArrayLists.
+ */
+final class NodeLists {
+    private NodeLists() {}
+
+    /** Returns whether nodes with keys of type `keySchema` use primitive lists. */
+    static boolean isSpecialized(Type keySchema) {
+        return keySchema.getTypeId() == TypeId.INT;
+    }
+
+    static List<DataBox> newKeys(Type keySchema, int capacity) {
+        return isSpecialized(keySchema) ? new IntKeyList(capacity) : new ArrayList<>(capacity);
+    }
+
+    static List<DataBox> copyOfKeys(Type keySchema, Collection<? extends DataBox> keys) {
+        return isSpecialized(keySchema) ? new IntKeyList(keys) : new ArrayList<>(keys);
+    }
+
+    /** Returns `keys` if it already is the right kind of list, or a copy. */
+    static List<DataBox> adoptKeys(Type keySchema, List<DataBox> keys) {
+        if (!isSpecialized(keySchema) || keys instanceof IntKeyList) {
+            return keys;
+        }
+        return new IntKeyList(keys);
+    }
+
+    static List<RecordId> newRids(Type keySchema, int capacity) {
+        return isSpecialized(keySchema) ? new RecordIdList(capacity) : new ArrayList<>(capacity);
+    }
+
+    static List<RecordId> copyOfRids(Type keySchema, Collection<? extends RecordId> rids) {
+        return isSpecialized(keySchema) ? new RecordIdList(rids) : new ArrayList<>(rids);
+    }
+
+    /** Returns `rids` if it already is the right kind of list, or a copy. */
+    static List<RecordId> adoptRids(Type keySchema, List<RecordId> rids) {
+        if (!isSpecialized(keySchema) || rids instanceof RecordIdList) {
+            return rids;
+        }
+        return new RecordIdList(rids);
+    }
+
+    /**
+     * Compares keys.get(i) with `key` without materializing keys.get(i) if keys
+     * is an IntKeyList.
+     */
+    static int compare(List<DataBox> keys, int i, DataBox key) {
+        if (keys instanceof IntKeyList intKeys) {
+            return intKeys.compareAt(i, key);
+        }
+        return keys.get(i).compareTo(key);
+    }
+}
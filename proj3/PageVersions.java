@@ -0,0 +1,211 @@
+package edu.umd.cs424.database.index;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+/**
+ * Old versions of the nodes of a B+ tree, kept for as long as a snapshot that
+ * may read them is open (see BPlusTree.scanSnapshot).
+ *
+ * Every snapshot gets the version of the tree it was opened at. Whenever a page
+ * is about to be written while snapshots are open, the writer takes the next
+ * version and moves the node on the page so far to the page's chain of old
+ * versions (copy-on-write). A snapshot that reads a page written after it was
+ * opened is given the node from the chain instead, so it sees every page as it
+ * was at its version, no matter how the tree has changed since. Writes with no
+ * snapshot open keep nothing and take no version.
+ *
+ * A writer must hold the write latch of the page it writes, and a snapshot the
+ * read latch of the page it reads; that orders every write before or after
+ * every snapshot read of the page. Once a snapshot is closed, the versions no
+ * open snapshot can read anymore are dropped.
+ */
+final class PageVersions {
+    private final AtomicLong clock = new AtomicLong();
+    private final Set<Snapshot> snapshots = ConcurrentHashMap.newKeySet();
+
+    // Write latched to open or close a snapshot, and read latched by a writer
+    // that keeps a version, from the moment it finds snapshots open until the
+    // version is in its chain. Otherwise the last snapshot could close, and
+    // reclaim, in between, and nothing would ever drop the version.
+    private final ReentrantReadWriteLock guard = new ReentrantReadWriteLock();
+
+    // The version at which every page written while snapshots were open was
+    // last written. Pages that are missing were written before every open
+    // snapshot.
+    private final ConcurrentHashMap<Integer, Long> lastWritten = new ConcurrentHashMap<>();
+
+    // The old versions of every page, oldest first. Each one is the node the
+    // page held up to, but not including, its `until` version. Guarded by the
+    // deque itself.
+    private final ConcurrentHashMap<Integer, Deque<Version>> chains = new ConcurrentHashMap<>();
+
+    // Whether this thread is decoding an old version. Decoding a node syncs it
+    // to its page, which must not keep a version of its own.
+    private final ThreadLocal<Boolean> decoding = ThreadLocal.withInitial(() -> false);
+
+    private static final class Version {
+        private final BPlusNode node;
+        private final long until;
+
+        Version(BPlusNode node, long until) {
+            this.node = node;
+            this.until = until;
+        }
+    }
+
+    /** A view of the tree as of the version at which it was opened. */
+    final class Snapshot {
+        private final long version;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Snapshot(long version) {
+            this.version = version;
+        }
+
+        /**
+         * Returns the node on page `pageNum` as of this snapshot's version, or
+         * `current` if the page has not been written since. Must be called with
+         * the read latch of the page held.
+         */
+        BPlusNode read(int pageNum, Supplier<BPlusNode> current) {
+            Long written = lastWritten.get(pageNum);
+            if (written == null || written <= version) {
+                return current.get();
+            }
+            Deque<Version> chain = chains.get(pageNum);
+            if (chain != null) {
+                synchronized (chain) {
+                    for (Version old : chain) {
+                        if (old.until > version) {
+                            return old.node;
+                        }
+                    }
+                }
+            }
+            String msg = String.format("Page %d has no version %d.", pageNum, version);
+            throw new IllegalStateException(msg);
+        }
+
+        /** Closes this snapshot, if it is not closed yet. */
+        void close() {
+            if (closed.compareAndSet(false, true)) {
+                guard.writeLock().lock();
+                try {
+                    snapshots.remove(this);
+                    reclaim();
+                } finally {
+                    guard.writeLock().unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens a snapshot of the tree as it is now. The caller must keep writers
+     * that change more than one page out while opening it, so that it never
+     * sees half of such a change.
+     */
+    Snapshot open() {
+        guard.writeLock().lock();
+        try {
+            var snapshot = new Snapshot(clock.get());
+            snapshots.add(snapshot);
+            return snapshot;
+        } finally {
+            guard.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Called right before page `pageNum` is overwritten, with its write latch
+     * held. If snapshots are open, `old` is called to decode the node on the
+     * page so far, which is kept for them.
+     */
+    void beforeWrite(int pageNum, Supplier<BPlusNode> old) {
+        if (decoding.get()) {
+            return;
+        }
+        if (snapshots.isEmpty()) {
+            forget(pageNum);
+            return;
+        }
+        guard.readLock().lock();
+        try {
+            // The last snapshot may have closed since we looked.
+            if (snapshots.isEmpty()) {
+                forget(pageNum);
+                return;
+            }
+            long version = clock.incrementAndGet();
+            BPlusNode node;
+            decoding.set(true);
+            try {
+                node = old.get();
+            } finally {
+                decoding.set(false);
+            }
+            var kept = new Version(node, version);
+            chains.compute(pageNum, (p, chain) -> {
+                if (chain == null) {
+                    chain = new ArrayDeque<>();
+                }
+                synchronized (chain) {
+                    chain.addLast(kept);
+                }
+                return chain;
+            });
+            lastWritten.put(pageNum, version);
+        } finally {
+            guard.readLock().unlock();
+        }
+    }
+
+    // Any snapshot opened from now on sees the write to page `pageNum`.
+    private void forget(int pageNum) {
+        if (!lastWritten.isEmpty()) {
+            lastWritten.remove(pageNum);
+        }
+    }
+
+    /** Returns the number of old versions of pages kept for open snapshots. */
+    int size() {
+        int size = 0;
+        for (Deque<Version> chain : chains.values()) {
+            synchronized (chain) {
+                size += chain.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Drops the versions that no open snapshot can read anymore. Must be called
+     * with the write latch of guard held.
+     */
+    private void reclaim() {
+        // Snapshots opened from now on are at least at the current version.
+        long horizon = clock.get();
+        for (Snapshot snapshot : snapshots) {
+            horizon = Math.min(horizon, snapshot.version);
+        }
+        long oldest = horizon;
+        lastWritten.entrySet().removeIf(e -> e.getValue() <= oldest);
+        for (Integer pageNum : chains.keySet()) {
+            chains.computeIfPresent(pageNum, (p, chain) -> {
+                synchronized (chain) {
+                    while (!chain.isEmpty() && chain.peekFirst().until <= oldest) {
+                        chain.pollFirst();
+                    }
+                    return chain.isEmpty() ? null : chain;
+                }
+            });
+        }
+    }
+}
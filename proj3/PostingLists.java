@@ -0,0 +1,175 @@
+package edu.umd.cs424.database.index;
+
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+import java.util.List;
+
+import edu.umd.cs424.database.common.Buffer;
+import edu.umd.cs424.database.databox.DataBox;
+import edu.umd.cs424.database.databox.Type;
+import edu.umd.cs424.database.table.RecordId;
+
+/**
+ * The serialization of the entries of a leaf of a B+ tree that allows
+ * duplicate keys (see BPlusTreeMetadata.isUnique).
+ *
+ * The entries of such a leaf are sorted by key and then by record id (see
+ * compare). Every run of entries with the same key is written as a posting
+ * list: the key once, the number of entries (4 bytes), the first record id in
+ * full (6 bytes) and every following record id as two varints,
+ *
+ *   - the difference between its page number and the previous one, and
+ *   - if that difference is 0, the difference between its entry number and the
+ *     previous one, otherwise its entry number.
+ *
+ * so the record ids of rows on the same page take two bytes instead of six and
+ * the key is not repeated. For example, the entries (5, (3, 1)), (5, (3, 4))
+ * and (5, (7, 2)) are written as
+ *
+ *   +-------------+-------------+-------------------+-------+-------+
+ *   | 00 00 00 05 | 00 00 00 03 | 00 00 00 03 00 01 | 00 03 | 04 02 |
+ *   +-------------+-------------+-------------------+-------+-------+
+ *        key          count           first rid       delta   delta
+ *
+ * The size of an entry only depends on the entry before it (see entrySize).
+ * Removing an entry never makes a serialization larger, and putting one makes
+ * it at most maxGrowth bytes larger.
+ */
+final class PostingLists {
+    private PostingLists() {}
+
+    // The order of the record ids of the entries of one key.
+    static final Comparator<RecordId> RID_ORDER =
+        Comparator.comparingInt(RecordId::getPageNum).thenComparingInt(RecordId::getEntryNum);
+
+    /** Compares the entries (key1, rid1) and (key2, rid2). */
+    static int compare(DataBox key1, RecordId rid1, DataBox key2, RecordId rid2) {
+        int cmp = key1.compareTo(key2);
+        if (cmp != 0) {
+            return cmp;
+        }
+        return RID_ORDER.compare(rid1, rid2);
+    }
+
+    /**
+     * Returns the number of bytes taken by the entry (key, rid) if it directly
+     * follows the entry (prevKey, prevRid), or starts the leaf if prevKey is
+     * null.
+     */
+    static int entrySize(int keySize, DataBox prevKey, RecordId prevRid, DataBox key, RecordId rid) {
+        if (prevKey == null || prevKey.compareTo(key) != 0) {
+            return keySize + Integer.BYTES + RecordId.getSizeInBytes();
+        }
+        int pageDelta = rid.getPageNum() - prevRid.getPageNum();
+        int entry = pageDelta == 0 ? rid.getEntryNum() - prevRid.getEntryNum() : rid.getEntryNum();
+        return varintSize(pageDelta) + varintSize(entry);
+    }
+
+    /**
+     * Returns an upper bound on how many bytes putting a single entry adds to
+     * a serialization: a new run, or a new record id in a run plus the change to
+     * the delta of the record id after it.
+     */
+    static int maxGrowth(int keySize) {
+        return keySize + 20;
+    }
+
+    /**
+     * Returns the number of bytes taken by the first i entries of `keys` and
+     * `rids`, for every i from 0 to keys.size().
+     */
+    static int[] prefixSizes(List<DataBox> keys, List<RecordId> rids, int keySize) {
+        int[] sizes = new int[keys.size() + 1];
+        for (int i = 0; i < keys.size(); ++i) {
+            DataBox prevKey = i == 0 ? null : keys.get(i - 1);
+            RecordId prevRid = i == 0 ? null : rids.get(i - 1);
+            sizes[i + 1] = sizes[i] + entrySize(keySize, prevKey, prevRid, keys.get(i), rids.get(i));
+        }
+        return sizes;
+    }
+
+    /** Returns the number of bytes taken by `keys` and `rids`. */
+    static int size(List<DataBox> keys, List<RecordId> rids, int keySize) {
+        return prefixSizes(keys, rids, keySize)[keys.size()];
+    }
+
+    /** Writes `keys` and `rids`, which must be sorted, to `buf`. */
+    static void write(ByteBuffer buf, List<DataBox> keys, List<RecordId> rids) {
+        int start = 0;
+        while (start < keys.size()) {
+            DataBox key = keys.get(start);
+            int end = start + 1;
+            while (end < keys.size() && keys.get(end).compareTo(key) == 0) {
+                ++end;
+            }
+
+            buf.put(key.toBytes());
+            buf.putInt(end - start);
+            buf.put(rids.get(start).toBytes());
+            for (int i = start + 1; i < end; ++i) {
+                RecordId prev = rids.get(i - 1);
+                RecordId rid = rids.get(i);
+                int pageDelta = rid.getPageNum() - prev.getPageNum();
+                putVarint(buf, pageDelta);
+                putVarint(buf, pageDelta == 0 ? rid.getEntryNum() - prev.getEntryNum() : rid.getEntryNum());
+            }
+            start = end;
+        }
+    }
+
+    /**
+     * Reads `numEntries` entries with keys of type `keySchema` from `buf`,
+     * appending them to `keys` and `rids`.
+     */
+    static void read(Buffer buf, Type keySchema, int numEntries, List<DataBox> keys, List<RecordId> rids) {
+        while (keys.size() < numEntries) {
+            DataBox key = DataBox.fromBytes(buf, keySchema);
+            int count = buf.getInt();
+            RecordId rid = new RecordId(buf.getInt(), buf.getShort());
+            keys.add(key);
+            rids.add(rid);
+            for (int i = 1; i < count; ++i) {
+                int pageDelta = getVarint(buf);
+                int entry = getVarint(buf);
+                if (pageDelta == 0) {
+                    rid = new RecordId(rid.getPageNum(), (short) (rid.getEntryNum() + entry));
+                } else {
+                    rid = new RecordId(rid.getPageNum() + pageDelta, (short) entry);
+                }
+                keys.add(key);
+                rids.add(rid);
+            }
+        }
+    }
+
+    // Varints /////////////////////////////////////////////////////////////////
+    // Non-negative ints are written 7 bits at a time, least significant first,
+    // with the high bit of every byte but the last set.
+    static int varintSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            ++size;
+        }
+        return size;
+    }
+
+    private static void putVarint(ByteBuffer buf, int value) {
+        while ((value & ~0x7F) != 0) {
+            buf.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte) value);
+    }
+
+    private static int getVarint(Buffer buf) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buf.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
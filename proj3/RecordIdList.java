@@ -0,0 +1,134 @@
+package edu.umd.cs424.database.index;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.RandomAccess;
+
+import edu.umd.cs424.database.table.RecordId;
+
+/**
+ * A list of record ids backed by parallel int[] and short[] arrays of page and
+ * entry numbers. Leaves of trees with integer keys use it alongside an
+ * IntKeyList; see NodeLists.
+ *
+ * get returns a fresh RecordId on every call.
+ */
+final class RecordIdList extends AbstractList<RecordId> implements RandomAccess {
+    private int[] pageNums;
+    private short[] entryNums;
+    private int size;
+
+    RecordIdList(int capacity) {
+        capacity = Math.max(capacity, 4);
+        this.pageNums = new int[capacity];
+        this.entryNums = new short[capacity];
+        this.size = 0;
+    }
+
+    RecordIdList(Collection<? extends RecordId> rids) {
+        this(rids.size());
+        for (RecordId rid : rids) {
+            addRid(rid.getPageNum(), rid.getEntryNum());
+        }
+    }
+
+    /** Appends the record id (pageNum, entryNum). */
+    void addRid(int pageNum, short entryNum) {
+        ensureCapacity(size + 1);
+        pageNums[size] = pageNum;
+        entryNums[size] = entryNum;
+        ++size;
+        ++modCount;
+    }
+
+    int getPageNum(int i) {
+        checkIndex(i, size);
+        return pageNums[i];
+    }
+
+    short getEntryNum(int i) {
+        checkIndex(i, size);
+        return entryNums[i];
+    }
+
+    @Override
+    public RecordId get(int i) {
+        checkIndex(i, size);
+        return new RecordId(pageNums[i], entryNums[i]);
+    }
+
+    @Override
+    public RecordId set(int i, RecordId rid) {
+        RecordId old = get(i);
+        pageNums[i] = rid.getPageNum();
+        entryNums[i] = rid.getEntryNum();
+        return old;
+    }
+
+    @Override
+    public void add(int i, RecordId rid) {
+        checkIndex(i, size + 1);
+        ensureCapacity(size + 1);
+        System.arraycopy(pageNums, i, pageNums, i + 1, size - i);
+        System.arraycopy(entryNums, i, entryNums, i + 1, size - i);
+        pageNums[i] = rid.getPageNum();
+        entryNums[i] = rid.getEntryNum();
+        ++size;
+        ++modCount;
+    }
+
+    @Override
+    public boolean addAll(int i, Collection<? extends RecordId> rids) {
+        checkIndex(i, size + 1);
+        int n = rids.size();
+        ensureCapacity(size + n);
+        System.arraycopy(pageNums, i, pageNums, i + n, size - i);
+        System.arraycopy(entryNums, i, entryNums, i + n, size - i);
+        for (RecordId rid : rids) {
+            pageNums[i] = rid.getPageNum();
+            entryNums[i] = rid.getEntryNum();
+            ++i;
+        }
+        size += n;
+        ++modCount;
+        return n > 0;
+    }
+
+    @Override
+    public RecordId remove(int i) {
+        RecordId old = get(i);
+        System.arraycopy(pageNums, i + 1, pageNums, i, size - i - 1);
+        System.arraycopy(entryNums, i + 1, entryNums, i, size - i - 1);
+        --size;
+        ++modCount;
+        return old;
+    }
+
+    @Override
+    protected void removeRange(int from, int to) {
+        System.arraycopy(pageNums, to, pageNums, from, size - to);
+        System.arraycopy(entryNums, to, entryNums, from, size - to);
+        size -= to - from;
+        ++modCount;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > pageNums.length) {
+            int newCapacity = Math.max(capacity, 2 * pageNums.length);
+            pageNums = Arrays.copyOf(pageNums, newCapacity);
+            entryNums = Arrays.copyOf(entryNums, newCapacity);
+        }
+    }
+
+    private static void checkIndex(int i, int size) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException(String.format("Index %d, size %d.", i, size));
+        }
+    }
+}
@@ -0,0 +1,872 @@
+package edu.umd.cs424.database.index;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntFunction;
+import java.util.function.LongFunction;
+import java.util.function.ObjIntConsumer;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+import edu.umd.cs424.database.common.Pair;
+
+/**
+ * The redo log of a B+ tree (see BPlusTree.setRedoLogged), which makes every
+ * put and remove durable once it returns without writing the pages it changed
+ * back to disk, and lets a tree that was not closed be opened again as of its
+ * last completed operation.
+ *
+ * The log is a file of records, each of which holds the images of one or more
+ * pages: the bytes that a node (see BPlusNode.sync), a free page (see
+ * BPlusTreeMetadata.freePage) or the header page start with after a write.
+ * The images of all the pages that one operation writes are appended as a
+ * single record, so an operation is either in the log as a whole or not at
+ * all; a split never is half redone. Every record has a log sequence number
+ * (LSN), and a checksum that tells a record cut short by a crash from one
+ * that was written in full. An operation that writes more than
+ * MAX_PENDING_BYTES of images, such as a bulk load or a large putAll, appends
+ * them as a series of chunks instead of keeping them all in memory, and
+ * recovery only applies the chunks of an operation once it reaches the last
+ * one.
+ *
+ * Records are appended to an in-memory buffer, and an operation only waits for
+ * its record to be on disk (see awaitCommitted). Whichever waiting thread gets
+ * there first writes and forces the whole buffer, so all the operations that
+ * were appended meanwhile share one force (group commit).
+ *
+ * Pages themselves reach the disk whenever the page allocator writes them
+ * back, which may be in the middle of an operation. So the first time a page
+ * is written while the log is open, its image as it was is appended and
+ * written to the file before the write, and recovery can start every page in
+ * the log from a state that no operation has half changed. The image is only
+ * forced along with the record of the operation, so that a writer never waits
+ * for the disk while it holds the latch of a page. Pages that are allocated at
+ * the end of the file while the log is open need no such image.
+ *
+ * Without a checkpoint, recovery would replay every operation since the log
+ * was opened. A checkpoint writes a new log that holds one image of every
+ * page in the old one, followed by the records appended while it ran, and
+ * replaces the old log with it. Recovery then replays at most one image per
+ * page plus the records since the last checkpoint. Only the pages that had
+ * images appended since the last checkpoint are copied from the tree; those
+ * of the others are copied from the old log, which keeps track of where the
+ * last image of every page is (see ImageRef). The pages are copied while
+ * writers keep going, each one with the LSN of the last record appended
+ * before it was copied, and recovery skips the records of a page that are
+ * older than its image. The log is deleted when the tree is closed, after the
+ * allocator has written back every page.
+ *
+ * Records are appended in the order their operations finish. That is only the
+ * order in which they changed the tree if no operation can see the changes of
+ * another before they are appended: writers append their record before
+ * releasing the latches of the pages they changed, and BPlusTree keeps
+ * rootLatch (see newLatch) for the whole of every operation that changes
+ * more than one page or the header page while the log is open. Such an
+ * operation may release the latches of pages below it before its record is
+ * appended, so a checkpoint copies every page under rootLatch as well (see
+ * checkpoint).
+ */
+final class RedoLog {
+    // The default number of bytes appended to the log after which it is
+    // checkpointed.
+    static final long DEFAULT_CHECKPOINT_INTERVAL = 64L << 20;
+
+    // The number of bytes of images a thread collects before it appends them as
+    // a chunk of its operation's record.
+    static final int MAX_PENDING_BYTES = 1 << 20;
+
+    // A record is its length (4 bytes, not counting the length and checksum),
+    // a CRC-32 of the rest (4 bytes), its LSN (8 bytes), its number of images
+    // (4 bytes), and every image as its page number (4 bytes), its length (4
+    // bytes) and its bytes. A chunk writes its number of images n as -1 - n,
+    // followed by the LSN of the first chunk of its operation (8 bytes) and
+    // whether it is the last one (1 byte).
+    private static final int RECORD_HEADER_SIZE = 2 * Integer.BYTES;
+    private static final int RECORD_BODY_HEADER_SIZE = Long.BYTES + Integer.BYTES;
+    private static final int CHUNK_HEADER_SIZE = Long.BYTES + 1;
+    private static final int IMAGE_HEADER_SIZE = 2 * Integer.BYTES;
+
+    // Held while records are written from the buffer to the file, so that they
+    // are written in order. Taken before `lock`.
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    // Guards all the fields below but `covered` and `checkpointInterval`.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition forced = lock.newCondition();
+
+    // The log file, or null if the log is not open.
+    private Path path;
+    private volatile FileChannel channel;
+
+    // Records appended but not written to the file yet.
+    private final ByteArrayOutputStream unwritten = new ByteArrayOutputStream();
+
+    // The LSN of the last record appended, of the last one written to the
+    // file, and of the last one that is on disk, along with the size of the
+    // file up to the end of the last one appended and the last one written.
+    private long lastLsn = 0;
+    private long writtenLsn = 0;
+    private long durableLsn = 0;
+    private long appendedSize = 0;
+    private long writtenSize = 0;
+
+    // Whether a thread is forcing the file.
+    private boolean forcing = false;
+
+    // Where the last image of every page is in the file, and the pages that
+    // images have been appended for since the last checkpoint started.
+    private final Map<Integer, ImageRef> images = new HashMap<>();
+    private Set<Integer> dirty = new HashSet<>();
+
+    // The size of the file right after the last checkpoint.
+    private long checkpointSize = 0;
+    private volatile long checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+    private final ReentrantLock checkpointLock = new ReentrantLock();
+
+    // The pages whose state recovery takes from the log alone: pages that have
+    // an image in the log, and pages allocated since the log was opened.
+    private final Set<Integer> covered = ConcurrentHashMap.newKeySet();
+
+    // The images written by this thread that are not in the log yet, their
+    // size, the LSN of the first chunk of the operation if it has appended
+    // any, and the LSN of the last record it appended.
+    private final ThreadLocal<Pending> pending = ThreadLocal.withInitial(Pending::new);
+
+    private static final class Pending {
+        private final Map<Integer, byte[]> images = new LinkedHashMap<>();
+        private int bytes = 0;
+        private long firstChunkLsn = 0;
+        private long lsn = 0;
+
+        private void clear() {
+            images.clear();
+            bytes = 0;
+        }
+    }
+
+    /**
+     * Where an image of a page is in the log file: the LSN it is applied as,
+     * and the position and length of its bytes.
+     */
+    private static final class ImageRef {
+        private final long lsn;
+        private final long position;
+        private final int length;
+
+        private ImageRef(long lsn, long position, int length) {
+            this.lsn = lsn;
+            this.position = position;
+            this.length = length;
+        }
+    }
+
+    /** What recovery found in a log; see replay. */
+    static final class Replay {
+        private final long lastLsn;
+        private final long size;
+        private final Map<Integer, ImageRef> images;
+
+        private Replay(long lastLsn, long size, Map<Integer, ImageRef> images) {
+            this.lastLsn = lastLsn;
+            this.size = size;
+            this.images = images;
+        }
+    }
+
+    /**
+     * A read-write latch that appends the images written by the thread that
+     * releases it to the log first (see commit), in either mode.
+     */
+    final class Latch extends ReentrantReadWriteLock {
+        private static final long serialVersionUID = 1L;
+
+        private final ReadLock readLock = new ReadLock(this) {
+            @Override
+            public void unlock() {
+                commit();
+                super.unlock();
+            }
+        };
+
+        private final WriteLock writeLock = new WriteLock(this) {
+            @Override
+            public void unlock() {
+                commit();
+                super.unlock();
+            }
+        };
+
+        private Latch() {}
+
+        @Override
+        public ReadLock readLock() {
+            return readLock;
+        }
+
+        @Override
+        public WriteLock writeLock() {
+            return writeLock;
+        }
+    }
+
+    Latch newLatch() {
+        return new Latch();
+    }
+
+    boolean isOpen() {
+        return channel != null;
+    }
+
+    /** Opens a new, empty log at `path`, replacing any file there. */
+    void open(Path path) {
+        try {
+            openChannel(path, FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                               StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Opens the log at `path` that `replay` was replayed from, and goes on
+     * appending to it.
+     */
+    void resume(Path path, Replay replay) {
+        try {
+            openChannel(path, FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        lock.lock();
+        try {
+            lastLsn = replay.lastLsn;
+            writtenLsn = replay.lastLsn;
+            durableLsn = replay.lastLsn;
+            appendedSize = replay.size;
+            writtenSize = replay.size;
+            checkpointSize = 0;
+            images.putAll(replay.images);
+        } finally {
+            lock.unlock();
+        }
+        covered.addAll(replay.images.keySet());
+    }
+
+    private void openChannel(Path path, FileChannel channel) throws IOException {
+        lock.lock();
+        try {
+            channel.position(channel.size());
+            this.path = path;
+            this.channel = channel;
+            lastLsn = 0;
+            writtenLsn = 0;
+            durableLsn = 0;
+            appendedSize = channel.size();
+            writtenSize = appendedSize;
+            checkpointSize = appendedSize;
+            unwritten.reset();
+            images.clear();
+            dirty.clear();
+        } finally {
+            lock.unlock();
+        }
+        covered.clear();
+    }
+
+    /**
+     * Marks pages 0 to numPages - 1 as holding writes that may not be on disk,
+     * so that the next checkpoint copies all of them to the log. This is how a
+     * tree that has been written to without a log starts one.
+     */
+    void cover(int numPages) {
+        lock.lock();
+        try {
+            for (int pageNum = 0; pageNum < numPages; ++pageNum) {
+                covered.add(pageNum);
+                dirty.add(pageNum);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Called when page `pageNum` is allocated at the end of the file. */
+    void allocated(int pageNum) {
+        if (isOpen()) {
+            covered.add(pageNum);
+        }
+    }
+
+    /**
+     * Called right before page `pageNum` is written. If the page has not been
+     * written since the log was opened, `current` is called to read the whole
+     * page as it is, which is appended and written to the file before the
+     * write. It is forced along with the next record of this thread (see
+     * awaitCommitted).
+     */
+    void beforeWrite(int pageNum, Supplier<byte[]> current) {
+        if (isOpen() && covered.add(pageNum)) {
+            long lsn = append(Map.of(pageNum, current.get()));
+            write(lsn);
+            Pending p = pending.get();
+            p.lsn = Math.max(p.lsn, lsn);
+        }
+    }
+
+    /**
+     * Called right after page `pageNum` was written, with the bytes that the
+     * page now starts with. They are appended with the next record of this
+     * thread, i.e. when it releases a latch or commits, unless this thread has
+     * collected more than MAX_PENDING_BYTES of them by then, in which case
+     * they are appended and forced as a chunk right away.
+     */
+    void written(int pageNum, byte[] image) {
+        if (!isOpen()) {
+            return;
+        }
+        Pending p = pending.get();
+        byte[] old = p.images.put(pageNum, image);
+        p.bytes += image.length - (old == null ? 0 : old.length);
+        if (p.bytes > MAX_PENDING_BYTES) {
+            long lsn = appendChunk(p.images, p.firstChunkLsn, false);
+            if (p.firstChunkLsn == 0) {
+                p.firstChunkLsn = lsn;
+            }
+            p.clear();
+            force(lsn);
+        }
+    }
+
+    /**
+     * Appends all the images this thread has written since it last committed
+     * as a single record, if there are any, or as the last chunk of the record
+     * if it has appended chunks of it already.
+     */
+    void commit() {
+        if (!isOpen()) {
+            return;
+        }
+        Pending p = pending.get();
+        if (p.firstChunkLsn != 0) {
+            p.lsn = appendChunk(p.images, p.firstChunkLsn, true);
+            p.firstChunkLsn = 0;
+            p.clear();
+        } else if (!p.images.isEmpty()) {
+            p.lsn = append(p.images);
+            p.clear();
+        }
+    }
+
+    /**
+     * Commits (see commit) and waits until every record this thread has
+     * appended is on disk.
+     */
+    void awaitCommitted() {
+        if (!isOpen()) {
+            return;
+        }
+        commit();
+        force(pending.get().lsn);
+    }
+
+    void setCheckpointInterval(long checkpointInterval) {
+        if (checkpointInterval <= 0) {
+            String msg = String.format("The checkpoint interval must be positive, not %d.", checkpointInterval);
+            throw new IllegalArgumentException(msg);
+        }
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    /** Returns the number of bytes in the log, or 0 if it is not open. */
+    long size() {
+        lock.lock();
+        try {
+            return isOpen() ? appendedSize : 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checkpoints the log if more than the checkpoint interval has been
+     * appended since the last checkpoint, and no other checkpoint is running.
+     */
+    void checkpointIfDue(IntFunction<List<Lock>> latchesOf, IntFunction<byte[]> read) {
+        if (isOpen() && size() - checkpointSize() > checkpointInterval && checkpointLock.tryLock()) {
+            try {
+                if (size() - checkpointSize() > checkpointInterval) {
+                    runCheckpoint(latchesOf, read);
+                }
+            } finally {
+                checkpointLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Checkpoints the log. Every page that had an image appended since the
+     * last checkpoint is read with `read` while holding the latches `latchesOf`
+     * returns for it, taken in order. They must keep out every writer that has
+     * changed the page but not appended its record yet, so that a checkpoint
+     * never copies half of an operation.
+     */
+    void checkpoint(IntFunction<List<Lock>> latchesOf, IntFunction<byte[]> read) {
+        checkpointLock.lock();
+        try {
+            runCheckpoint(latchesOf, read);
+        } finally {
+            checkpointLock.unlock();
+        }
+    }
+
+    private long checkpointSize() {
+        lock.lock();
+        try {
+            return checkpointSize;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void runCheckpoint(IntFunction<List<Lock>> latchesOf, IntFunction<byte[]> read) {
+        if (!isOpen()) {
+            return;
+        }
+        // Every record in the file up to `startSize` is reflected in the images
+        // copied below. The pages that had none appended since the last
+        // checkpoint started still have their last image in there.
+        force(lastLsn());
+        long startSize;
+        Map<Integer, ImageRef> startImages;
+        Set<Integer> startDirty;
+        lock.lock();
+        try {
+            startSize = writtenSize;
+            startImages = new HashMap<>(images);
+            startDirty = dirty;
+            dirty = new HashSet<>();
+        } finally {
+            lock.unlock();
+        }
+        var pageNums = new TreeSet<Integer>(covered);
+        pageNums.addAll(startImages.keySet());
+
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        FileChannel out = null;
+        try {
+            out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                   StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            var newImages = new HashMap<Integer, ImageRef>();
+            for (int pageNum : pageNums) {
+                ImageRef old = startImages.get(pageNum);
+                long lsn;
+                byte[] image;
+                if (startDirty.contains(pageNum)) {
+                    List<Lock> latches = latchesOf.apply(pageNum);
+                    latches.forEach(Lock::lock);
+                    try {
+                        lsn = lastLsn();
+                        image = read.apply(pageNum);
+                    } finally {
+                        for (int i = latches.size() - 1; i >= 0; --i) {
+                            latches.get(i).unlock();
+                        }
+                    }
+                } else if (old != null) {
+                    lsn = old.lsn;
+                    ByteBuffer buf = ByteBuffer.allocate(old.length);
+                    readFully(channel, buf, old.position);
+                    image = buf.array();
+                } else {
+                    // Allocated, but not written by any operation that has
+                    // appended its record yet.
+                    continue;
+                }
+                long position = out.position() + RECORD_HEADER_SIZE + RECORD_BODY_HEADER_SIZE + IMAGE_HEADER_SIZE;
+                writeFully(out, encode(lsn, Map.of(pageNum, image)));
+                newImages.put(pageNum, new ImageRef(lsn, position, image.length));
+            }
+
+            writeLock.lock();
+            lock.lock();
+            try {
+                while (forcing) {
+                    forced.awaitUninterruptibly();
+                }
+                // Move the records appended since `startSize` over to the new log.
+                long shift = out.position() - startSize;
+                long position = startSize;
+                while (position < writtenSize) {
+                    position += channel.transferTo(position, writtenSize - position, out);
+                }
+                writeFully(out, ByteBuffer.wrap(unwritten.toByteArray()));
+                unwritten.reset();
+                out.force(false);
+                Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                channel.close();
+                channel = out;
+                out = null;
+                for (Map.Entry<Integer, ImageRef> entry : images.entrySet()) {
+                    ImageRef ref = entry.getValue();
+                    entry.setValue(ref.position >= startSize
+                                   ? new ImageRef(ref.lsn, ref.position + shift, ref.length)
+                                   : newImages.get(entry.getKey()));
+                }
+                images.values().removeIf(Objects::isNull);
+                writtenLsn = lastLsn;
+                durableLsn = lastLsn;
+                appendedSize = channel.size();
+                writtenSize = appendedSize;
+                checkpointSize = appendedSize;
+                forced.signalAll();
+            } finally {
+                lock.unlock();
+                writeLock.unlock();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                    Files.deleteIfExists(temp);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes the log and deletes its file. Only to be called once every page
+     * has been written back to disk.
+     */
+    void close() {
+        lock.lock();
+        try {
+            if (channel == null) {
+                return;
+            }
+            channel.close();
+            channel = null;
+            unwritten.reset();
+            images.clear();
+            dirty.clear();
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.unlock();
+        }
+        covered.clear();
+    }
+
+    /** Deletes the log at `path`, if there is one. */
+    static void discard(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Replays the log at `path`, if there is one, calling write(image,
+     * pageNum) for every image that recovery applies, in order. The log ends
+     * at the first record that was not written in full, and is cut there.
+     * Returns null if there is no log.
+     */
+    static Replay replay(Path path, ObjIntConsumer<byte[]> write) {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = in.size();
+            long position = 0;
+            long lastLsn = 0;
+            // The last image applied to every page.
+            var applied = new HashMap<Integer, ImageRef>();
+            // The images of the chunks read so far of every operation whose last
+            // chunk has not been read yet, by the LSN of its first chunk, with
+            // their positions.
+            var chunks = new HashMap<Long, Map<Integer, Pair<Long, byte[]>>>();
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            while (size - position >= RECORD_HEADER_SIZE) {
+                header.clear();
+                readFully(in, header, position);
+                int length = header.getInt(0);
+                int checksum = header.getInt(Integer.BYTES);
+                if (length < RECORD_BODY_HEADER_SIZE || length > size - position - RECORD_HEADER_SIZE) {
+                    break;
+                }
+                ByteBuffer body = ByteBuffer.allocate(length);
+                readFully(in, body, position + RECORD_HEADER_SIZE);
+                var crc = new CRC32();
+                crc.update(body.array());
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                body.flip();
+                long lsn = body.getLong();
+                int numImages = body.getInt();
+                Map<Integer, Pair<Long, byte[]>> images = new LinkedHashMap<>();
+                long firstChunkLsn = 0;
+                boolean isLastChunk = false;
+                if (numImages < 0) {
+                    numImages = -1 - numImages;
+                    firstChunkLsn = body.getLong();
+                    isLastChunk = body.get() == 1;
+                    images = chunks.computeIfAbsent(firstChunkLsn, first -> new LinkedHashMap<>());
+                }
+                for (int i = 0; i < numImages; ++i) {
+                    int pageNum = body.getInt();
+                    var image = new byte[body.getInt()];
+                    long imagePosition = position + RECORD_HEADER_SIZE + body.position();
+                    body.get(image);
+                    images.put(pageNum, new Pair<>(imagePosition, image));
+                }
+                // Chunks wait for the last chunk of their operation, and are then
+                // all applied as of its LSN.
+                if (firstChunkLsn == 0 || isLastChunk) {
+                    chunks.remove(firstChunkLsn);
+                    for (Map.Entry<Integer, Pair<Long, byte[]>> image : images.entrySet()) {
+                        int pageNum = image.getKey();
+                        byte[] bytes = image.getValue().getSecond();
+                        // A checkpoint taken before any record was appended copies
+                        // pages with LSN 0.
+                        ImageRef last = applied.get(pageNum);
+                        if (last == null || lsn > last.lsn) {
+                            write.accept(bytes, pageNum);
+                            applied.put(pageNum, new ImageRef(lsn, image.getValue().getFirst(), bytes.length));
+                        }
+                    }
+                }
+                lastLsn = Math.max(lastLsn, lsn);
+                position += RECORD_HEADER_SIZE + length;
+            }
+            in.truncate(position);
+            in.force(false);
+            return new Replay(lastLsn, position, applied);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private long lastLsn() {
+        lock.lock();
+        try {
+            return lastLsn;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Appends a record of `images` to the buffer, and returns its LSN. */
+    private long append(Map<Integer, byte[]> images) {
+        return append(images, 0, lsn -> encode(lsn, images));
+    }
+
+    /**
+     * Appends a chunk of `images` to the buffer, and returns its LSN. The first
+     * chunk of an operation passes 0 as `firstChunkLsn`, and the others the LSN
+     * returned for the first one.
+     */
+    private long appendChunk(Map<Integer, byte[]> images, long firstChunkLsn, boolean isLast) {
+        return append(images, CHUNK_HEADER_SIZE,
+                      lsn -> encodeChunk(lsn, images, firstChunkLsn == 0 ? lsn : firstChunkLsn, isLast));
+    }
+
+    /**
+     * Appends the record `encode` returns for the next LSN to the buffer, and
+     * returns its LSN. The record holds `images`, which start `extra` bytes
+     * after its body header.
+     */
+    private long append(Map<Integer, byte[]> images, int extra, LongFunction<ByteBuffer> encode) {
+        lock.lock();
+        try {
+            long lsn = ++lastLsn;
+            ByteBuffer record = encode.apply(lsn);
+            long position = appendedSize + RECORD_HEADER_SIZE + RECORD_BODY_HEADER_SIZE + extra;
+            for (Map.Entry<Integer, byte[]> image : images.entrySet()) {
+                position += IMAGE_HEADER_SIZE;
+                this.images.put(image.getKey(), new ImageRef(lsn, position, image.getValue().length));
+                dirty.add(image.getKey());
+                position += image.getValue().length;
+            }
+            unwritten.write(record.array(), 0, record.limit());
+            appendedSize += record.limit();
+            return lsn;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the record with LSN `lsn` is written to the file, writing
+     * out the buffer if it is not, but does not force it.
+     */
+    private void write(long lsn) {
+        writeLock.lock();
+        try {
+            byte[] batch;
+            long batchLsn;
+            FileChannel out;
+            lock.lock();
+            try {
+                // A thread may still remember an LSN of a log closed since.
+                if (writtenLsn >= Math.min(lsn, lastLsn) || channel == null) {
+                    return;
+                }
+                batch = unwritten.toByteArray();
+                unwritten.reset();
+                batchLsn = lastLsn;
+                out = channel;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                writeFully(out, ByteBuffer.wrap(batch));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            lock.lock();
+            try {
+                writtenLsn = batchLsn;
+                writtenSize += batch.length;
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the record with LSN `lsn` is on disk, writing it out (see
+     * write) and forcing the file if no other thread is. A force covers every
+     * record written before it started, so all the operations that were
+     * appended meanwhile share it.
+     */
+    private void force(long lsn) {
+        write(lsn);
+        while (true) {
+            long forceLsn;
+            FileChannel out;
+            lock.lock();
+            try {
+                long target = Math.min(lsn, lastLsn);
+                while (forcing && durableLsn < target) {
+                    forced.awaitUninterruptibly();
+                }
+                if (durableLsn >= target || channel == null) {
+                    return;
+                }
+                forcing = true;
+                forceLsn = writtenLsn;
+                out = channel;
+            } finally {
+                lock.unlock();
+            }
+
+            boolean done = false;
+            try {
+                out.force(false);
+                done = true;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                lock.lock();
+                try {
+                    forcing = false;
+                    if (done) {
+                        durableLsn = Math.max(durableLsn, forceLsn);
+                    }
+                    forced.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    private static ByteBuffer encode(long lsn, Map<Integer, byte[]> images) {
+        ByteBuffer record = allocateRecord(images, 0);
+        record.putLong(lsn);
+        record.putInt(images.size());
+        return finishRecord(record, images);
+    }
+
+    private static ByteBuffer encodeChunk(long lsn, Map<Integer, byte[]> images, long firstChunkLsn,
+                                          boolean isLast) {
+        ByteBuffer record = allocateRecord(images, CHUNK_HEADER_SIZE);
+        record.putLong(lsn);
+        record.putInt(-1 - images.size());
+        record.putLong(firstChunkLsn);
+        record.put((byte) (isLast ? 1 : 0));
+        return finishRecord(record, images);
+    }
+
+    /**
+     * Returns a buffer for a record of `images` with `extra` more bytes after
+     * its body header, positioned at its body header.
+     */
+    private static ByteBuffer allocateRecord(Map<Integer, byte[]> images, int extra) {
+        int length = RECORD_BODY_HEADER_SIZE + extra;
+        for (byte[] image : images.values()) {
+            length += IMAGE_HEADER_SIZE + image.length;
+        }
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+        record.putInt(length);
+        record.putInt(0);
+        return record;
+    }
+
+    /** Appends `images` to `record`, and fills in its checksum. */
+    private static ByteBuffer finishRecord(ByteBuffer record, Map<Integer, byte[]> images) {
+        int length = record.getInt(0);
+        for (Map.Entry<Integer, byte[]> image : images.entrySet()) {
+            record.putInt(image.getKey());
+            record.putInt(image.getValue().length);
+            record.put(image.getValue());
+        }
+        var crc = new CRC32();
+        crc.update(record.array(), RECORD_HEADER_SIZE, length);
+        record.putInt(Integer.BYTES, (int) crc.getValue());
+        record.flip();
+        return record;
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+    }
+
+    private static void readFully(FileChannel in, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            if (in.read(buf, position + buf.position()) < 0) {
+                throw new IOException("Unexpected end of the redo log.");
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package edu.umd.cs424.database.index;
+
+import edu.umd.cs424.database.common.Buffer;
+import edu.umd.cs424.database.databox.DataBox;
+import edu.umd.cs424.database.databox.Type;
+
+/**
+ * Helpers for comparing a key against a key that is still serialized on a
+ * page. InnerNode and LeafNode lay their keys out in fixed-width slots, which
+ * lets lookups binary search a page's Buffer directly instead of decoding every
+ * key into a DataBox first; see InnerNode.childPageNum and LeafNode.lookup.
+ */
+final class SerializedKeys {
+    private SerializedKeys() {}
+
+    /**
+     * Compares the key of type `type` serialized at byte `offset` of `buf` with
+     * `key`, returning a negative number, zero, or a positive number if the
+     * serialized key is less than, equal to, or greater than `key`.
+     *
+     * Fixed-size primitive keys are compared in place. Other keys are decoded,
+     * but only the one key being compared.
+     */
+    static int compare(Buffer buf, int offset, Type type, DataBox key) {
+        switch (type.getTypeId()) {
+            case INT:
+                return Integer.compare(buf.getInt(offset), key.getInt());
+            case LONG:
+                return Long.compare(buf.getLong(offset), key.getLong());
+            case FLOAT:
+                return Float.compare(buf.getFloat(offset), key.getFloat());
+            case BOOL:
+                return Boolean.compare(buf.get(offset) != 0, key.getBool());
+            default:
+                buf.position(offset);
+                return DataBox.fromBytes(buf, type).compareTo(key);
+        }
+    }
+
+    /**
+     * Returns the number of the `n` keys serialized at `offset`, `offset +
+     * stride`, ..., that are less than or equal to `key` (or strictly less than
+     * `key` if `strict` is true). The keys must be sorted.
+     */
+    static int countLessThan(Buffer buf, int offset, int stride, int n, Type type,
+                             DataBox key, boolean strict) {
+        int lo = 0;
+        int hi = n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compare(buf, offset + mid * stride, type, key);
+            if (cmp < 0 || (cmp == 0 && !strict)) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
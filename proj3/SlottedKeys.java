@@ -0,0 +1,230 @@
+package edu.umd.cs424.database.index;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+import edu.umd.cs424.database.common.Buffer;
+import edu.umd.cs424.database.databox.DataBox;
+import edu.umd.cs424.database.databox.StringDataBox;
+import edu.umd.cs424.database.databox.Type;
+import edu.umd.cs424.database.databox.TypeId;
+
+/**
+ * The serialization of the keys of a node of a B+ tree with slotted pages (see
+ * BPlusTreeMetadata.isSlotted), in which string keys take only as many bytes as
+ * they need instead of the full width of their type.
+ *
+ * The longest prefix shared by all the keys of the node (its head prefix) is
+ * written once, and then every key without it. The keys are written as
+ *
+ *   - the length of the head prefix (2 bytes) and the head prefix,
+ *   - one slot (2 bytes) per key, holding the offset in the page of its entry,
+ *   - the entries in key order, each the length of the key's suffix (2 bytes),
+ *     the suffix and the value that goes with the key (a record id in a leaf,
+ *     a child pointer in an inner node).
+ *
+ * For example, the keys "apple", "apply" and "apricot" of a leaf whose entries
+ * start at offset 30 are written as
+ *
+ *   +-------+-----+-------+-------+-------+-------+----+-----+-------+-----+-----+
+ *   | 00 02 | ap  | 00 1e | 00 27 | 00 30 | 00 03 | ple | rid | 00 03 | ... | ... |
+ *   +-------+-----+-------+-------+-------+-------+----+-----+-------+-----+-----+
+ *     head prefix           slots                   entry 0
+ *
+ * The slots let lookups binary search the keys on the page without decoding
+ * them (see countLessThan). Because keys vary in size, nodes with slotted
+ * pages are split and merged by their size in bytes rather than by their
+ * number of keys. Those decisions use fullSize, the size without the head
+ * prefix taken out, which never changes when keys move between nodes; the
+ * actual size is only ever smaller.
+ */
+final class SlottedKeys {
+    private SlottedKeys() {}
+
+    // The bytes of an entry besides its suffix and value: its slot and the
+    // length of its suffix.
+    static final int ENTRY_OVERHEAD = 2 * Short.BYTES;
+
+    /** Returns whether nodes with keys of type `keySchema` can use slotted pages. */
+    static boolean supports(Type keySchema) {
+        return keySchema.getTypeId() == TypeId.STRING;
+    }
+
+    /** Returns the most bytes that an entry with a value of `valueSize` bytes takes. */
+    static int maxEntrySize(Type keySchema, int valueSize) {
+        return ENTRY_OVERHEAD + keySchema.getSizeInBytes() + valueSize;
+    }
+
+    /** Returns the bytes of the entry of `key` without a head prefix. */
+    static int entrySize(DataBox key, int valueSize) {
+        return ENTRY_OVERHEAD + bytesOf(key.getString()).length + valueSize;
+    }
+
+    /** Returns the number of bytes `keys` would take without a head prefix. */
+    static int fullSize(List<DataBox> keys, int valueSize) {
+        int size = Short.BYTES;
+        for (DataBox key : keys) {
+            size += entrySize(key, valueSize);
+        }
+        return size;
+    }
+
+    /** Returns the number of bytes taken by `keys` and their values. */
+    static int size(List<DataBox> keys, int valueSize) {
+        String prefix = headPrefix(keys);
+        int prefixBytes = bytesOf(prefix).length;
+        int size = Short.BYTES + prefixBytes;
+        for (DataBox key : keys) {
+            size += entrySize(key, valueSize) - prefixBytes;
+        }
+        return size;
+    }
+
+    /** Returns the longest prefix of all of `keys`, which must be sorted. */
+    static String headPrefix(List<DataBox> keys) {
+        if (keys.isEmpty()) {
+            return "";
+        }
+        return commonPrefix(keys.get(0).getString(), keys.get(keys.size() - 1).getString());
+    }
+
+    /**
+     * Returns the shortest key s with left < s <= right, which separates the
+     * keys up to `left` from the keys from `right` on just as well as right
+     * does (suffix truncation). `left` must be less than `right`.
+     */
+    static DataBox separator(Type keySchema, DataBox left, DataBox right) {
+        String l = left.getString();
+        String r = right.getString();
+        int length = commonPrefix(l, r).length() + 1;
+        if (length < r.length() && Character.isHighSurrogate(r.charAt(length - 1))) {
+            ++length;
+        }
+        if (length >= r.length()) {
+            return right;
+        }
+        return new StringDataBox(r.substring(0, length), keySchema.getSizeInBytes());
+    }
+
+    /**
+     * Writes `keys`, which must be sorted, to `buf`, calling writeValue(i)
+     * after the suffix of the i-th key to write its value. The slots hold
+     * offsets from the start of `buf`, which must be the start of the page.
+     */
+    static void write(ByteBuffer buf, List<DataBox> keys, IntConsumer writeValue) {
+        String prefix = headPrefix(keys);
+        byte[] prefixBytes = bytesOf(prefix);
+        buf.putShort((short) prefixBytes.length);
+        buf.put(prefixBytes);
+
+        int slots = buf.position();
+        buf.position(slots + keys.size() * Short.BYTES);
+        for (int i = 0; i < keys.size(); ++i) {
+            buf.putShort(slots + i * Short.BYTES, (short) buf.position());
+            byte[] suffix = bytesOf(keys.get(i).getString().substring(prefix.length()));
+            buf.putShort((short) suffix.length);
+            buf.put(suffix);
+            writeValue.accept(i);
+        }
+    }
+
+    /**
+     * Reads `numKeys` keys of type `keySchema` from `buf`, appending them to
+     * `keys` and calling readValue(i) after the suffix of the i-th key to read
+     * its value.
+     */
+    static void read(Buffer buf, Type keySchema, int numKeys, List<DataBox> keys, IntConsumer readValue) {
+        String prefix = readString(buf, buf.getShort());
+        buf.position(buf.position() + numKeys * Short.BYTES);
+        for (int i = 0; i < numKeys; ++i) {
+            String suffix = readString(buf, buf.getShort());
+            keys.add(new StringDataBox(prefix + suffix, keySchema.getSizeInBytes()));
+            readValue.accept(i);
+        }
+    }
+
+    /**
+     * Returns the number of the `numKeys` keys written at `offset` of `buf`
+     * (see write) that are less than or equal to `key`, or strictly less than
+     * `key` if `strict`. Only the suffixes of the keys that the binary search
+     * visits are decoded.
+     */
+    static int countLessThan(Buffer buf, int offset, int numKeys, DataBox key, boolean strict) {
+        int prefixLength = buf.getShort(offset);
+        buf.position(offset + Short.BYTES);
+        String prefix = readString(buf, prefixLength);
+        String k = key.getString();
+        // Every key starts with the prefix, so a key that does not is either
+        // less or greater than all of them.
+        if (!k.startsWith(prefix)) {
+            return k.compareTo(prefix) < 0 ? 0 : numKeys;
+        }
+        String suffix = k.substring(prefix.length());
+
+        int slots = offset + Short.BYTES + prefixLength;
+        int lo = 0;
+        int hi = numKeys;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = suffixAt(buf, slots, mid).compareTo(suffix);
+            if (cmp < 0 || (cmp == 0 && !strict)) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Returns whether the i-th of the keys written at `offset` of `buf` equals
+     * `key`.
+     */
+    static boolean equalsAt(Buffer buf, int offset, int i, DataBox key) {
+        int prefixLength = buf.getShort(offset);
+        buf.position(offset + Short.BYTES);
+        String k = key.getString();
+        String prefix = readString(buf, prefixLength);
+        int slots = offset + Short.BYTES + prefixLength;
+        return k.startsWith(prefix) && suffixAt(buf, slots, i).equals(k.substring(prefix.length()));
+    }
+
+    /** Returns the offset of the value of the i-th of the keys written at `offset` of `buf`. */
+    static int valueOffset(Buffer buf, int offset, int i) {
+        int slots = offset + Short.BYTES + buf.getShort(offset);
+        int entry = buf.getShort(slots + i * Short.BYTES);
+        return entry + Short.BYTES + buf.getShort(entry);
+    }
+
+    private static String suffixAt(Buffer buf, int slots, int i) {
+        int entry = buf.getShort(slots + i * Short.BYTES);
+        int length = buf.getShort(entry);
+        buf.position(entry + Short.BYTES);
+        return readString(buf, length);
+    }
+
+    private static String commonPrefix(String a, String b) {
+        int n = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < n && a.charAt(i) == b.charAt(i)) {
+            ++i;
+        }
+        // Never cut a surrogate pair in half.
+        if (i > 0 && Character.isHighSurrogate(a.charAt(i - 1))) {
+            --i;
+        }
+        return a.substring(0, i);
+    }
+
+    private static byte[] bytesOf(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String readString(Buffer buf, int length) {
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,27 @@
+package edu.umd.cs424.database.index;
+
+import java.util.Iterator;
+
+import edu.umd.cs424.database.table.RecordId;
+
+/**
+ * The iterator of a snapshot scan (see BPlusTree.scanSnapshot). While it is
+ * open, writers keep the old versions of the nodes they change for it, so a
+ * scan that is not read to the end should be closed, for example with
+ * try-with-resources:
+ *
+ * try (SnapshotScan scan = tree.scanSnapshot(transaction, lowerBound, upperBound)) {
+ *     while (scan.hasNext()) { ... }
+ * }
+ *
+ * A scan is closed once it is exhausted, and one that is abandoned is closed
+ * when it is garbage collected.
+ */
+public interface SnapshotScan extends Iterator<RecordId>, AutoCloseable {
+    /**
+     * Closes the scan, after which hasNext returns false. Closing it again does
+     * nothing.
+     */
+    @Override
+    void close();
+}
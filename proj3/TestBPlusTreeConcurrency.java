@@ -0,0 +1,445 @@
+package edu.umd.cs424.database.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.umd.cs424.database.BaseTransaction;
+import edu.umd.cs424.database.concurrency.DummyLockContext;
+import edu.umd.cs424.database.databox.DataBox;
+import edu.umd.cs424.database.databox.IntDataBox;
+import edu.umd.cs424.database.databox.Type;
+import edu.umd.cs424.database.table.RecordId;
+
+/**
+ * Runs gets, puts, removes and short scans from many threads at once. Every
+ * thread owns the keys that are equal to its number modulo the number of
+ * threads, so it knows exactly which of them are in the tree, while the
+ * leaves it touches are shared with the other threads.
+ */
+public class TestBPlusTreeConcurrency {
+    static final BaseTransaction transaction = null;
+
+    static final int ORDER = 4;
+    static final int NUM_KEYS = 20000;
+    private static final int TOTAL_OPS = 200000;
+    private static final int SCAN_LENGTH = 32;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private BPlusTree getBPlusTree() throws BPlusTreeException, IOException {
+        String filename = new File(tempFolder.newFolder(), "tree").getAbsolutePath();
+        return new BPlusTree(filename, Type.intType(), ORDER, new DummyLockContext(), transaction);
+    }
+
+    static DataBox key(int k) {
+        return new IntDataBox(k);
+    }
+
+    static RecordId rid(int k) {
+        return new RecordId(k, (short) 0);
+    }
+
+    /** Loads keys 0 to NUM_KEYS - 1 and returns, per thread, the keys it owns. */
+    private static List<TreeSet<Integer>> load(BPlusTree tree, int numThreads) throws BPlusTreeException {
+        var owned = new ArrayList<TreeSet<Integer>>();
+        for (int t = 0; t < numThreads; ++t) {
+            owned.add(new TreeSet<>());
+        }
+        for (int k = 0; k < NUM_KEYS; ++k) {
+            tree.put(transaction, key(k), rid(k));
+            owned.get(k % numThreads).add(k);
+        }
+        return owned;
+    }
+
+    /**
+     * Runs `numOps` random operations on the keys of thread `t`, checking every
+     * result against `mine`, the keys of the thread that are in the tree.
+     */
+    private static void runMixed(BPlusTree tree, int t, int numThreads, TreeSet<Integer> mine, int numOps)
+    throws BPlusTreeException {
+        var random = new Random(t);
+        for (int i = 0; i < numOps; ++i) {
+            int k = random.nextInt(NUM_KEYS / numThreads) * numThreads + t;
+            int op = random.nextInt(10);
+            if (op < 5) {
+                Optional<RecordId> expected = mine.contains(k) ? Optional.of(rid(k)) : Optional.empty();
+                assertEquals(expected, tree.get(transaction, key(k)));
+            } else if (op < 7) {
+                if (mine.add(k)) {
+                    tree.put(transaction, key(k), rid(k));
+                }
+            } else if (op < 9) {
+                tree.remove(transaction, key(k));
+                mine.remove(k);
+            } else {
+                // The other threads change the keys in between, but not ours.
+                Iterator<RecordId> scan = tree.scanEnhanced(transaction, key(k), key(k + SCAN_LENGTH));
+                var seen = new TreeSet<Integer>();
+                int last = Integer.MIN_VALUE;
+                while (scan.hasNext()) {
+                    int next = scan.next().getPageNum();
+                    assertTrue("scan out of order", next > last);
+                    last = next;
+                    if (next % numThreads == t) {
+                        seen.add(next);
+                    }
+                }
+                assertEquals(mine.subSet(k, true, k + SCAN_LENGTH, true), seen);
+            }
+        }
+    }
+
+    /** Runs `task` on `numThreads` threads and waits for all of them. */
+    interface Task {
+        void run(int t) throws Exception;
+    }
+
+    static void runThreads(int numThreads, Task task) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        try {
+            var futures = new ArrayList<Future<?>>();
+            for (int t = 0; t < numThreads; ++t) {
+                int thread = t;
+                futures.add(pool.submit(() -> {
+                    task.run(thread);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /** Checks that the tree holds exactly the keys in `owned`. */
+    static void checkContents(BPlusTree tree, List<TreeSet<Integer>> owned) {
+        var expected = new TreeSet<Integer>();
+        owned.forEach(expected::addAll);
+        var actual = new ArrayList<Integer>();
+        tree.scanAll(transaction).forEachRemaining(rid -> actual.add(rid.getPageNum()));
+        assertEquals(new ArrayList<>(expected), actual);
+    }
+
+    @Test
+    public void testMixedWorkloadScales() throws Exception {
+        // Runs the same number of operations on more and more threads. How
+        // much faster they get depends on the number of cores, but latching
+        // must never make 32 threads slower than half of one.
+        double firstSeconds = 0;
+        double lastSeconds = 0;
+        for (int numThreads = 1; numThreads <= 32; numThreads *= 2) {
+            BPlusTree tree = getBPlusTree();
+            var owned = load(tree, numThreads);
+            int threads = numThreads;
+            long start = System.nanoTime();
+            runThreads(numThreads, t -> runMixed(tree, t, threads, owned.get(t), TOTAL_OPS / threads));
+            lastSeconds = (System.nanoTime() - start) / 1e9;
+            if (numThreads == 1) {
+                firstSeconds = lastSeconds;
+            }
+            checkContents(tree, owned);
+            tree.close();
+        }
+        assertTrue(String.format("32 threads took %.2fs, 1 thread %.2fs", lastSeconds, firstSeconds),
+                   lastSeconds < 2 * firstSeconds);
+    }
+
+    @Test
+    public void testConcurrentRemovesLeaveNoUnderflow() throws Exception {
+        // Removes that find the sibling of an underflowing node busy leave it
+        // for the tree to repair; afterwards every node but the root must have
+        // at least ORDER keys again.
+        int numThreads = 32;
+        BPlusTree tree = getBPlusTree();
+        var owned = load(tree, numThreads);
+        runThreads(numThreads, t -> {
+            var random = new Random(t);
+            TreeSet<Integer> mine = owned.get(t);
+            for (int k : new ArrayList<>(mine)) {
+                if (random.nextInt(10) < 3) {
+                    tree.remove(transaction, key(k));
+                    mine.remove(k);
+                }
+                if (random.nextInt(4) == 0) {
+                    tree.scanEnhanced(transaction, key(k), key(k + SCAN_LENGTH)).forEachRemaining(rid -> {});
+                }
+            }
+        });
+        checkContents(tree, owned);
+        checkNoUnderflow(parse(tree.toSexp(transaction), new int[1]), true);
+        tree.close();
+    }
+
+    @Test
+    public void testDescendingScansDuringSplitsAndMerges() throws Exception {
+        // Half of the threads keep putting and removing the odd keys, which
+        // splits and merges leaves, until the other half is done scanning the
+        // whole tree backwards. The even keys are never touched, so every scan
+        // must return all of them, and no key twice.
+        int numThreads = 8;
+        int numKeys = NUM_KEYS / 10;
+        BPlusTree tree = getBPlusTree();
+        for (int k = 0; k < numKeys; k += 2) {
+            tree.put(transaction, key(k), rid(k));
+        }
+        var scanning = new AtomicInteger(numThreads / 2);
+        runThreads(numThreads, t -> {
+            var random = new Random(t);
+            if (t % 2 == 0) {
+                var mine = new TreeSet<Integer>();
+                while (scanning.get() > 0) {
+                    int k = random.nextInt(numKeys / numThreads) * numThreads + t + 1;
+                    if (mine.add(k)) {
+                        tree.put(transaction, key(k), rid(k));
+                    } else {
+                        tree.remove(transaction, key(k));
+                        mine.remove(k);
+                    }
+                }
+                return;
+            }
+            try {
+                for (int i = 0; i < 500; ++i) {
+                    Iterator<RecordId> scan = tree.scanDescending(transaction, null, null);
+                    int last = Integer.MAX_VALUE;
+                    int numEven = 0;
+                    while (scan.hasNext()) {
+                        int next = scan.next().getPageNum();
+                        assertTrue("scan out of order: " + next + " after " + last, next < last);
+                        last = next;
+                        if (next % 2 == 0) {
+                            ++numEven;
+                        }
+                    }
+                    assertEquals(numKeys / 2, numEven);
+                }
+            } finally {
+                scanning.decrementAndGet();
+            }
+        });
+        tree.close();
+    }
+
+    @Test
+    public void testSnapshotsDuringSplitsAndMerges() throws Exception {
+        // As in testDescendingScansDuringSplitsAndMerges, but the scans are
+        // snapshot scans, which must not open halfway through a split or merge
+        // that the writer makes after releasing rootLatch. Every other scan
+        // starts halfway instead, from a leaf that may just have been merged
+        // away, and stops early; closing it must drop the versions kept for it.
+        int numThreads = 8;
+        int numKeys = NUM_KEYS / 10;
+        BPlusTree tree = getBPlusTree();
+        for (int k = 0; k < numKeys; k += 2) {
+            tree.put(transaction, key(k), rid(k));
+        }
+        var scanning = new AtomicInteger(numThreads / 2);
+        runThreads(numThreads, t -> {
+            var random = new Random(t);
+            if (t % 2 == 0) {
+                var mine = new TreeSet<Integer>();
+                while (scanning.get() > 0) {
+                    int k = random.nextInt(numKeys / numThreads) * numThreads + t + 1;
+                    if (mine.add(k)) {
+                        tree.put(transaction, key(k), rid(k));
+                    } else {
+                        tree.remove(transaction, key(k));
+                        mine.remove(k);
+                    }
+                }
+                return;
+            }
+            try {
+                for (int i = 0; i < 500; ++i) {
+                    int start = i % 2 == 0 ? 0 : random.nextInt(numKeys / 2) * 2;
+                    int stop = i % 2 == 0 ? numKeys : start + SCAN_LENGTH;
+                    try (SnapshotScan scan = tree.scanSnapshot(transaction, key(start), null)) {
+                        int last = start - 1;
+                        int numEven = 0;
+                        while (last < stop && scan.hasNext()) {
+                            int next = scan.next().getPageNum();
+                            assertTrue("scan out of order: " + next + " after " + last, next > last);
+                            last = next;
+                            if (next % 2 == 0) {
+                                ++numEven;
+                            }
+                        }
+                        assertEquals((Math.min(last, numKeys - 1) - start) / 2 + 1, numEven);
+                    }
+                }
+            } finally {
+                scanning.decrementAndGet();
+            }
+        });
+        assertEquals(0, tree.getNumSnapshotVersions());
+        tree.close();
+    }
+
+    @Test
+    public void testWriteRacingLastSnapshotClose() throws Exception {
+        // A writer that finds a snapshot open keeps a version for it. If the
+        // last snapshot closes while the writer is still decoding the old node,
+        // the close must wait for the version and drop it.
+        var versions = new PageVersions();
+        PageVersions.Snapshot snapshot = versions.open();
+        var decoding = new CountDownLatch(1);
+        var closing = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> writer = pool.submit(() -> versions.beforeWrite(1, () -> {
+                decoding.countDown();
+                try {
+                    closing.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return null;
+            }));
+            decoding.await();
+            Future<?> closer = pool.submit(snapshot::close);
+            // Give the close every chance to overtake the writer.
+            Thread.sleep(100);
+            closing.countDown();
+            writer.get();
+            closer.get();
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(0, versions.size());
+    }
+
+    @Test
+    public void testScanAcrossCompaction() throws Exception {
+        // A scan that is open when the tree is compacted goes on over the
+        // leaves of the old tree, so they must not be freed and reused by the
+        // puts after the compaction until the scan is over.
+        BPlusTree tree = getBPlusTree();
+        for (int k = 0; k < NUM_KEYS; k += 2) {
+            tree.put(transaction, key(k), rid(k));
+        }
+        Iterator<RecordId> scan = tree.scanAll(transaction);
+        int last = -1;
+        int numEven = 0;
+        while (last < NUM_KEYS / 4) {
+            last = scan.next().getPageNum();
+            ++numEven;
+        }
+        tree.compact(transaction, 1.0f);
+        for (int k = 1; k < NUM_KEYS; k += 2) {
+            tree.put(transaction, key(k), rid(k));
+        }
+        int numPages = tree.getNumPages();
+        while (scan.hasNext()) {
+            int next = scan.next().getPageNum();
+            assertTrue("scan out of order: " + next + " after " + last, next > last);
+            last = next;
+            if (next % 2 == 0) {
+                ++numEven;
+            }
+        }
+        assertEquals(NUM_KEYS / 2, numEven);
+        assertTrue("old tree not freed", tree.getNumPages() < numPages);
+        var expected = new TreeSet<Integer>();
+        for (int k = 0; k < NUM_KEYS; ++k) {
+            expected.add(k);
+        }
+        checkContents(tree, List.of(expected));
+        tree.close();
+    }
+
+    @Test
+    public void testRepeatedCompactionsReusePages() throws Exception {
+        // Churns a tree of a steady size and compacts it, over and over. Every
+        // compaction frees the pages of the tree before it, so once the file
+        // holds two trees' worth of pages it must stop growing.
+        BPlusTree tree = getBPlusTree();
+        var keys = new TreeSet<Integer>();
+        for (int k = 0; k < NUM_KEYS; ++k) {
+            tree.put(transaction, key(k), rid(k));
+            keys.add(k);
+        }
+        var random = new Random(0);
+        var fileSizes = new ArrayList<Integer>();
+        for (int round = 0; round < 6; ++round) {
+            for (int i = 0; i < NUM_KEYS / 4; ++i) {
+                int k = random.nextInt(2 * NUM_KEYS);
+                if (keys.remove(k)) {
+                    tree.remove(transaction, key(k));
+                } else {
+                    tree.put(transaction, key(k), rid(k));
+                    keys.add(k);
+                }
+            }
+            tree.compact(transaction, 1.0f);
+            fileSizes.add(tree.getNumPages() + tree.getSummary(transaction).getNumFreePages());
+        }
+        assertTrue("file keeps growing: " + fileSizes, fileSizes.get(5) <= fileSizes.get(2));
+        checkContents(tree, List.of(keys));
+        tree.close();
+    }
+
+    /**
+     * Parses the S-expression `s` returned by toSexp, starting at pos[0], into
+     * nested lists whose atoms are strings.
+     */
+    static Object parse(String s, int[] pos) {
+        if (s.charAt(pos[0]) != '(') {
+            int start = pos[0];
+            while (s.charAt(pos[0]) != ' ' && s.charAt(pos[0]) != ')') {
+                ++pos[0];
+            }
+            return s.substring(start, pos[0]);
+        }
+        ++pos[0];
+        var list = new ArrayList<Object>();
+        while (s.charAt(pos[0]) != ')') {
+            if (s.charAt(pos[0]) == ' ') {
+                ++pos[0];
+            } else {
+                list.add(parse(s, pos));
+            }
+        }
+        ++pos[0];
+        return list;
+    }
+
+    /**
+     * Checks that no node but the root in the parsed toSexp of a node holds
+     * fewer than ORDER keys. The entries of a leaf are lists that start with
+     * a key, while an inner node starts with its first child.
+     */
+    static void checkNoUnderflow(Object sexp, boolean isRoot) {
+        List<?> node = (List<?>) sexp;
+        boolean isLeaf = node.isEmpty() || !(((List<?>) node.get(0)).isEmpty()
+                                             || ((List<?>) node.get(0)).get(0) instanceof List);
+        int size = isLeaf ? node.size() : node.size() / 2;
+        assertTrue((isLeaf ? "leaf" : "inner node") + " with " + size + " keys", isRoot || size >= ORDER);
+        if (!isLeaf) {
+            for (int i = 0; i < node.size(); i += 2) {
+                checkNoUnderflow(node.get(i), false);
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package edu.umd.cs424.database.index;
+
+import static edu.umd.cs424.database.index.TestBPlusTreeConcurrency.NUM_KEYS;
+import static edu.umd.cs424.database.index.TestBPlusTreeConcurrency.ORDER;
+import static edu.umd.cs424.database.index.TestBPlusTreeConcurrency.checkContents;
+import static edu.umd.cs424.database.index.TestBPlusTreeConcurrency.key;
+import static edu.umd.cs424.database.index.TestBPlusTreeConcurrency.rid;
+import static edu.umd.cs424.database.index.TestBPlusTreeConcurrency.transaction;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.umd.cs424.database.common.Pair;
+import edu.umd.cs424.database.concurrency.DummyLockContext;
+import edu.umd.cs424.database.databox.DataBox;
+import edu.umd.cs424.database.databox.Type;
+import edu.umd.cs424.database.table.RecordId;
+
+/**
+ * Bulk loads unsorted pairs into trees, sorting them with an ExternalSorter
+ * (see BPlusTree.bulkLoadUnsorted).
+ */
+public class TestExternalSorter {
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private BPlusTree getBPlusTree() throws BPlusTreeException, IOException {
+        String filename = new File(tempFolder.newFolder(), "tree").getAbsolutePath();
+        return new BPlusTree(filename, Type.intType(), ORDER, new DummyLockContext(), transaction);
+    }
+
+    @Test
+    public void testUnsortedBulkLoadOnManyThreads() throws Exception {
+        // The runs of the sort are written by several worker threads at once,
+        // each to its own file, and merged in more than one pass.
+        var keys = new ArrayList<Integer>();
+        for (int k = 0; k < NUM_KEYS; ++k) {
+            keys.add(k);
+        }
+        Collections.shuffle(keys, new Random(0));
+        BPlusTree tree = getBPlusTree();
+        var pairs = new ArrayList<Pair<DataBox, RecordId>>();
+        for (int k : keys) {
+            pairs.add(new Pair<>(key(k), rid(k)));
+        }
+        tree.bulkLoadUnsorted(transaction, pairs.iterator(), 1.0f, 3, 8);
+        var expected = new TreeSet<Integer>(keys);
+        checkContents(tree, List.of(expected));
+        tree.close();
+    }
+}
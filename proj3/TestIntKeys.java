@@ -0,0 +1,120 @@
+package edu.umd.cs424.database.index;
+
+import static edu.umd.cs424.database.index.TestBPlusTreeConcurrency.NUM_KEYS;
+import static edu.umd.cs424.database.index.TestBPlusTreeConcurrency.rid;
+import static edu.umd.cs424.database.index.TestBPlusTreeConcurrency.transaction;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+import java.util.function.IntFunction;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.umd.cs424.database.concurrency.DummyLockContext;
+import edu.umd.cs424.database.databox.DataBox;
+import edu.umd.cs424.database.databox.FloatDataBox;
+import edu.umd.cs424.database.databox.IntDataBox;
+import edu.umd.cs424.database.databox.Type;
+import edu.umd.cs424.database.io.Page;
+
+/**
+ * Compares trees with integer keys, whose nodes keep their keys and record
+ * ids in primitive arrays (see NodeLists), with trees with float keys of the
+ * same width, whose nodes keep boxed DataBoxes, on the same puts, gets and
+ * scans: how long they take, and how many bytes they allocate.
+ */
+public class TestIntKeys {
+    private static final int SCAN_LENGTH = 100;
+
+    private static final String[] PHASES = {"put", "get", "scan"};
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    /**
+     * Puts keys 0 to NUM_KEYS - 1 in random order into a new tree with keys of
+     * type `type`, made by `key`, then gets every one of them, then scans
+     * SCAN_LENGTH keys from every one of them, all on this thread and without
+     * a node cache, so that every read decodes its nodes. Returns the seconds
+     * each phase took and the bytes it allocated.
+     */
+    private double[][] runPhases(Type type, IntFunction<DataBox> key) throws Exception {
+        var keys = new ArrayList<Integer>();
+        for (int k = 0; k < NUM_KEYS; ++k) {
+            keys.add(k);
+        }
+        Collections.shuffle(keys, new Random(0));
+        String filename = new File(tempFolder.newFolder(), "tree").getAbsolutePath();
+        var tree = new BPlusTree(filename, type, BPlusTree.maxOrder(Page.pageSize, type), new DummyLockContext(),
+                                 transaction);
+        tree.setNodeCacheCapacity(0);
+        var seconds = new double[PHASES.length];
+        var bytes = new double[PHASES.length];
+        for (int phase = 0; phase < PHASES.length; ++phase) {
+            long startBytes = allocatedBytes();
+            long start = System.nanoTime();
+            long numFound = 0;
+            for (int k : keys) {
+                if (phase == 0) {
+                    tree.put(transaction, key.apply(k), rid(k));
+                } else if (phase == 1) {
+                    numFound += tree.get(transaction, key.apply(k)).isPresent() ? 1 : 0;
+                } else {
+                    var it = tree.scanEnhanced(transaction, key.apply(k), key.apply(k + SCAN_LENGTH - 1));
+                    while (it.hasNext()) {
+                        it.next();
+                        ++numFound;
+                    }
+                }
+            }
+            seconds[phase] = (System.nanoTime() - start) / 1e9;
+            bytes[phase] = allocatedBytes() - startBytes;
+            if (phase > 0) {
+                long expected = phase == 1 ? NUM_KEYS : (long) NUM_KEYS * SCAN_LENGTH
+                                - (long) SCAN_LENGTH * (SCAN_LENGTH - 1) / 2;
+                assertEquals(expected, numFound);
+            }
+        }
+        tree.close();
+        return new double[][] {seconds, bytes};
+    }
+
+    private static long allocatedBytes() {
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Gets search the serialized pages in place on both paths (see
+     * LeafNode.lookup), so only puts and scans, which decode whole nodes, are
+     * expected to gain; gets must merely not get worse.
+     */
+    @Test
+    public void testIntKeysAreFasterAndAllocateLess() throws Exception {
+        // The first round only warms up the JIT for both kinds of trees.
+        double[][] ints = null;
+        double[][] floats = null;
+        for (int round = 0; round < 2; ++round) {
+            ints = runPhases(Type.intType(), IntDataBox::new);
+            floats = runPhases(Type.floatType(), k -> new FloatDataBox(k));
+        }
+        double[] seconds = ints[0], bytes = ints[1];
+        double[] floatSeconds = floats[0], floatBytes = floats[1];
+        assertTrue("put allocates " + bytes[0] + " bytes, " + floatBytes[0] + " with float keys",
+                   bytes[0] < 0.5 * floatBytes[0]);
+        assertTrue("scan allocates " + bytes[2] + " bytes, " + floatBytes[2] + " with float keys",
+                   bytes[2] < 0.5 * floatBytes[2]);
+        assertTrue("get allocates " + bytes[1] + " bytes, " + floatBytes[1] + " with float keys",
+                   bytes[1] < 1.5 * floatBytes[1]);
+        assertTrue("puts and scans take " + (seconds[0] + seconds[2]) + "s, "
+                   + (floatSeconds[0] + floatSeconds[2]) + "s with float keys",
+                   seconds[0] + seconds[2] < floatSeconds[0] + floatSeconds[2]);
+    }
+}
@@ -0,0 +1,195 @@
+package edu.umd.cs424.database.index;
+
+import static edu.umd.cs424.database.index.TestBPlusTreeConcurrency.NUM_KEYS;
+import static edu.umd.cs424.database.index.TestBPlusTreeConcurrency.ORDER;
+import static edu.umd.cs424.database.index.TestBPlusTreeConcurrency.checkContents;
+import static edu.umd.cs424.database.index.TestBPlusTreeConcurrency.key;
+import static edu.umd.cs424.database.index.TestBPlusTreeConcurrency.rid;
+import static edu.umd.cs424.database.index.TestBPlusTreeConcurrency.runThreads;
+import static edu.umd.cs424.database.index.TestBPlusTreeConcurrency.transaction;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.umd.cs424.database.concurrency.DummyLockContext;
+import edu.umd.cs424.database.databox.Type;
+
+/**
+ * Tests the redo log (see RedoLog and BPlusTree.setRedoLogged): its
+ * checkpoints, and what trees hold when they are opened again after the
+ * processes writing to them were killed.
+ */
+public class TestRedoLog {
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void testCheckpointCopiesOnlyDirtyPages() throws Exception {
+        // Writes pages straight through a log, checkpointing in between. Each
+        // checkpoint must only read the pages written since the one before,
+        // and the log must still bring every page up to date.
+        Path path = new File(tempFolder.newFolder(), "log").toPath();
+        var pages = new HashMap<Integer, byte[]>();
+        var log = new RedoLog();
+        log.open(path);
+        var numReads = new AtomicInteger();
+        IntFunction<byte[]> read = pageNum -> {
+            numReads.incrementAndGet();
+            return pages.get(pageNum);
+        };
+        int numPages = 100;
+        for (int round = 0; round < 3; ++round) {
+            for (int pageNum = 0; pageNum < numPages; ++pageNum) {
+                if (round == 0 || pageNum % 10 == round) {
+                    byte[] image = {(byte) round, (byte) pageNum};
+                    log.beforeWrite(pageNum, () -> new byte[2]);
+                    pages.put(pageNum, image);
+                    log.written(pageNum, image);
+                    log.commit();
+                }
+            }
+            numReads.set(0);
+            log.checkpoint(pageNum -> List.of(), read);
+            assertEquals(round == 0 ? numPages : numPages / 10, numReads.get());
+        }
+        numReads.set(0);
+        log.checkpoint(pageNum -> List.of(), read);
+        assertEquals(0, numReads.get());
+
+        var replayed = new HashMap<Integer, byte[]>();
+        RedoLog.replay(path, (image, pageNum) -> replayed.put(pageNum, image));
+        assertEquals(numPages, replayed.size());
+        for (int pageNum = 0; pageNum < numPages; ++pageNum) {
+            assertArrayEquals(pages.get(pageNum), replayed.get(pageNum));
+        }
+    }
+
+    @Test
+    public void testRecoveryAfterKill() throws Exception {
+        // Kills a process whose threads put keys into a logged tree, one of
+        // which compacts it halfway, at random points, then opens the tree
+        // again. It must hold every key whose put returned, and at most the
+        // next key of every thread besides, with every split and merge either
+        // done in full or not at all.
+        var random = new Random(0);
+        for (int run = 0; run < 6; ++run) {
+            String filename = new File(tempFolder.newFolder(), "tree").getAbsolutePath();
+            String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+            Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                                                 LoggedWriter.class.getName(), filename, Integer.toString(run))
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+            // The process prints a line once its tree is created, and then the
+            // key of every put that returns.
+            var ready = new CountDownLatch(1);
+            var acknowledged = ConcurrentHashMap.<Integer>newKeySet();
+            var reader = new Thread(() -> {
+                try (var lines = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                    String line = lines.readLine();
+                    ready.countDown();
+                    while ((line = lines.readLine()) != null) {
+                        acknowledged.add(Integer.parseInt(line));
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            reader.start();
+            ready.await();
+            Thread.sleep(random.nextInt(4000));
+            // Unlike Process.destroyForcibly, this leaves the lines that are still
+            // in the pipe to be read.
+            process.toHandle().destroyForcibly();
+            process.waitFor();
+            reader.join();
+
+            var inFlight = new TreeSet<Integer>();
+            List<Integer> keys = LoggedWriter.keys(run);
+            for (int t = 0; t < LoggedWriter.NUM_THREADS; ++t) {
+                int i = t;
+                while (i < keys.size() && acknowledged.contains(keys.get(i))) {
+                    i += LoggedWriter.NUM_THREADS;
+                }
+                if (i < keys.size()) {
+                    inFlight.add(keys.get(i));
+                }
+            }
+            var tree = new BPlusTree(filename, new DummyLockContext(), transaction);
+            var expected = new TreeSet<Integer>(acknowledged);
+            tree.scanAll(transaction).forEachRemaining(rid -> {
+                if (inFlight.contains(rid.getPageNum())) {
+                    expected.add(rid.getPageNum());
+                }
+            });
+            checkContents(tree, List.of(expected));
+            int numMore = NUM_KEYS / 10;
+            for (int k : keys) {
+                if (numMore > 0 && expected.add(k)) {
+                    tree.put(transaction, key(k), rid(k));
+                    --numMore;
+                }
+            }
+            checkContents(tree, List.of(expected));
+            tree.close();
+        }
+    }
+
+    /** The process killed by testRecoveryAfterKill. */
+    public static class LoggedWriter {
+        static final int NUM_THREADS = 4;
+
+        /**
+         * Returns the keys that run `run` puts. Thread t puts the ones at
+         * indexes t, t + NUM_THREADS and so on, in that order.
+         */
+        static List<Integer> keys(int run) {
+            var keys = new ArrayList<Integer>();
+            for (int k = 0; k < NUM_KEYS; ++k) {
+                keys.add(k);
+            }
+            Collections.shuffle(keys, new Random(run));
+            return keys;
+        }
+
+        public static void main(String[] args) throws Exception {
+            var tree = new BPlusTree(args[0], Type.intType(), ORDER, new DummyLockContext(), transaction);
+            tree.setRedoLogged(transaction, true);
+            tree.setCheckpointInterval(1 << 20);
+            System.out.println("ready");
+            System.out.flush();
+            List<Integer> keys = keys(Integer.parseInt(args[1]));
+            runThreads(NUM_THREADS, t -> {
+                for (int i = t; i < keys.size(); i += NUM_THREADS) {
+                    if (t == 0 && i >= keys.size() / 2 && i < keys.size() / 2 + NUM_THREADS) {
+                        tree.compact(transaction, 1.0f);
+                    }
+                    tree.put(transaction, key(keys.get(i)), rid(keys.get(i)));
+                    System.out.println(keys.get(i));
+                    System.out.flush();
+                }
+            });
+            // Wait to be killed.
+            Thread.sleep(Long.MAX_VALUE);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package edu.umd.cs424.database.index;
+
+import static edu.umd.cs424.database.index.TestBPlusTreeConcurrency.NUM_KEYS;
+import static edu.umd.cs424.database.index.TestBPlusTreeConcurrency.checkContents;
+import static edu.umd.cs424.database.index.TestBPlusTreeConcurrency.rid;
+import static edu.umd.cs424.database.index.TestBPlusTreeConcurrency.transaction;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.umd.cs424.database.concurrency.DummyLockContext;
+import edu.umd.cs424.database.databox.StringDataBox;
+import edu.umd.cs424.database.databox.Type;
+import edu.umd.cs424.database.io.Page;
+
+/**
+ * Builds trees with slotted pages (see BPlusTree.setSlottedPages and
+ * SlottedKeys), whose nodes hold variable-length keys.
+ */
+public class TestSlottedKeys {
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void testSlottedPagesFanout() throws Exception {
+        // Builds an index on URLs in a padded string column with fixed-width
+        // and with slotted pages; the slotted leaves must hold at least twice
+        // the pairs. Then removes most of the URLs again from the slotted tree,
+        // which shifts entries between nodes under separators of varying
+        // lengths.
+        Type type = Type.stringType(100);
+        int order = BPlusTree.maxOrder(Page.pageSize, type);
+        var urls = new ArrayList<String>();
+        for (int i = 0; i < NUM_KEYS; ++i) {
+            urls.add(String.format("https://www.example.com/users/%08d/profile", i));
+        }
+        var random = new Random(0);
+        var shuffled = new ArrayList<Integer>();
+        for (int i = 0; i < NUM_KEYS; ++i) {
+            shuffled.add(i);
+        }
+        Collections.shuffle(shuffled, random);
+        var summaries = new ArrayList<BPlusTreeMetrics.Summary>();
+        BPlusTree slotted = null;
+        for (boolean isSlotted : new boolean[] {false, true}) {
+            String filename = new File(tempFolder.newFolder(), "tree").getAbsolutePath();
+            BPlusTree tree = new BPlusTree(filename, type, order, new DummyLockContext(), transaction);
+            tree.setSlottedPages(transaction, isSlotted);
+            for (int i : shuffled) {
+                tree.put(transaction, new StringDataBox(urls.get(i), 100), rid(i));
+            }
+            BPlusTreeMetrics.Summary summary = tree.getSummary(transaction);
+            summaries.add(summary);
+            if (isSlotted) {
+                slotted = tree;
+            } else {
+                tree.close();
+            }
+        }
+        assertTrue("slotted leaves hold fewer than twice the pairs",
+                   summaries.get(1).getNumLeaves() * 2 <= summaries.get(0).getNumLeaves());
+        assertTrue("slotted tree is deeper", summaries.get(1).getHeight() <= summaries.get(0).getHeight());
+
+        var kept = new TreeSet<Integer>();
+        for (int i : shuffled) {
+            if (random.nextInt(10) == 0) {
+                kept.add(i);
+            } else {
+                slotted.remove(transaction, new StringDataBox(urls.get(i), 100));
+            }
+        }
+        checkContents(slotted, List.of(kept));
+        slotted.close();
+    }
+}
@@ -0,0 +1,109 @@
+package edu.umd.cs424.database.index;
+
+import static edu.umd.cs424.database.index.TestBPlusTreeConcurrency.NUM_KEYS;
+import static edu.umd.cs424.database.index.TestBPlusTreeConcurrency.ORDER;
+import static edu.umd.cs424.database.index.TestBPlusTreeConcurrency.checkContents;
+import static edu.umd.cs424.database.index.TestBPlusTreeConcurrency.checkNoUnderflow;
+import static edu.umd.cs424.database.index.TestBPlusTreeConcurrency.key;
+import static edu.umd.cs424.database.index.TestBPlusTreeConcurrency.parse;
+import static edu.umd.cs424.database.index.TestBPlusTreeConcurrency.rid;
+import static edu.umd.cs424.database.index.TestBPlusTreeConcurrency.runThreads;
+import static edu.umd.cs424.database.index.TestBPlusTreeConcurrency.transaction;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.umd.cs424.database.concurrency.DummyLockContext;
+import edu.umd.cs424.database.databox.Type;
+
+/**
+ * Puts and removes keys from many threads at once in trees with write buffers
+ * (see BPlusTree.setWriteBuffered), and compares them with trees without.
+ */
+public class TestWriteBuffers {
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private BPlusTree getBPlusTree() throws BPlusTreeException, IOException {
+        String filename = new File(tempFolder.newFolder(), "tree").getAbsolutePath();
+        return new BPlusTree(filename, Type.intType(), ORDER, new DummyLockContext(), transaction);
+    }
+
+    /**
+     * Puts keys 0 to NUM_KEYS - 1 on `numThreads` threads, each its own share
+     * of them in random order, and then removes three quarters of them again,
+     * with or without write buffers. Afterwards the tree must hold exactly the
+     * keys left, and the nodes emptied by the removes must have been merged.
+     * Returns how long the writes took in seconds, and how many pages they
+     * wrote.
+     */
+    private double[] runWrites(boolean buffered, int numThreads) throws Exception {
+        BPlusTree tree = getBPlusTree();
+        tree.setWriteBuffered(transaction, buffered);
+        var owned = new ArrayList<TreeSet<Integer>>();
+        for (int t = 0; t < numThreads; ++t) {
+            owned.add(new TreeSet<>());
+        }
+        long start = System.nanoTime();
+        runThreads(numThreads, t -> {
+            var random = new Random(t);
+            var keys = new ArrayList<Integer>();
+            for (int k = t; k < NUM_KEYS; k += numThreads) {
+                keys.add(k);
+            }
+            Collections.shuffle(keys, random);
+            for (int k : keys) {
+                tree.put(transaction, key(k), rid(k));
+            }
+            TreeSet<Integer> mine = owned.get(t);
+            for (int k : keys) {
+                if (random.nextInt(4) == 0) {
+                    mine.add(k);
+                } else {
+                    tree.remove(transaction, key(k));
+                }
+            }
+        });
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long pageWrites = tree.getMetrics().getPageWrites();
+        tree.setWriteBuffered(transaction, false);
+        checkContents(tree, owned);
+        checkNoUnderflow(parse(tree.toSexp(transaction), new int[1]), true);
+        tree.close();
+        return new double[] {seconds, pageWrites};
+    }
+
+    @Test
+    public void testBufferedWritesScale() throws Exception {
+        // Over 1, 4 and 16 threads, buffered writes must take less time in all
+        // than unbuffered ones, and write less than half as many pages. Both
+        // run once first, so that neither pays for compiling the code they
+        // share.
+        runWrites(false, 4);
+        runWrites(true, 4);
+        double[] unbuffered = new double[2];
+        double[] buffered = new double[2];
+        for (int numThreads = 1; numThreads <= 16; numThreads *= 4) {
+            for (boolean isBuffered : new boolean[] {false, true}) {
+                double[] result = runWrites(isBuffered, numThreads);
+                double[] total = isBuffered ? buffered : unbuffered;
+                total[0] += result[0];
+                total[1] += result[1];
+            }
+        }
+        assertTrue(String.format("buffered writes took %.2f s, unbuffered ones %.2f s", buffered[0], unbuffered[0]),
+                   buffered[0] < unbuffered[0]);
+        assertTrue(String.format("buffered writes wrote %.0f pages, unbuffered ones %.0f", buffered[1],
+                                 unbuffered[1]),
+                   buffered[1] * 2 < unbuffered[1]);
+    }
+}
@@ -49,6 +49,9 @@ public class INLJOperator extends JoinOperator {
 
         // The current record from the left relation
         private Record leftRecord;
+        // The records of the right relation that match leftRecord and have not
+        // been joined with it yet
+        private Iterator<Record> rightMatches;
         // The next record to return
         private Record nextRecord;
 
@@ -57,47 +60,37 @@ public class INLJOperator extends JoinOperator {
             super();
             this.leftSourceIterator = INLJOperator.this.getRecordIterator(this.getLeftTableName());
             leftRecord = null;
+            rightMatches = null;
         }
 
         /**
          * Returns the next record that should be yielded from this sjoin,
          * or null if there are no more records to join.
-         * 
+         *
          * NOTE: To implement this, take a look at IndexScanOperator's constructor
          * on how to lookup a key on a table using the transaction.
          */
         private Record fetchNextRecord() throws DatabaseException {
-            if (this.leftSourceIterator.hasNext()) {
+            // The join column need not be unique, so a left record may match any
+            // number of right records. They are streamed from the index one at a
+            // time before moving on to the next left record.
+            while (rightMatches == null || !rightMatches.hasNext()) {
+                if (!this.leftSourceIterator.hasNext()) {
+                    // there is no more records to compare from the left table
+                    return null;
+                }
                 leftRecord = this.leftSourceIterator.next();
-            } else {
-                // there is no more records to compare from the left table
-                return null;
-            }
-            // I'm thinking to get a iterator of records that equal the value of join column
-            // through the index and iterator through return records.
-            while(true) {
                 DataBox joinValue = leftRecord.getValues().get(INLJOperator.this.getLeftColumnIndex());
-                IndexScanOperator s;
-                Iterator<Record> index_iterator = null;
                 try {
-                    s = new IndexScanOperator(INLJOperator.this.getTransaction(), this.getRightTableName(),
-                            INLJOperator.this.getRightColumnName(), QueryPlan.PredicateOperator.EQUALS, joinValue);
-                    index_iterator = s.iterator();
+                    IndexScanOperator s = new IndexScanOperator(INLJOperator.this.getTransaction(),
+                            this.getRightTableName(), INLJOperator.this.getRightColumnName(),
+                            QueryPlan.PredicateOperator.EQUALS, joinValue);
+                    rightMatches = s.iterator();
                 } catch (QueryPlanException e) {
                     throw new RuntimeException(e);
                 }
-                // Since there can be at most one match
-                if (index_iterator.hasNext()) {
-                    return generateJoinRecord(leftRecord, index_iterator.next());
-                } else if (leftSourceIterator.hasNext()) {
-                    // ith record didn't have a match move onto the next one b/c there is one
-                    leftRecord = leftSourceIterator.next();
-                } else {
-                    // no more left records to check
-                    return null;
-                }
             }
-
+            return generateJoinRecord(leftRecord, rightMatches.next());
         }
 
         @Override